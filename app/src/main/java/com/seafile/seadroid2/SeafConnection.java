@@ -11,15 +11,22 @@ import android.util.Pair;
 
 import com.github.kevinsawicki.http.HttpRequest;
 import com.github.kevinsawicki.http.HttpRequest.HttpRequestException;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.seafile.seadroid2.account.Account;
+import com.seafile.seadroid2.data.ArchiveExtractor;
 import com.seafile.seadroid2.data.Block;
 import com.seafile.seadroid2.data.DataManager;
 import com.seafile.seadroid2.data.FileBlocks;
 import com.seafile.seadroid2.data.ProgressMonitor;
+import com.seafile.seadroid2.data.UploadLinkCache;
 import com.seafile.seadroid2.ssl.SSLTrustManager;
+import com.seafile.seadroid2.transfer.BandwidthShaper;
+import com.seafile.seadroid2.transfer.TransferMetrics;
 import com.seafile.seadroid2.util.Utils;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -28,12 +35,14 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URLEncoder;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLHandshakeException;
@@ -48,6 +57,7 @@ public class SeafConnection {
     private static final String DEBUG_TAG = "SeafConnection";
     private static final int CONNECTION_TIMEOUT = 15000;
     private static final int READ_TIMEOUT = 30000;
+    private static final long ARCHIVE_POLL_INTERVAL = 500;
 
     private Account account;
 
@@ -277,6 +287,28 @@ public class SeafConnection {
         }
     }
 
+    /**
+     * Get a single library, which is much cheaper than listing all of them
+     *
+     * @return the json of the library
+     * @throws SeafException with code 404 if the library doesn't exist
+     */
+    public String getRepo(String repoID) throws SeafException {
+        HttpRequest req = null;
+        try {
+            req = prepareApiGetRequest(String.format("api2/repos/%s/", repoID));
+            checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
+
+            return new String(req.bytes(), "UTF-8");
+        } catch (SeafException e) {
+            throw e;
+        } catch (HttpRequestException e) {
+            throw getSeafExceptionFromHttpRequestException(e);
+        } catch (IOException e) {
+            throw SeafException.networkException;
+        }
+    }
+
     public String getEvents(int start) throws SeafException {
         try {
             String apiPath = String.format("api2/events/");
@@ -429,6 +461,7 @@ public class SeafConnection {
     }
 
     private Pair<String, String> getDownloadLink(String repoID, String path) throws SeafException {
+        final long start = System.nanoTime();
         try {
             String apiPath = String.format("api2/repos/%s/file/", repoID);
             Map<String, Object> params = Maps.newHashMap();
@@ -443,6 +476,7 @@ public class SeafConnection {
             // should return "\"http://gonggeng.org:8082/...\"" or "\"https://gonggeng.org:8082/...\"
             if (result.startsWith("\"http") && fileID != null) {
                 String url = result.substring(1, result.length() - 1);
+                TransferMetrics.getInstance().recordSince(TransferMetrics.DOWNLOAD_LINK, start);
                 return new Pair<String, String>(url, fileID);
             } else {
                 throw SeafException.illFormatException;
@@ -489,10 +523,13 @@ public class SeafConnection {
     private String getBlockDownloadLink(String repoID, String fileId, String blockId) throws SeafException, IOException {
         try {
             String apiPath = String.format("api2/repos/%s/files/%s/blks/%s/download-link/", repoID, fileId, blockId);
+            final long start = System.nanoTime();
             HttpRequest req = prepareApiGetRequest(apiPath, null);
             checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
 
-            return new String(req.bytes(), "UTF-8");
+            String link = new String(req.bytes(), "UTF-8");
+            TransferMetrics.getInstance().recordSince(TransferMetrics.DOWNLOAD_LINK, start);
+            return link;
         } catch (SeafException | IOException e) {
             throw e;
         } catch (HttpRequestException e) {
@@ -532,13 +569,176 @@ public class SeafConnection {
             Log.d(DEBUG_TAG, "UploadLink " + url);
             return uploadBlocksCommon(url, repoID, dir, filePath, blocks, monitor, update);
         } catch (SeafException e) {
-            // do again
+            if (e == SeafException.userCancelledException) {
+                throw e;
+            }
+            // do again, with a new link if the upload server refused the cached one
+            TransferMetrics.getInstance().count(TransferMetrics.UPLOAD_RETRY);
+            onUploadLinkError(repoID, update, true, e);
             String url = getUploadLink(repoID, update, true);
             Log.d(DEBUG_TAG, "do again UploadLink " + url);
             return uploadBlocksCommon(url, repoID, dir, filePath, blocks, monitor, update);
         }
     }
 
+    /**
+     * Upload only the new blocks of an edited file and commit the complete block list, so that
+     * blocks the server has already are reused.
+     * <p/>
+     * The server is sent the block list first and answers which blocks it is missing. The missing
+     * blocks are uploaded raw, then the file is committed as the list of block ids.
+     *
+     * @param blocks all blocks of the file in order
+     * @param newBlocks the blocks which were encrypted into temp files
+     * @return the new file id, or null if the server doesn't support committing a block list
+     *          or misses a block which is not among the new blocks
+     */
+    public String uploadBlockDelta(String repoID, String dir, String filePath, List<Block> blocks,
+                                   List<Block> newBlocks, boolean update, ProgressMonitor monitor)
+                                    throws SeafException {
+        List<String> blockIds = Lists.newArrayListWithCapacity(blocks.size());
+        for (Block block : blocks) {
+            blockIds.add(block.blockId);
+        }
+
+        try {
+            final long start = System.nanoTime();
+            HttpRequest req = prepareApiPostRequest("api2/repos/" + repoID + "/upload-blks-link/", true, null);
+            req.form("blklist", Joiner.on(',').join(blockIds));
+            try {
+                checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
+            } catch (SeafException e) {
+                if (e.getCode() == HttpURLConnection.HTTP_BAD_REQUEST
+                        || e.getCode() == HttpURLConnection.HTTP_NOT_FOUND
+                        || e.getCode() == HttpURLConnection.HTTP_BAD_METHOD) {
+                    Log.d(DEBUG_TAG, "Server doesn't support block list commits: " + e.getMessage());
+                    return null;
+                }
+                throw e;
+            }
+            TransferMetrics.getInstance().recordSince(TransferMetrics.UPLOAD_LINK, start);
+
+            JSONObject obj = new JSONObject(new String(req.bytes(), "UTF-8"));
+            String rawBlocksUrl = obj.optString("rawblksurl", null);
+            String commitUrl = obj.optString("commiturl", null);
+            JSONArray needed = obj.optJSONArray("blklist");
+            if (rawBlocksUrl == null || commitUrl == null || needed == null) {
+                return null;
+            }
+
+            Map<String, Block> newBlocksById = Maps.newHashMap();
+            for (Block block : newBlocks) {
+                newBlocksById.put(block.blockId, block);
+            }
+            List<Block> toUpload = Lists.newArrayList();
+            for (int i = 0; i < needed.length(); i++) {
+                Block block = newBlocksById.remove(needed.getString(i));
+                if (block == null) {
+                    // a reused block is gone from the server, only the whole file can be uploaded now
+                    return null;
+                }
+                toUpload.add(block);
+            }
+
+            if (!toUpload.isEmpty()) {
+                uploadRawBlocks(rawBlocksUrl, toUpload, monitor);
+            }
+            return commitBlocks(commitUrl, dir, new File(filePath), blockIds, update);
+        } catch (IOException e) {
+            throw SeafException.networkException;
+        } catch (JSONException e) {
+            throw SeafException.illFormatException;
+        } catch (HttpRequestException e) {
+            if (e.getCause() instanceof MonitorCancelledException) {
+                Log.d(DEBUG_TAG, "upload is cancelled");
+                throw SeafException.userCancelledException;
+            } else {
+                throw getSeafExceptionFromHttpRequestException(e);
+            }
+        }
+    }
+
+    /**
+     * Upload encrypted blocks without assembling them into a file, named by their block id
+     */
+    private void uploadRawBlocks(String link, List<Block> blocks, final ProgressMonitor monitor)
+            throws SeafException, IOException {
+        HttpRequest req = HttpRequest.post(link, null, false).followRedirects(true).connectTimeout(CONNECTION_TIMEOUT);
+        prepareHttpsCheck(req);
+
+        // the content length must be known in advance, see uploadFileCommon()
+        long totalLen = 0;
+        List<byte[]> headers = Lists.newArrayListWithCapacity(blocks.size());
+        for (Block block : blocks) {
+            String header = TWO_HYPENS + BOUNDARY + CRLF
+                    + "Content-Disposition: form-data; name=\"file\";filename=\"" + block.blockId + "\"" + CRLF
+                    + "Content-Type: application/octet-stream" + CRLF
+                    + CRLF;
+            byte[] headerBytes = header.getBytes("UTF-8");
+            headers.add(headerBytes);
+            totalLen += headerBytes.length + new File(block.path).length() + CRLF.length();
+        }
+        String end = TWO_HYPENS + BOUNDARY + TWO_HYPENS + CRLF;
+        totalLen += end.length();
+
+        req.contentLength((int) totalLen);
+        req.header("Connection", "close");
+        req.header("Cache-Control", "no-cache");
+        req.header("Content-Type", "multipart/form-data;boundary=" + BOUNDARY);
+
+        long sent = 0;
+        for (int i = 0; i < blocks.size(); i++) {
+            File blk = new File(blocks.get(i).path);
+            req.send(headers.get(i));
+            if (monitor != null) {
+                final long offset = sent;
+                req.bufferSize(MonitoredFileInputStream.BUFFER_SIZE);
+                req.send(new MonitoredFileInputStream(blk, new ProgressMonitor() {
+                    @Override
+                    public void onProgressNotify(long total, boolean updateTotal) {
+                        monitor.onProgressNotify(offset + total, updateTotal);
+                    }
+
+                    @Override
+                    public boolean isCancelled() {
+                        return monitor.isCancelled();
+                    }
+                }));
+            } else {
+                req.send(new FileInputStream(blk));
+            }
+            req.send(CRLF);
+            sent += blk.length();
+        }
+        req.send(end);
+
+        checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
+    }
+
+    /**
+     * Create or replace the file as the given list of blocks, which the server must have already
+     *
+     * @return the new file id
+     */
+    private String commitBlocks(String link, String dir, File file, List<String> blockIds, boolean update)
+            throws SeafException, IOException {
+        HttpRequest req = HttpRequest.post(link, null, false).followRedirects(true).connectTimeout(CONNECTION_TIMEOUT);
+        prepareHttpsCheck(req);
+
+        if (update) {
+            req.part("replace", "1");
+        }
+        req.part("parent_dir", dir);
+        req.part("file_name", file.getName());
+        req.part("file_size", String.valueOf(file.length()));
+        req.part("blockids", new JSONArray(blockIds).toString());
+
+        checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
+
+        //result file_id "3f0da9a0709c5fb9f23957608dabef01becc3a8c"
+        return new String(req.bytes(), "UTF-8").replaceAll("\"", "");
+    }
+
     private File getFileFromLink(String dlink, String path, String localPath,
                                  String oid, ProgressMonitor monitor)
                                     throws SeafException {
@@ -552,8 +752,10 @@ public class SeafConnection {
             String quoted = dlink.substring(0, i) + "/" +
                     URLEncoder.encode(dlink.substring(i+1), "UTF-8");
 
+            final long start = System.nanoTime();
             HttpRequest req = prepareApiFileGetRequest(quoted);
             checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
+            TransferMetrics.getInstance().recordSince(TransferMetrics.DOWNLOAD_TTFB, start);
 
             if (monitor != null) {
                 /*if (req.header(HttpRequest.HEADER_CONTENT_LENGTH) == null) {
@@ -605,8 +807,10 @@ public class SeafConnection {
 
         try {
 
+            final long start = System.nanoTime();
             HttpRequest req = prepareApiFileGetRequest(dlink);
             checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
+            TransferMetrics.getInstance().recordSince(TransferMetrics.DOWNLOAD_TTFB, start);
 
             if (monitor != null) {
                 /*if (req.header(HttpRequest.HEADER_CONTENT_LENGTH) == null) {
@@ -682,6 +886,96 @@ public class SeafConnection {
         }
     }
 
+    /**
+     * Download a directory as one zip archive packed by the server and extract it while it arrives.
+     * The archive holds the directory itself, e.g. "photos/2016/a.jpg" for the directory "/photos".
+     *
+     * @param parentDir the parent of the directory to download
+     * @param dirName name of the directory to download
+     * @param targetDir the local counterpart of parentDir
+     * @param skipped paths relative to parentDir which are not extracted
+     * @return the paths of the extracted files relative to parentDir,
+     *         or null if the server doesn't support directory downloads
+     */
+    public List<String> getDirArchive(String repoID, String parentDir, String dirName, File targetDir,
+                                      Set<String> skipped, ProgressMonitor monitor) throws SeafException {
+        try {
+            Map<String, Object> params = Maps.newHashMap();
+            params.put("parent_dir", encodeUriComponent(parentDir));
+            params.put("dirents", encodeUriComponent(dirName));
+            HttpRequest req = prepareApiGetRequest(String.format("api/v2.1/repos/%s/zip-task/", repoID), params);
+            try {
+                checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
+            } catch (SeafException e) {
+                if (e.getCode() == HttpURLConnection.HTTP_NOT_FOUND
+                        || e.getCode() == HttpURLConnection.HTTP_BAD_METHOD) {
+                    Log.d(DEBUG_TAG, "Server doesn't support directory downloads: " + e.getMessage());
+                    return null;
+                }
+                throw e;
+            }
+            String token = new JSONObject(new String(req.bytes(), "UTF-8")).optString("zip_token", null);
+            if (token == null) {
+                throw SeafException.illFormatException;
+            }
+
+            waitForArchive(token, monitor);
+
+            // the file server is mounted at /seafhttp in the default deployment
+            final long start = System.nanoTime();
+            req = prepareApiFileGetRequest(account.server + "seafhttp/zip/" + token);
+            checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
+            TransferMetrics.getInstance().recordSince(TransferMetrics.DOWNLOAD_TTFB, start);
+
+            InputStream in = req.bufferSize(ArchiveExtractor.BUFFER_SIZE).stream();
+            try {
+                return new ArchiveExtractor(targetDir, skipped, monitor).extract(in);
+            } finally {
+                in.close();
+            }
+        } catch (SeafException e) {
+            throw e;
+        } catch (InterruptedIOException e) {
+            throw SeafException.userCancelledException;
+        } catch (UnsupportedEncodingException e) {
+            throw SeafException.encodingException;
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw SeafException.networkException;
+        } catch (JSONException e) {
+            throw SeafException.illFormatException;
+        } catch (HttpRequestException e) {
+            throw getSeafExceptionFromHttpRequestException(e);
+        }
+    }
+
+    /**
+     * The server packs the archive in the background, wait until it's complete
+     */
+    private void waitForArchive(String token, ProgressMonitor monitor)
+            throws SeafException, IOException, JSONException {
+        Map<String, Object> params = Maps.newHashMap();
+        params.put("token", token);
+        while (true) {
+            HttpRequest req = prepareApiGetRequest("api/v2.1/query-zip-progress/", params);
+            checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
+            JSONObject obj = new JSONObject(new String(req.bytes(), "UTF-8"));
+            if (obj.optInt("zipped") >= obj.optInt("total")) {
+                return;
+            }
+
+            if (monitor != null && monitor.isCancelled()) {
+                throw SeafException.userCancelledException;
+            }
+            try {
+                Thread.sleep(ARCHIVE_POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw SeafException.userCancelledException;
+            }
+        }
+    }
+
     // set password for an encrypted repo
     public void setPassword(String repoID, String passwd) throws SeafException {
         try {
@@ -703,7 +997,31 @@ public class SeafConnection {
         return getUploadLink(repoID, update, false);
     }
 
+    /**
+     * Get an upload link, from {@link UploadLinkCache} if possible
+     */
     private String getUploadLink(String repoID, boolean update, boolean byblock) throws SeafException {
+        UploadLinkCache cache = UploadLinkCache.getInstance();
+        String link = cache.get(account, repoID, update, byblock);
+        if (link == null) {
+            final long start = System.nanoTime();
+            link = requestUploadLink(repoID, update, byblock);
+            TransferMetrics.getInstance().recordSince(TransferMetrics.UPLOAD_LINK, start);
+            cache.put(account, repoID, update, byblock, link);
+        }
+        return link;
+    }
+
+    /**
+     * A 4xx status from the upload server means the link expired or is not valid for the repo any more
+     */
+    private void onUploadLinkError(String repoID, boolean update, boolean byblock, SeafException e) {
+        if (e.getCode() >= 400 && e.getCode() < 500) {
+            UploadLinkCache.getInstance().invalidate(account, repoID, update, byblock);
+        }
+    }
+
+    private String requestUploadLink(String repoID, boolean update, boolean byblock) throws SeafException {
         try {
             String apiPath;
             if (update) {
@@ -762,7 +1080,12 @@ public class SeafConnection {
             String url = getUploadLink(repoID, update);
             return uploadFileCommon(url, repoID, dir, filePath, monitor, update);
         } catch (SeafException e) {
-            // do again
+            if (e == SeafException.userCancelledException) {
+                throw e;
+            }
+            // do again, with a new link if the upload server refused the cached one
+            TransferMetrics.getInstance().count(TransferMetrics.UPLOAD_RETRY);
+            onUploadLinkError(repoID, update, false, e);
             String url = getUploadLink(repoID, update);
             return uploadFileCommon(url, repoID, dir, filePath, monitor, update);
         }
@@ -884,6 +1207,134 @@ public class SeafConnection {
         }
     }
 
+    /**
+     * Upload several files to the same directory in one multipart request
+     *
+     * @param repoID
+     * @param dir
+     * @param files
+     * @param monitor receives the bytes sent of all files together
+     * @return the new file ids in the order of files, an entry is null if the server didn't report the file
+     * @throws SeafException
+     */
+    public List<String> uploadFiles(String repoID, String dir, List<File> files, final ProgressMonitor monitor)
+                                    throws SeafException {
+        String link = getUploadLink(repoID, false);
+
+        try {
+            for (File file : files) {
+                if (!file.exists()) {
+                    throw new SeafException(SeafException.OTHER_EXCEPTION, "File not exists");
+                }
+            }
+
+            HttpRequest req = HttpRequest.post(link + "?ret-json=1", null, false).followRedirects(true).connectTimeout(CONNECTION_TIMEOUT);
+
+            prepareHttpsCheck(req);
+
+            // the content length must be known in advance, see uploadFileCommon()
+            StringBuilder builder = new StringBuilder();
+            builder.append(TWO_HYPENS + BOUNDARY + CRLF);
+            builder.append("Content-Disposition: form-data; name=\"parent_dir\"" + CRLF);
+            builder.append(CRLF);
+            builder.append(dir + CRLF);
+            byte[] dirParam = builder.toString().getBytes("UTF-8");
+            long totalLen = dirParam.length;
+
+            List<byte[]> headers = Lists.newArrayListWithCapacity(files.size());
+            for (File file : files) {
+                String header = TWO_HYPENS + BOUNDARY + CRLF
+                        + "Content-Disposition: form-data; name=\"file\";filename=\"" + file.getName() + "\"" + CRLF
+                        + "Content-Type: text/plain" + CRLF
+                        + CRLF;
+                byte[] headerBytes = header.getBytes("UTF-8");
+                headers.add(headerBytes);
+                totalLen += headerBytes.length + file.length() + CRLF.length();
+            }
+
+            String end = TWO_HYPENS + BOUNDARY + TWO_HYPENS + CRLF;
+            totalLen += end.length();
+
+            req.contentLength((int) totalLen);
+            req.header("Connection", "close");
+            req.header("Cache-Control", "no-cache");
+            req.header("Content-Type", "multipart/form-data;boundary=" + BOUNDARY);
+
+            req.send(dirParam);
+
+            long sent = 0;
+            for (int i = 0; i < files.size(); i++) {
+                File file = files.get(i);
+                req.send(headers.get(i));
+                if (monitor != null) {
+                    final long offset = sent;
+                    req.bufferSize(MonitoredFileInputStream.BUFFER_SIZE);
+                    req.send(new MonitoredFileInputStream(file, new ProgressMonitor() {
+                        @Override
+                        public void onProgressNotify(long total, boolean updateTotal) {
+                            monitor.onProgressNotify(offset + total, updateTotal);
+                        }
+
+                        @Override
+                        public boolean isCancelled() {
+                            return monitor.isCancelled();
+                        }
+                    }));
+                } else {
+                    req.send(new FileInputStream(file));
+                }
+                req.send(CRLF);
+                sent += file.length();
+            }
+
+            req.send(end);
+
+            checkRequestResponseStatus(req, HttpURLConnection.HTTP_OK);
+
+            return parseUploadedFileIDs(new String(req.bytes(), "UTF-8"), files);
+        } catch (SeafException e) {
+            onUploadLinkError(repoID, false, false, e);
+            throw e;
+        } catch (IOException e) {
+            throw SeafException.networkException;
+        } catch (JSONException e) {
+            throw SeafException.illFormatException;
+        } catch (HttpRequestException e) {
+            if (e.getCause() instanceof MonitorCancelledException) {
+                Log.d(DEBUG_TAG, "upload is cancelled");
+                throw SeafException.userCancelledException;
+            } else {
+                throw getSeafExceptionFromHttpRequestException(e);
+            }
+        }
+    }
+
+    /**
+     * The server answers [{"name": ..., "id": ..., "size": ...}, ...] in the order of the uploaded files.
+     * Names may differ from the local names if the server had to rename a file, so they are only used
+     * when the server reported fewer files than were sent.
+     */
+    private List<String> parseUploadedFileIDs(String json, List<File> files) throws JSONException {
+        JSONArray array = new JSONArray(json);
+        List<String> ids = Lists.newArrayListWithCapacity(files.size());
+        if (array.length() == files.size()) {
+            for (int i = 0; i < array.length(); i++) {
+                ids.add(array.getJSONObject(i).optString("id", null));
+            }
+            return ids;
+        }
+
+        Map<String, String> idsByName = Maps.newHashMap();
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject obj = array.getJSONObject(i);
+            idsByName.put(obj.optString("name"), obj.optString("id", null));
+        }
+        for (File file : files) {
+            ids.add(idsByName.get(file.getName()));
+        }
+        return ids;
+    }
+
     /**
      * Upload file blocks to server
      */
@@ -1155,6 +1606,7 @@ public class SeafConnection {
             int read = src.read(buffer);
             if (read != -1) {
                 bytesRead += read;
+                acquireBandwidth(read);
             }
 
             checkMonitor();
@@ -1168,6 +1620,7 @@ public class SeafConnection {
             if (ret != -1) {
                 ++bytesRead;
                 if (bytesRead % BUFFER_SIZE == 0) {
+                    acquireBandwidth(BUFFER_SIZE);
                     checkMonitor();
                 }
             }
@@ -1224,6 +1677,7 @@ public class SeafConnection {
 
         @Override
         public void write(byte[] buffer, int off, int len) throws IOException {
+            acquireBandwidth(len);
             dst.write(buffer, off, len);
             bytesWritten += len;
             checkMonitor();
@@ -1231,6 +1685,7 @@ public class SeafConnection {
 
         @Override
         public void write(byte[] buffer) throws IOException {
+            acquireBandwidth(buffer.length);
             dst.write(buffer);
             bytesWritten += buffer.length;
             checkMonitor();
@@ -1241,6 +1696,7 @@ public class SeafConnection {
             dst.write(b);
             ++bytesWritten;
             if (bytesWritten % BUFFER_SIZE == 0) {
+                acquireBandwidth(BUFFER_SIZE);
                 checkMonitor();
             }
         }
@@ -1268,7 +1724,18 @@ public class SeafConnection {
         }
     }
 
-    private class MonitorCancelledException extends IOException {
+    /**
+     * Wait for the bandwidth budget of the current transfer, see {@link BandwidthShaper}
+     */
+    private static void acquireBandwidth(int bytes) throws MonitorCancelledException {
+        try {
+            BandwidthShaper.getInstance().acquire(bytes);
+        } catch (InterruptedIOException e) {
+            throw new MonitorCancelledException();
+        }
+    }
+
+    private static class MonitorCancelledException extends IOException {
         private static final long serialVersionUID = -1170466989781746232L;
 
         @Override
@@ -1534,7 +2001,8 @@ public class SeafConnection {
     }
 
     private void checkRequestResponseStatus(HttpRequest req, int expectedStatusCode) throws SeafException {
-        if (req.code() != expectedStatusCode) {
+        if (responseCode(req) != expectedStatusCode) {
+            TransferMetrics.getInstance().count(TransferMetrics.HTTP_ERROR);
             Log.d(DEBUG_TAG, "HTTP request failed : " + req.url() + ", " + req.code() + ", " + req.message());
 
             if (req.message() == null) {
@@ -1553,7 +2021,8 @@ public class SeafConnection {
     }
 
     private void checkRequestResponseStatus(HttpRequest req, int expectedStatusCode, boolean withAuthToken) throws SeafException {
-        if (req.code() != expectedStatusCode) {
+        if (responseCode(req) != expectedStatusCode) {
+            TransferMetrics.getInstance().count(TransferMetrics.HTTP_ERROR);
             Log.d(DEBUG_TAG, "HTTP request failed : " + req.url() + ", " + req.code() + ", " + req.message());
 
             if (req.message() == null) {
@@ -1571,6 +2040,17 @@ public class SeafConnection {
         }
     }
 
+    /**
+     * Wait for the status of the request and record how long that took.
+     * For uploads the time includes finishing the request body.
+     */
+    private int responseCode(HttpRequest req) {
+        final long start = System.nanoTime();
+        final int code = req.code();
+        TransferMetrics.getInstance().recordSince(TransferMetrics.HTTP_RESPONSE, start);
+        return code;
+    }
+
     private SeafException getSeafExceptionFromHttpRequestException(HttpRequestException e) {
         if (e.getCause() instanceof SSLHandshakeException) {
             return SeafException.sslException;
@@ -8,8 +8,12 @@ import android.text.TextUtils;
 import com.seafile.seadroid2.account.Account;
 import com.seafile.seadroid2.account.AccountManager;
 import com.seafile.seadroid2.data.DatabaseHelper;
+import com.seafile.seadroid2.data.UploadLinkCache;
 import com.seafile.seadroid2.util.Utils;
 import com.seafile.seadroid2.gesturelock.LockPatternUtils;
+import com.seafile.seadroid2.transfer.BandwidthShaper;
+import com.seafile.seadroid2.transfer.ConcurrencyController;
+import com.seafile.seadroid2.transfer.TrafficClass;
 
 import java.util.Arrays;
 import java.util.List;
@@ -70,22 +74,37 @@ public final class SettingsManager {
     public static final String CAMERA_UPLOAD_BUCKETS_KEY = "camera_upload_buckets_key";
     public static final String CAMERA_UPLOAD_CATEGORY_KEY = "category_camera_upload_key";
     public static final String CAMERA_UPLOAD_CUSTOM_BUCKETS_KEY = "camera_upload_buckets_switch_key";
+    public static final String CAMERA_UPLOAD_COMPRESS_SWITCH_KEY = "camera_upload_compress_switch_key";
+    public static final String CAMERA_UPLOAD_COMPRESS_MAX_DIMENSION_KEY = "camera_upload_compress_max_dimension_key";
+    public static final String CAMERA_UPLOAD_COMPRESS_QUALITY_KEY = "camera_upload_compress_quality_key";
+    public static final String CAMERA_UPLOAD_COMPRESS_KEEP_EXIF_KEY = "camera_upload_compress_keep_exif_key";
+    public static final int CAMERA_UPLOAD_COMPRESS_DEFAULT_MAX_DIMENSION = 2048;
+    public static final int CAMERA_UPLOAD_COMPRESS_DEFAULT_QUALITY = 80;
     public static final String SHARED_PREF_CAMERA_UPLOAD_BUCKETS = PKG + ".camera.buckets";
+    public static final String SHARED_PREF_CAMERA_UPLOAD_LAST_FULL_SCAN = PKG + ".camera.lastFullScan";
 
     // About tab
     public static final String SETTINGS_ABOUT_VERSION_KEY = "settings_about_version_key";
     public static final String SETTINGS_ABOUT_AUTHOR_KEY = "settings_about_author_key";
+    public static final String SETTINGS_TRANSFER_DIAGNOSTICS_KEY = "settings_transfer_diagnostics_key";
 
     // Cache
     public static final String SETTINGS_CACHE_CATEGORY_KEY = "settings_cache_key";
     public static final String SETTINGS_CACHE_SIZE_KEY = "settings_cache_info_key";
     public static final String SETTINGS_CLEAR_CACHE_KEY = "settings_clear_cache_key";
     public static final String SETTINGS_CACHE_DIR_KEY = "settings_cache_location_key";
+    public static final String SETTINGS_FOLDER_ARCHIVE_DOWNLOAD_KEY = "settings_folder_archive_download_key";
 
     // Sort files
     public static final String SORT_FILES_TYPE = "sort_files_type";
     public static final String SORT_FILES_ORDER = "sort_files_order";
 
+    // Transfer concurrency
+    public static final String SHARED_PREF_TRANSFER_MIN_CONCURRENCY = PKG + ".transfer.minConcurrency";
+    public static final String SHARED_PREF_TRANSFER_MAX_CONCURRENCY = PKG + ".transfer.maxConcurrency";
+    public static final String SHARED_PREF_UPLOAD_LINK_TTL = PKG + ".transfer.uploadLinkTtl";
+    public static final String SHARED_PREF_TRANSFER_RATE_LIMIT = PKG + ".transfer.rateLimit";
+
     public static long lock_timestamp = 0;
     public static final long LOCK_EXPIRATION_MSECS = 5 * 60 * 1000;
 
@@ -208,6 +227,43 @@ public final class SettingsManager {
         return settingsSharedPref.getBoolean(CAMERA_UPLOAD_ALLOW_VIDEOS_SWITCH_KEY, false);
     }
 
+    public boolean isCameraUploadCompressionEnabled() {
+        return settingsSharedPref.getBoolean(CAMERA_UPLOAD_COMPRESS_SWITCH_KEY, false);
+    }
+
+    /**
+     * @return the maximum width and height of compressed photos, in pixels
+     */
+    public int getCameraUploadMaxDimension() {
+        return getIntFromString(CAMERA_UPLOAD_COMPRESS_MAX_DIMENSION_KEY, CAMERA_UPLOAD_COMPRESS_DEFAULT_MAX_DIMENSION);
+    }
+
+    /**
+     * @return the JPEG quality of compressed photos, 0-100
+     */
+    public int getCameraUploadJpegQuality() {
+        return getIntFromString(CAMERA_UPLOAD_COMPRESS_QUALITY_KEY, CAMERA_UPLOAD_COMPRESS_DEFAULT_QUALITY);
+    }
+
+    public boolean isCameraUploadExifKept() {
+        return settingsSharedPref.getBoolean(CAMERA_UPLOAD_COMPRESS_KEEP_EXIF_KEY, true);
+    }
+
+    /**
+     * List preferences store their values as strings
+     */
+    private int getIntFromString(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(settingsSharedPref.getString(key, String.valueOf(defaultValue)));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public boolean isFolderArchiveDownloadEnabled() {
+        return settingsSharedPref.getBoolean(SETTINGS_FOLDER_ARCHIVE_DOWNLOAD_KEY, true);
+    }
+
     public void saveDataPlanAllowed(boolean isAllowed) {
         settingsSharedPref.edit().putBoolean(CAMERA_UPLOAD_ALLOW_DATA_PLAN_SWITCH_KEY, isAllowed).commit();
     }
@@ -235,6 +291,17 @@ public final class SettingsManager {
         return Arrays.asList(TextUtils.split(s, ","));
     }
 
+    /**
+     * @return when camera upload last went through all media files, 0 if never
+     */
+    public long getCameraUploadLastFullScan() {
+        return sharedPref.getLong(SHARED_PREF_CAMERA_UPLOAD_LAST_FULL_SCAN, 0);
+    }
+
+    public void saveCameraUploadLastFullScan(long timestamp) {
+        sharedPref.edit().putLong(SHARED_PREF_CAMERA_UPLOAD_LAST_FULL_SCAN, timestamp).commit();
+    }
+
     public int getSortFilesTypePref() {
         return sharedPref.getInt(SORT_FILES_TYPE, 0);
     }
@@ -255,4 +322,67 @@ public final class SettingsManager {
         editor.putInt(SHARED_PREF_STORAGE_DIR, dir).commit();
     }
 
+    /**
+     * @return the lower bound of concurrent uploads or downloads
+     */
+    public int getTransferMinConcurrency() {
+        return sharedPref.getInt(SHARED_PREF_TRANSFER_MIN_CONCURRENCY, ConcurrencyController.DEFAULT_MIN_LIMIT);
+    }
+
+    /**
+     * @return the upper bound of concurrent uploads or downloads
+     */
+    public int getTransferMaxConcurrency() {
+        return sharedPref.getInt(SHARED_PREF_TRANSFER_MAX_CONCURRENCY, ConcurrencyController.DEFAULT_MAX_LIMIT);
+    }
+
+    public void setTransferConcurrency(int min, int max) {
+        editor.putInt(SHARED_PREF_TRANSFER_MIN_CONCURRENCY, min)
+                .putInt(SHARED_PREF_TRANSFER_MAX_CONCURRENCY, max).commit();
+    }
+
+    /**
+     * @return how long an upload link is reused, in milliseconds
+     */
+    public long getUploadLinkTtl() {
+        return sharedPref.getLong(SHARED_PREF_UPLOAD_LINK_TTL, UploadLinkCache.DEFAULT_TTL);
+    }
+
+    public void setUploadLinkTtl(long ttl) {
+        editor.putLong(SHARED_PREF_UPLOAD_LINK_TTL, ttl).commit();
+    }
+
+    private static String getTransferRateLimitKey(boolean metered, TrafficClass trafficClass) {
+        return SHARED_PREF_TRANSFER_RATE_LIMIT + (metered ? ".metered." : ".wifi.") + trafficClass.name().toLowerCase();
+    }
+
+    /**
+     * @param metered true for mobile networks, false for Wi-Fi
+     * @return the bandwidth limit in bytes per second, 0 if unlimited
+     */
+    public long getTransferRateLimit(boolean metered, TrafficClass trafficClass) {
+        return sharedPref.getLong(getTransferRateLimitKey(metered, trafficClass), 0);
+    }
+
+    /**
+     * Save a bandwidth limit, it applies to running transfers immediately
+     *
+     * @param bytesPerSecond 0 for no limit
+     */
+    public void setTransferRateLimit(boolean metered, TrafficClass trafficClass, long bytesPerSecond) {
+        editor.putLong(getTransferRateLimitKey(metered, trafficClass), bytesPerSecond).commit();
+        BandwidthShaper.getInstance().setRate(metered, trafficClass, bytesPerSecond);
+    }
+
+    /**
+     * Load all saved bandwidth limits into the {@link BandwidthShaper}
+     */
+    public void applyTransferRateLimits() {
+        BandwidthShaper shaper = BandwidthShaper.getInstance();
+        for (TrafficClass trafficClass : TrafficClass.values()) {
+            shaper.setRate(false, trafficClass, getTransferRateLimit(false, trafficClass));
+            shaper.setRate(true, trafficClass, getTransferRateLimit(true, trafficClass));
+        }
+    }
+
 }
@@ -14,6 +14,7 @@ import com.nostra13.universalimageloader.core.assist.FlushedInputStream;
 import com.nostra13.universalimageloader.core.download.BaseImageDownloader;
 import com.seafile.seadroid2.ssl.SSLTrustManager;
 import com.seafile.seadroid2.account.Account;
+import com.seafile.seadroid2.data.LocalThumbnailGenerator;
 
 public class AuthImageDownloader extends BaseImageDownloader {
     public static final String TAG = AuthImageDownloader.class.getName();
@@ -47,4 +48,15 @@ public class AuthImageDownloader extends BaseImageDownloader {
         return new FlushedInputStream(new BufferedInputStream(
                 req.stream()));
     }
+
+    @Override
+    protected InputStream getStreamFromOtherSource(String imageUri, Object extra)
+            throws IOException {
+        if (LocalThumbnailGenerator.isLocalThumbnailUri(imageUri)) {
+            // thumbnails of encrypted repos are generated locally
+            return LocalThumbnailGenerator.openStream(imageUri, (Account)extra);
+        }
+
+        return super.getStreamFromOtherSource(imageUri, extra);
+    }
 }
@@ -0,0 +1,263 @@
+package com.seafile.seadroid2.cameraupload;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import android.provider.MediaStore;
+
+import com.google.common.base.Joiner;
+import com.seafile.seadroid2.cameraupload.GalleryBucketUtils.Bucket;
+import com.seafile.seadroid2.data.StorageManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The gallery buckets with their number of files, cover image and last modification, shared by camera sync
+ * and the bucket settings.
+ * <p/>
+ * The buckets are loaded with one grouped query per media type. Afterwards the catalogue watches the media
+ * store itself. Rows named in change notifications are looked up by their id when the buckets are asked for
+ * next, instead of querying all media again. Changes which can't be applied this way, e.g. deleted rows or
+ * notifications without a row, make the next call load all buckets again. As notifications aren't
+ * guaranteed to arrive, the buckets are loaded again anyway once they are older than {@link #MAX_AGE}.
+ */
+class BucketCatalog {
+    /** above this many changed rows all buckets are loaded again */
+    private static final int MAX_CHANGED_IDS = 500;
+    /** milliseconds after which all buckets are loaded again, even without a change notification */
+    private static final long MAX_AGE = 10 * 60 * 1000;
+
+    private static BucketCatalog instance;
+
+    private final ContentResolver resolver;
+
+    /** the following fields are guarded by this */
+    private Map<String, Bucket> buckets;
+    /** elapsed realtime when the buckets were loaded */
+    private long loadedAt;
+    private final Set<Long> changedImages = new TreeSet<>();
+    private final Set<Long> changedVideos = new TreeSet<>();
+
+    private BucketCatalog(Context context) {
+        resolver = context.getContentResolver();
+        ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onChange(selfChange, null);
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                onMediaChange(uri);
+            }
+        };
+        // the uris of single rows are descendants of the table
+        resolver.registerContentObserver(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, true, observer);
+        resolver.registerContentObserver(MediaStore.Video.Media.EXTERNAL_CONTENT_URI, true, observer);
+    }
+
+    static synchronized BucketCatalog getInstance(Context context) {
+        if (instance == null) {
+            instance = new BucketCatalog(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * @return copies of the buckets, sorted by name
+     */
+    synchronized List<Bucket> getBuckets() {
+        if (buckets != null && SystemClock.elapsedRealtime() - loadedAt > MAX_AGE) {
+            invalidate();
+        }
+        if (buckets != null && !applyChanges()) {
+            buckets = null;
+        }
+        if (buckets == null) {
+            buckets = new HashMap<>();
+            loadedAt = SystemClock.elapsedRealtime();
+            loadBuckets(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, true);
+            loadBuckets(MediaStore.Video.Media.EXTERNAL_CONTENT_URI, false);
+        }
+
+        List<Bucket> list = new ArrayList<>();
+        for (Bucket bucket : buckets.values()) {
+            list.add(bucket.copy());
+        }
+        Collections.sort(list, new Comparator<Bucket>() {
+            @Override
+            public int compare(Bucket lhs, Bucket rhs) {
+                int result = lhs.name.compareTo(rhs.name);
+                return result != 0 ? result : lhs.id.compareTo(rhs.id);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Called for every change notification of the media store, from any thread
+     *
+     * @param uri the changed row or table, null if unknown
+     */
+    synchronized void onMediaChange(Uri uri) {
+        if (buckets == null) {
+            return;
+        }
+        final long id = GalleryBucketUtils.parseRowId(uri);
+        if (id >= 0 && GalleryBucketUtils.isRowOf(uri, MediaStore.Images.Media.EXTERNAL_CONTENT_URI)) {
+            changedImages.add(id);
+        } else if (id >= 0 && GalleryBucketUtils.isRowOf(uri, MediaStore.Video.Media.EXTERNAL_CONTENT_URI)) {
+            changedVideos.add(id);
+        } else {
+            invalidate();
+            return;
+        }
+        if (changedImages.size() + changedVideos.size() > MAX_CHANGED_IDS) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Load all buckets again on the next call
+     */
+    synchronized void invalidate() {
+        buckets = null;
+        changedImages.clear();
+        changedVideos.clear();
+    }
+
+    /**
+     * @return false if the changes could not be applied and all buckets have to be loaded again
+     */
+    private boolean applyChanges() {
+        try {
+            return applyChanges(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, true, changedImages)
+                    && applyChanges(MediaStore.Video.Media.EXTERNAL_CONTENT_URI, false, changedVideos);
+        } finally {
+            changedImages.clear();
+            changedVideos.clear();
+        }
+    }
+
+    private boolean applyChanges(Uri table, boolean images, Set<Long> ids) {
+        if (ids.isEmpty()) {
+            return true;
+        }
+
+        Cursor cursor = resolver.query(table,
+                new String[] {
+                        BaseColumns._ID,
+                        MediaStore.Images.ImageColumns.BUCKET_ID,
+                        MediaStore.Images.ImageColumns.BUCKET_DISPLAY_NAME,
+                        MediaStore.MediaColumns.DATA,
+                        MediaStore.MediaColumns.DATE_MODIFIED
+                },
+                BaseColumns._ID + " IN (" + Joiner.on(',').join(ids) + ")",
+                null,
+                // rows added together are counted in order
+                BaseColumns._ID + " ASC");
+        if (cursor == null) {
+            return false;
+        }
+
+        try {
+            if (cursor.getCount() != ids.size()) {
+                // deleted rows, their bucket is unknown
+                return false;
+            }
+            while (cursor.moveToNext()) {
+                Bucket bucket = getBucket(cursor.getString(1), cursor.getString(2), cursor.getString(3));
+                if (bucket == null) {
+                    continue;
+                }
+                final int id = cursor.getInt(0);
+                if (images ? id > bucket.image_id : id > bucket.maxVideoId) {
+                    // a new row, older ones are just modified
+                    bucket.count++;
+                    if (images) {
+                        bucket.image_id = id;
+                    } else {
+                        bucket.maxVideoId = id;
+                    }
+                }
+                bucket.maxDateModified = Math.max(bucket.maxDateModified, cursor.getLong(4));
+            }
+            return true;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void loadBuckets(Uri table, boolean images) {
+        Cursor cursor = resolver.query(table,
+                new String[] {
+                        MediaStore.Images.ImageColumns.BUCKET_ID,
+                        MediaStore.Images.ImageColumns.BUCKET_DISPLAY_NAME,
+                        MediaStore.MediaColumns.DATA,
+                        "MAX(" + BaseColumns._ID + ")",
+                        "COUNT(*)",
+                        "MAX(" + MediaStore.MediaColumns.DATE_MODIFIED + ")"
+                },
+                "1) GROUP BY 1,(2",    // Which rows to return (all rows, grouped by bucket)
+                null,                  // Selection arguments (none)
+                null                   // Ordering, sorted when returned
+        );
+        if (cursor == null) {
+            return;
+        }
+
+        try {
+            while (cursor.moveToNext()) {
+                Bucket bucket = getBucket(cursor.getString(0), cursor.getString(1), cursor.getString(2));
+                if (bucket == null) {
+                    continue;
+                }
+                if (images) {
+                    bucket.image_id = cursor.getInt(3);
+                } else {
+                    bucket.maxVideoId = cursor.getInt(3);
+                }
+                bucket.count += cursor.getInt(4);
+                bucket.maxDateModified = Math.max(bucket.maxDateModified, cursor.getLong(5));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the bucket, added if new, or null if it was created by Seadroid
+     */
+    private Bucket getBucket(String id, String name, String file) {
+        if (id == null || name == null) {
+            return null;
+        }
+        Bucket bucket = buckets.get(id);
+        if (bucket != null) {
+            return bucket;
+        }
+
+        // ignore buckets created by Seadroid
+        if (file != null && file.startsWith(StorageManager.getInstance().getMediaDir().getAbsolutePath())) {
+            return null;
+        }
+
+        bucket = new Bucket();
+        bucket.id = id;
+        bucket.name = name;
+        bucket.isCameraBucket = GalleryBucketUtils.isCameraBucketName(name);
+        buckets.put(id, bucket);
+        return bucket;
+    }
+}
@@ -12,34 +12,52 @@ import android.content.ServiceConnection;
 import android.content.SyncResult;
 import android.database.Cursor;
 import android.os.Bundle;
+import android.net.Uri;
 import android.os.IBinder;
+import android.os.Process;
+import android.provider.BaseColumns;
 import android.provider.MediaStore;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.Throwables;
 import com.seafile.seadroid2.R;
 import com.seafile.seadroid2.SeafException;
 import com.seafile.seadroid2.SettingsManager;
 import com.seafile.seadroid2.data.StorageManager;
 import com.seafile.seadroid2.account.Account;
 import com.seafile.seadroid2.account.AccountManager;
+import com.seafile.seadroid2.cameraupload.CameraUploadDBHelper.Watermark;
 import com.seafile.seadroid2.data.DataManager;
 import com.seafile.seadroid2.data.SeafDirent;
-import com.seafile.seadroid2.data.SeafRepo;
 import com.seafile.seadroid2.transfer.TaskState;
+import com.seafile.seadroid2.transfer.TransferManager;
 import com.seafile.seadroid2.transfer.TransferService;
-import com.seafile.seadroid2.transfer.UploadTaskInfo;
+import com.seafile.seadroid2.transfer.TransferTaskInfo;
 import com.seafile.seadroid2.ui.activity.AccountsActivity;
 import com.seafile.seadroid2.ui.activity.SettingsActivity;
 import com.seafile.seadroid2.util.Utils;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Sync adapter for media upload.
@@ -62,15 +80,129 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
 
     private final String BASE_DIR = "My Photos";
 
+    /**
+     * All media files are checked at least this often, see {@link #fullScan}
+     */
+    private static final long FULL_SCAN_INTERVAL = TimeUnit.DAYS.toMillis(1);
+    private static final String MEDIA_TYPE_IMAGES = "images";
+    private static final String MEDIA_TYPE_VIDEOS = "videos";
+
+    /**
+     * Requests preparing the bucket directories on the server run on this many threads at most
+     */
+    private static final int DIRECTORY_THREADS = 4;
+
+    /**
+     * The library found on the server by an earlier sync. Kept until a request fails with 404.
+     */
+    private String validatedRepoId;
+    private String validatedRepoName;
+
+    /**
+     * Directories of the validated library which exist on the server. Kept until a request fails with 404.
+     */
+    private final Set<String> preparedDirs = new HashSet<>();
+
+    /**
+     * Whether the current sync checks all media files instead of only the new ones.
+     */
+    private boolean fullScan;
+
     /**
      * Will be set to true if the current sync has been cancelled.
      */
     private boolean cancelled = false;
 
     /**
-     * Media files we have sent over to the TransferService. Thread-safe.
+     * Media files we have sent over to the TransferService and which are not done yet. Guarded by itself,
+     * notified when a task completes.
+     */
+    private final Set<Integer> tasksInProgress = new HashSet<>();
+
+    /**
+     * Files whose upload finished and which are not marked as uploaded yet. Guarded by tasksInProgress.
+     */
+    private final List<File> finishedUploads = new ArrayList<>();
+
+    /**
+     * Error of the first failed upload task. Guarded by tasksInProgress.
+     */
+    private SeafException uploadError;
+
+    /**
+     * Uploaded files are written to the database in batches of this size
+     */
+    private static final int MARK_BATCH_SIZE = 20;
+
+    /**
+     * Photos are compressed by this many threads at most, each holds a decoded photo in memory
+     */
+    private static final int COMPRESSION_THREADS = 2;
+
+    /**
+     * Photos waiting for a compression thread, the sync compresses further photos itself when the queue is full
+     */
+    private static final int COMPRESSION_QUEUE_SIZE = 4;
+
+    /**
+     * Set if photos are compressed before upload in the current sync
+     */
+    private MediaCompressor compressor;
+    private ExecutorService compressionExecutor;
+
+    /**
+     * Files being compressed, which have no upload task yet. Guarded by tasksInProgress.
+     */
+    private int compressionsInProgress;
+
+    /**
+     * The original files of uploaded compressed copies, by the path of the copy. Guarded by tasksInProgress.
+     */
+    private final Map<String, File> compressedOriginals = new HashMap<>();
+
+    private final TransferManager.CompletionListener completionListener = new TransferManager.CompletionListener() {
+        @Override
+        public void onTaskCompleted(TransferTaskInfo info) {
+            File original;
+            synchronized (tasksInProgress) {
+                if (!tasksInProgress.remove(info.taskID))
+                    return;
+
+                // the original is marked as uploaded, it's what the next sync finds in the gallery
+                original = compressedOriginals.remove(info.localFilePath);
+                if (info.state == TaskState.FINISHED) {
+                    finishedUploads.add(original != null ? original : new File(info.localFilePath));
+                } else if (uploadError == null) {
+                    uploadError = info.err != null ? info.err : SeafException.unknownException;
+                }
+                tasksInProgress.notifyAll();
+            }
+            // the copy of a failed upload is kept for a retry, it's in the temp dir which is cleared with the cache
+            if (original != null && (info.state == TaskState.FINISHED || info.state == TaskState.CANCELLED)) {
+                MediaCompressor.delete(new File(info.localFilePath));
+            }
+        }
+    };
+
+    /**
+     * The files uploaded in the past, loaded once per sync.
+     */
+    private UploadedFileIndex uploadedIndex;
+
+    /**
+     * Uploaded files not written to the database yet, see {@link #flushUploaded()}.
+     */
+    private List<File> pendingUploaded = new ArrayList<>();
+
+    /**
+     * Content hashes of the uploaded files not written to the database yet
      */
-    private List<Integer> tasksInProgress = new ArrayList<>();
+    private List<ContentHash> pendingHashes = new ArrayList<>();
+
+    /**
+     * The remote files of each bucket directory, built from the dirents refreshed by {@link #createDirectories}
+     */
+    private final Map<String, RemoteDirentIndex> remoteIndexes = new HashMap<>();
 
     TransferService txService = null;
 
@@ -130,6 +262,10 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
         synchronized (this) {
             cancelled = true;
         }
+        synchronized (tasksInProgress) {
+            // wake up waitForUploads()
+            tasksInProgress.notifyAll();
+        }
     }
 
     private boolean isCancelled() {
@@ -146,29 +282,53 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
      * @throws SeafException
      */
     private boolean validateRepository(DataManager dataManager) throws SeafException {
-        List<SeafRepo> repos = dataManager.getReposFromServer();
+        if (targetRepoId == null || targetRepoName == null)
+            return false;
 
-        for (SeafRepo repo : repos) {
-            if (repo.getID().equals(targetRepoId) && repo.getName().equals(targetRepoName))
-                return true;
-        }
+        if (targetRepoId.equals(validatedRepoId) && targetRepoName.equals(validatedRepoName))
+            return true;
 
-        return false;
+        invalidateServerState();
+        if (!targetRepoName.equals(dataManager.getRepoNameFromServer(targetRepoId)))
+            return false;
+
+        validatedRepoId = targetRepoId;
+        validatedRepoName = targetRepoName;
+        return true;
+    }
+
+    /**
+     * Forget what is known about the library on the server, e.g. after it or a directory was deleted
+     */
+    private void invalidateServerState() {
+        validatedRepoId = null;
+        validatedRepoName = null;
+        preparedDirs.clear();
     }
 
     /**
      * Create all the subdirectories on the server for the buckets that are about to be uploaded.
+     * <p/>
+     * Directories created by an earlier sync are taken as existing. If one was deleted meanwhile,
+     * all of them are checked again.
      *
      * @param dataManager
      * @throws SeafException
      */
-    private void createDirectories(DataManager dataManager) throws SeafException {
-        List<GalleryBucketUtils.Bucket> buckets = GalleryBucketUtils.getMediaBuckets(getContext());
-
-        // create base directory
-        forceCreateDirectory(dataManager, "/", BASE_DIR);
+    private void createDirectories(DataManager dataManager) throws SeafException, InterruptedException {
+        try {
+            prepareDirectories(dataManager);
+        } catch (SeafException e) {
+            if (e.getCode() != HttpURLConnection.HTTP_NOT_FOUND || preparedDirs.isEmpty())
+                throw e;
+            preparedDirs.clear();
+            prepareDirectories(dataManager);
+        }
+    }
 
-        for (GalleryBucketUtils.Bucket bucket : buckets) {
+    private void prepareDirectories(final DataManager dataManager) throws SeafException, InterruptedException {
+        Set<String> dirs = new LinkedHashSet<>();
+        for (GalleryBucketUtils.Bucket bucket : GalleryBucketUtils.getMediaBuckets(getContext())) {
 
             // the user has selected specific buckets: only create directories for these
             if (!bucketList.isEmpty() && !bucketList.contains(bucket.id)) {
@@ -179,10 +339,76 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
             if (bucketList.isEmpty() && !bucket.isCameraBucket)
                 continue;
 
-            forceCreateDirectory(dataManager, BASE_DIR, bucket.name);
+            dirs.add(bucket.name);
+        }
+
+        // create base directory
+        if (!preparedDirs.contains(BASE_DIR)) {
+            forceCreateDirectory(dataManager, "/", BASE_DIR, null);
+            preparedDirs.add(BASE_DIR);
+        }
 
-            // update our cache for that server. we will use it later
-            dataManager.getDirentsFromServer(targetRepoId, Utils.pathJoin(BASE_DIR, bucket.name));
+        // one listing of the base directory is enough to create all missing bucket directories
+        List<Callable<Void>> creations = new ArrayList<>();
+        List<String> created = new ArrayList<>();
+        List<SeafDirent> baseDirents = null;
+        for (final String dir : dirs) {
+            final String path = Utils.pathJoin(BASE_DIR, dir);
+            if (preparedDirs.contains(path))
+                continue;
+            if (baseDirents == null)
+                baseDirents = dataManager.getDirentsFromServer(targetRepoId, BASE_DIR);
+
+            final List<SeafDirent> siblings = baseDirents;
+            creations.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    forceCreateDirectory(dataManager, BASE_DIR, dir, siblings);
+                    return null;
+                }
+            });
+            created.add(path);
+        }
+        runConcurrently(creations);
+        preparedDirs.addAll(created);
+
+        // update our cache for the bucket directories. we will use it later.
+        // unchanged directories are only compared by their id, without sending their content.
+        List<Callable<Void>> refreshes = new ArrayList<>();
+        for (String dir : dirs) {
+            final String path = Utils.pathJoin(BASE_DIR, dir);
+            refreshes.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    dataManager.getDirentsFromServer(targetRepoId, path);
+                    return null;
+                }
+            });
+        }
+        runConcurrently(refreshes);
+    }
+
+    /**
+     * Run requests to the server in parallel, they mostly wait for the network
+     *
+     * @throws SeafException the error of the first failed request
+     */
+    private void runConcurrently(List<Callable<Void>> requests) throws SeafException, InterruptedException {
+        if (requests.isEmpty())
+            return;
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(requests.size(), DIRECTORY_THREADS));
+        try {
+            for (Future<Void> future : executor.invokeAll(requests)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwables.propagateIfInstanceOf(e.getCause(), SeafException.class);
+                    throw Throwables.propagate(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
         }
     }
 
@@ -192,11 +418,14 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
      * @param dataManager
      * @param parent parent dir
      * @param dir directory to create
+     * @param dirs the content of the parent dir, or null to fetch it
      * @throws SeafException
      */
-    private void forceCreateDirectory(DataManager dataManager, String parent, String dir) throws SeafException {
+    private void forceCreateDirectory(DataManager dataManager, String parent, String dir, List<SeafDirent> dirs)
+            throws SeafException {
 
-        List<SeafDirent> dirs = dataManager.getDirentsFromServer(targetRepoId, parent);
+        if (dirs == null)
+            dirs = dataManager.getDirentsFromServer(targetRepoId, parent);
         boolean found = false;
         for (SeafDirent dirent : dirs) {
            if (dirent.name.equals(dir) && dirent.isDir()) {
@@ -228,18 +457,23 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
 
         Log.d(DEBUG_TAG, "Selected buckets for camera upload: "+settingsMgr.getCameraUploadBucketList());
         Log.d(DEBUG_TAG, "is video upload allowed: "+settingsMgr.isVideosUploadAllowed());
-        Log.d(DEBUG_TAG, "is data plan allowed: "+settingsMgr.isDataPlanAllowed());
-
-        Log.d(DEBUG_TAG, "Media buckets available on this system: ");*/
-        for (GalleryBucketUtils.Bucket bucket: GalleryBucketUtils.getMediaBuckets(getContext())) {
-            // Log.d(DEBUG_TAG, "Bucket id="+bucket.id+" name="+bucket.name);
-        }
+        Log.d(DEBUG_TAG, "is data plan allowed: "+settingsMgr.isDataPlanAllowed());*/
 
         // resync all media
         if (extras.getBoolean(ContentResolver.SYNC_EXTRAS_INITIALIZE)) {
             // Log.i(DEBUG_TAG, "Doing a full resync");
             dbHelper.cleanPhotoCache();
+            invalidateServerState();
         }
+        uploadedIndex = dbHelper.loadUploadedIndex();
+
+        /*
+         * Usually only the media store rows beyond the watermarks of their buckets are looked at.
+         * Once in a while all rows are, to pick up what was skipped, e.g. files which were missing
+         * when their row was added.
+         */
+        fullScan = extras.getBoolean(ContentResolver.SYNC_EXTRAS_INITIALIZE)
+                || System.currentTimeMillis() - settingsMgr.getCameraUploadLastFullScan() > FULL_SCAN_INTERVAL;
 
         if (!settingsMgr.checkCameraUploadNetworkAvailable()) {
             // Log.d(DEBUG_TAG, "Not syncing because of data plan restriction.");
@@ -306,11 +540,37 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
                 syncResult.delayUntil = 60;
                 return;
             }
+            txService.getUploadTaskManager().addCompletionListener(completionListener);
+
+            if (settingsMgr.isCameraUploadCompressionEnabled()) {
+                compressor = new MediaCompressor(StorageManager.getInstance().getTempDir(),
+                        settingsMgr.getCameraUploadMaxDimension(),
+                        settingsMgr.getCameraUploadJpegQuality(),
+                        settingsMgr.isCameraUploadExifKept());
+                compressionExecutor = new ThreadPoolExecutor(COMPRESSION_THREADS, COMPRESSION_THREADS,
+                        0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(COMPRESSION_QUEUE_SIZE),
+                        new ThreadPoolExecutor.CallerRunsPolicy());
+            }
 
-            uploadImages(syncResult, dataManager);
+            // a full scan goes through the whole gallery, don't let it slow down the foreground
+            final int priority = Process.getThreadPriority(Process.myTid());
+            if (fullScan) {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+            }
+            try {
+                uploadMedia(syncResult, dataManager, MediaStore.Images.Media.EXTERNAL_CONTENT_URI, MEDIA_TYPE_IMAGES,
+                        fullScan ? null : extras.getString(CameraUploadManager.EXTRA_CHANGED_IMAGES));
 
-            if (settingsMgr.isVideosUploadAllowed()) {
-                uploadVideos(syncResult, dataManager);
+                if (settingsMgr.isVideosUploadAllowed()) {
+                    uploadMedia(syncResult, dataManager, MediaStore.Video.Media.EXTERNAL_CONTENT_URI, MEDIA_TYPE_VIDEOS,
+                            fullScan ? null : extras.getString(CameraUploadManager.EXTRA_CHANGED_VIDEOS));
+                }
+            } finally {
+                Process.setThreadPriority(priority);
+            }
+
+            if (fullScan && !isCancelled()) {
+                settingsMgr.saveCameraUploadLastFullScan(System.currentTimeMillis());
             }
 
             if (isCancelled()) {
@@ -336,6 +596,11 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
                     // Log.i(DEBUG_TAG, "sync aborted because of authentication error.", e);
                     showNotificationAuthError();
                     break;
+                case HttpURLConnection.HTTP_NOT_FOUND:
+                    // the library or a directory is gone, check it again next time
+                    invalidateServerState();
+                    syncResult.stats.numIoExceptions++;
+                    break;
                 default:
                     syncResult.stats.numIoExceptions++;
                     // Log.i(DEBUG_TAG, "sync aborted because of IO or server-side error.", e);
@@ -345,10 +610,35 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
             Log.e(DEBUG_TAG, "sync aborted because an unknown error", e);
             syncResult.stats.numParseExceptions++;
         } finally {
+            flushUploaded();
+            uploadedIndex = null;
+            remoteIndexes.clear();
+
             if (txService != null) {
+                txService.getUploadTaskManager().removeCompletionListener(completionListener);
 
                 // Log.d(DEBUG_TAG, "Cancelling remaining pending tasks (if any)");
-                txService.cancelUploadTasksByIds(tasksInProgress);
+                List<Integer> remaining;
+                List<String> compressedCopies;
+                synchronized (tasksInProgress) {
+                    if (compressionExecutor != null) {
+                        // running compressions find it shut down and drop their copies
+                        compressionExecutor.shutdownNow();
+                        compressionExecutor = null;
+                        compressor = null;
+                        compressionsInProgress = 0;
+                    }
+                    remaining = new ArrayList<>(tasksInProgress);
+                    compressedCopies = new ArrayList<>(compressedOriginals.keySet());
+                    tasksInProgress.clear();
+                    compressedOriginals.clear();
+                    finishedUploads.clear();
+                    uploadError = null;
+                }
+                txService.cancelUploadTasksByIds(remaining);
+                for (String path : compressedCopies) {
+                    MediaCompressor.delete(new File(path));
+                }
 
                 // Log.d(DEBUG_TAG, "disconnecting from TransferService");
                 getContext().unbindService(mConnection);
@@ -357,98 +647,93 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
         }
     }
 
-    private void uploadImages(SyncResult syncResult, DataManager dataManager) throws SeafException, InterruptedException {
-
-        // Log.d(DEBUG_TAG, "Starting to upload images...");
-
-        if (isCancelled())
-            return;
-
-        List<String> selectedBuckets = new ArrayList<>();
+    /**
+     * @return the ids of the buckets to upload, either chosen by the user or the camera buckets
+     */
+    private List<String> getSelectedBuckets() {
         if (bucketList.size() > 0) {
-            selectedBuckets = bucketList;
-        } else {
-            List<GalleryBucketUtils.Bucket> allBuckets = GalleryBucketUtils.getMediaBuckets(getContext());
-            for (GalleryBucketUtils.Bucket bucket: allBuckets) {
-                if (bucket.isCameraBucket)
-                    selectedBuckets.add(bucket.id);
-            }
+            return bucketList;
         }
 
-        String[] selectionArgs = selectedBuckets.toArray(new String[]{});
-        String selection = MediaStore.Images.ImageColumns.BUCKET_ID + " IN " + varArgs(selectedBuckets.size());
-
-        // Log.d(DEBUG_TAG, "ContentResolver selection='"+selection+"' selectionArgs='"+Arrays.deepToString(selectionArgs)+"'");
-
-        // fetch all new images from the ContentProvider since our last sync
-        Cursor cursor = contentResolver.query(
-                MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
-                new String[]{
-                        MediaStore.Images.Media._ID,
-                        MediaStore.Images.Media.DATA,
-                        MediaStore.Images.ImageColumns.BUCKET_DISPLAY_NAME
-                },
-                selection,
-                selectionArgs,
-                MediaStore.Images.ImageColumns.DATE_ADDED + " ASC"
-        );
-
-        try {
-            if (cursor == null) {
-                Log.e(DEBUG_TAG, "ContentResolver query failed!");
-                return;
-            }
-            // Log.d(DEBUG_TAG, "i see " + cursor.getCount() + " new images.");
-            if (cursor.getCount() > 0) {
-                // create directories for media buckets
-                createDirectories(dataManager);
-
-                iterateCursor(syncResult, dataManager, cursor);
-
-                if (isCancelled())
-                    return;
-
-            }
-        } finally {
-            if (cursor != null)
-                cursor.close();
+        List<String> selectedBuckets = new ArrayList<>();
+        List<GalleryBucketUtils.Bucket> allBuckets = GalleryBucketUtils.getMediaBuckets(getContext());
+        for (GalleryBucketUtils.Bucket bucket: allBuckets) {
+            if (bucket.isCameraBucket)
+                selectedBuckets.add(bucket.id);
         }
+        return selectedBuckets;
     }
 
-    private void uploadVideos(SyncResult syncResult, DataManager dataManager) throws SeafException, InterruptedException {
-
-        // Log.d(DEBUG_TAG, "Starting to upload videos...");
+    /**
+     * Upload the images or videos of the selected buckets
+     *
+     * @param contentUri e.g. {@link MediaStore.Images.Media#EXTERNAL_CONTENT_URI}
+     * @param mediaType the key of the watermarks, {@link #MEDIA_TYPE_IMAGES} or {@link #MEDIA_TYPE_VIDEOS}
+     * @param changedIds the comma separated ids of the rows the sync was requested for, or null to look at
+     *                   all rows beyond the watermarks
+     */
+    private void uploadMedia(SyncResult syncResult, DataManager dataManager, Uri contentUri, String mediaType,
+                             String changedIds) throws SeafException, InterruptedException {
 
         if (isCancelled())
             return;
 
-        List<String> selectedBuckets = new ArrayList<>();
-        if (bucketList.size() > 0) {
-            selectedBuckets = bucketList;
+        if (changedIds != null && changedIds.length() == 0)
+            return;
+
+        List<String> selectedBuckets = getSelectedBuckets();
+        if (selectedBuckets.isEmpty())
+            return;
+
+        Map<String, Watermark> watermarks = dbHelper.getWatermarks(mediaType);
+
+        String selection;
+        List<String> selectionArgs = new ArrayList<>();
+        if (fullScan) {
+            selection = MediaStore.Images.ImageColumns.BUCKET_ID + " IN " + varArgs(selectedBuckets.size());
+            selectionArgs.addAll(selectedBuckets);
+        } else if (changedIds != null) {
+            // only the rows whose change requested this sync
+            List<String> ids = Arrays.asList(changedIds.split(","));
+            selection = MediaStore.Images.ImageColumns.BUCKET_ID + " IN " + varArgs(selectedBuckets.size())
+                    + " AND " + BaseColumns._ID + " IN " + varArgs(ids.size());
+            selectionArgs.addAll(selectedBuckets);
+            selectionArgs.addAll(ids);
         } else {
-            List<GalleryBucketUtils.Bucket> allBuckets = GalleryBucketUtils.getMediaBuckets(getContext());
-            for (GalleryBucketUtils.Bucket bucket: allBuckets) {
-                if (bucket.isCameraBucket)
-                    selectedBuckets.add(bucket.id);
+            // only the rows added or changed since the last sync of their bucket
+            List<String> clauses = new ArrayList<>();
+            for (String bucketId : selectedBuckets) {
+                Watermark watermark = watermarks.get(bucketId);
+                if (watermark == null)
+                    watermark = Watermark.NONE;
+                clauses.add("(" + MediaStore.Images.ImageColumns.BUCKET_ID + " = ? AND ("
+                        + BaseColumns._ID + " > ? OR "
+                        + MediaStore.MediaColumns.DATE_ADDED + " > ? OR "
+                        + MediaStore.MediaColumns.DATE_MODIFIED + " > ?))");
+                selectionArgs.add(bucketId);
+                selectionArgs.add(Long.toString(watermark.maxId));
+                selectionArgs.add(Long.toString(watermark.dateAdded));
+                selectionArgs.add(Long.toString(watermark.dateModified));
             }
+            selection = Joiner.on(" OR ").join(clauses);
         }
 
-        String[] selectionArgs = selectedBuckets.toArray(new String[]{});
-        String selection = MediaStore.Video.VideoColumns.BUCKET_ID + " IN " + varArgs(selectedBuckets.size());
+        // Log.d(DEBUG_TAG, "ContentResolver selection='"+selection+"' selectionArgs='"+selectionArgs+"'");
 
-        // Log.d(DEBUG_TAG, "ContentResolver selection='"+selection+"' selectionArgs='"+Arrays.deepToString(selectionArgs)+"'");
-
-        // fetch all new videos from the ContentProvider since our last sync
+        // fetch all new media files from the ContentProvider since our last sync
         Cursor cursor = contentResolver.query(
-                MediaStore.Video.Media.EXTERNAL_CONTENT_URI,
+                contentUri,
                 new String[]{
-                        MediaStore.Video.Media._ID,
-                        MediaStore.Video.Media.DATA,
-                        MediaStore.Video.VideoColumns.BUCKET_DISPLAY_NAME
+                        BaseColumns._ID,
+                        MediaStore.MediaColumns.DATA,
+                        MediaStore.MediaColumns.DATE_ADDED,
+                        MediaStore.MediaColumns.DATE_MODIFIED,
+                        MediaStore.Images.ImageColumns.BUCKET_ID,
+                        MediaStore.Images.ImageColumns.BUCKET_DISPLAY_NAME
                 },
                 selection,
-                selectionArgs,
-                MediaStore.Video.VideoColumns.DATE_ADDED + " ASC"
+                selectionArgs.toArray(new String[selectionArgs.size()]),
+                MediaStore.MediaColumns.DATE_ADDED + " ASC"
         );
 
         try {
@@ -456,22 +741,25 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
                 Log.e(DEBUG_TAG, "ContentResolver query failed!");
                 return;
             }
-            // Log.d(DEBUG_TAG, "i see " + cursor.getCount() + " new videos.");
+            // Log.d(DEBUG_TAG, "i see " + cursor.getCount() + " new " + mediaType);
             if (cursor.getCount() > 0) {
                 // create directories for media buckets
                 createDirectories(dataManager);
+                remoteIndexes.clear();
 
-                iterateCursor(syncResult, dataManager, cursor);
+                iterateCursor(syncResult, dataManager, cursor, watermarks);
 
-                if (isCancelled())
+                // rows below the changed ones may not have been synced yet, keep the watermarks
+                if (isCancelled() || changedIds != null)
                     return;
 
+                // every row up to here has been uploaded or skipped, skipped ones are retried by the next full scan
+                dbHelper.saveWatermarks(mediaType, watermarks);
             }
         } finally {
             if (cursor != null)
                 cursor.close();
         }
-
     }
 
     private String varArgs(int count) {
@@ -486,17 +774,26 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
      * @param syncResult
      * @param dataManager
      * @param cursor
+     * @param watermarks advanced to every row seen, by bucket id
      * @throws SeafException
      */
-    private void iterateCursor(SyncResult syncResult, DataManager dataManager, Cursor cursor) throws SeafException, InterruptedException {
+    private void iterateCursor(SyncResult syncResult, DataManager dataManager, Cursor cursor,
+                               Map<String, Watermark> watermarks) throws SeafException, InterruptedException {
 
-        tasksInProgress.clear();
+        int idColumn = cursor.getColumnIndexOrThrow(BaseColumns._ID);
+        int dataColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DATA);
+        int addedColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DATE_ADDED);
+        int modifiedColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DATE_MODIFIED);
+        int bucketIdColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.ImageColumns.BUCKET_ID);
+        int bucketColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.ImageColumns.BUCKET_DISPLAY_NAME);
 
         // upload them one by one
         while (!isCancelled() && cursor.moveToNext()) {
 
-            int dataColumn = cursor.getColumnIndexOrThrow(MediaStore.MediaColumns.DATA);
-            int bucketColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.ImageColumns.BUCKET_DISPLAY_NAME);
+            String bucketId = cursor.getString(bucketIdColumn);
+            Watermark watermark = watermarks.get(bucketId);
+            watermarks.put(bucketId, (watermark == null ? Watermark.NONE : watermark).include(
+                    cursor.getLong(idColumn), cursor.getLong(addedColumn), cursor.getLong(modifiedColumn)));
 
             // some inconsistency in the Media Provider? Ignore and continue
             if (cursor.getString(dataColumn) == null) {
@@ -520,56 +817,128 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
                 continue;
             }
 
-            if (dbHelper.isUploaded(file)) {
+            if (uploadedIndex.contains(file.getAbsolutePath(), file.lastModified())) {
                 // Log.d(DEBUG_TAG, "Skipping media " + file + " because we have uploaded it in the past.");
                 continue;
             }
 
             uploadFile(dataManager, file, bucketName);
+            markFinishedUploads(syncResult);
         }
 
-        waitForUploads();
-        checkUploadResult(syncResult);
+        try {
+            waitForUploads(syncResult);
+            checkUploadResult();
+        } finally {
+            flushUploaded();
+        }
     }
 
-    private void waitForUploads() throws InterruptedException {
-        // Log.d(DEBUG_TAG, "wait for transfer service to finish our tasks");
-        WAITLOOP: while (!isCancelled()) {
-            Thread.sleep(100); // wait
-
-            for (int id: tasksInProgress) {
-                UploadTaskInfo info = txService.getUploadTaskInfo(id);
-                if (info.state == TaskState.INIT || info.state == TaskState.TRANSFERRING) {
-                    // there is still at least one task pending
-                    continue  WAITLOOP;
+    /**
+     * Wait until all upload tasks of this sync are done, marking the uploaded files on the way
+     */
+    private void waitForUploads(SyncResult syncResult) throws InterruptedException {
+        boolean done;
+        do {
+            synchronized (tasksInProgress) {
+                while (finishedUploads.isEmpty() && !isIdle() && !isCancelled()) {
+                    tasksInProgress.wait();
                 }
+                done = isIdle() || isCancelled();
             }
-            break;
+            markFinishedUploads(syncResult);
+        } while (!done);
+    }
+
+    /**
+     * @return whether no file is being compressed or uploaded. Call with the tasksInProgress lock held.
+     */
+    private boolean isIdle() {
+        return tasksInProgress.isEmpty() && compressionsInProgress == 0;
+    }
+
+    /**
+     * Mark the files of the upload tasks which finished so far, a failure of a later task doesn't affect them
+     */
+    private void markFinishedUploads(SyncResult syncResult) {
+        List<File> files;
+        synchronized (tasksInProgress) {
+            if (finishedUploads.isEmpty())
+                return;
+            files = new ArrayList<>(finishedUploads);
+            finishedUploads.clear();
+        }
+        for (File file : files) {
+            markAsUploaded(file);
+            recordContentHash(file);
+            syncResult.stats.numInserts++;
+        }
+        if (pendingUploaded.size() >= MARK_BATCH_SIZE) {
+            flushUploaded();
         }
     }
 
     /**
-     * Upload is finished. Go through task infos and mark files as uploaded in our DB
+     * All uploads are done, throw the error of the first one which failed if any
      *
-     * @param syncResult
      * @throws SeafException
      */
-    private void checkUploadResult(SyncResult syncResult) throws SeafException {
-        for (int id: tasksInProgress) {
-            UploadTaskInfo info = txService.getUploadTaskInfo(id);
-            if (info.err != null) {
-                throw info.err;
-            }
-            if (info.state == TaskState.FINISHED) {
-                File file = new File(info.localFilePath);
-                dbHelper.markAsUploaded(file);
-                syncResult.stats.numInserts++;
-            } else {
-                throw SeafException.unknownException;
+    private void checkUploadResult() throws SeafException {
+        synchronized (tasksInProgress) {
+            SeafException err = uploadError;
+            uploadError = null;
+            if (err != null) {
+                throw err;
             }
         }
     }
 
+    private void markAsUploaded(File file) {
+        uploadedIndex.add(file.getAbsolutePath(), file.lastModified());
+        pendingUploaded.add(file);
+    }
+
+    /**
+     * Remember the content of an uploaded file, the file is read once more for the full hash
+     */
+    private void recordContentHash(File file) {
+        try {
+            pendingHashes.add(ContentHash.of(file));
+        } catch (IOException e) {
+            Log.w(DEBUG_TAG, "could not hash uploaded file " + file, e);
+        }
+    }
+
+    /**
+     * Write the files marked as uploaded to the database in one transaction
+     */
+    private void flushUploaded() {
+        if (!pendingUploaded.isEmpty()) {
+            dbHelper.markAsUploaded(pendingUploaded);
+            pendingUploaded.clear();
+        }
+        if (!pendingHashes.isEmpty()) {
+            dbHelper.saveContentHashes(targetRepoId, pendingHashes);
+            pendingHashes.clear();
+        }
+    }
+
+    /**
+     * Whether a file with the same content has been uploaded to the target library before, e.g. under another
+     * name or before the photo cache was cleaned. Only the head and tail of the file are read, unless they
+     * match an uploaded file.
+     */
+    private boolean isContentUploaded(File file) {
+        try {
+            List<String> fullHashes = dbHelper.getFullHashes(targetRepoId, file.length(),
+                    ContentHash.partialHash(file));
+            return !fullHashes.isEmpty() && fullHashes.contains(ContentHash.fullHash(file));
+        } catch (IOException e) {
+            Log.w(DEBUG_TAG, "could not hash " + file, e);
+            return false;
+        }
+    }
+
     /**
      * Upload a media file to the seafile server.
      *
@@ -582,36 +951,91 @@ public class CameraSyncAdapter extends AbstractThreadedSyncAdapter {
 
         String serverPath = Utils.pathJoin(BASE_DIR, bucketName);
 
-        List<SeafDirent> list = dataManager.getCachedDirents(targetRepoId, serverPath);
-        if (list == null) {
-            Log.e(DEBUG_TAG, "Seadroid dirent cache is empty in uploadFile. Should not happen, aborting.");
-            // the dirents were supposed to be refreshed in createDirectories()
-            // something changed, abort.
-            throw SeafException.unknownException;
+        RemoteDirentIndex remoteIndex = remoteIndexes.get(serverPath);
+        if (remoteIndex == null) {
+            List<SeafDirent> list = dataManager.getCachedDirents(targetRepoId, serverPath);
+            if (list == null) {
+                Log.e(DEBUG_TAG, "Seadroid dirent cache is empty in uploadFile. Should not happen, aborting.");
+                // the dirents were supposed to be refreshed in createDirectories()
+                // something changed, abort.
+                throw SeafException.unknownException;
+            }
+            remoteIndex = new RemoteDirentIndex(list);
+            remoteIndexes.put(serverPath, remoteIndex);
         }
 
         /*
          * We don't want to upload a file twice unless the local and remote files differ.
          *
          * It would be cool if the API2 offered a way to query the hash of a remote file.
-         * Currently, comparing the file size is the best we can do.
+         * Currently, comparing the file size is the best we can do. Files uploaded from this device
+         * are also recognized by their content, wherever they are.
          */
-        String filename = file.getName();
-        String prefix = filename.substring(0, filename.lastIndexOf("."));
-        String suffix = filename.substring(filename.lastIndexOf("."));
-        Pattern pattern = Pattern.compile(Pattern.quote(prefix) + "( \\(\\d+\\))?" + Pattern.quote(suffix));
-        for (SeafDirent dirent : list) {
-            if (pattern.matcher(dirent.name).matches() && dirent.size == file.length()) {
-                // Log.d(DEBUG_TAG, "File " + file.getName() + " in bucket " + bucketName + " already exists on the server. Skipping.");
-                dbHelper.markAsUploaded(file);
-                return;
-            }
+        if (remoteIndex.contains(file.getName(), file.length()) || isContentUploaded(file)) {
+            // Log.d(DEBUG_TAG, "File " + file.getName() + " in bucket " + bucketName + " already exists on the server. Skipping.");
+            markAsUploaded(file);
+            return;
+        }
+
+        if (compressionExecutor != null) {
+            compressAndUpload(dataManager.getAccount(), file, serverPath);
+            return;
         }
 
         // Log.d(DEBUG_TAG, "uploading file " + file.getName() + " to " + serverPath);
-        int taskID = txService.addUploadTask(dataManager.getAccount(), targetRepoId, targetRepoName,
-                serverPath, file.getAbsolutePath(), false, false);
+        // hold the lock, so that the task can't complete before it's registered
+        synchronized (tasksInProgress) {
+            addUploadTask(dataManager.getAccount(), serverPath, file, null);
+        }
+    }
+
+    /**
+     * Upload a compressed copy of a media file, or the file itself if it can't be compressed.
+     * Blocks while the compression queue is full.
+     */
+    private void compressAndUpload(final Account account, final File file, final String serverPath) {
+        final ExecutorService executor = compressionExecutor;
+        final MediaCompressor mediaCompressor = compressor;
+        synchronized (tasksInProgress) {
+            compressionsInProgress++;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File compressed = null;
+                try {
+                    compressed = mediaCompressor.compress(file);
+                } catch (RuntimeException e) {
+                    // upload the original instead
+                    Log.w(DEBUG_TAG, "Could not compress " + file, e);
+                } finally {
+                    synchronized (tasksInProgress) {
+                        if (executor.isShutdown()) {
+                            // the sync is over
+                            MediaCompressor.delete(compressed);
+                        } else {
+                            compressionsInProgress--;
+                            addUploadTask(account, serverPath, file, compressed);
+                            tasksInProgress.notifyAll();
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Call with the tasksInProgress lock held, so that the task can't complete before it's registered
+     *
+     * @param compressed the compressed copy to upload instead of the file, or null
+     */
+    private void addUploadTask(Account account, String serverPath, File file, File compressed) {
+        String path = (compressed != null ? compressed : file).getAbsolutePath();
+        int taskID = txService.addCameraUploadTask(account, targetRepoId, targetRepoName, serverPath, path);
         tasksInProgress.add(taskID);
+        if (compressed != null) {
+            compressedOriginals.put(path, file);
+        }
     }
 
     /**
@@ -6,16 +6,20 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.seafile.seadroid2.SeadroidApplication;
 
 import java.io.File;
+import java.util.List;
+import java.util.Map;
 
 public class CameraUploadDBHelper extends SQLiteOpenHelper {
     private static final String DEBUG_TAG = "CameraUploadDBHelper";
 
     // If you change the database schema, you must increment the database
     // version.
-    public static final int DATABASE_VERSION = 3;
+    public static final int DATABASE_VERSION = 6;
     public static final String DATABASE_NAME = "photo.db";
     private static CameraUploadDBHelper dbHelper;
     private SQLiteDatabase database;
@@ -32,11 +36,38 @@ public class CameraUploadDBHelper extends SQLiteOpenHelper {
                     + PHOTOCACHE_COLUMN_FILE + " TEXT NOT NULL, "
                     + PHOTOCACHE_COLUMN_DATE_ADDED + " BIGINT NOT NULL);";
 
-    private static final String[] projection = {
-            PHOTOCACHE_COLUMN_ID,
-            PHOTOCACHE_COLUMN_FILE,
-            PHOTOCACHE_COLUMN_DATE_ADDED
-    };
+    // ScanWatermark table, the newest media store rows of a bucket which have been synced
+    private static final String WATERMARK_TABLE_NAME = "ScanWatermark";
+    private static final String WATERMARK_COLUMN_MEDIA_TYPE = "media_type";
+    private static final String WATERMARK_COLUMN_BUCKET_ID = "bucket_id";
+    private static final String WATERMARK_COLUMN_MAX_ID = "max_id";
+    private static final String WATERMARK_COLUMN_DATE_ADDED = "date_added";
+    private static final String WATERMARK_COLUMN_DATE_MODIFIED = "date_modified";
+
+    private static final String SQL_CREATE_WATERMARK_TABLE =
+            "CREATE TABLE " + WATERMARK_TABLE_NAME + " ("
+                    + WATERMARK_COLUMN_MEDIA_TYPE + " TEXT NOT NULL, "
+                    + WATERMARK_COLUMN_BUCKET_ID + " TEXT NOT NULL, "
+                    + WATERMARK_COLUMN_MAX_ID + " INTEGER NOT NULL, "
+                    + WATERMARK_COLUMN_DATE_ADDED + " INTEGER NOT NULL, "
+                    + WATERMARK_COLUMN_DATE_MODIFIED + " INTEGER NOT NULL, "
+                    + "PRIMARY KEY (" + WATERMARK_COLUMN_MEDIA_TYPE + ", " + WATERMARK_COLUMN_BUCKET_ID + "));";
+
+    // UploadedContent table, the content of the files uploaded to a library
+    private static final String CONTENT_TABLE_NAME = "UploadedContent";
+    private static final String CONTENT_COLUMN_ID = "id";
+    private static final String CONTENT_COLUMN_REPO_ID = "repo_id";
+    private static final String CONTENT_COLUMN_SIZE = "size";
+    private static final String CONTENT_COLUMN_PARTIAL_HASH = "partial_hash";
+    private static final String CONTENT_COLUMN_FULL_HASH = "full_hash";
+
+    private static final String SQL_CREATE_CONTENT_TABLE =
+            "CREATE TABLE " + CONTENT_TABLE_NAME + " ("
+                    + CONTENT_COLUMN_ID + " INTEGER PRIMARY KEY, "
+                    + CONTENT_COLUMN_REPO_ID + " TEXT NOT NULL, "
+                    + CONTENT_COLUMN_SIZE + " INTEGER NOT NULL, "
+                    + CONTENT_COLUMN_PARTIAL_HASH + " TEXT NOT NULL, "
+                    + CONTENT_COLUMN_FULL_HASH + " TEXT NOT NULL);";
 
     public static synchronized CameraUploadDBHelper getInstance() {
         if (dbHelper == null) {
@@ -54,58 +85,235 @@ public class CameraUploadDBHelper extends SQLiteOpenHelper {
     @Override
     public void onCreate(SQLiteDatabase db) {
         createPhotoCacheTable(db);
+        createWatermarkTable(db);
+        createContentTable(db);
     }
 
     private void createPhotoCacheTable(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_PHOTOCACHE_TABLE);
-        db.execSQL("CREATE INDEX photo_repoid_index ON " + PHOTOCACHE_TABLE_NAME
-                + " (" + PHOTOCACHE_COLUMN_FILE + ");");
-        db.execSQL("CREATE INDEX photo_account_index ON " + PHOTOCACHE_TABLE_NAME
-                + " (" + PHOTOCACHE_COLUMN_DATE_ADDED + ");");
+        createPhotoCacheIndex(db);
+    }
+
+    private void createPhotoCacheIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE UNIQUE INDEX photo_file_date_index ON " + PHOTOCACHE_TABLE_NAME
+                + " (" + PHOTOCACHE_COLUMN_FILE + ", " + PHOTOCACHE_COLUMN_DATE_ADDED + ");");
+    }
+
+    private void createWatermarkTable(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_WATERMARK_TABLE);
+    }
+
+    private void createContentTable(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_CONTENT_TABLE);
+        db.execSQL("CREATE UNIQUE INDEX content_hash_index ON " + CONTENT_TABLE_NAME + " ("
+                + CONTENT_COLUMN_REPO_ID + ", " + CONTENT_COLUMN_SIZE + ", " + CONTENT_COLUMN_PARTIAL_HASH + ", "
+                + CONTENT_COLUMN_FULL_HASH + ");");
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS " + PHOTOCACHE_TABLE_NAME + ";");
+        // keep the uploaded files, dropping them would compare every photo with the server again
+        if (oldVersion == 3) {
+            createWatermarkTable(db);
+            oldVersion = 4;
+        }
+        if (oldVersion == 4) {
+            db.execSQL("DROP INDEX IF EXISTS photo_repoid_index;");
+            db.execSQL("DROP INDEX IF EXISTS photo_account_index;");
+            db.execSQL("DELETE FROM " + PHOTOCACHE_TABLE_NAME + " WHERE " + PHOTOCACHE_COLUMN_ID
+                    + " NOT IN (SELECT MIN(" + PHOTOCACHE_COLUMN_ID + ") FROM " + PHOTOCACHE_TABLE_NAME
+                    + " GROUP BY " + PHOTOCACHE_COLUMN_FILE + ", " + PHOTOCACHE_COLUMN_DATE_ADDED + ");");
+            createPhotoCacheIndex(db);
+            oldVersion = 5;
+        }
+        if (oldVersion == 5) {
+            createContentTable(db);
+            return;
+        }
+        dropTables(db);
         onCreate(db);
     }
 
     @Override
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
+        dropTables(db);
+        onCreate(db);
     }
 
-    public boolean isUploaded(File file) {
-        String path = file.getAbsolutePath();
-        long modified = file.lastModified();
+    private void dropTables(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + PHOTOCACHE_TABLE_NAME + ";");
+        db.execSQL("DROP TABLE IF EXISTS " + WATERMARK_TABLE_NAME + ";");
+        db.execSQL("DROP TABLE IF EXISTS " + CONTENT_TABLE_NAME + ";");
+    }
 
+    /**
+     * Load all uploaded files, for camera sync to look them up without querying the database
+     */
+    UploadedFileIndex loadUploadedIndex() {
         Cursor c = database.query(
                 PHOTOCACHE_TABLE_NAME,
-                projection,
-                PHOTOCACHE_COLUMN_FILE + " = ? and " + PHOTOCACHE_COLUMN_DATE_ADDED + " = ?",
-                new String[] { path, Long.toString(modified) },
+                new String[] { PHOTOCACHE_COLUMN_FILE, PHOTOCACHE_COLUMN_DATE_ADDED },
+                null,
+                null,
                 null,   // don't group the rows
                 null,   // don't filter by row groups
                 null    // The sort order
         );
+        try {
+            UploadedFileIndex index = new UploadedFileIndex(c.getCount());
+            while (c.moveToNext()) {
+                index.add(c.getString(0), c.getLong(1));
+            }
+            return index;
+        } finally {
+            c.close();
+        }
+    }
 
-        int count = c.getCount();
-        c.close();
-        return count > 0;
+    /**
+     * Mark many files in one transaction, which is much faster than committing every single row
+     */
+    public void markAsUploaded(List<File> files) {
+        database.beginTransaction();
+        try {
+            for (File file : files) {
+                ContentValues values = new ContentValues();
+                values.put(PHOTOCACHE_COLUMN_FILE, file.getAbsolutePath());
+                values.put(PHOTOCACHE_COLUMN_DATE_ADDED, file.lastModified());
+                database.insertWithOnConflict(PHOTOCACHE_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
     }
 
-    public void markAsUploaded(File file) {
-        String path = file.getAbsolutePath();
-        long modified = file.lastModified();
+    /**
+     * @return the full hashes of the files uploaded to the library with the given size and partial hash,
+     * usually none or one
+     */
+    List<String> getFullHashes(String repoID, long size, String partialHash) {
+        List<String> hashes = Lists.newArrayList();
+        Cursor c = database.query(
+                CONTENT_TABLE_NAME,
+                new String[] { CONTENT_COLUMN_FULL_HASH },
+                CONTENT_COLUMN_REPO_ID + " = ? AND " + CONTENT_COLUMN_SIZE + " = ? AND "
+                        + CONTENT_COLUMN_PARTIAL_HASH + " = ?",
+                new String[] { repoID, String.valueOf(size), partialHash },
+                null,
+                null,
+                null);
+        try {
+            while (c.moveToNext()) {
+                hashes.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return hashes;
+    }
 
-        ContentValues values = new ContentValues();
-        values.put(PHOTOCACHE_COLUMN_FILE, path);
-        values.put(PHOTOCACHE_COLUMN_DATE_ADDED, modified);
+    void saveContentHashes(String repoID, List<ContentHash> hashes) {
+        database.beginTransaction();
+        try {
+            for (ContentHash hash : hashes) {
+                ContentValues values = new ContentValues();
+                values.put(CONTENT_COLUMN_REPO_ID, repoID);
+                values.put(CONTENT_COLUMN_SIZE, hash.size);
+                values.put(CONTENT_COLUMN_PARTIAL_HASH, hash.partialHash);
+                values.put(CONTENT_COLUMN_FULL_HASH, hash.fullHash);
+                database.insertWithOnConflict(CONTENT_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * @param mediaType e.g. "images" or "videos"
+     * @return the watermarks of all buckets of the given media type, by bucket id
+     */
+    public Map<String, Watermark> getWatermarks(String mediaType) {
+        Map<String, Watermark> watermarks = Maps.newHashMap();
+        Cursor c = database.query(
+                WATERMARK_TABLE_NAME,
+                new String[] {
+                        WATERMARK_COLUMN_BUCKET_ID,
+                        WATERMARK_COLUMN_MAX_ID,
+                        WATERMARK_COLUMN_DATE_ADDED,
+                        WATERMARK_COLUMN_DATE_MODIFIED
+                },
+                WATERMARK_COLUMN_MEDIA_TYPE + " = ?",
+                new String[] { mediaType },
+                null,
+                null,
+                null);
+        try {
+            while (c.moveToNext()) {
+                watermarks.put(c.getString(0), new Watermark(c.getLong(1), c.getLong(2), c.getLong(3)));
+            }
+        } finally {
+            c.close();
+        }
+        return watermarks;
+    }
 
-        database.insert(PHOTOCACHE_TABLE_NAME, null, values);
+    public void saveWatermarks(String mediaType, Map<String, Watermark> watermarks) {
+        database.beginTransaction();
+        try {
+            for (Map.Entry<String, Watermark> entry : watermarks.entrySet()) {
+                ContentValues values = new ContentValues();
+                values.put(WATERMARK_COLUMN_MEDIA_TYPE, mediaType);
+                values.put(WATERMARK_COLUMN_BUCKET_ID, entry.getKey());
+                values.put(WATERMARK_COLUMN_MAX_ID, entry.getValue().maxId);
+                values.put(WATERMARK_COLUMN_DATE_ADDED, entry.getValue().dateAdded);
+                values.put(WATERMARK_COLUMN_DATE_MODIFIED, entry.getValue().dateModified);
+                database.insertWithOnConflict(WATERMARK_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
     }
 
+    /**
+     * Forget which files have been uploaded, the next sync compares all of them with the server again.
+     * The content hashes are kept, so files uploaded before are still not uploaded twice.
+     */
     public void cleanPhotoCache() {
         database.delete(PHOTOCACHE_TABLE_NAME, null, null);
+        database.delete(WATERMARK_TABLE_NAME, null, null);
+    }
+
+    /**
+     * The newest media store row of a bucket which has been synced. Rows beyond any of the values
+     * are new or changed. Dates are in seconds, like in the media store.
+     * <p/>
+     * The ids alone would miss all new photos after the media store database was rebuilt
+     * and numbers its rows from 1 again, the date added still grows then.
+     */
+    public static class Watermark {
+        public static final Watermark NONE = new Watermark(0, 0, 0);
+
+        public final long maxId;
+        public final long dateAdded;
+        public final long dateModified;
+
+        public Watermark(long maxId, long dateAdded, long dateModified) {
+            this.maxId = maxId;
+            this.dateAdded = dateAdded;
+            this.dateModified = dateModified;
+        }
+
+        /**
+         * @return a watermark covering this one and the given row
+         */
+        public Watermark include(long id, long added, long modified) {
+            if (id <= maxId && added <= dateAdded && modified <= dateModified) {
+                return this;
+            }
+            return new Watermark(Math.max(maxId, id), Math.max(dateAdded, added), Math.max(dateModified, modified));
+        }
     }
 }
\ No newline at end of file
@@ -22,6 +22,13 @@ public class CameraUploadManager {
      */
     public static final String AUTHORITY = BuildConfig.APPLICATION_ID + ".cameraupload.provider";
 
+    /**
+     * Sync extras with the comma separated ids of the changed media store rows. If present, the sync only
+     * looks at these rows, an empty string means none of that media type changed.
+     */
+    public static final String EXTRA_CHANGED_IMAGES = "camera_upload_changed_images";
+    public static final String EXTRA_CHANGED_VIDEOS = "camera_upload_changed_videos";
+
     AccountManager accountManager;
 
     public CameraUploadManager(Context context) {
@@ -56,9 +63,18 @@ public class CameraUploadManager {
      * Initiate a camera sync immediately.
      */
     public void performSync() {
+        performSync(Bundle.EMPTY);
+    }
+
+    /**
+     * Initiate a camera sync immediately.
+     *
+     * @param extras e.g. {@link #EXTRA_CHANGED_IMAGES}
+     */
+    public void performSync(Bundle extras) {
         Account cameraAccount = getCameraAccount();
         if (cameraAccount != null)
-            ContentResolver.requestSync(cameraAccount.getAndroidAccount(), AUTHORITY, Bundle.EMPTY);
+            ContentResolver.requestSync(cameraAccount.getAndroidAccount(), AUTHORITY, extras);
     }
 
     /**
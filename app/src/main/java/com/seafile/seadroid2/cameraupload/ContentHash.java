@@ -0,0 +1,59 @@
+package com.seafile.seadroid2.cameraupload;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Identifies the content of an uploaded media file, so that a copy or a renamed file isn't uploaded again.
+ * <p/>
+ * Comparing the full hash of every file means reading the whole gallery. The partial hash only covers the
+ * size and the head and tail of a file, which differ between any two photos or videos in practice.
+ * The full hash is only compared when the partial ones match.
+ */
+class ContentHash {
+    /** bytes read from the head and from the tail of a file for the partial hash */
+    static final int PARTIAL_BYTES = 32 * 1024;
+
+    final long size;
+    final String partialHash;
+    final String fullHash;
+
+    ContentHash(long size, String partialHash, String fullHash) {
+        this.size = size;
+        this.partialHash = partialHash;
+        this.fullHash = fullHash;
+    }
+
+    static ContentHash of(File file) throws IOException {
+        return new ContentHash(file.length(), partialHash(file), fullHash(file));
+    }
+
+    static String partialHash(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            final long length = in.length();
+            final Hasher hasher = Hashing.sha1().newHasher().putLong(length);
+            final byte[] buffer = new byte[(int) Math.min(PARTIAL_BYTES, length)];
+            in.readFully(buffer);
+            hasher.putBytes(buffer);
+            if (length > PARTIAL_BYTES) {
+                in.seek(Math.max(PARTIAL_BYTES, length - PARTIAL_BYTES));
+                final int tail = (int) (length - in.getFilePointer());
+                in.readFully(buffer, 0, tail);
+                hasher.putBytes(buffer, 0, tail);
+            }
+            return hasher.hash().toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    static String fullHash(File file) throws IOException {
+        return Files.hash(file, Hashing.sha1()).toString();
+    }
+}
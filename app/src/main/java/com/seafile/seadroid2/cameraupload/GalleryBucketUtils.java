@@ -1,13 +1,9 @@
 package com.seafile.seadroid2.cameraupload;
 
+import android.content.ContentUris;
 import android.content.Context;
-import android.database.Cursor;
 import android.net.Uri;
-import android.provider.MediaStore;
 
-import com.seafile.seadroid2.data.StorageManager;
-
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -28,130 +24,69 @@ public class GalleryBucketUtils {
     public static class Bucket {
         public String id;
         public String name;
+        /** the newest image of the bucket, -1 if it only contains videos */
         public int image_id = -1;
         public boolean isCameraBucket;
+        /** number of images and videos */
+        public int count;
+        /** newest modification of an image or video, in seconds */
+        public long maxDateModified;
+        /** the newest video of the bucket */
+        int maxVideoId = -1;
+
+        Bucket copy() {
+            Bucket b = new Bucket();
+            b.id = id;
+            b.name = name;
+            b.image_id = image_id;
+            b.isCameraBucket = isCameraBucket;
+            b.count = count;
+            b.maxDateModified = maxDateModified;
+            b.maxVideoId = maxVideoId;
+            return b;
+        }
     }
 
     /**
      * Fetch the list of buckets.
      *
      * Image and Video buckets are merged into one list. Duplicates are removed.
+     * The list is cached, see {@link BucketCatalog}.
      *
      * @param context
-     * @return the list of buckets.
+     * @return the list of buckets, sorted by name.
      */
     public static List<Bucket> getMediaBuckets(Context context) {
-        List<Bucket> video = getVideoBuckets(context);
-        List<Bucket> image = getImageBuckets(context);
-
-        List<Bucket> merged = image;
-
-        VIDEO: for (Bucket v: video) {
-            for (Bucket i: image) {
-                if (v.id.equals(i.id))
-                    continue VIDEO;
-            }
-            merged.add(v);
-        }
-        return merged;
+        return BucketCatalog.getInstance(context).getBuckets();
     }
 
-    private static List<Bucket> getVideoBuckets(Context context) {
-        Uri images = MediaStore.Video.Media.EXTERNAL_CONTENT_URI;
-        String[] projection = new String[]{
-                MediaStore.Video.Media.BUCKET_ID,
-                MediaStore.Video.Media.BUCKET_DISPLAY_NAME,
-                MediaStore.Video.Media.DATA
-        };
-
-        String BUCKET_ORDER_BY = MediaStore.Video.Media.BUCKET_DISPLAY_NAME + " ASC";
-        String BUCKET_GROUP_BY = "1) GROUP BY 1,(2";
-        Cursor cursor = context.getContentResolver().query(images,
-                projection,            // Which columns to return
-                BUCKET_GROUP_BY,       // Which rows to return (all rows)
-                null,                  // Selection arguments (none)
-                BUCKET_ORDER_BY        // Ordering
-        );
-
-        List<Bucket> buckets = new ArrayList<Bucket>();
-
-        if (cursor == null) {
-            return buckets;
-        }
-
-        while (cursor.moveToNext()) {
-            int bucketIdColumnIndex = cursor.getColumnIndex(MediaStore.Video.Media.BUCKET_ID);
-            int bucketColumnIndex = cursor.getColumnIndex(MediaStore.Video.Media.BUCKET_DISPLAY_NAME);
-            int dataColumnIndex = cursor.getColumnIndex(MediaStore.Video.Media.DATA);
-            Bucket b = new Bucket();
-            b.id = cursor.getString(bucketIdColumnIndex);
-            b.name = cursor.getString(bucketColumnIndex);
-
-            b.isCameraBucket = false;
-            for (String name: CAMERA_BUCKET_NAMES) {
-                if (b.name.equalsIgnoreCase(name)) {
-                    b.isCameraBucket = true;
-                }
+    static boolean isCameraBucketName(String name) {
+        for (String cameraName : CAMERA_BUCKET_NAMES) {
+            if (name.equalsIgnoreCase(cameraName)) {
+                return true;
             }
-
-            // ignore buckets created by Seadroid
-            String file = cursor.getString(dataColumnIndex);
-            if (file == null || !file.startsWith(StorageManager.getInstance().getMediaDir().getAbsolutePath()))
-                buckets.add(b);
         }
-        cursor.close();
-
-        return buckets;
+        return false;
     }
 
-    private static List<Bucket> getImageBuckets(Context context) {
-        Uri images = MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
-        String[] projection = new String[]{
-                MediaStore.Images.Media.BUCKET_ID,
-                MediaStore.Images.Media.BUCKET_DISPLAY_NAME,
-                MediaStore.Video.Media.DATA,
-                MediaStore.Images.Media._ID
-        };
-
-        String BUCKET_ORDER_BY = MediaStore.Images.Media.BUCKET_DISPLAY_NAME + " ASC";
-        String BUCKET_GROUP_BY = "1) GROUP BY 1,(2";
-        Cursor cursor = context.getContentResolver().query(images,
-                projection,            // Which columns to return
-                BUCKET_GROUP_BY,       // Which rows to return (all rows)
-                null,                  // Selection arguments (none)
-                BUCKET_ORDER_BY        // Ordering
-        );
-
-        List<Bucket> buckets = new ArrayList<Bucket>();
+    /**
+     * @return whether the uri is a row of the given table
+     */
+    static boolean isRowOf(Uri uri, Uri table) {
+        return uri.toString().startsWith(table.toString() + "/");
+    }
 
-        if (cursor == null) {
-            return buckets;
+    /**
+     * @return the row id of a content uri, or -1 for a table or no uri
+     */
+    static long parseRowId(Uri uri) {
+        if (uri == null) {
+            return -1;
         }
-
-        while (cursor.moveToNext()) {
-            int bucketIdColumnIndex = cursor.getColumnIndex(MediaStore.Images.Media.BUCKET_ID);
-            int bucketColumnIndex = cursor.getColumnIndex(MediaStore.Images.Media.BUCKET_DISPLAY_NAME);
-            int dataColumnIndex = cursor.getColumnIndex(MediaStore.Video.Media.DATA);
-            int idColumnIndex = cursor.getColumnIndex(MediaStore.Images.Media._ID);
-            Bucket b = new Bucket();
-            b.id = cursor.getString(bucketIdColumnIndex);
-            b.name = cursor.getString(bucketColumnIndex);
-            b.image_id = cursor.getInt(idColumnIndex);
-
-            b.isCameraBucket = false;
-            for (String name: CAMERA_BUCKET_NAMES) {
-                if (b.name.equalsIgnoreCase(name)) {
-                    b.isCameraBucket = true;
-                }
-            }
-
-            // ignore buckets created by Seadroid
-            String file = cursor.getString(dataColumnIndex);
-            if (file == null || !file.startsWith(StorageManager.getInstance().getMediaDir().getAbsolutePath()))
-                buckets.add(b);
+        try {
+            return ContentUris.parseId(uri);
+        } catch (NumberFormatException | UnsupportedOperationException e) {
+            return -1;
         }
-        cursor.close();
-
-        return buckets;
     }
 }
@@ -0,0 +1,194 @@
+package com.seafile.seadroid2.cameraupload;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.util.Log;
+
+import com.seafile.seadroid2.transfer.TransferMetrics;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shrinks photos before camera upload, to save bandwidth on metered networks.
+ * <p/>
+ * A JPEG is decoded subsampled by a power of two until it fits the maximum dimension, so memory use is bounded
+ * by that dimension rather than the camera resolution. It is encoded straight into a temporary file with the
+ * original name, as the upload takes the remote name from the local file. Other media, e.g. videos, and photos
+ * which would not get smaller are uploaded as they are.
+ * <p/>
+ * Thread-safe, camera sync runs several compressions at once.
+ */
+class MediaCompressor {
+    private static final String DEBUG_TAG = "MediaCompressor";
+
+    /** histogram of the compressed size in percent of the original size */
+    static final String METRIC_RATIO = "camera_upload.compression_percent";
+    /** histogram of the milliseconds to compress a photo */
+    static final String METRIC_DURATION = "camera_upload.compression_ms";
+    /** counts photos uploaded as they are, because they would not get smaller or could not be decoded */
+    static final String METRIC_SKIPPED = "camera_upload.compression_skipped";
+
+    /** tags copied from the original if EXIF data is kept. The orientation is always copied. */
+    private static final String[] EXIF_TAGS = {
+            ExifInterface.TAG_DATETIME,
+            ExifInterface.TAG_MAKE,
+            ExifInterface.TAG_MODEL,
+            ExifInterface.TAG_FLASH,
+            ExifInterface.TAG_FOCAL_LENGTH,
+            ExifInterface.TAG_WHITE_BALANCE,
+            ExifInterface.TAG_GPS_LATITUDE,
+            ExifInterface.TAG_GPS_LATITUDE_REF,
+            ExifInterface.TAG_GPS_LONGITUDE,
+            ExifInterface.TAG_GPS_LONGITUDE_REF,
+            ExifInterface.TAG_GPS_TIMESTAMP,
+            ExifInterface.TAG_GPS_DATESTAMP,
+            ExifInterface.TAG_GPS_PROCESSING_METHOD
+    };
+
+    private final File tempDir;
+    private final int maxDimension;
+    private final int quality;
+    private final boolean keepExif;
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    /**
+     * @param tempDir      where the compressed files are written, one subdirectory per file
+     * @param maxDimension the longer side of a compressed photo is at most this many pixels
+     * @param quality      JPEG quality, 0-100
+     * @param keepExif     whether to copy the date, camera and location tags
+     */
+    MediaCompressor(File tempDir, int maxDimension, int quality, boolean keepExif) {
+        this.tempDir = tempDir;
+        this.maxDimension = maxDimension;
+        this.quality = quality;
+        this.keepExif = keepExif;
+    }
+
+    /**
+     * @return the compressed copy of the file, to be passed to {@link #delete(File)} after the upload,
+     * or null to upload the original
+     */
+    File compress(File original) {
+        if (!isJpeg(original)) {
+            return null;
+        }
+
+        final long start = System.nanoTime();
+        File compressed = null;
+        try {
+            compressed = encode(original);
+        } catch (IOException e) {
+            Log.w(DEBUG_TAG, "Could not compress " + original, e);
+        } catch (OutOfMemoryError e) {
+            Log.w(DEBUG_TAG, "Not enough memory to compress " + original);
+        }
+
+        final TransferMetrics metrics = TransferMetrics.getInstance();
+        if (compressed == null || compressed.length() >= original.length()) {
+            delete(compressed);
+            metrics.count(METRIC_SKIPPED);
+            return null;
+        }
+
+        metrics.recordSince(METRIC_DURATION, start);
+        metrics.record(METRIC_RATIO, compressed.length() * 100 / original.length());
+        return compressed;
+    }
+
+    /**
+     * Delete a file returned by {@link #compress(File)}, and its directory
+     */
+    static void delete(File compressed) {
+        if (compressed != null) {
+            FileUtils.deleteQuietly(compressed.getParentFile());
+        }
+    }
+
+    private File encode(File original) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(original.getAbsolutePath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize(Math.max(options.outWidth, options.outHeight), maxDimension);
+        Bitmap bitmap = BitmapFactory.decodeFile(original.getAbsolutePath(), options);
+        if (bitmap == null) {
+            return null;
+        }
+
+        File dir = new File(tempDir, "compress-" + System.currentTimeMillis() + "-" + sequence.incrementAndGet());
+        if (!dir.mkdirs()) {
+            bitmap.recycle();
+            throw new IOException("Could not create " + dir);
+        }
+        File compressed = new File(dir, original.getName());
+
+        boolean done = false;
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(compressed));
+            try {
+                if (!bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out)) {
+                    throw new IOException("Could not encode " + original);
+                }
+            } finally {
+                out.close();
+            }
+            copyExif(original, compressed);
+            compressed.setLastModified(original.lastModified());
+            done = true;
+        } finally {
+            bitmap.recycle();
+            if (!done) {
+                delete(compressed);
+            }
+        }
+        return compressed;
+    }
+
+    private void copyExif(File original, File compressed) throws IOException {
+        ExifInterface source = new ExifInterface(original.getAbsolutePath());
+        ExifInterface target = new ExifInterface(compressed.getAbsolutePath());
+        copyTag(source, target, ExifInterface.TAG_ORIENTATION);
+        if (keepExif) {
+            for (String tag : EXIF_TAGS) {
+                copyTag(source, target, tag);
+            }
+        }
+        target.saveAttributes();
+    }
+
+    private static void copyTag(ExifInterface source, ExifInterface target, String tag) {
+        String value = source.getAttribute(tag);
+        if (value != null) {
+            target.setAttribute(tag, value);
+        }
+    }
+
+    /**
+     * @return the smallest power of two which shrinks the longer side to the maximum dimension
+     */
+    static int sampleSize(int longerSide, int maxDimension) {
+        int sampleSize = 1;
+        while (longerSide / sampleSize > maxDimension) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static boolean isJpeg(File file) {
+        String name = file.getName().toLowerCase(Locale.US);
+        return name.endsWith(".jpg") || name.endsWith(".jpeg");
+    }
+}
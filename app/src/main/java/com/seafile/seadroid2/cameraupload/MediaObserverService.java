@@ -13,7 +13,8 @@ import com.seafile.seadroid2.SettingsManager;
 /**
  * This service monitors the media provider content provider for new images/videos.
  *
- * If new content appears, this service will get notified and send a syncRequest to the MediaSyncProvider.
+ * If new content appears, this service will get notified and send a syncRequest to the MediaSyncProvider,
+ * see {@link SyncTrigger}.
  *
  * This service is always running, even if camera upload is not active.
  * However, it will only register it's ContentObservers if Camera Upload is enabled in Seadroid.
@@ -24,6 +25,7 @@ public class MediaObserverService extends Service {
     private MediaObserver mediaObserver = null;
     private SettingsManager settingsManager = SettingsManager.instance();
     private CameraUploadManager cameraManager;
+    private SyncTrigger syncTrigger;
 
     /**
      * If camera upload settings have changed, we might have to trigger a full resync.
@@ -73,6 +75,7 @@ public class MediaObserverService extends Service {
 
         settingsManager.registerSharedPreferencesListener(settingsListener);
         cameraManager = new CameraUploadManager(getApplicationContext());
+        syncTrigger = new SyncTrigger(cameraManager);
         registerContentObservers();
 
         if (cameraManager.isCameraUploadEnabled()) {
@@ -86,6 +89,7 @@ public class MediaObserverService extends Service {
         // Log.d(DEBUG_TAG, "onDestroy");
         settingsManager.unregisterSharedPreferencesListener(settingsListener);
         unregisterContentObservers();
+        syncTrigger.cancel();
     }
 
     @Override
@@ -101,11 +105,12 @@ public class MediaObserverService extends Service {
     private void registerContentObservers() {
         mediaObserver = new MediaObserver();
 
+        // the uris of single rows are descendants of the table, they name the changed photos
         getApplicationContext().getContentResolver().registerContentObserver(
-                MediaStore.Images.Media.EXTERNAL_CONTENT_URI, false, mediaObserver);
+                MediaStore.Images.Media.EXTERNAL_CONTENT_URI, true, mediaObserver);
 
         getApplicationContext().getContentResolver().registerContentObserver
-                (MediaStore.Video.Media.EXTERNAL_CONTENT_URI, false, mediaObserver);
+                (MediaStore.Video.Media.EXTERNAL_CONTENT_URI, true, mediaObserver);
 
         // Log.i(DEBUG_TAG, "Started watchting for new media content.");
     }
@@ -129,11 +134,8 @@ public class MediaObserverService extends Service {
 
         @Override
         public void onChange(boolean selfChange, Uri changeUri) {
-
-            if (cameraManager.isCameraUploadEnabled()) {
-                // Log.d(DEBUG_TAG, "Noticed a change in the media provider, scheduling sync.");
-                cameraManager.performSync();
-            }
+            // coalesce the notifications of a burst of photos into one sync
+            syncTrigger.onChange(changeUri);
         }
     }
 }
@@ -0,0 +1,44 @@
+package com.seafile.seadroid2.cameraupload;
+
+import com.seafile.seadroid2.data.SeafDirent;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The files of a remote directory by name and size, to tell whether a local file exists there already.
+ * <p/>
+ * A local file matches a remote one of the same size, which has the same name or a name with a copy
+ * number the server added on a conflict, e.g. "IMG_1.jpg" matches "IMG_1 (2).jpg". The lookup is a
+ * hash set access instead of matching a regular expression against every remote file.
+ */
+class RemoteDirentIndex {
+    /** a name with a copy number before the extension, if any */
+    private static final Pattern COPY_NAME = Pattern.compile("(.*) \\(\\d+\\)(\\.[^.]*)?");
+
+    private final Set<String> keys = new HashSet<>();
+
+    RemoteDirentIndex(List<SeafDirent> dirents) {
+        for (SeafDirent dirent : dirents) {
+            if (dirent.isDir())
+                continue;
+            keys.add(key(dirent.name, dirent.size));
+            Matcher matcher = COPY_NAME.matcher(dirent.name);
+            if (matcher.matches()) {
+                String extension = matcher.group(2);
+                keys.add(key(matcher.group(1) + (extension == null ? "" : extension), dirent.size));
+            }
+        }
+    }
+
+    boolean contains(String name, long size) {
+        return keys.contains(key(name, size));
+    }
+
+    private static String key(String name, long size) {
+        return size + "/" + name;
+    }
+}
@@ -0,0 +1,140 @@
+package com.seafile.seadroid2.cameraupload;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+
+import com.google.common.base.Joiner;
+import com.seafile.seadroid2.transfer.TransferMetrics;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Turns the media store change notifications into camera syncs.
+ * <p/>
+ * Taking a burst of photos or importing an album notifies a change for every file. Instead of a sync for
+ * each of them, one is requested once no change was notified for {@link #QUIET_PERIOD} milliseconds,
+ * but no later than {@link #MAX_LATENCY} milliseconds after the first change. If the notifications
+ * name the changed rows, only those are passed to the sync, see {@link CameraUploadManager#EXTRA_CHANGED_IMAGES}.
+ */
+class SyncTrigger {
+    /** milliseconds without changes before a sync is requested */
+    static final long QUIET_PERIOD = 3000;
+    /** milliseconds from the first change until a sync is requested at the latest */
+    static final long MAX_LATENCY = 30000;
+    /** above this many changed rows the sync looks at all new rows instead */
+    static final int MAX_CHANGED_IDS = 500;
+
+    /** counts the requested syncs */
+    static final String METRIC_TRIGGERED = "camera_upload.sync_triggered";
+    /** counts the change notifications which didn't request a sync of their own */
+    static final String METRIC_SUPPRESSED = "camera_upload.sync_suppressed";
+
+    private final CameraUploadManager cameraManager;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable fireRunnable = new Runnable() {
+        @Override
+        public void run() {
+            fire();
+        }
+    };
+
+    /** the following fields are guarded by this */
+    private final Set<Long> changedImages = new TreeSet<>();
+    private final Set<Long> changedVideos = new TreeSet<>();
+    /** whether a change didn't name its row, the sync has to look at all new rows then */
+    private boolean unknownChange;
+    /** uptime of the first change since the last sync request, 0 if none is pending */
+    private long firstChange;
+    private long suppressed;
+
+    SyncTrigger(CameraUploadManager cameraManager) {
+        this.cameraManager = cameraManager;
+    }
+
+    /**
+     * Called for every change notification, from any thread
+     *
+     * @param uri the changed row or table, null if unknown
+     */
+    synchronized void onChange(Uri uri) {
+        final long now = SystemClock.uptimeMillis();
+        if (firstChange == 0) {
+            firstChange = now;
+        } else {
+            suppressed++;
+            TransferMetrics.getInstance().count(METRIC_SUPPRESSED);
+        }
+        addChange(uri);
+
+        handler.removeCallbacks(fireRunnable);
+        handler.postDelayed(fireRunnable, Math.min(QUIET_PERIOD, firstChange + MAX_LATENCY - now));
+    }
+
+    /**
+     * Drop a pending sync request, e.g. when the service is stopped
+     */
+    synchronized void cancel() {
+        handler.removeCallbacks(fireRunnable);
+        reset();
+    }
+
+    /**
+     * @return the number of change notifications which were merged into an earlier one
+     */
+    synchronized long getSuppressedCount() {
+        return suppressed;
+    }
+
+    private void addChange(Uri uri) {
+        if (unknownChange) {
+            return;
+        }
+        final long id = GalleryBucketUtils.parseRowId(uri);
+        if (id >= 0 && GalleryBucketUtils.isRowOf(uri, MediaStore.Images.Media.EXTERNAL_CONTENT_URI)) {
+            changedImages.add(id);
+        } else if (id >= 0 && GalleryBucketUtils.isRowOf(uri, MediaStore.Video.Media.EXTERNAL_CONTENT_URI)) {
+            changedVideos.add(id);
+        } else {
+            unknownChange = true;
+        }
+        if (changedImages.size() + changedVideos.size() > MAX_CHANGED_IDS) {
+            unknownChange = true;
+        }
+        if (unknownChange) {
+            changedImages.clear();
+            changedVideos.clear();
+        }
+    }
+
+    private void fire() {
+        final Bundle extras = new Bundle();
+        synchronized (this) {
+            if (firstChange == 0) {
+                return;
+            }
+            if (!unknownChange) {
+                // sync extras can't hold arrays
+                extras.putString(CameraUploadManager.EXTRA_CHANGED_IMAGES, Joiner.on(',').join(changedImages));
+                extras.putString(CameraUploadManager.EXTRA_CHANGED_VIDEOS, Joiner.on(',').join(changedVideos));
+            }
+            reset();
+        }
+
+        TransferMetrics.getInstance().count(METRIC_TRIGGERED);
+        if (cameraManager.isCameraUploadEnabled()) {
+            cameraManager.performSync(extras);
+        }
+    }
+
+    private void reset() {
+        changedImages.clear();
+        changedVideos.clear();
+        unknownChange = false;
+        firstChange = 0;
+    }
+}
@@ -0,0 +1,101 @@
+package com.seafile.seadroid2.cameraupload;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * In-memory set of the uploaded media files, so that camera sync doesn't query the database for every file.
+ * <p/>
+ * A file is identified by its path and modification time, like in {@link CameraUploadDBHelper}. Only a 64 bit
+ * hash of both is kept in an open addressing table of primitive longs, which takes 16 bytes per file at most.
+ * For 100.000 files the chance of any two hashes colliding, and a file wrongly being taken as uploaded,
+ * is below 1 in a billion.
+ * <p/>
+ * Not thread-safe.
+ */
+class UploadedFileIndex {
+    private static final HashFunction HASH = Hashing.murmur3_128();
+    /** marks an empty slot, a hash of 0 is stored as 1 instead */
+    private static final long EMPTY = 0;
+    private static final int MIN_CAPACITY = 64;
+
+    private long[] slots;
+    private int size;
+
+    UploadedFileIndex() {
+        this(0);
+    }
+
+    /**
+     * @param expectedSize number of files, avoids rehashing while the index is loaded
+     */
+    UploadedFileIndex(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        slots = new long[capacity];
+    }
+
+    static long hash(String path, long modified) {
+        final long hash = HASH.newHasher()
+                .putString(path, Charsets.UTF_8)
+                .putLong(modified)
+                .hash()
+                .asLong();
+        return hash == EMPTY ? 1 : hash;
+    }
+
+    void add(String path, long modified) {
+        addHash(hash(path, modified));
+    }
+
+    boolean contains(String path, long modified) {
+        final long hash = hash(path, modified);
+        final int mask = slots.length - 1;
+        for (int i = index(hash, mask); ; i = (i + 1) & mask) {
+            if (slots[i] == hash) {
+                return true;
+            }
+            if (slots[i] == EMPTY) {
+                return false;
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void addHash(long hash) {
+        final int mask = slots.length - 1;
+        int i = index(hash, mask);
+        while (slots[i] != EMPTY) {
+            if (slots[i] == hash) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        slots[i] = hash;
+        // keep the load factor at 1/2, probe sequences stay short
+        if (++size * 2 > slots.length) {
+            grow();
+        }
+    }
+
+    private void grow() {
+        final long[] old = slots;
+        slots = new long[old.length * 2];
+        size = 0;
+        for (long hash : old) {
+            if (hash != EMPTY) {
+                addHash(hash);
+            }
+        }
+    }
+
+    private static int index(long hash, int mask) {
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+}
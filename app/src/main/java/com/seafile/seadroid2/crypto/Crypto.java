@@ -19,6 +19,8 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.Security;
 import java.security.spec.InvalidKeySpecException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -98,7 +100,12 @@ public class Crypto {
      * @throws SeafException
      */
     public static void verifyRepoPassword(String repoId, String password, int version, String magic) throws NoSuchAlgorithmException, InvalidKeySpecException, UnsupportedEncodingException, SeafException, IllegalBlockSizeException, InvalidKeyException, BadPaddingException, InvalidAlgorithmParameterException, NoSuchPaddingException {
-        final byte[] generateMagic = generateMagic(repoId, password, version);
+        final DerivedKeyCache keyCache = DerivedKeyCache.getInstance();
+        byte[] generateMagic = keyCache.getMagic(repoId, password, version);
+        if (generateMagic == null) {
+            generateMagic = generateMagic(repoId, password, version);
+            keyCache.putMagic(repoId, password, version, generateMagic);
+        }
         final byte[] genMagic = toHex(generateMagic).getBytes(CHAR_SET);
         final byte[] repoMagic = magic.getBytes(CHAR_SET);
         int diff = genMagic.length ^ repoMagic.length;
@@ -109,6 +116,76 @@ public class Crypto {
         if (diff != 0) throw SeafException.invalidPassword;
     }
 
+    /**
+     * Same as {@link #verifyRepoPassword(String, String, int, String)}, but the key derivation runs on a background executor.
+     * {@link Future#get()} throws an {@link java.util.concurrent.ExecutionException} wrapping {@link SeafException#invalidPassword}
+     * if the password is wrong.
+     *
+     * @param repoId
+     * @param password
+     * @param version
+     * @param magic
+     * @return
+     */
+    public static Future<Void> verifyRepoPasswordAsync(final String repoId, final String password, final int version, final String magic) {
+        return DerivedKeyCache.getInstance().getExecutor().submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                verifyRepoPassword(repoId, password, version, magic);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #generateKey(String, String, int)}, but the derived key/iv pair is cached
+     * for the repo until it expires or {@link #clearCachedKeys()} is called.
+     *
+     * @param repoID
+     * @param password
+     * @param randomKey encrypted file key
+     * @param version
+     * @return
+     * @throws UnsupportedEncodingException
+     * @throws NoSuchAlgorithmException
+     */
+    public static Pair<String, String> generateKey(@NonNull String repoID, @NonNull String password, @NonNull String randomKey, int version) throws UnsupportedEncodingException, NoSuchAlgorithmException {
+        final DerivedKeyCache keyCache = DerivedKeyCache.getInstance();
+        final Pair<String, String> cached = keyCache.getKey(repoID, password, randomKey, version);
+        if (cached != null) {
+            return cached;
+        }
+
+        final Pair<String, String> pair = generateKey(password, randomKey, version);
+        keyCache.putKey(repoID, password, randomKey, version, fromHex(pair.first), fromHex(pair.second));
+        return pair;
+    }
+
+    /**
+     * Same as {@link #generateKey(String, String, String, int)}, but the key derivation runs on a background executor.
+     *
+     * @param repoID
+     * @param password
+     * @param randomKey encrypted file key
+     * @param version
+     * @return
+     */
+    public static Future<Pair<String, String>> generateKeyAsync(@NonNull final String repoID, @NonNull final String password, @NonNull final String randomKey, final int version) {
+        return DerivedKeyCache.getInstance().getExecutor().submit(new Callable<Pair<String, String>>() {
+            @Override
+            public Pair<String, String> call() throws Exception {
+                return generateKey(repoID, password, randomKey, version);
+            }
+        });
+    }
+
+    /**
+     * Wipe all cached key material, e.g. when passwords are cleared or the device was remotely wiped.
+     */
+    public static void clearCachedKeys() {
+        DerivedKeyCache.getInstance().clear();
+    }
+
     /**
      * First use PBKDF2 algorithm (1000 iteratioins of SHA256) to derive a key/iv pair from the password,
      * then use AES 256/CBC to decrypt the "file key" from randomKey (the "encrypted file key").
@@ -313,7 +390,7 @@ public class Crypto {
      * @param buf
      * @return
      */
-    private static String toHex(@NonNull byte[] buf) {
+    static String toHex(@NonNull byte[] buf) {
         if (buf == null) return "";
 
         String hex = "0123456789abcdef";
@@ -333,7 +410,7 @@ public class Crypto {
      * @return
      * @throws NoSuchAlgorithmException
      */
-    private static byte[] fromHex(@NonNull String hex) throws NoSuchAlgorithmException {
+    static byte[] fromHex(@NonNull String hex) throws NoSuchAlgorithmException {
         byte[] bytes = new byte[hex.length() / 2];
         for (int i = 0; i < bytes.length; i++) {
             bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
@@ -0,0 +1,235 @@
+package com.seafile.seadroid2.crypto;
+
+import android.support.annotation.NonNull;
+import android.util.Pair;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+
+import java.io.UnsupportedEncodingException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * In-memory, time-bounded cache of the key material derived by {@link Crypto}.
+ * <p/>
+ * Every PBKDF2 derivation costs 1000 iterations of SHA256, which takes hundreds of milliseconds
+ * on slow devices. Re-entering the password of an encrypted library would repeat all of them,
+ * so the results are memoised by (repoID, password tag, version).
+ * The plain password is never kept. The tag is an HMAC-SHA256 of repoID and password under a random key,
+ * which is generated per process and never leaves memory, so the cache keys can't be used to test passwords.
+ * <p/>
+ * Cached byte arrays are overwritten with zeros when they are evicted, expire or when the cache is cleared.
+ * The derivation itself runs on a dedicated background executor, see {@link #getExecutor()}.
+ */
+class DerivedKeyCache {
+    /** same as the interval a repo password stays valid in {@link com.seafile.seadroid2.data.DataManager} */
+    private static final long EXPIRATION_MSECS = 59 * 60 * 1000; // 59 min
+    private static final int MAX_ENTRIES = 64;
+    private static final String TAG_ALGORITHM = "HmacSHA256";
+
+    private static DerivedKeyCache instance;
+
+    private final Cache<CacheKey, DerivedKeys> cache;
+    /** key of the password tags, see {@link #tag(String, String)} */
+    private final SecretKeySpec tagKey;
+
+    private final ExecutorService executor;
+
+    private DerivedKeyCache() {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        tagKey = new SecretKeySpec(key, TAG_ALGORITHM);
+        wipe(key);
+
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(MAX_ENTRIES)
+                .expireAfterWrite(EXPIRATION_MSECS, TimeUnit.MILLISECONDS)
+                .removalListener(new RemovalListener<CacheKey, DerivedKeys>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<CacheKey, DerivedKeys> notification) {
+                        DerivedKeys keys = notification.getValue();
+                        if (keys != null) {
+                            keys.wipe();
+                        }
+                    }
+                })
+                .build();
+
+        executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(@NonNull Runnable r) {
+                Thread t = new Thread(r, "SeadroidKeyDerivation #" + mCount.getAndIncrement());
+                t.setPriority(Thread.NORM_PRIORITY - 1);
+                return t;
+            }
+        });
+        ((ThreadPoolExecutor) executor).allowCoreThreadTimeOut(true);
+    }
+
+    public static synchronized DerivedKeyCache getInstance() {
+        if (instance == null) {
+            instance = new DerivedKeyCache();
+        }
+
+        return instance;
+    }
+
+    ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return a copy of the cached magic, or null if it is not cached
+     */
+    byte[] getMagic(String repoID, String password, int version) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        DerivedKeys keys = cache.getIfPresent(new CacheKey(repoID, tag(repoID, password), version));
+        if (keys == null) {
+            return null;
+        }
+
+        synchronized (keys) {
+            return keys.magic == null ? null : keys.magic.clone();
+        }
+    }
+
+    void putMagic(String repoID, String password, int version, @NonNull byte[] magic) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        DerivedKeys keys = getOrCreate(new CacheKey(repoID, tag(repoID, password), version));
+        synchronized (keys) {
+            wipe(keys.magic);
+            keys.magic = magic.clone();
+        }
+    }
+
+    /**
+     * @return the cached encKey/encIv pair, or null if it is not cached for this encrypted file key
+     */
+    Pair<String, String> getKey(String repoID, String password, String randomKey, int version) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        DerivedKeys keys = cache.getIfPresent(new CacheKey(repoID, tag(repoID, password), version));
+        if (keys == null) {
+            return null;
+        }
+
+        synchronized (keys) {
+            if (keys.encKey == null || keys.encIv == null || !randomKey.equals(keys.randomKey)) {
+                return null;
+            }
+            return new Pair<>(Crypto.toHex(keys.encKey), Crypto.toHex(keys.encIv));
+        }
+    }
+
+    void putKey(String repoID, String password, String randomKey, int version,
+                @NonNull byte[] encKey, @NonNull byte[] encIv) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        DerivedKeys keys = getOrCreate(new CacheKey(repoID, tag(repoID, password), version));
+        synchronized (keys) {
+            wipe(keys.encKey);
+            wipe(keys.encIv);
+            keys.randomKey = randomKey;
+            keys.encKey = encKey.clone();
+            keys.encIv = encIv.clone();
+        }
+    }
+
+    /**
+     * Drop and wipe all cached key material
+     */
+    void clear() {
+        cache.invalidateAll();
+        cache.cleanUp();
+    }
+
+    /**
+     * @return the HMAC of repoID and password under the per process key
+     */
+    private String tag(String repoID, String password) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+        Mac mac = Mac.getInstance(TAG_ALGORITHM);
+        try {
+            mac.init(tagKey);
+        } catch (InvalidKeyException e) {
+            throw new IllegalStateException(e);
+        }
+        mac.update(repoID.getBytes("UTF-8"));
+        // separate the fields, so that no other pair of repo id and password gives the same input
+        mac.update((byte) 0);
+        mac.update(password.getBytes("UTF-8"));
+        return Crypto.toHex(mac.doFinal());
+    }
+
+    private DerivedKeys getOrCreate(CacheKey key) {
+        synchronized (cache) {
+            DerivedKeys keys = cache.getIfPresent(key);
+            if (keys == null) {
+                keys = new DerivedKeys();
+                cache.put(key, keys);
+            }
+            return keys;
+        }
+    }
+
+    private static void wipe(byte[] bytes) {
+        if (bytes != null) {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+
+    private static class DerivedKeys {
+        byte[] magic;
+        String randomKey;
+        byte[] encKey;
+        byte[] encIv;
+
+        synchronized void wipe() {
+            DerivedKeyCache.wipe(magic);
+            DerivedKeyCache.wipe(encKey);
+            DerivedKeyCache.wipe(encIv);
+            magic = null;
+            encKey = null;
+            encIv = null;
+            randomKey = null;
+        }
+    }
+
+    private static class CacheKey {
+        final String repoID;
+        final String passwordTag;
+        final int version;
+
+        CacheKey(String repoID, String passwordTag, int version) {
+            this.repoID = repoID;
+            this.passwordTag = passwordTag;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            CacheKey that = (CacheKey) o;
+            return version == that.version
+                    && Objects.equal(repoID, that.repoID)
+                    && Objects.equal(passwordTag, that.passwordTag);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(repoID, passwordTag, version);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.seafile.seadroid2.data;
+
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Extracts a zip archive while it is read from the network, without keeping a copy of the archive on disk.
+ * <p/>
+ * Every entry is written to a temporary file next to its target and renamed when complete, so an aborted
+ * download never leaves a truncated file behind under the real name. Entries pointing outside of the
+ * target directory are rejected, skipped entries leave the existing file untouched.
+ */
+public class ArchiveExtractor {
+    public static final int BUFFER_SIZE = 8 * 1024;
+    private static final String PART_SUFFIX = ".part";
+
+    private final File targetDir;
+    private final Set<String> skipped;
+    private final ProgressMonitor monitor;
+    private long bytesWritten;
+
+    /**
+     * @param monitor may be null. Called with the extracted bytes so far and checked for cancellation.
+     */
+    public ArchiveExtractor(File targetDir, ProgressMonitor monitor) {
+        this(targetDir, Collections.<String>emptySet(), monitor);
+    }
+
+    /**
+     * @param skipped paths of entries not to extract, relative to the target directory and separated by '/'
+     * @param monitor may be null. Called with the extracted bytes so far and checked for cancellation.
+     */
+    public ArchiveExtractor(File targetDir, Set<String> skipped, ProgressMonitor monitor) {
+        this.targetDir = targetDir;
+        this.skipped = skipped;
+        this.monitor = monitor;
+    }
+
+    /**
+     * Extract all entries of the archive. The stream is read to the end but not closed.
+     *
+     * @return the paths of the extracted files relative to the target directory, separated by '/'.
+     *         Skipped entries are not included.
+     * @throws InterruptedIOException if the monitor cancelled the extraction
+     */
+    public List<String> extract(InputStream in) throws IOException {
+        final String targetPath = targetDir.getCanonicalPath() + File.separator;
+        final List<String> paths = Lists.newArrayList();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+
+        ZipInputStream zip = new ZipInputStream(in);
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            final String name = trimSlashes(entry.getName());
+            if (name.length() == 0) {
+                continue;
+            }
+
+            final File file = new File(targetDir, name);
+            if (!file.getCanonicalPath().startsWith(targetPath)) {
+                throw new IOException("Archive entry outside of the target directory: " + entry.getName());
+            }
+
+            if (entry.isDirectory()) {
+                if (!file.isDirectory() && !file.mkdirs()) {
+                    throw new IOException("Could not create directory " + file);
+                }
+                continue;
+            }
+            if (skipped.contains(name)) {
+                continue;
+            }
+
+            writeEntry(zip, file, buffer);
+            paths.add(name);
+        }
+        return paths;
+    }
+
+    private void writeEntry(InputStream zip, File file, byte[] buffer) throws IOException {
+        final File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create directory " + parent);
+        }
+
+        final File part = new File(parent, file.getName() + PART_SUFFIX);
+        boolean done = false;
+        OutputStream out = new FileOutputStream(part);
+        try {
+            int len;
+            while ((len = zip.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+                bytesWritten += len;
+                checkMonitor();
+            }
+            out.close();
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Could not replace " + file);
+            }
+            if (!part.renameTo(file)) {
+                throw new IOException("Could not rename " + part);
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                out.close();
+                part.delete();
+            }
+        }
+
+        if (monitor != null) {
+            monitor.onProgressNotify(bytesWritten, false);
+        }
+    }
+
+    private void checkMonitor() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted() || (monitor != null && monitor.isCancelled())) {
+            throw new InterruptedIOException("extraction cancelled");
+        }
+    }
+
+    private static String trimSlashes(String name) {
+        name = name.replace('\\', '/');
+        int start = 0;
+        int end = name.length();
+        while (start < end && name.charAt(start) == '/') {
+            start++;
+        }
+        while (end > start && name.charAt(end - 1) == '/') {
+            end--;
+        }
+        return name.substring(start, end);
+    }
+}
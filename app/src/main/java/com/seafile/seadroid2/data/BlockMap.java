@@ -0,0 +1,88 @@
+package com.seafile.seadroid2.data;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Blocks of a cached file in an encrypted library, in file order.
+ * <p/>
+ * Besides the id of every block on the server, the SHA-1 and the size of its plaintext are kept.
+ * Blocks are encrypted with the key and iv of the library only, so an unchanged plaintext range
+ * encrypts to the same block again. When the cached file is edited, ranges whose plaintext still
+ * matches keep their block id and neither need to be encrypted nor uploaded again.
+ */
+public class BlockMap {
+    private static final String BLOCK_SEPARATOR = ",";
+    private static final String FIELD_SEPARATOR = ":";
+
+    /** id of the file version the blocks belong to */
+    public final String fileID;
+    private final List<Entry> entries;
+
+    public BlockMap(String fileID, List<Entry> entries) {
+        this.fileID = fileID;
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public long getSize() {
+        long size = 0;
+        for (Entry entry : entries) {
+            size += entry.size;
+        }
+        return size;
+    }
+
+    /**
+     * @return the entries as "blockId:plainSha1:size,..."
+     */
+    public String encode() {
+        List<String> parts = Lists.newArrayListWithCapacity(entries.size());
+        for (Entry entry : entries) {
+            parts.add(entry.blockId + FIELD_SEPARATOR + entry.plainSha1 + FIELD_SEPARATOR + entry.size);
+        }
+        return Joiner.on(BLOCK_SEPARATOR).join(parts);
+    }
+
+    /**
+     * @return the decoded block map, or null if the entries are malformed
+     */
+    public static BlockMap decode(String fileID, String encoded) {
+        List<Entry> entries = Lists.newArrayList();
+        if (Strings.isNullOrEmpty(encoded)) {
+            return new BlockMap(fileID, entries);
+        }
+        for (String part : encoded.split(BLOCK_SEPARATOR)) {
+            String[] fields = part.split(FIELD_SEPARATOR);
+            if (fields.length != 3) {
+                return null;
+            }
+            try {
+                entries.add(new Entry(fields[0], fields[1], Long.parseLong(fields[2])));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return new BlockMap(fileID, entries);
+    }
+
+    public static class Entry {
+        public final String blockId;
+        public final String plainSha1;
+        /** plaintext size of the block */
+        public final long size;
+
+        public Entry(String blockId, String plainSha1, long size) {
+            this.blockId = blockId;
+            this.plainSha1 = plainSha1;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.seafile.seadroid2.data;
+
+import com.google.common.collect.Lists;
+import com.seafile.seadroid2.crypto.Crypto;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits a file to upload to an encrypted library into encrypted blocks.
+ * <p/>
+ * If the blocks of the version the file was edited from are known, the file is read along their
+ * boundaries and ranges with an unchanged plaintext keep their block id without being encrypted again,
+ * see {@link BlockMap}. The rest of the file is split into blocks of the block size.
+ */
+class BlockPlanner {
+    private final String encKey;
+    private final String encIv;
+    /** directory the encrypted blocks are written to */
+    private final File blockDir;
+    private final int blockSize;
+
+    /**
+     * Blocks of a file to upload to an encrypted library
+     */
+    static class Plan {
+        /** all blocks of the file in order */
+        final List<Block> blocks = Lists.newArrayList();
+        /** blocks which were encrypted into temp files and have to be uploaded */
+        final List<Block> newBlocks = Lists.newArrayList();
+        final List<BlockMap.Entry> entries = Lists.newArrayList();
+    }
+
+    BlockPlanner(String encKey, String encIv, File blockDir, int blockSize) {
+        this.encKey = encKey;
+        this.encIv = encIv;
+        this.blockDir = blockDir;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @param base blocks of the previous version, or null to encrypt every block
+     */
+    Plan plan(String filePath, BlockMap base) throws IOException, NoSuchAlgorithmException {
+        final List<BlockMap.Entry> baseEntries = base == null
+                ? Collections.<BlockMap.Entry>emptyList() : base.getEntries();
+        final Plan plan = new Plan();
+        byte[] buffer = new byte[blockSize];
+        InputStream in = new FileInputStream(filePath);
+        try {
+            for (int i = 0; ; i++) {
+                final BlockMap.Entry baseEntry = i < baseEntries.size() ? baseEntries.get(i) : null;
+                final int size = baseEntry != null ? (int) baseEntry.size : blockSize;
+                if (buffer.length != size) {
+                    buffer = new byte[size];
+                }
+                final int read = IOUtils.read(in, buffer, 0, size);
+                if (read == 0) {
+                    break;
+                }
+
+                final String plainSha1 = Crypto.sha1(read == size ? buffer : Arrays.copyOf(buffer, read));
+                if (baseEntry != null && read == size && plainSha1.equals(baseEntry.plainSha1)) {
+                    // unchanged, the server has the block already
+                    plan.blocks.add(new Block(baseEntry.blockId, null, 0L, 0L));
+                    plan.entries.add(baseEntry);
+                    continue;
+                }
+
+                final byte[] cipher = Crypto.encrypt(buffer, read, encKey, encIv);
+                final String blkid = Crypto.sha1(cipher);
+                final File blk = new File(blockDir, blkid);
+                FileUtils.writeByteArrayToFile(blk, cipher);
+                final Block block = new Block(blkid, blk.getAbsolutePath(), cipher.length, 0L);
+                plan.blocks.add(block);
+                plan.newBlocks.add(block);
+                plan.entries.add(new BlockMap.Entry(blkid, plainSha1, read));
+                if (read < size) {
+                    break;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return plan;
+    }
+}
@@ -4,8 +4,11 @@ import android.text.TextUtils;
 import android.util.Log;
 import android.util.Pair;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Striped;
 import com.seafile.seadroid2.R;
 import com.seafile.seadroid2.SeadroidApplication;
 import com.seafile.seadroid2.SeafConnection;
@@ -13,6 +16,8 @@ import com.seafile.seadroid2.SeafException;
 import com.seafile.seadroid2.account.Account;
 import com.seafile.seadroid2.account.AccountInfo;
 import com.seafile.seadroid2.crypto.Crypto;
+import com.seafile.seadroid2.monitor.MonitorDBHelper;
+import com.seafile.seadroid2.transfer.DownloadTaskManager;
 import com.seafile.seadroid2.util.Utils;
 
 import org.apache.commons.io.FileUtils;
@@ -20,15 +25,10 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.URLEncoder;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
@@ -36,7 +36,9 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.locks.Lock;
 
 public class DataManager {
     private static final String DEBUG_TAG = "DataManager";
@@ -59,6 +61,8 @@ public class DataManager {
     private Account account;
     private DatabaseHelper dbHelper;
     private static final StorageManager storageManager = StorageManager.getInstance();
+    /** guard the temporary block files of encrypted downloads */
+    private static final Striped<Lock> BLOCK_LOCKS = Striped.lock(16);
 
     private List<SeafRepo> reposCache = null;
 
@@ -97,12 +101,31 @@ public class DataManager {
     }
 
     public String getThumbnailLink(String repoName, String repoID, String filePath, int size) {
+        return getThumbnailLink(repoName, repoID, filePath, null, size);
+    }
+
+    /**
+     * For encrypted repos the server can\`t render thumbnails, they are generated locally from the cached file
+     * by {@link LocalThumbnailGenerator} and identified by the file id.
+     *
+     * @param fileID the id of the file, null to take the one of the cached file
+     * @return the thumbnail url, or null if no thumbnail is available
+     */
+    public String getThumbnailLink(String repoName, String repoID, String filePath, String fileID, int size) {
         File file = getLocalRepoFile(repoName, repoID, filePath);
 
         SeafRepo seafRepo = getCachedRepoByID(repoID);
-        // encrypted repo doesn\`t support thumbnails
-        if (seafRepo != null && seafRepo.encrypted)
+        if (seafRepo != null && seafRepo.encrypted) {
+            if (fileID == null && file.exists()) {
+                SeafCachedFile cf = getCachedFile(repoName, repoID, filePath);
+                fileID = cf != null ? cf.fileID : null;
+            }
+            if (fileID != null
+                    && (file.exists() || EncThumbnailCache.getInstance().contains(repoID, fileID, size))) {
+                return LocalThumbnailGenerator.buildUri(repoName, repoID, filePath, fileID, size);
+            }
             return null;
+        }
 
         // use locally cached file if available
         if (file.exists()) {
@@ -356,6 +379,28 @@ public class DataManager {
         return reposCache;
     }
 
+    /**
+     * Look up a single library on the server, without fetching the list of all libraries
+     *
+     * @return the name of the library, or null if it doesn't exist
+     */
+    public String getRepoNameFromServer(String repoID) throws SeafException {
+        try {
+            JSONObject object = Utils.parseJsonObject(sc.getRepo(repoID));
+            if (object == null) {
+                throw SeafException.illFormatException;
+            }
+            return object.getString("name");
+        } catch (SeafException e) {
+            if (e.getCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                return null;
+            }
+            throw e;
+        } catch (JSONException e) {
+            throw SeafException.illFormatException;
+        }
+    }
+
     private void saveDirentContent(String repoID, String parentDir, String dirID, String content) {
         deleteOldDirentContent(repoID, parentDir);
         dbHelper.saveDirents(repoID, parentDir, dirID);
@@ -387,8 +432,28 @@ public class DataManager {
         dbHelper.removeCachedDirents(repoID, dir);
     }
 
-    public synchronized File getFile(String repoName, String repoID, String path,
+    /**
+     * Get the latest version of a file, see {@link DownloadCoordinator} for concurrent requests of the same file
+     */
+    public File getFile(final String repoName, final String repoID, final String path,
                         ProgressMonitor monitor) throws SeafException {
+        try {
+            return DownloadCoordinator.getInstance().get(account.getSignature(), repoID, path, monitor,
+                    new DownloadCoordinator.Download() {
+                        @Override
+                        public File download(ProgressMonitor monitor) throws SeafException {
+                            return downloadFile(repoName, repoID, path, monitor);
+                        }
+                    });
+        } catch (SeafException e) {
+            throw e;
+        } catch (Exception e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private File downloadFile(String repoName, String repoID, String path,
+                              ProgressMonitor monitor) throws SeafException {
 
         String cachedFileID = null;
         SeafCachedFile cf = getCachedFile(repoName, repoID, path);
@@ -413,8 +478,126 @@ public class DataManager {
         }
     }
 
-    public synchronized File getFileByBlocks(String repoName, String repoID, String path, int version, long fileSize,
-                        ProgressMonitor monitor) throws SeafException, IOException, JSONException, NoSuchAlgorithmException {
+    /**
+     * Download a directory with all its files as one archive instead of a request per file.
+     * The cached files are registered in one transaction.
+     * <p/>
+     * Like a download of a single file, files whose cached version is up to date are left alone, and so are
+     * files with local changes which are not uploaded yet.
+     *
+     * @param parentDir the parent of the directory to download
+     * @param dirName name of the directory to download
+     * @return the number of downloaded files, or -1 if the server can't send directories as archive
+     */
+    public int downloadDirArchive(String repoName, String repoID, String parentDir, String dirName,
+                                  ProgressMonitor monitor) throws SeafException {
+        File targetDir = new File(Utils.pathJoin(getRepoDir(repoName, repoID), parentDir));
+        if (!targetDir.isDirectory() && !targetDir.mkdirs()) {
+            Log.w(DEBUG_TAG, "Could not create directory " + targetDir);
+            throw SeafException.unknownException;
+        }
+
+        // paths relative to parentDir which are not extracted
+        Set<String> skipped = Sets.newHashSet();
+        final String targetPrefix = targetDir.getPath() + "/";
+        for (String localPath : MonitorDBHelper.getMonitorDBHelper()
+                .getAutoUpdateLocalPaths(account.getSignature(), repoID)) {
+            if (localPath.startsWith(targetPrefix)) {
+                skipped.add(localPath.substring(targetPrefix.length()));
+            }
+        }
+
+        // The archive doesn't carry file ids, take them from the dirents, which costs a request per
+        // directory. They are listed before the archive is packed, so a file changed in between is
+        // registered with an outdated id and downloaded again when it's opened.
+        Map<String, String> fileIDs = Maps.newHashMap();
+        // directories relative to parentDir, like the paths in the archive
+        List<String> dirs = Lists.newArrayList(dirName);
+        for (int i = 0; i < dirs.size(); i++) {
+            List<SeafDirent> dirents = getDirentsFromServer(repoID, Utils.pathJoin(parentDir, dirs.get(i)));
+            if (dirents == null)
+                continue;
+            for (SeafDirent dirent : dirents) {
+                String path = Utils.pathJoin(dirs.get(i), dirent.name);
+                if (dirent.isDir()) {
+                    dirs.add(path);
+                    continue;
+                }
+                String repoPath = Utils.pathJoin(parentDir, path);
+                fileIDs.put(repoPath, dirent.id);
+
+                SeafCachedFile cf = getCachedFile(repoName, repoID, repoPath);
+                if (cf != null && dirent.id.equals(cf.fileID) && new File(targetDir, path).exists()) {
+                    // cache is valid
+                    skipped.add(path);
+                }
+            }
+        }
+
+        List<String> paths = sc.getDirArchive(repoID, parentDir, dirName, targetDir, skipped, monitor);
+        if (paths == null) {
+            return -1;
+        }
+
+        List<SeafCachedFile> items = Lists.newArrayListWithCapacity(paths.size());
+        List<File> files = Lists.newArrayListWithCapacity(paths.size());
+        ArrayList<String> repoPaths = Lists.newArrayListWithCapacity(paths.size());
+        ArrayList<String> localPaths = Lists.newArrayListWithCapacity(paths.size());
+        for (String path : paths) {
+            String repoPath = Utils.pathJoin(parentDir, path);
+            File file = new File(targetDir, path);
+            files.add(file);
+            repoPaths.add(repoPath);
+            localPaths.add(file.getPath());
+            String fileID = fileIDs.get(repoPath);
+            if (fileID == null) {
+                // added after the listing, unknown version
+                continue;
+            }
+            SeafCachedFile item = new SeafCachedFile();
+            item.repoName = repoName;
+            item.repoID = repoID;
+            item.path = repoPath;
+            item.fileID = fileID;
+            item.accountSignature = account.getSignature();
+            items.add(item);
+        }
+        dbHelper.saveFileCacheItems(items, this);
+        if (!files.isEmpty()) {
+            storageManager.notifyAndroidGalleryDirectoryChange(files);
+            // watched like downloaded files, so the monitor takes the new content as the unchanged one
+            DownloadTaskManager.broadcastArchiveDownloaded(account, repoID, repoName, repoPaths, localPaths);
+        }
+        return paths.size();
+    }
+
+    /**
+     * Get the latest version of a file of an encrypted library, see {@link DownloadCoordinator} for
+     * concurrent requests of the same file
+     */
+    public File getFileByBlocks(final String repoName, final String repoID, final String path, int version,
+                                final long fileSize, ProgressMonitor monitor)
+            throws SeafException, IOException, JSONException, NoSuchAlgorithmException {
+        try {
+            return DownloadCoordinator.getInstance().get(account.getSignature(), repoID, path, monitor,
+                    new DownloadCoordinator.Download() {
+                        @Override
+                        public File download(ProgressMonitor monitor) throws Exception {
+                            return downloadFileByBlocks(repoName, repoID, path, fileSize, monitor);
+                        }
+                    });
+        } catch (Exception e) {
+            Throwables.propagateIfInstanceOf(e, SeafException.class);
+            Throwables.propagateIfInstanceOf(e, IOException.class);
+            Throwables.propagateIfInstanceOf(e, JSONException.class);
+            Throwables.propagateIfInstanceOf(e, NoSuchAlgorithmException.class);
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private File downloadFileByBlocks(String repoName, String repoID, String path, long fileSize,
+                                      ProgressMonitor monitor)
+            throws SeafException, IOException, JSONException, NoSuchAlgorithmException {
 
         String cachedFileID = null;
         SeafCachedFile cf = getCachedFile(repoName, repoID, path);
@@ -453,19 +636,72 @@ public class DataManager {
             return localFile;
         }
 
+        // assemble the file aside, so that an interrupted download never leaves a corrupted cache file
+        final File tmpFile = createTempFile();
+        final List<BlockMap.Entry> entries = Lists.newArrayListWithCapacity(fileBlocks.blocks.size());
         for (Block blk : fileBlocks.blocks) {
             File tempBlock = new File(storageManager.getTempDir(), blk.blockId);
-            final Pair<String, File> block = sc.getBlock(repoID, fileBlocks, blk.blockId, tempBlock.getPath(), fileSize, monitor);
-            final byte[] bytes = FileUtils.readFileToByteArray(block.second);
+            final byte[] bytes;
+            // files with equal content share blocks, which may be downloaded at the same time
+            final Lock blockLock = BLOCK_LOCKS.get(blk.blockId);
+            blockLock.lock();
+            try {
+                final File block;
+                if (isBlockDownloaded(tempBlock, blk.blockId)) {
+                    // left over by a download which was interrupted, e.g. when the service was killed
+                    block = tempBlock;
+                    blk.finished = tempBlock.length();
+                    if (monitor != null) {
+                        monitor.onProgressNotify(fileBlocks.getFinished(), false);
+                    }
+                } else {
+                    block = sc.getBlock(repoID, fileBlocks, blk.blockId, tempBlock.getPath(), fileSize, monitor).second;
+                }
+                bytes = FileUtils.readFileToByteArray(block);
+            } finally {
+                blockLock.unlock();
+            }
             final byte[] decryptedBlock = Crypto.decrypt(bytes, encKey, encIv);
-            FileUtils.writeByteArrayToFile(localFile, decryptedBlock, true);
+            FileUtils.writeByteArrayToFile(tmpFile, decryptedBlock, true);
+            entries.add(new BlockMap.Entry(blk.blockId, Crypto.sha1(decryptedBlock), decryptedBlock.length));
+        }
+
+        if (localFile.exists() && !localFile.delete() || !tmpFile.renameTo(localFile)) {
+            Log.w(DEBUG_TAG, "Rename file error");
+            FileUtils.deleteQuietly(tmpFile);
+            return null;
+        }
+        for (Block blk : fileBlocks.blocks) {
+            final Lock blockLock = BLOCK_LOCKS.get(blk.blockId);
+            blockLock.lock();
+            try {
+                FileUtils.deleteQuietly(new File(storageManager.getTempDir(), blk.blockId));
+            } finally {
+                blockLock.unlock();
+            }
         }
 
         Log.d(DEBUG_TAG, String.format("addCachedFile repoName %s, repoId %s, path %s, fileId %s", repoName, repoID, path, fileBlocks.fileID));
         addCachedFile(repoName, repoID, path, fileBlocks.fileID, localFile);
+        dbHelper.saveBlockMap(repoID, path, new BlockMap(fileBlocks.fileID, entries));
         return localFile;
     }
 
+    /**
+     * Block ids are the SHA-1 of the encrypted block content,
+     * so a block downloaded before can be verified without asking the server.
+     */
+    private boolean isBlockDownloaded(File block, String blockId) {
+        if (!block.exists() || block.length() == 0) {
+            return false;
+        }
+        try {
+            return blockId.equals(Crypto.sha1(FileUtils.readFileToByteArray(block)));
+        } catch (IOException | NoSuchAlgorithmException e) {
+            return false;
+        }
+    }
+
     private List<SeafDirent> parseDirents(String json) {
         try {
             JSONArray array = Utils.parseJsonArray(json);
@@ -629,7 +865,33 @@ public class DataManager {
                                   String filePath, ProgressMonitor monitor,
                                   boolean isUpdate, boolean isCopyToLocal) throws SeafException {
         String newFileID = sc.uploadFile(repoID, dir, filePath, monitor,isUpdate);
+        onFileUploaded(repoName, repoID, dir, filePath, newFileID, isUpdate, isCopyToLocal);
+    }
+
+    /**
+     * Upload several new files to the same directory in one request.
+     *
+     * @return the new file ids in the order of filePaths, an entry is null if the file was not uploaded
+     */
+    public List<String> uploadFiles(String repoName, String repoID, String dir, List<String> filePaths,
+                                    ProgressMonitor monitor, boolean isCopyToLocal) throws SeafException {
+        List<File> files = Lists.newArrayListWithCapacity(filePaths.size());
+        for (String filePath : filePaths) {
+            files.add(new File(filePath));
+        }
 
+        List<String> newFileIDs = sc.uploadFiles(repoID, dir, files, monitor);
+        for (int i = 0; i < filePaths.size(); i++) {
+            onFileUploaded(repoName, repoID, dir, filePaths.get(i), newFileIDs.get(i), false, isCopyToLocal);
+        }
+        return newFileIDs;
+    }
+
+    /**
+     * Update the local repo cache after a file was uploaded
+     */
+    private void onFileUploaded(String repoName, String repoID, String dir, String filePath, String newFileID,
+                                boolean isUpdate, boolean isCopyToLocal) {
         if (newFileID == null || newFileID.length() == 0) {
             return;
         }
@@ -848,9 +1110,12 @@ public class DataManager {
 
     public static void clearPassword() {
         passwords.clear();
+        Crypto.clearCachedKeys();
+        EncThumbnailCache.getInstance().clear();
     }
 
     public void completeRemoteWipe() throws SeafException {
+        clearPassword();
         sc.completeRemoteWipe(account.token);
     }
 
@@ -1039,50 +1304,31 @@ public class DataManager {
         }
     }
 
-    private FileBlocks chunkFile(String encKey, String enkIv, String filePath) throws IOException {
-        File file = new File(filePath);
-        InputStream in = null;
-        DataInputStream dis;
-        OutputStream out = null;
-        byte[] buffer = new byte[BUFFER_SIZE];
-        FileBlocks seafBlock = new FileBlocks();
-        try {
-            in = new FileInputStream(file);
-            dis = new DataInputStream(in);
-
-            // Log.d(DEBUG_TAG, "file size " + file.length());
-            int byteRead;
-            while ((byteRead = dis.read(buffer, 0, BUFFER_SIZE)) != -1) {
-                byte[] cipher;
-                if (byteRead < BUFFER_SIZE)
-                    cipher = Crypto.encrypt(buffer, byteRead, encKey, enkIv);
-                else
-                    cipher = Crypto.encrypt(buffer, encKey, enkIv);
-
-                final String blkid = Crypto.sha1(cipher);
-                File blk = new File(storageManager.getTempDir(), blkid);
-                Block block = new Block(blkid, blk.getAbsolutePath(), blk.length(), 0L);
-                seafBlock.blocks.add(block);
-                out = new FileOutputStream(blk);
-                out.write(cipher);
-                out.close();
-            }
-
-            in.close();
+    /**
+     * Split the file into encrypted blocks, see {@link BlockPlanner}
+     *
+     * @param base blocks of the previous version, or null to encrypt every block
+     */
+    private BlockPlanner.Plan planBlocks(String encKey, String encIv, String filePath, BlockMap base)
+            throws IOException, NoSuchAlgorithmException {
+        return new BlockPlanner(encKey, encIv, storageManager.getTempDir(), BUFFER_SIZE).plan(filePath, base);
+    }
 
-            return seafBlock;
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-            return null;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
+    /**
+     * @return the blocks of the cached version of the file, or null if they are unknown or outdated
+     */
+    private BlockMap getCachedBlockMap(String repoName, String repoID, String path) {
+        SeafCachedFile cf = getCachedFile(repoName, repoID, path);
+        BlockMap blockMap = dbHelper.getBlockMap(repoID, path);
+        if (cf == null || blockMap == null || !blockMap.fileID.equals(cf.fileID)) {
             return null;
-        } finally {
-            if (out != null) out.close();
-            if (in != null) in.close();
+        }
+        return blockMap;
+    }
+
+    private static void deleteBlockFiles(List<Block> blocks) {
+        for (Block block : blocks) {
+            FileUtils.deleteQuietly(new File(block.path));
         }
     }
 
@@ -1105,20 +1351,39 @@ public class DataManager {
             throw SeafException.encryptException;
         }
 
-        final FileBlocks chunkFile = chunkFile(encKey, encIv, filePath);
-        if (chunkFile.blocks.isEmpty()) {
+        File srcFile = new File(filePath);
+        String path = Utils.pathJoin(dir, srcFile.getName());
+
+        // an edited cached file only needs the blocks it changed
+        final BlockMap base = isUpdate ? getCachedBlockMap(repoName, repoID, path) : null;
+        BlockPlanner.Plan plan = planBlocks(encKey, encIv, filePath, base);
+        if (plan.blocks.isEmpty()) {
             throw SeafException.blockListNullPointerException;
         }
 
-        String newFileID = sc.uploadByBlocks(repoID, dir, filePath, chunkFile.blocks, isUpdate, monitor);
+        String newFileID;
+        try {
+            if (plan.newBlocks.size() < plan.blocks.size()) {
+                Log.d(DEBUG_TAG, "Upload " + plan.newBlocks.size() + " of " + plan.blocks.size() + " blocks of " + path);
+                newFileID = sc.uploadBlockDelta(repoID, dir, filePath, plan.blocks, plan.newBlocks, isUpdate, monitor);
+                if (newFileID == null) {
+                    // the server can't commit a block list, or doesn't have the reused blocks any more
+                    deleteBlockFiles(plan.newBlocks);
+                    plan = planBlocks(encKey, encIv, filePath, null);
+                    newFileID = sc.uploadByBlocks(repoID, dir, filePath, plan.blocks, isUpdate, monitor);
+                }
+            } else {
+                newFileID = sc.uploadByBlocks(repoID, dir, filePath, plan.blocks, isUpdate, monitor);
+            }
+        } finally {
+            deleteBlockFiles(plan.newBlocks);
+        }
         // Log.d(DEBUG_TAG, "uploadByBlocks " + newFileID);
 
         if (newFileID == null || newFileID.length() == 0) {
             return;
         }
 
-        File srcFile = new File(filePath);
-        String path = Utils.pathJoin(dir, srcFile.getName());
         File fileInRepo = getLocalRepoFile(repoName, repoID, path);
 
         if (isCopyToLocal) {
@@ -1133,5 +1398,6 @@ public class DataManager {
         }
         // Update file cache entry
         addCachedFile(repoName, repoID, path, newFileID, fileInRepo);
+        dbHelper.saveBlockMap(repoID, path, new BlockMap(newFileID, plan.entries));
     }
 }
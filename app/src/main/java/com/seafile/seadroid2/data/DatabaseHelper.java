@@ -20,7 +20,7 @@ import java.util.List;
 public class DatabaseHelper extends SQLiteOpenHelper {
     private static final String DEBUG_TAG = "DatabaseHelper";
     // If you change the database schema, you must increment the database version.
-    public static final int DATABASE_VERSION = 9;
+    public static final int DATABASE_VERSION = 10;
     public static final String DATABASE_NAME = "data.db";
 
     // FileCache table
@@ -61,6 +61,15 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     private static final String DIRENTS_CACHE_COLUMN_PATH = "path";
     private static final String DIRENTS_CACHE_COLUMN_DIR_ID = "dir_id";
 
+    /** Blocks of cached files in encrypted libraries, see {@link BlockMap} */
+    private static final String BLOCKMAP_TABLE_NAME = "BlockMap";
+
+    private static final String BLOCKMAP_COLUMN_ID = "id";
+    private static final String BLOCKMAP_COLUMN_REPO_ID = "repo_id";
+    private static final String BLOCKMAP_COLUMN_PATH = "path";
+    private static final String BLOCKMAP_COLUMN_FILEID = "fileid";
+    private static final String BLOCKMAP_COLUMN_BLOCKS = "blocks";
+
     public static final String ENCKEY_TABLE_NAME = "EncKey";
 
     public static final String ENCKEY_COLUMN_ID = "id";
@@ -104,6 +113,14 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                     + ENCKEY_COLUMN_ENCIV + " TEXT NOT NULL, "
                     + ENCKEY_COLUMN_REPO_ID + " TEXT NOT NULL);";
 
+    private static final String SQL_CREATE_BLOCKMAP_TABLE =
+            "CREATE TABLE " + BLOCKMAP_TABLE_NAME + " ("
+                    + BLOCKMAP_COLUMN_ID + " INTEGER PRIMARY KEY, "
+                    + BLOCKMAP_COLUMN_REPO_ID + " TEXT NOT NULL, "
+                    + BLOCKMAP_COLUMN_PATH + " TEXT NOT NULL, "
+                    + BLOCKMAP_COLUMN_FILEID + " TEXT NOT NULL, "
+                    + BLOCKMAP_COLUMN_BLOCKS + " TEXT NOT NULL);";
+
     // Use only single dbHelper to prevent multi-thread issue and db is closed exception
     // Reference http://stackoverflow.com/questions/2493331/what-are-the-best-practices-for-sqlite-on-android
     private static DatabaseHelper dbHelper = null;
@@ -128,6 +145,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         createDirentsCacheTable(db);
         createStarredFilesCacheTable(db);
         createEnckeyTable(db);
+        createBlockMapTable(db);
     }
 
     private void createFileCacheTable(SQLiteDatabase db) {
@@ -192,6 +210,17 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(sql);
     }
 
+    private void createBlockMapTable(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_BLOCKMAP_TABLE);
+
+        String sql;
+        sql = String.format("CREATE UNIQUE INDEX blockmap_repo_path_index ON %s (%s, %s)",
+                BLOCKMAP_TABLE_NAME,
+                BLOCKMAP_COLUMN_REPO_ID,
+                BLOCKMAP_COLUMN_PATH);
+        db.execSQL(sql);
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         // This database is only a cache for online data, so its upgrade policy is
@@ -209,6 +238,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TABLE IF EXISTS " + DIRENTS_CACHE_TABLE_NAME + ";");
         db.execSQL("DROP TABLE IF EXISTS " + STARRED_FILECACHE_TABLE_NAME + ";");
         db.execSQL("DROP TABLE IF EXISTS " + ENCKEY_TABLE_NAME + ";");
+        db.execSQL("DROP TABLE IF EXISTS " + BLOCKMAP_TABLE_NAME + ";");
         onCreate(db);
     }
 
@@ -268,6 +298,21 @@ public class DatabaseHelper extends SQLiteOpenHelper {
         database.insert(FILECACHE_TABLE_NAME, null, values);
     }
     
+    /**
+     * Save many items in one transaction, which is much faster than committing every single row
+     */
+    public void saveFileCacheItems(List<SeafCachedFile> items, DataManager dataManager) {
+        database.beginTransaction();
+        try {
+            for (SeafCachedFile item : items) {
+                saveFileCacheItem(item, dataManager);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
     public void deleteFileCacheItem(SeafCachedFile item) {
         if (item.id != -1) {
             database.delete(FILECACHE_TABLE_NAME,  FILECACHE_COLUMN_ID + "=?",
@@ -277,11 +322,43 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 new String[] { item.repoID, item.path });
     }
 
+    /**
+     * @return the blocks of the cached file, or null if they are unknown
+     */
+    public BlockMap getBlockMap(String repoID, String path) {
+        Cursor c = database.query(
+                BLOCKMAP_TABLE_NAME,
+                new String[] { BLOCKMAP_COLUMN_FILEID, BLOCKMAP_COLUMN_BLOCKS },
+                BLOCKMAP_COLUMN_REPO_ID + "=? and " + BLOCKMAP_COLUMN_PATH + "=?",
+                new String[] { repoID, path },
+                null,
+                null,
+                null);
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            return BlockMap.decode(c.getString(0), c.getString(1));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void saveBlockMap(String repoID, String path, BlockMap blockMap) {
+        ContentValues values = new ContentValues();
+        values.put(BLOCKMAP_COLUMN_REPO_ID, repoID);
+        values.put(BLOCKMAP_COLUMN_PATH, path);
+        values.put(BLOCKMAP_COLUMN_FILEID, blockMap.fileID);
+        values.put(BLOCKMAP_COLUMN_BLOCKS, blockMap.encode());
+        database.insertWithOnConflict(BLOCKMAP_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
     public void delCaches() {
         database.delete(REPODIR_TABLE_NAME, null, null);
         database.delete(FILECACHE_TABLE_NAME, null, null);
         database.delete(DIRENTS_CACHE_TABLE_NAME, null, null);
         database.delete(STARRED_FILECACHE_TABLE_NAME, null, null);
+        database.delete(BLOCKMAP_TABLE_NAME, null, null);
     }
 
     public List<SeafCachedFile> getFileCacheItems(DataManager dataManager) {
@@ -0,0 +1,273 @@
+package com.seafile.seadroid2.data;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.seafile.seadroid2.SeafException;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets concurrent requests for the same file share one download.
+ * <p/>
+ * The same file may be requested at once by a download task, the document provider and the gallery,
+ * possibly through different {@link DataManager} instances. The first request for an (account, repoID, path)
+ * runs the download, later ones attach to it and receive its result. While they wait, they see its progress
+ * on their own thread, see {@link SharedProgressMonitor}. Requests for different files don't wait for each other.
+ * <p/>
+ * The shared download is only cancelled when all attached requests are cancelled. If it is cancelled
+ * anyway, e.g. because the thread running it was interrupted, the remaining requests start it again.
+ */
+public class DownloadCoordinator {
+    /** how often a waiting request checks whether it was cancelled */
+    private static final long WAIT_SLICE_MILLIS = 200;
+
+    private static DownloadCoordinator instance;
+
+    /** guarded by itself */
+    private final Map<Key, InFlight> inFlight = Maps.newHashMap();
+
+    public interface Download {
+        File download(ProgressMonitor monitor) throws Exception;
+    }
+
+    /**
+     * A monitor which shows the progress of a download run for another request. That progress is reported
+     * through {@link #onSharedProgress(long, boolean)} instead of {@link #onProgressNotify(long, boolean)},
+     * as the bytes weren't transferred on behalf of the waiting request and must not be accounted to it.
+     * Other monitors get no progress while they wait.
+     */
+    public interface SharedProgressMonitor extends ProgressMonitor {
+        /**
+         * Called on the thread of the waiting request, with the arguments of the download's notifications
+         */
+        void onSharedProgress(long total, boolean updateTotal);
+    }
+
+    DownloadCoordinator() {
+    }
+
+    public static synchronized DownloadCoordinator getInstance() {
+        if (instance == null) {
+            instance = new DownloadCoordinator();
+        }
+        return instance;
+    }
+
+    /**
+     * Run the download unless the same file is downloaded already, in that case wait for its result
+     *
+     * @param monitor may be null
+     * @return the result of the download
+     * @throws Exception whatever the download threw
+     */
+    public File get(String accountSignature, String repoID, String path, ProgressMonitor monitor,
+                    Download download) throws Exception {
+        final Key key = new Key(accountSignature, repoID, path);
+        while (true) {
+            final InFlight current;
+            final boolean leader;
+            synchronized (inFlight) {
+                InFlight existing = inFlight.get(key);
+                leader = existing == null;
+                current = leader ? new InFlight(monitor) : existing;
+                current.attach(monitor);
+                if (leader) {
+                    inFlight.put(key, current);
+                }
+            }
+
+            if (leader) {
+                return run(key, current, monitor, download);
+            }
+
+            try {
+                await(current, monitor);
+            } finally {
+                current.detach(monitor);
+            }
+            if (current.error == null) {
+                current.reportProgress(monitor);
+            }
+            if (current.error == SeafException.userCancelledException) {
+                if (monitor != null && monitor.isCancelled()) {
+                    throw current.error;
+                }
+                // the shared download was given up, but this request still wants the file
+                continue;
+            }
+            if (current.error != null) {
+                throw current.error;
+            }
+            return current.result;
+        }
+    }
+
+    private File run(Key key, InFlight current, ProgressMonitor monitor, Download download) throws Exception {
+        try {
+            current.result = download.download(current);
+            return current.result;
+        } catch (Exception e) {
+            current.error = e;
+            throw e;
+        } catch (Error e) {
+            current.error = SeafException.unknownException;
+            throw e;
+        } finally {
+            synchronized (inFlight) {
+                inFlight.remove(key);
+            }
+            current.detach(monitor);
+            current.done.countDown();
+        }
+    }
+
+    private static void await(InFlight current, ProgressMonitor monitor) throws SeafException {
+        try {
+            current.reportProgress(monitor);
+            while (!current.done.await(WAIT_SLICE_MILLIS, TimeUnit.MILLISECONDS)) {
+                current.reportProgress(monitor);
+                if (monitor != null && monitor.isCancelled()) {
+                    throw SeafException.userCancelledException;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw SeafException.userCancelledException;
+        }
+    }
+
+    /**
+     * @return the number of files being downloaded
+     */
+    public int getInFlightCount() {
+        synchronized (inFlight) {
+            return inFlight.size();
+        }
+    }
+
+    /**
+     * A running download, which is also the monitor passed to it. Progress is forwarded to the request running
+     * it and recorded for the waiting ones. It's cancelled when all attached requests are.
+     */
+    private static class InFlight implements ProgressMonitor {
+        final CountDownLatch done = new CountDownLatch(1);
+        /** monitor of the request running the download, may be null */
+        private final ProgressMonitor leader;
+        /** guarded by this, null entries stand for requests without a monitor */
+        private final List<ProgressMonitor> monitors = Lists.newArrayList();
+        /** number of notifications so far, the first and the last one, guarded by this */
+        private int notifications;
+        private long firstTotal;
+        private boolean firstUpdateTotal;
+        private long lastTotal;
+        private boolean lastUpdateTotal;
+        /** notifications already reported to each waiting monitor, guarded by this */
+        private final Map<ProgressMonitor, Integer> reported = Maps.newIdentityHashMap();
+
+        volatile File result;
+        volatile Exception error;
+
+        InFlight(ProgressMonitor leader) {
+            this.leader = leader;
+        }
+
+        synchronized void attach(ProgressMonitor monitor) {
+            monitors.add(monitor);
+        }
+
+        synchronized void detach(ProgressMonitor monitor) {
+            monitors.remove(monitor);
+        }
+
+        /**
+         * Report the notifications a waiting request hasn't seen yet, called on its thread. The first one may
+         * carry the size, intermediate ones are skipped.
+         */
+        void reportProgress(ProgressMonitor monitor) {
+            if (!(monitor instanceof SharedProgressMonitor)) {
+                return;
+            }
+            final int seen;
+            final int count;
+            final long first, last;
+            final boolean firstUpdate, lastUpdate;
+            synchronized (this) {
+                Integer reportedCount = reported.get(monitor);
+                seen = reportedCount == null ? 0 : reportedCount;
+                count = notifications;
+                first = firstTotal;
+                firstUpdate = firstUpdateTotal;
+                last = lastTotal;
+                lastUpdate = lastUpdateTotal;
+                reported.put(monitor, count);
+            }
+
+            // called without holding the lock, the monitor belongs to the waiting request
+            SharedProgressMonitor shared = (SharedProgressMonitor) monitor;
+            if (seen == 0 && count > 0) {
+                shared.onSharedProgress(first, firstUpdate);
+            }
+            if (count > seen && count > 1) {
+                shared.onSharedProgress(last, lastUpdate);
+            }
+        }
+
+        @Override
+        public void onProgressNotify(long total, boolean updateTotal) {
+            synchronized (this) {
+                if (notifications == 0) {
+                    firstTotal = total;
+                    firstUpdateTotal = updateTotal;
+                }
+                notifications++;
+                lastTotal = total;
+                lastUpdateTotal = updateTotal;
+            }
+            if (leader != null) {
+                leader.onProgressNotify(total, updateTotal);
+            }
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            for (ProgressMonitor monitor : monitors) {
+                if (monitor == null || !monitor.isCancelled()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class Key {
+        final String accountSignature;
+        final String repoID;
+        final String path;
+
+        Key(String accountSignature, String repoID, String path) {
+            this.accountSignature = accountSignature;
+            this.repoID = repoID;
+            this.path = path;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key that = (Key) o;
+            return Objects.equal(accountSignature, that.accountSignature)
+                    && Objects.equal(repoID, that.repoID)
+                    && Objects.equal(path, that.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(accountSignature, repoID, path);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.seafile.seadroid2.data;
+
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.Pair;
+
+import com.seafile.seadroid2.crypto.Crypto;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Bounded on-disk cache of thumbnails generated on the device for files in encrypted libraries.
+ * <p/>
+ * The server can not render thumbnails of encrypted libraries, so they are generated from the
+ * decrypted local copy by {@link LocalThumbnailGenerator}. To not leak the image content, every entry
+ * is encrypted with the encKey/encIv pair of its library before it is written, so thumbnails become
+ * unreadable as soon as the key is cleared. Without a saved key nothing is persisted.
+ * <p/>
+ * Entries are keyed by the file id, so a new version of a file never hits a stale thumbnail.
+ * Once the cache grows beyond {@link #MAX_CACHE_SIZE} the least recently used entries are evicted.
+ */
+public class EncThumbnailCache {
+    private static final String DEBUG_TAG = "EncThumbnailCache";
+
+    private static final long MAX_CACHE_SIZE = 20 * 1024 * 1024; // 20 MB
+
+    private static EncThumbnailCache instance;
+
+    private final StorageManager storageManager = StorageManager.getInstance();
+    private final DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper();
+
+    /** size of the cache directory, -1 until it was measured once */
+    private long cacheSize = -1;
+
+    private EncThumbnailCache() {
+    }
+
+    public static synchronized EncThumbnailCache getInstance() {
+        if (instance == null) {
+            instance = new EncThumbnailCache();
+        }
+        return instance;
+    }
+
+    private File getCacheFile(String repoID, String fileID, int size) {
+        return new File(storageManager.getEncThumbnailsDir(), String.format("%s-%s-%d.dat", repoID, fileID, size));
+    }
+
+    public synchronized boolean contains(String repoID, String fileID, int size) {
+        return !TextUtils.isEmpty(fileID) && getCacheFile(repoID, fileID, size).exists();
+    }
+
+    /**
+     * @return the decrypted JPEG data of the thumbnail, or null if it is not cached or can not be decrypted
+     */
+    public byte[] get(String repoID, String fileID, int size) {
+        if (TextUtils.isEmpty(fileID)) {
+            return null;
+        }
+
+        final Pair<String, String> key = dbHelper.getEnckey(repoID);
+        if (key == null || TextUtils.isEmpty(key.first) || TextUtils.isEmpty(key.second)) {
+            return null;
+        }
+
+        final File file = getCacheFile(repoID, fileID, size);
+        synchronized (this) {
+            if (!file.exists()) {
+                return null;
+            }
+            // keep recently shown thumbnails from being evicted first
+            file.setLastModified(System.currentTimeMillis());
+        }
+
+        try {
+            final byte[] bytes = FileUtils.readFileToByteArray(file);
+            return Crypto.decrypt(bytes, key.first, key.second);
+        } catch (IOException e) {
+            Log.w(DEBUG_TAG, "Failed to read thumbnail " + file.getName());
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Encrypt and store the JPEG data of a thumbnail. Does nothing if the library key is not saved.
+     */
+    public void put(String repoID, String fileID, int size, byte[] data) {
+        if (TextUtils.isEmpty(fileID) || data == null) {
+            return;
+        }
+
+        final Pair<String, String> key = dbHelper.getEnckey(repoID);
+        if (key == null || TextUtils.isEmpty(key.first) || TextUtils.isEmpty(key.second)) {
+            return;
+        }
+
+        final byte[] cipher;
+        try {
+            cipher = Crypto.encrypt(data, key.first, key.second);
+        } catch (Exception e) {
+            Log.w(DEBUG_TAG, "Failed to encrypt thumbnail of " + fileID);
+            return;
+        }
+        if (cipher == null) {
+            return;
+        }
+
+        final File file = getCacheFile(repoID, fileID, size);
+        synchronized (this) {
+            try {
+                final long oldLength = file.exists() ? file.length() : 0;
+                FileUtils.writeByteArrayToFile(file, cipher);
+                if (cacheSize >= 0) {
+                    cacheSize += cipher.length - oldLength;
+                }
+            } catch (IOException e) {
+                Log.w(DEBUG_TAG, "Failed to write thumbnail " + file.getName());
+                FileUtils.deleteQuietly(file);
+                return;
+            }
+            trimToSize();
+        }
+    }
+
+    /**
+     * Delete all cached thumbnails
+     */
+    public synchronized void clear() {
+        FileUtils.deleteQuietly(storageManager.getEncThumbnailsDir());
+        cacheSize = 0;
+    }
+
+    private void trimToSize() {
+        final File dir = storageManager.getEncThumbnailsDir();
+        if (cacheSize < 0) {
+            cacheSize = FileUtils.sizeOfDirectory(dir);
+        }
+
+        if (cacheSize <= MAX_CACHE_SIZE) {
+            return;
+        }
+
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified(), r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        // evict down to 3/4 of the limit, so that not every put has to list the directory
+        for (File f : files) {
+            if (cacheSize <= MAX_CACHE_SIZE * 3 / 4) {
+                break;
+            }
+            final long length = f.length();
+            if (f.delete()) {
+                cacheSize -= length;
+            }
+        }
+    }
+}
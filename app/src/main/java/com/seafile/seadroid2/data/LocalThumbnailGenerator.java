@@ -0,0 +1,268 @@
+package com.seafile.seadroid2.data;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.seafile.seadroid2.account.Account;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Generate thumbnails of files in encrypted libraries on the device.
+ * <p/>
+ * The server can not render thumbnails of encrypted libraries, but downloaded files are stored decrypted
+ * in the repo cache directory. If a file is fully cached it is decoded with a sample size matching the
+ * requested thumbnail size. If only the first blocks were downloaded (e.g. an interrupted block download),
+ * the thumbnail embedded in the EXIF header of a JPEG is used instead.
+ * <p/>
+ * Thumbnails are requested through {@link #SCHEME} uris, which are served by
+ * {@link com.seafile.seadroid2.avatar.AuthImageDownloader} and kept in {@link EncThumbnailCache}.
+ * Never let the image loader cache them on disk, that would store the plain thumbnail.
+ */
+public class LocalThumbnailGenerator {
+    private static final String DEBUG_TAG = "LocalThumbnailGenerator";
+
+    public static final String SCHEME = "seafthumb";
+
+    private static final String PARAM_REPO_NAME = "repo_name";
+    private static final String PARAM_REPO_ID = "repo_id";
+    private static final String PARAM_PATH = "p";
+    private static final String PARAM_FILE_ID = "id";
+    private static final String PARAM_SIZE = "size";
+
+    /** EXIF data is limited to one APP1 segment of 64 KB */
+    private static final int EXIF_HEADER_SIZE = 64 * 1024;
+    private static final int JPEG_QUALITY = 80;
+
+    private LocalThumbnailGenerator() {
+    }
+
+    public static String buildUri(String repoName, String repoID, String path, String fileID, int size) {
+        return new Uri.Builder()
+                .scheme(SCHEME)
+                .authority("thumbnail")
+                .appendQueryParameter(PARAM_REPO_NAME, repoName)
+                .appendQueryParameter(PARAM_REPO_ID, repoID)
+                .appendQueryParameter(PARAM_PATH, path)
+                .appendQueryParameter(PARAM_FILE_ID, fileID)
+                .appendQueryParameter(PARAM_SIZE, String.valueOf(size))
+                .build()
+                .toString();
+    }
+
+    public static boolean isLocalThumbnailUri(String uri) {
+        return uri != null && uri.startsWith(SCHEME + "://");
+    }
+
+    /**
+     * Load the thumbnail of a {@link #SCHEME} uri, generating and caching it if necessary.
+     *
+     * @return stream of JPEG data
+     * @throws IOException if the file is not cached locally or can not be decoded
+     */
+    public static InputStream openStream(String uriString, Account account) throws IOException {
+        final Uri uri = Uri.parse(uriString);
+        final String repoName = uri.getQueryParameter(PARAM_REPO_NAME);
+        final String repoID = uri.getQueryParameter(PARAM_REPO_ID);
+        final String path = uri.getQueryParameter(PARAM_PATH);
+        final String fileID = uri.getQueryParameter(PARAM_FILE_ID);
+        final int size;
+        try {
+            size = Integer.parseInt(uri.getQueryParameter(PARAM_SIZE));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid thumbnail uri " + uriString);
+        }
+
+        if (account == null || TextUtils.isEmpty(repoID) || TextUtils.isEmpty(path)) {
+            throw new IOException("Invalid thumbnail uri " + uriString);
+        }
+
+        final EncThumbnailCache cache = EncThumbnailCache.getInstance();
+        byte[] data = cache.get(repoID, fileID, size);
+        if (data != null) {
+            return new ByteArrayInputStream(data);
+        }
+
+        final DataManager dataManager = new DataManager(account);
+        final File file = dataManager.getLocalRepoFile(repoName, repoID, path);
+        if (!file.exists()) {
+            throw new IOException("File not cached " + path);
+        }
+
+        final SeafCachedFile cf = dataManager.getCachedFile(repoName, repoID, path);
+        if (cf == null) {
+            // no cache entry, the download did not finish. Only the first blocks are usable
+            data = generateFromHeader(file, size);
+        } else if (TextUtils.isEmpty(fileID) || fileID.equals(cf.fileID)) {
+            data = generate(file, size);
+        } else {
+            // the cached file is outdated, don't cache its thumbnail under the new file id
+            data = generate(file, size);
+            if (data != null) {
+                return new ByteArrayInputStream(data);
+            }
+        }
+
+        if (data == null) {
+            throw new IOException("Failed to generate thumbnail of " + path);
+        }
+
+        cache.put(repoID, fileID, size, data);
+        return new ByteArrayInputStream(data);
+    }
+
+    /**
+     * Decode a downsampled version of a fully cached image.
+     *
+     * @return JPEG data no larger than size x size, or null if the file can not be decoded
+     */
+    public static byte[] generate(File file, int size) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            // not a full image, maybe at least the EXIF header is there
+            return generateFromHeader(file, size);
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, size);
+        final Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        return compress(bitmap, size);
+    }
+
+    /**
+     * Extract the thumbnail embedded in the EXIF header of a JPEG from the first bytes of the file.
+     *
+     * @return JPEG data no larger than size x size, or null if there is no embedded thumbnail
+     */
+    public static byte[] generateFromHeader(File file, int size) {
+        final byte[] header = new byte[(int) Math.min(file.length(), EXIF_HEADER_SIZE + 4)];
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            int offset = 0;
+            int read;
+            while (offset < header.length && (read = in.read(header, offset, header.length - offset)) != -1) {
+                offset += read;
+            }
+        } catch (IOException e) {
+            Log.w(DEBUG_TAG, "Failed to read header of " + file.getName());
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+
+        final int[] range = findExifThumbnail(header);
+        if (range == null) {
+            return null;
+        }
+
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(header, range[0], range[1], options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, size);
+        final Bitmap bitmap = BitmapFactory.decodeByteArray(header, range[0], range[1], options);
+        return compress(bitmap, size);
+    }
+
+    /**
+     * Locate the JPEG stream embedded in the APP1 (EXIF) segment
+     *
+     * @return {offset, length} of the embedded thumbnail, or null if not found
+     */
+    static int[] findExifThumbnail(byte[] data) {
+        if (data.length < 4 || (data[0] & 0xff) != 0xff || (data[1] & 0xff) != 0xd8) {
+            return null;
+        }
+
+        int pos = 2;
+        while (pos + 4 <= data.length) {
+            if ((data[pos] & 0xff) != 0xff) {
+                return null;
+            }
+            final int marker = data[pos + 1] & 0xff;
+            final int length = ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+            final int segmentStart = pos + 4;
+            final int segmentEnd = Math.min(pos + 2 + length, data.length);
+
+            if (marker == 0xe1) {
+                // look for SOI ... EOI inside the EXIF segment
+                int start = -1;
+                for (int i = segmentStart; i + 1 < segmentEnd; i++) {
+                    if ((data[i] & 0xff) == 0xff && (data[i + 1] & 0xff) == 0xd8) {
+                        start = i;
+                        break;
+                    }
+                }
+                if (start == -1) {
+                    return null;
+                }
+                for (int i = segmentEnd - 2; i > start; i--) {
+                    if ((data[i] & 0xff) == 0xff && (data[i + 1] & 0xff) == 0xd9) {
+                        return new int[]{start, i + 2 - start};
+                    }
+                }
+                return null;
+            }
+
+            if (marker == 0xda || length < 2) {
+                // start of image data, no EXIF segment before it
+                return null;
+            }
+            pos += 2 + length;
+        }
+
+        return null;
+    }
+
+    private static int calculateInSampleSize(int width, int height, int size) {
+        int inSampleSize = 1;
+        while (width / (inSampleSize * 2) >= size && height / (inSampleSize * 2) >= size) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    private static byte[] compress(Bitmap bitmap, int size) {
+        if (bitmap == null) {
+            return null;
+        }
+
+        Bitmap scaled = bitmap;
+        final int max = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (max > size && size > 0) {
+            final float ratio = (float) size / max;
+            scaled = Bitmap.createScaledBitmap(bitmap,
+                    Math.max(1, Math.round(bitmap.getWidth() * ratio)),
+                    Math.max(1, Math.round(bitmap.getHeight() * ratio)), true);
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        scaled.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+        if (scaled != bitmap) {
+            scaled.recycle();
+        }
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+}
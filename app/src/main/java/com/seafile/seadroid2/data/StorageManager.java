@@ -412,6 +412,29 @@ public abstract class StorageManager implements MediaScannerConnection.OnScanCom
         return getDirectoryCreateIfNeeded(thumbnailsDir);
     }
 
+    /**
+     * Store locally generated thumbnails of encrypted libraries in a subdirectory below the Seadroid cache directory.
+     * Files in there are encrypted with the key of their library, see {@link EncThumbnailCache}.
+     *
+     * @return base of where to store thumbnails of encrypted libraries
+     */
+    public final File getEncThumbnailsDir() {
+        File base = getStorageLocation().cachePath;
+        File thumbnailsDir = new File(base, "enc-thumbnails");
+        return getDirectoryCreateIfNeeded(thumbnailsDir);
+    }
+
+    /**
+     * Store diagnostic dumps in a subdirectory below the Seadroid cache directory.
+     *
+     * @return base of where to store logs
+     */
+    public final File getLogDir() {
+        File base = getStorageLocation().cachePath;
+        File logDir = new File(base, "logs");
+        return getDirectoryCreateIfNeeded(logDir);
+    }
+
     /**
      * A file was added, changed or removed. Notify the gallery.
      *
@@ -429,7 +452,7 @@ public abstract class StorageManager implements MediaScannerConnection.OnScanCom
      *
      * @param fileList
      */
-    private final void notifyAndroidGalleryDirectoryChange(Collection<File> fileList) {
+    public final void notifyAndroidGalleryDirectoryChange(Collection<File> fileList) {
 
         int count = 0;
         String[] list = new String[fileList.size()];
@@ -452,6 +475,7 @@ public abstract class StorageManager implements MediaScannerConnection.OnScanCom
         FileUtils.deleteQuietly(getJsonCacheDir());
         FileUtils.deleteQuietly(getTempDir());
         FileUtils.deleteQuietly(getThumbnailsDir());
+        EncThumbnailCache.getInstance().clear();
 
         notifyAndroidGalleryDirectoryChange(fileList);
     }
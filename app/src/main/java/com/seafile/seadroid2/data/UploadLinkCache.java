@@ -0,0 +1,154 @@
+package com.seafile.seadroid2.data;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
+import com.seafile.seadroid2.account.Account;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Upload links of the file server, shared by all upload tasks.
+ * <p/>
+ * An upload link stays valid for a while and may be used for many files, so requesting a new one
+ * for every file only adds a round trip. Links are cached per (account, repoID, update, byblock) for
+ * {@link #getTtl()} and dropped early when the upload server rejects a request with a 4xx status.
+ */
+public class UploadLinkCache {
+    public static final long DEFAULT_TTL = TimeUnit.MINUTES.toMillis(10);
+
+    private static UploadLinkCache instance;
+
+    private final ConcurrentMap<Key, Entry> links = new ConcurrentHashMap<>();
+    private volatile long ttl = DEFAULT_TTL;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong invalidationCount = new AtomicLong();
+
+    private UploadLinkCache() {
+    }
+
+    public static synchronized UploadLinkCache getInstance() {
+        if (instance == null) {
+            instance = new UploadLinkCache();
+        }
+        return instance;
+    }
+
+    /**
+     * @return the cached link, or null if there is none or it expired
+     */
+    public String get(Account account, String repoID, boolean update, boolean byblock) {
+        final Key key = new Key(account.getSignature(), repoID, update, byblock);
+        final Entry entry = links.get(key);
+        if (entry == null || entry.expiresAt <= System.currentTimeMillis()) {
+            if (entry != null) {
+                links.remove(key, entry);
+            }
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return entry.link;
+    }
+
+    public void put(Account account, String repoID, boolean update, boolean byblock, String link) {
+        if (ttl <= 0) {
+            return;
+        }
+        links.put(new Key(account.getSignature(), repoID, update, byblock),
+                new Entry(link, System.currentTimeMillis() + ttl));
+    }
+
+    /**
+     * Drop a link the upload server refused
+     */
+    public void invalidate(Account account, String repoID, boolean update, boolean byblock) {
+        if (links.remove(new Key(account.getSignature(), repoID, update, byblock)) != null) {
+            invalidationCount.incrementAndGet();
+        }
+    }
+
+    public void clear() {
+        links.clear();
+    }
+
+    /**
+     * @param ttl time to live of a link in milliseconds, 0 disables the cache
+     */
+    public void setTtl(long ttl) {
+        this.ttl = Math.max(0, ttl);
+        if (ttl <= 0) {
+            links.clear();
+        }
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getInvalidationCount() {
+        return invalidationCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("size", links.size())
+                .add("hits", hitCount.get())
+                .add("misses", missCount.get())
+                .add("invalidations", invalidationCount.get())
+                .toString();
+    }
+
+    private static class Entry {
+        final String link;
+        final long expiresAt;
+
+        Entry(String link, long expiresAt) {
+            this.link = link;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class Key {
+        final String accountSignature;
+        final String repoID;
+        final boolean update;
+        final boolean byblock;
+
+        Key(String accountSignature, String repoID, boolean update, boolean byblock) {
+            this.accountSignature = accountSignature;
+            this.repoID = repoID;
+            this.update = update;
+            this.byblock = byblock;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key that = (Key) o;
+            return update == that.update
+                    && byblock == that.byblock
+                    && Objects.equal(accountSignature, that.accountSignature)
+                    && Objects.equal(repoID, that.repoID);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(accountSignature, repoID, update, byblock);
+        }
+    }
+}
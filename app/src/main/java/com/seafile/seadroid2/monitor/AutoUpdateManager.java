@@ -1,52 +1,126 @@
 package com.seafile.seadroid2.monitor;
 
 import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Maps;
 import com.seafile.seadroid2.SeafException;
 import com.seafile.seadroid2.account.Account;
 import com.seafile.seadroid2.data.SeafCachedFile;
+import com.seafile.seadroid2.transfer.TrafficClass;
 import com.seafile.seadroid2.transfer.TransferService;
 import com.seafile.seadroid2.util.ConcurrentAsyncTask;
 import com.seafile.seadroid2.util.Utils;
 
 import java.io.File;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 /**
- * Update modified files, retry until success
+ * Update modified files, retry until success.
+ * <p/>
+ * A modified file is uploaded once no change was reported for {@link #SETTLE_DELAY} milliseconds, so an editor
+ * saving repeatedly causes one upload. A file changed again while its upload runs is uploaded again afterwards.
+ * Failed uploads are retried with an exponential backoff, and right away when the network comes back.
+ * Cancelling the upload gives the update up.
+ * Nothing runs while no file is waiting.
+ * <p/>
+ * The state is confined to the main thread.
  */
-public class AutoUpdateManager implements Runnable, CachedFileChangedListener {
+public class AutoUpdateManager implements CachedFileChangedListener {
     private static final String DEBUG_TAG = "AutoUpdateManager";
-    private static final int CHECK_INTERVAL_MILLI = 3000;
+
+    /** milliseconds without changes before a modified file is uploaded */
+    static final long SETTLE_DELAY = 5000;
+    /** milliseconds before the first retry of a failed upload, doubled for every further failure */
+    static final long INITIAL_BACKOFF = 10000;
+    static final long MAX_BACKOFF = 10 * 60 * 1000;
 
     private TransferService txService;
-    private Thread thread;
-    private volatile boolean running;
-    private final Handler mHandler = new Handler();
+    private boolean stopped;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
 
-    private Set<AutoUpdateInfo> infos = Sets.newHashSet();
+    /** the pending updates, also saved in the database */
+    private final Map<AutoUpdateInfo, UpdateState> updates = Maps.newHashMap();
     private MonitorDBHelper db = MonitorDBHelper.getMonitorDBHelper();
 
+    /**
+     * State of one pending update
+     */
+    private class UpdateState implements Runnable {
+        final AutoUpdateInfo info;
+        /** whether the upload is queued in the transfer service */
+        boolean submitted;
+        /** whether the file changed while its upload was queued */
+        boolean changedAgain;
+        /** whether this is scheduled, waiting for the file to settle or for a retry */
+        boolean scheduled;
+        int failures;
+
+        UpdateState(AutoUpdateInfo info) {
+            this.info = info;
+        }
+
+        void schedule(long delay) {
+            mHandler.removeCallbacks(this);
+            mHandler.postDelayed(this, delay);
+            scheduled = true;
+        }
+
+        @Override
+        public void run() {
+            scheduled = false;
+            submit(this);
+        }
+    }
+
+    /**
+     * Load the updates which weren't finished before and upload them
+     */
     public void onTransferServiceConnected(TransferService txService) {
         this.txService = txService;
-        running = true;
-        thread = new Thread(this);
-        thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+        ConcurrentAsyncTask.submit(new Runnable() {
             @Override
-            public void uncaughtException(Thread thread, Throwable ex) {
-                Log.e(DEBUG_TAG, "Uncaught exception", ex);
+            public void run() {
+                final List<AutoUpdateInfo> saved = db.getAutoUploadInfos();
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (AutoUpdateInfo info : saved) {
+                            if (!updates.containsKey(info)) {
+                                updates.put(info, new UpdateState(info));
+                            }
+                        }
+                        submitWaiting();
+                    }
+                });
             }
         });
-        thread.start();
     }
 
     public void stop() {
-        running = false;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopped = true;
+                for (UpdateState state : updates.values()) {
+                    mHandler.removeCallbacks(state);
+                }
+            }
+        });
+    }
+
+    /**
+     * Called when a network connection is established, retries the updates waiting for it right away
+     */
+    public void onNetworkAvailable() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                submitWaiting();
+            }
+        });
     }
 
     /**
@@ -70,42 +144,79 @@ public class AutoUpdateManager implements Runnable, CachedFileChangedListener {
     }
 
     public void addTask(Account account, SeafCachedFile cachedFile, File localFile, int version) {
-        AutoUpdateInfo info = new AutoUpdateInfo(account, cachedFile.repoID, cachedFile.repoName,
+        final AutoUpdateInfo info = new AutoUpdateInfo(account, cachedFile.repoID, cachedFile.repoName,
                 Utils.getParentPath(cachedFile.path), localFile.getPath(), version);
 
-        synchronized (infos) {
-            if (infos.contains(info)) {
-                return;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                onFileChanged(info);
             }
-            infos.add(info);
-        }
+        });
+    }
 
-        db.saveAutoUpdateInfo(info);
+    private void onFileChanged(final AutoUpdateInfo info) {
+        UpdateState state = updates.get(info);
+        if (state == null) {
+            state = new UpdateState(info);
+            updates.put(info, state);
+            ConcurrentAsyncTask.submit(new Runnable() {
+                @Override
+                public void run() {
+                    db.saveAutoUpdateInfo(info);
+                }
+            });
+        }
 
-        if (!Utils.isNetworkOn() || txService == null) {
+        if (state.submitted) {
+            // the queued upload may have read the file already
+            state.changedAgain = true;
             return;
         }
-
-        ArrayList<AutoUpdateInfo> infosList = new ArrayList<AutoUpdateInfo>(1);
-        infosList.add(info);
-        addAllUploadTasks(infosList);
+        state.failures = 0;
+        if (!stopped) {
+            state.schedule(SETTLE_DELAY);
+        }
     }
 
-    private void addAllUploadTasks(final List<AutoUpdateInfo> infos) {
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                for (AutoUpdateInfo info : infos) {
-                    if (info.canLocalDecrypt()) {
-                        txService.addTaskToUploadQue(info.account, info.repoID, info.repoName,
-                                info.parentDir, info.localPath, true, true, info.version);
-                    } else {
-                        txService.addUploadTask(info.account, info.repoID, info.repoName,
-                                info.parentDir, info.localPath, true, true);
-                    }
-                }
+    /**
+     * Submit the updates which neither wait for the file to settle nor are queued already
+     */
+    private void submitWaiting() {
+        for (UpdateState state : updates.values()) {
+            if (state.submitted || (state.scheduled && state.failures == 0)) {
+                continue;
             }
-        });
+            mHandler.removeCallbacks(state);
+            state.scheduled = false;
+            state.failures = 0;
+            submit(state);
+        }
+    }
+
+    private void submit(UpdateState state) {
+        if (stopped || state.submitted) {
+            return;
+        }
+        if (txService == null || !Utils.isNetworkOn()) {
+            // submitted when the transfer service is connected or the network comes back
+            Log.d(DEBUG_TAG, "network is not available, " + updates.size() + " in queue");
+            return;
+        }
+
+        final AutoUpdateInfo info = state.info;
+        state.submitted = true;
+        state.changedAgain = false;
+        // re-uploads of edited files must not slow down what the user is doing
+        if (info.canLocalDecrypt()) {
+            txService.addTaskToUploadQue(info.account, info.repoID, info.repoName,
+                    info.parentDir, info.localPath, true, true, true, info.version,
+                    TrafficClass.BACKGROUND_SYNC);
+        } else {
+            txService.addTaskToUploadQue(info.account, info.repoID, info.repoName,
+                    info.parentDir, info.localPath, true, true, false, -1,
+                    TrafficClass.BACKGROUND_SYNC);
+        }
     }
 
     /**
@@ -113,85 +224,89 @@ public class AutoUpdateManager implements Runnable, CachedFileChangedListener {
      */
     public void onFileUpdateSuccess(Account account, String repoID, String repoName,
                                     String parentDir, String localPath, int version) {
+        final AutoUpdateInfo info = new AutoUpdateInfo(account, repoID, repoName, parentDir, localPath, version);
+        final UpdateState state = updates.get(info);
+        if (state != null && state.changedAgain) {
+            // the uploaded content may be outdated
+            state.submitted = false;
+            state.changedAgain = false;
+            state.failures = 0;
+            if (!stopped) {
+                state.schedule(SETTLE_DELAY);
+            }
+            return;
+        }
+
         // This file has already been updated on server, so we abort auto update task
-        if (removeAutoUpdateInfo(account, repoID, repoName, parentDir, localPath, version)) {
+        if (removeAutoUpdateInfo(info)) {
             Log.d(DEBUG_TAG, "auto updated " + localPath);
         }
     }
 
     public void onFileUpdateFailure(Account account, String repoID, String repoName,
                                     String parentDir, String localPath, SeafException e, int version) {
+        final AutoUpdateInfo info = new AutoUpdateInfo(account, repoID, repoName, parentDir, localPath, version);
         if (e.getCode() / 100 != 4) {
+            final UpdateState state = updates.get(info);
+            if (state == null) {
+                return;
+            }
+            state.submitted = false;
+            state.changedAgain = false;
+            state.failures++;
+            final long backoff = Math.min(INITIAL_BACKOFF << Math.min(state.failures - 1, 16), MAX_BACKOFF);
+            Log.d(DEBUG_TAG, String.format("failed to auto update %s, retry in %d ms", localPath, backoff));
+            if (!stopped) {
+                state.schedule(backoff);
+            }
             return;
         }
 
         // This file has already been removed on server, so we abort the auto update task
-        if (removeAutoUpdateInfo(account, repoID, repoName, parentDir, localPath, version)) {
+        if (removeAutoUpdateInfo(info)) {
             Log.d(DEBUG_TAG, String.format("failed to auto update %s, error %s", localPath, e));
         }
     }
 
-    private boolean removeAutoUpdateInfo(Account account, String repoID, String repoName, String parentDir, String localPath, int version) {
-        final AutoUpdateInfo info = new AutoUpdateInfo(account, repoID, repoName, parentDir, localPath, version);
-        boolean exist = false;
-
-        synchronized (infos) {
-            exist = infos.remove(info);
-        }
-
-        if (exist) {
-            ConcurrentAsyncTask.submit(new Runnable() {
-                @Override
-                public void run() {
-                    db.removeAutoUpdateInfo(info);
-                }
-            });
-        }
-        return exist;
-    }
-
     /**
-     * Periodically checks the upload tasks and schedule them to run
-     **/
-    private void scheduleUpdateTasks() {
-        int size = infos.size();
-        if (!Utils.isNetworkOn()) {
-            Log.d(DEBUG_TAG, "network is not available, " + size + " in queue");
+     * The user cancelled the upload, give the update up unless the file was changed again meanwhile
+     */
+    public void onFileUpdateCancelled(Account account, String repoID, String repoName,
+                                      String parentDir, String localPath, int version) {
+        final AutoUpdateInfo info = new AutoUpdateInfo(account, repoID, repoName, parentDir, localPath, version);
+        final UpdateState state = updates.get(info);
+        if (state == null || !state.submitted) {
             return;
         }
 
-        if (txService == null) {
+        if (state.changedAgain) {
+            state.submitted = false;
+            state.changedAgain = false;
+            state.failures = 0;
+            if (!stopped) {
+                state.schedule(SETTLE_DELAY);
+            }
             return;
         }
 
-        Log.v(DEBUG_TAG, String.format("check auto upload tasks, %d in queue", size));
-
-        List<AutoUpdateInfo> infosList;
-        synchronized (infos) {
-            if (infos.isEmpty()) {
-                return;
-            }
-            infosList = ImmutableList.copyOf(infos);
+        if (removeAutoUpdateInfo(info)) {
+            Log.d(DEBUG_TAG, "auto update cancelled " + localPath);
         }
-
-        addAllUploadTasks(infosList);
     }
 
-    public void run() {
-        synchronized (infos) {
-            infos.addAll(db.getAutoUploadInfos());
+    private boolean removeAutoUpdateInfo(final AutoUpdateInfo info) {
+        final UpdateState state = updates.remove(info);
+        if (state == null) {
+            return false;
         }
 
-        while (running) {
-            scheduleUpdateTasks();
-            if (!running) {
-                break;
-            }
-            try {
-                Thread.sleep(CHECK_INTERVAL_MILLI);
-            } catch (final InterruptedException ignored) {
-                break;
+        mHandler.removeCallbacks(state);
+        ConcurrentAsyncTask.submit(new Runnable() {
+            @Override
+            public void run() {
+                db.removeAutoUpdateInfo(info);
             }
-        }
+        });
+        return true;
     }
 }
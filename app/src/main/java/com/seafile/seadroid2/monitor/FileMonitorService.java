@@ -7,15 +7,19 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
+import android.net.ConnectivityManager;
 import android.os.Binder;
 import android.os.IBinder;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 import com.seafile.seadroid2.util.ConcurrentAsyncTask;
+import com.seafile.seadroid2.util.Utils;
 import com.seafile.seadroid2.account.Account;
 import com.seafile.seadroid2.transfer.*;
 
+import java.util.List;
+
 /**
  * Monitor changes of local cached files, and upload them through TransferService if modified
  */
@@ -66,6 +70,7 @@ public class FileMonitorService extends Service {
 
         LocalBroadcastManager.getInstance(this).registerReceiver(transferReceiver,
                 new IntentFilter(TransferManager.BROADCAST_ACTION));
+        registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
     }
 
     @Override
@@ -75,11 +80,7 @@ public class FileMonitorService extends Service {
         updateMgr.stop();
 
         if (monitor != null) {
-            try {
-                monitor.stop();
-            } catch (Exception e) {
-                Log.d(DEBUG_TAG, "failed to stop file monitor");
-            }
+            monitor.stop();
         }
 
         if (mTransferService != null) {
@@ -88,6 +89,7 @@ public class FileMonitorService extends Service {
         }
 
         LocalBroadcastManager.getInstance(this).unregisterReceiver(transferReceiver);
+        unregisterReceiver(connectivityReceiver);
     }
 
     public void removeAccount(Account account) {
@@ -112,6 +114,20 @@ public class FileMonitorService extends Service {
 
     };
 
+    /**
+     * Retries the pending auto updates when the network comes back
+     */
+    private BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (Utils.isNetworkOn()) {
+                updateMgr.onNetworkAvailable();
+            }
+        }
+
+    };
+
     private BroadcastReceiver transferReceiver = new BroadcastReceiver() {
 
         @Override
@@ -134,6 +150,17 @@ public class FileMonitorService extends Service {
                                 info.pathInRepo, info.localFilePath);
                     }
                 }
+            } else if (type.equals(DownloadTaskManager.BROADCAST_ARCHIVE_DOWNLOAD_SUCCESS)) {
+                Account account = intent.getParcelableExtra("account");
+                String repoID = intent.getStringExtra("repoID");
+                String repoName = intent.getStringExtra("repoName");
+                List<String> paths = intent.getStringArrayListExtra("paths");
+                List<String> localPaths = intent.getStringArrayListExtra("localPaths");
+                if (monitor.isStarted()) {
+                    for (int i = 0; i < paths.size(); i++) {
+                        monitor.onFileDownloaded(account, repoID, repoName, paths.get(i), localPaths.get(i));
+                    }
+                }
             } else if (type.equals(UploadTaskManager.BROADCAST_FILE_UPLOAD_SUCCESS)) {
                 int taskID = intent.getIntExtra("taskID", 0);
                 UploadTaskInfo info = mTransferService.getUploadTaskInfo(taskID);
@@ -150,6 +177,14 @@ public class FileMonitorService extends Service {
                     updateMgr.onFileUpdateFailure(info.account, info.repoID, info.repoName,
                             info.parentDir, info.localFilePath, info.err, info.version);
                 }
+            } else if (type.equals(UploadTaskManager.BROADCAST_FILE_UPLOAD_CANCELLED)) {
+                int taskID = intent.getIntExtra("taskID", 0);
+                UploadTaskInfo info = mTransferService.getUploadTaskInfo(taskID);
+
+                if (info != null && info.isUpdate) {
+                    updateMgr.onFileUpdateCancelled(info.account, info.repoID, info.repoName,
+                            info.parentDir, info.localFilePath, info.version);
+                }
             }
 
         }
@@ -0,0 +1,275 @@
+package com.seafile.seadroid2.monitor;
+
+import android.os.FileObserver;
+import android.util.Log;
+
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches single files for changes and deletion.
+ * <p/>
+ * Only the directories containing watched files are watched, through inotify. An event for a watched file
+ * is checked after {@link #SETTLE_DELAY} milliseconds, when the writes of an editor have settled, and only
+ * reported if the size or modification time differs from the last known state. A file replaced by a
+ * download is registered again with {@link #watch(File, Listener)}, which updates its state, so the
+ * download itself isn't reported as a change.
+ * <p/>
+ * Some file systems, e.g. FUSE mounted storage, don't deliver inotify events. When a directory is first
+ * watched, a probe file is created in it. Until its event arrives, the watched files of the directory are
+ * checked every {@link #POLL_INTERVAL} milliseconds instead. Only the watched files are checked, not the
+ * whole directory tree.
+ * <p/>
+ * All state is confined to one thread, listeners are called on it.
+ */
+class FileWatcher {
+    private static final String DEBUG_TAG = "FileWatcher";
+
+    static final long SETTLE_DELAY = 2000;
+    static final long POLL_INTERVAL = 10000;
+    private static final String PROBE_NAME = ".seadroid-watch-probe";
+
+    private static final int EVENTS = FileObserver.CREATE | FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO
+            | FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    interface Listener {
+        void onFileChange(File file);
+
+        void onFileDelete(File file);
+    }
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    /** watched directories by path, only accessed on the executor thread */
+    private final Map<String, WatchedDir> dirs = Maps.newHashMap();
+    private boolean started;
+
+    /**
+     * Start watching a file, or take its current state as the known one if it's watched already
+     */
+    void watch(final File file, final Listener listener) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                File parent = file.getParentFile();
+                if (parent == null) {
+                    return;
+                }
+                WatchedDir dir = dirs.get(parent.getPath());
+                if (dir == null) {
+                    dir = new WatchedDir(parent);
+                    dirs.put(parent.getPath(), dir);
+                    dir.startWatching();
+                    dir.probe();
+                }
+                dir.files.put(file.getName(), new WatchedFile(file, listener));
+            }
+        });
+    }
+
+    /**
+     * Stop watching all files reported to the given listener
+     */
+    void unwatchAll(final Listener listener) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                for (WatchedDir dir : new ArrayList<>(dirs.values())) {
+                    for (WatchedFile watched : new ArrayList<>(dir.files.values())) {
+                        if (watched.listener == listener) {
+                            dir.files.remove(watched.file.getName());
+                        }
+                    }
+                    removeIfEmpty(dir);
+                }
+            }
+        });
+    }
+
+    /**
+     * Start checking the files of directories without inotify events
+     */
+    synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, POLL_INTERVAL, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                for (WatchedDir dir : dirs.values()) {
+                    dir.stopWatching();
+                }
+                dirs.clear();
+            }
+        });
+        executor.shutdown();
+    }
+
+    private void execute(Runnable runnable) {
+        try {
+            executor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            // stopped
+        }
+    }
+
+    private void poll() {
+        for (WatchedDir dir : new ArrayList<>(dirs.values())) {
+            if (dir.verified) {
+                continue;
+            }
+            for (WatchedFile watched : new ArrayList<>(dir.files.values())) {
+                check(dir, watched);
+            }
+            removeIfEmpty(dir);
+        }
+    }
+
+    /**
+     * Report a watched file if it changed or was deleted since it was last checked
+     */
+    private void check(WatchedDir dir, WatchedFile watched) {
+        watched.checkScheduled = false;
+        if (dir.files.get(watched.file.getName()) != watched) {
+            // not watched anymore, or registered again
+            return;
+        }
+
+        if (!watched.file.exists()) {
+            dir.files.remove(watched.file.getName());
+            watched.listener.onFileDelete(watched.file);
+            return;
+        }
+
+        if (watched.updateState()) {
+            watched.listener.onFileChange(watched.file);
+        }
+    }
+
+    private void removeIfEmpty(WatchedDir dir) {
+        if (dir.files.isEmpty()) {
+            dir.stopWatching();
+            dirs.remove(dir.dir.getPath());
+        }
+    }
+
+    /**
+     * Runs on the executor thread, after the inotify thread passed an event on
+     */
+    private void onEvent(WatchedDir dir, int event, String name) {
+        if (dirs.get(dir.dir.getPath()) != dir) {
+            return;
+        }
+
+        if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+            // the directory is gone, its watch too
+            for (WatchedFile watched : new ArrayList<>(dir.files.values())) {
+                check(dir, watched);
+            }
+            dir.stopWatching();
+            dirs.remove(dir.dir.getPath());
+            return;
+        }
+
+        if (PROBE_NAME.equals(name)) {
+            if ((event & FileObserver.CREATE) != 0) {
+                dir.verified = true;
+            }
+            return;
+        }
+
+        final WatchedFile watched = name == null ? null : dir.files.get(name);
+        if (watched == null || watched.checkScheduled) {
+            return;
+        }
+        watched.checkScheduled = true;
+        final WatchedDir watchedDir = dir;
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                check(watchedDir, watched);
+                removeIfEmpty(watchedDir);
+            }
+        }, SETTLE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private static class WatchedFile {
+        final File file;
+        final Listener listener;
+        long lastModified;
+        long length;
+        boolean checkScheduled;
+
+        WatchedFile(File file, Listener listener) {
+            this.file = file;
+            this.listener = listener;
+            updateState();
+        }
+
+        /**
+         * @return whether the state of the file changed since it was taken last
+         */
+        boolean updateState() {
+            final long newLastModified = file.lastModified();
+            final long newLength = file.length();
+            final boolean changed = newLastModified != lastModified || newLength != length;
+            lastModified = newLastModified;
+            length = newLength;
+            return changed;
+        }
+    }
+
+    private class WatchedDir extends FileObserver {
+        final File dir;
+        /** watched files by name */
+        final Map<String, WatchedFile> files = Maps.newHashMap();
+        /** whether inotify events arrive for this directory */
+        volatile boolean verified;
+
+        WatchedDir(File dir) {
+            super(dir.getPath(), EVENTS);
+            this.dir = dir;
+        }
+
+        /**
+         * Create and delete a file, to find out whether inotify events arrive
+         */
+        void probe() {
+            File probe = new File(dir, PROBE_NAME);
+            try {
+                if (probe.createNewFile() || probe.exists()) {
+                    probe.delete();
+                }
+            } catch (IOException e) {
+                Log.d(DEBUG_TAG, "could not probe " + dir + ", polling it");
+            }
+        }
+
+        @Override
+        public void onEvent(final int event, final String path) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    FileWatcher.this.onEvent(WatchedDir.this, event & FileObserver.ALL_EVENTS, path);
+                }
+            });
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.seafile.seadroid2.monitor;
 import java.io.File;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import android.content.ContentValues;
 import android.content.Context;
@@ -13,6 +14,7 @@ import android.util.Log;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.seafile.seadroid2.SeadroidApplication;
 import com.seafile.seadroid2.account.Account;
 import com.seafile.seadroid2.account.AccountManager;
@@ -164,6 +166,23 @@ public class MonitorDBHelper extends SQLiteOpenHelper {
         return infos;
     }
 
+    /**
+     * @return the local paths of the files of a library whose changes are not uploaded yet
+     */
+    public Set<String> getAutoUpdateLocalPaths(String accountSignature, String repoID) {
+        Set<String> paths = Sets.newHashSet();
+        String selection = String.format("%s = ? and %s = ?",
+                AUTO_UPDATE_INFO_COLUMN_ACCOUNT, AUTO_UPDATE_INFO_COLUMN_REPO_ID);
+        Cursor c = database.query(AUTO_UPDATE_INFO_TABLE_NAME,
+                new String[] { AUTO_UPDATE_INFO_COLUMN_LOCAL_PATH },
+                selection, new String[] { accountSignature, repoID }, null, null, null);
+        while (c.moveToNext()) {
+            paths.add(c.getString(0));
+        }
+        c.close();
+        return paths;
+    }
+
     private Map<String, Account> getAllAccounts() {
         AccountManager accountMgr = new AccountManager(SeadroidApplication.getAppContext());
         Map<String, Account> accounts = Maps.newHashMap();
@@ -3,8 +3,6 @@ package com.seafile.seadroid2.monitor;
 import java.util.List;
 import java.util.Map;
 
-import org.apache.commons.io.monitor.FileAlterationMonitor;
-
 import android.util.Log;
 
 import com.google.common.collect.Maps;
@@ -16,7 +14,7 @@ public class SeafileMonitor {
     private static final String DEBUG_TAG = "SeafileMonitor";
 
     private Map<Account, SeafileObserver> observers = Maps.newHashMap();
-    private FileAlterationMonitor alterationMonitor = new FileAlterationMonitor();
+    private final FileWatcher fileWatcher = new FileWatcher();
     private CachedFileChangedListener listener;
     private boolean started;
 
@@ -32,27 +30,18 @@ public class SeafileMonitor {
         if (observers.containsKey(account)) {
             return;
         }
-        SeafileObserver fileObserver = new SeafileObserver(account, listener);
-        addObserver(fileObserver);
+        SeafileObserver fileObserver = new SeafileObserver(account, listener, fileWatcher);
         observers.put(account, fileObserver);
     }
 
     public synchronized void stopMonitorFilesForAccount(Account account) {
         SeafileObserver fileObserver = observers.get(account);
         if (fileObserver != null)
-            removeObserver(fileObserver);
+            fileObserver.stopWatching();
 
         observers.remove(account);
     }
 
-    private void addObserver(SeafileObserver fileObserver) {
-        alterationMonitor.addObserver(fileObserver.getAlterationObserver());
-    }
-
-    private void removeObserver(SeafileObserver fileObserver) {
-        alterationMonitor.removeObserver(fileObserver.getAlterationObserver());
-    }
-
     public synchronized void onFileDownloaded(Account account, String repoID, String repoName,
             String pathInRepo, String localPath) {
         SeafileObserver observer = observers.get(account);
@@ -61,15 +50,15 @@ public class SeafileMonitor {
         observer.watchDownloadedFile(repoID, repoName, pathInRepo, localPath);
     }
 
-    private void start() throws Exception {
+    private void start() {
         if (!started) {
-            alterationMonitor.start();
+            fileWatcher.start();
             started = true;
         }
     }
 
-    public void stop() throws Exception {
-        alterationMonitor.stop();
+    public void stop() {
+        fileWatcher.stop();
     }
 
     /**
@@ -83,12 +72,7 @@ public class SeafileMonitor {
             monitorFilesForAccount(account);
         }
 
-        try {
-            start();
-            Log.d(DEBUG_TAG, "monitor started");
-        } catch (Exception e) {
-            Log.w(DEBUG_TAG, "failed to start file monitor");
-            throw new RuntimeException("failed to start file monitor");
-        }
+        start();
+        Log.d(DEBUG_TAG, "monitor started");
     }
 }
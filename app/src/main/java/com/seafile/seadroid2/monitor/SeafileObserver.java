@@ -4,9 +4,6 @@ import java.io.File;
 import java.util.List;
 import java.util.Map;
 
-import org.apache.commons.io.monitor.FileAlterationListener;
-import org.apache.commons.io.monitor.FileAlterationObserver;
-
 import android.util.Log;
 
 import com.google.common.collect.Maps;
@@ -16,44 +13,42 @@ import com.seafile.seadroid2.data.SeafCachedFile;
 import com.seafile.seadroid2.data.SeafRepo;
 import com.seafile.seadroid2.util.Utils;
 
-public class SeafileObserver implements FileAlterationListener {
+/**
+ * Watches the cached files of an account. Only the cached files themselves are watched, see {@link FileWatcher}.
+ */
+public class SeafileObserver implements FileWatcher.Listener {
     private static final String DEBUG_TAG = "SeafileObserver";
 
     private Account account;
     private DataManager dataManager;
-    private FileAlterationObserver alterationObserver;
+    private final FileWatcher fileWatcher;
 
+    /** guarded by itself, changed by downloads and by the watcher thread */
     private final Map<String, SeafCachedFile> watchedFiles = Maps.newHashMap();
     private final CachedFileChangedListener listener;
     private final RecentDownloadedFilesWorkAround recentDownloadedFiles =
             new RecentDownloadedFilesWorkAround();
 
-    public SeafileObserver(Account account, CachedFileChangedListener listener) {
+    public SeafileObserver(Account account, CachedFileChangedListener listener, FileWatcher fileWatcher) {
         this.account = account;
         this.dataManager = new DataManager(account);
         this.listener = listener;
-        alterationObserver = new FileAlterationObserver(getAccountDir());
-        alterationObserver.addListener(this);
+        this.fileWatcher = fileWatcher;
         watchAllCachedFiles();
     }
 
-    private String getAccountDir() {
-        return dataManager.getAccountDir();
-    }
-
-    public FileAlterationObserver getAlterationObserver() {
-        return alterationObserver;
-    }
-
     private void watchAllCachedFiles() {
         List<SeafCachedFile> cachedfiles = dataManager.getCachedFiles();
-        for (SeafCachedFile cached : cachedfiles) {
-            File file = dataManager.getLocalRepoFile(cached.repoName, cached.repoID, cached.path);
-            if (file.exists()) {
-                watchedFiles.put(file.getPath(), cached);
+        synchronized (watchedFiles) {
+            for (SeafCachedFile cached : cachedfiles) {
+                File file = dataManager.getLocalRepoFile(cached.repoName, cached.repoID, cached.path);
+                if (file.exists()) {
+                    watchedFiles.put(file.getPath(), cached);
+                    fileWatcher.watch(file, this);
+                }
             }
+            Log.d(DEBUG_TAG, "watching files, # total watched " + watchedFiles.size());
         }
-        Log.d(DEBUG_TAG, "watching files, # total watched " + watchedFiles.size());
     }
 
     public void watchDownloadedFile(String repoID, String repoName, String pathInRepo,
@@ -64,9 +59,13 @@ public class SeafileObserver implements FileAlterationListener {
         cacheInfo.repoID = repoID;
         cacheInfo.repoName = repoName;
         cacheInfo.path = pathInRepo;
-        watchedFiles.put(localpath, cacheInfo);
+        synchronized (watchedFiles) {
+            watchedFiles.put(localpath, cacheInfo);
+            // also takes the downloaded state as the unchanged one
+            fileWatcher.watch(new File(localpath), this);
 
-        Log.d(DEBUG_TAG, "start watch downloaded file " + pathInRepo + ", # total watched " + watchedFiles.size());
+            Log.d(DEBUG_TAG, "start watch downloaded file " + pathInRepo + ", # total watched " + watchedFiles.size());
+        }
     }
 
     public void setAccount(Account account) {
@@ -77,36 +76,8 @@ public class SeafileObserver implements FileAlterationListener {
         return account;
     }
 
-    public void startWatching() {
-        try {
-            alterationObserver.initialize();
-        } catch (Exception e) {
-
-        }
-        alterationObserver.checkAndNotify();
-    }
-
     public void stopWatching() {
-        try {
-            alterationObserver.destroy();
-        } catch (Exception e) {
-
-        }
-    }
-
-    @Override
-    public void onDirectoryChange(File directory) {
-        Log.v(DEBUG_TAG, directory.getPath() + " was modified!");
-    }
-
-    @Override
-    public void onDirectoryCreate(File directory) {
-        Log.v(DEBUG_TAG, directory.getPath() + " was created!");
-    }
-
-    @Override
-    public void onDirectoryDelete(File directory) {
-        Log.v(DEBUG_TAG, directory.getPath() + " was deleted!");
+        fileWatcher.unwatchAll(this);
     }
 
     @Override
@@ -122,7 +93,10 @@ public class SeafileObserver implements FileAlterationListener {
         }
 
         Log.d(DEBUG_TAG, path + " was modified!");
-        SeafCachedFile cachedFile = watchedFiles.get(path);
+        SeafCachedFile cachedFile;
+        synchronized (watchedFiles) {
+            cachedFile = watchedFiles.get(path);
+        }
         if (cachedFile != null) {
             final SeafRepo repo = dataManager.getCachedRepoByID(cachedFile.repoID);
             if (repo != null && repo.canLocalDecrypt()) {
@@ -133,28 +107,15 @@ public class SeafileObserver implements FileAlterationListener {
         }
     }
 
-    @Override
-    public void onFileCreate(File file) {
-        Log.v(DEBUG_TAG, file.getPath() + " was created!");
-    }
-
     @Override
     public void onFileDelete(File file) {
         Log.v(DEBUG_TAG, file.getPath() + " was deleted!");
         String path = file.getPath();
-        watchedFiles.remove(path);
         recentDownloadedFiles.removeRecentDownloadedFile(path);
-        Log.d(DEBUG_TAG, "now watching files, # total watched " + watchedFiles.size());
-    }
-
-    @Override
-    public void onStart(FileAlterationObserver fao) {
-        Log.v(DEBUG_TAG, fao.toString() + " start checking event!");
-    }
-
-    @Override
-    public void onStop(FileAlterationObserver fao) {
-        Log.v(DEBUG_TAG, fao.toString() + " finished checking event!");
+        synchronized (watchedFiles) {
+            watchedFiles.remove(path);
+            Log.d(DEBUG_TAG, "now watching files, # total watched " + watchedFiles.size());
+        }
     }
 
     /**
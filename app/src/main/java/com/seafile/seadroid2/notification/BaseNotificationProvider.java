@@ -4,8 +4,12 @@ import android.app.NotificationManager;
 import android.support.v4.app.NotificationCompat;
 import com.seafile.seadroid2.R;
 import com.seafile.seadroid2.SeadroidApplication;
+import com.seafile.seadroid2.transfer.TaskState;
 import com.seafile.seadroid2.transfer.TransferManager;
 import com.seafile.seadroid2.transfer.TransferService;
+import com.seafile.seadroid2.transfer.TransferSnapshot;
+import com.seafile.seadroid2.transfer.TransferSnapshotPublisher;
+import com.seafile.seadroid2.transfer.TransferTaskInfo;
 
 import java.util.Timer;
 import java.util.TimerTask;
@@ -14,8 +18,11 @@ import java.util.TimerTask;
  * All downloading events will be represented by one downloading notification, at the same time all
  * uploading events will be represented by one uploading notification as well.
  * maintain state of downloading or uploading events and update the relevant notification.
+ * <p/>
+ * The notification is updated from the snapshots of the {@link TransferManager}, at most once per snapshot
+ * and only if the shown state, count or progress changed.
  */
-public abstract class BaseNotificationProvider {
+public abstract class BaseNotificationProvider implements TransferSnapshotPublisher.Listener {
 
     protected NotificationCompat.Builder mNotifBuilder;
 
@@ -36,6 +43,11 @@ public abstract class BaseNotificationProvider {
     protected TransferManager txMgr;
     protected TransferService txService;
 
+    /** last shown values, the notification is only rebuilt if they change */
+    private NotificationState lastState;
+    private int lastCount = -1;
+    private int lastProgress = -1;
+
     public BaseNotificationProvider(TransferManager transferManager,
                                     TransferService transferService) {
         this.txMgr = transferManager;
@@ -45,13 +57,38 @@ public abstract class BaseNotificationProvider {
     /**
      * calculate state
      *
+     * @param progressCount
+     *          number of waiting or transferring tasks
+     * @param errorCount
+     *          number of failed or cancelled tasks
      * @return
-     *        {@code NotificationState.NOTIFICATION_STATE_FAILED}, when at least one task failed
-     *        {@code NotificationState.NOTIFICATION_STATE_CANCELLED}, when at least one task cancelled
      *        {@code NotificationState.NOTIFICATION_STATE_PROGRESS}, when at least one task in progress
+     *        {@code NotificationState.NOTIFICATION_STATE_COMPLETED_WITH_ERRORS}, when at least one task failed or was cancelled
      *        {@code NotificationState.NOTIFICATION_STATE_COMPLETED}, otherwise.
      */
-    protected abstract NotificationState getState();
+    protected NotificationState getState(int progressCount, int errorCount) {
+        if (progressCount == 0 && errorCount == 0)
+            return NotificationState.NOTIFICATION_STATE_COMPLETED;
+        else if (progressCount == 0 && errorCount > 0)
+            return NotificationState.NOTIFICATION_STATE_COMPLETED_WITH_ERRORS;
+        else // progressCount > 0
+            return NotificationState.NOTIFICATION_STATE_PROGRESS;
+    }
+
+    /**
+     * @return true if the task is represented by this notification
+     */
+    protected abstract boolean isShown(TransferTaskInfo info);
+
+    /**
+     * @return transferred bytes of the task
+     */
+    protected abstract long getFinishedSize(TransferTaskInfo info);
+
+    /**
+     * @return size of the task's file, or a negative number if not known yet
+     */
+    protected abstract long getTotalSize(TransferTaskInfo info);
 
     /**
      * get notification id
@@ -69,23 +106,57 @@ public abstract class BaseNotificationProvider {
      */
     protected abstract String getNotificationTitle();
 
+    @Override
+    public void onTransferSnapshot(TransferSnapshot snapshot) {
+        updateNotification(snapshot);
+    }
+
     /**
      * update notification
      */
-    public void updateNotification() {
-        if (mNotifBuilder == null)
+    public void updateNotification(TransferSnapshot snapshot) {
+        int progressCount = 0;
+        int errorCount = 0;
+        long finishedSize = 0l;
+        long totalSize = 0l;
+        for (TransferTaskInfo info : snapshot.getInfos()) {
+            if (!isShown(info))
+                continue;
+            if (info.state.equals(TaskState.INIT)
+                    || info.state.equals(TaskState.TRANSFERRING))
+                progressCount++;
+            else if (info.state.equals(TaskState.FAILED)
+                    || info.state.equals(TaskState.CANCELLED))
+                errorCount++;
+            finishedSize += getFinishedSize(info);
+            totalSize += Math.max(0, getTotalSize(info));
+        }
+
+        NotificationState state = getState(progressCount, errorCount);
+        // avoid ArithmeticException
+        int progress = totalSize == 0l ? 0 : (int) (finishedSize * 100 / totalSize);
+
+        if (mNotifBuilder == null) {
+            // the last notification has completed, only start a new one for new tasks
+            if (!state.equals(NotificationState.NOTIFICATION_STATE_PROGRESS))
+                return;
             notifyStarted();
+        } else if (state.equals(lastState) && progressCount == lastCount && progress == lastProgress) {
+            return;
+        }
+        lastState = state;
+        lastCount = progressCount;
+        lastProgress = progress;
 
-        String progressInfo = getProgressInfo();
+        String progressInfo = getProgressInfo(state, progressCount, progress);
         String notifTitle = getNotificationTitle();
         int notifId = getNotificationID();
-        int progress = getProgress();
 
-        if (getState().equals(NotificationState.NOTIFICATION_STATE_PROGRESS)) {
+        if (state.equals(NotificationState.NOTIFICATION_STATE_PROGRESS)) {
             notifyProgress(notifId, notifTitle, progressInfo, progress);
-        } else if (getState().equals(NotificationState.NOTIFICATION_STATE_COMPLETED_WITH_ERRORS)) {
+        } else if (state.equals(NotificationState.NOTIFICATION_STATE_COMPLETED_WITH_ERRORS)) {
             notifyCompletedWithErrors(notifId, notifTitle, progressInfo, progress);
-        } else if (getState().equals(NotificationState.NOTIFICATION_STATE_COMPLETED)) {
+        } else if (state.equals(NotificationState.NOTIFICATION_STATE_COMPLETED)) {
             notifyCompleted(notifId, notifTitle, progressInfo);
         }
     }
@@ -188,18 +259,16 @@ public abstract class BaseNotificationProvider {
     /**
      * get downloading or uploading status
      *
+     * @param state
+     *          state of the notification
+     * @param progressCount
+     *          number of waiting or transferring tasks
+     * @param progress
+     *          progress of transferred files in percent
      * @return
      *         texts of downloading or uploading status
      */
-    protected abstract String getProgressInfo();
-
-    /**
-     * get progress of transferred files
-     *
-     * @return
-     *          progress
-     */
-    protected abstract int getProgress();
+    protected abstract String getProgressInfo(NotificationState state, int progressCount, int progress);
 
     /**
      * Clear notification from notification area
@@ -6,13 +6,11 @@ import com.seafile.seadroid2.R;
 import com.seafile.seadroid2.SeadroidApplication;
 import com.seafile.seadroid2.transfer.DownloadTaskInfo;
 import com.seafile.seadroid2.transfer.DownloadTaskManager;
-import com.seafile.seadroid2.transfer.TaskState;
 import com.seafile.seadroid2.transfer.TransferService;
+import com.seafile.seadroid2.transfer.TransferTaskInfo;
 import com.seafile.seadroid2.ui.CustomNotificationBuilder;
 import com.seafile.seadroid2.ui.activity.TransferActivity;
 
-import java.util.List;
-
 /**
  * Download notification provider
  *
@@ -25,63 +23,32 @@ public class DownloadNotificationProvider extends BaseNotificationProvider {
     }
 
     @Override
-    protected String getProgressInfo() {
-        String progressStatus = "";
-
-        if (txService == null)
-            return progressStatus;
-
+    protected String getProgressInfo(NotificationState state, int progressCount, int progress) {
         // failed or cancelled tasks won`t be shown in notification state
         // but failed or cancelled detailed info can be viewed in TransferList
-        if (getState().equals(NotificationState.NOTIFICATION_STATE_COMPLETED_WITH_ERRORS))
-            progressStatus = SeadroidApplication.getAppContext().getString(R.string.notification_download_completed);
-        else if (getState().equals(NotificationState.NOTIFICATION_STATE_COMPLETED))
-            progressStatus = SeadroidApplication.getAppContext().getString(R.string.notification_download_completed);
-        else if (getState().equals(NotificationState.NOTIFICATION_STATE_PROGRESS)) {
-            int downloadingCount = 0;
-            List<DownloadTaskInfo> infos = txService.getAllDownloadTaskInfos();
-            for (DownloadTaskInfo info : infos) {
-                if (info.state.equals(TaskState.INIT)
-                        || info.state.equals(TaskState.TRANSFERRING))
-                    downloadingCount++;
-            }
-            if (downloadingCount != 0)
-                progressStatus = SeadroidApplication.getAppContext().getResources().
-                        getQuantityString(R.plurals.notification_download_info,
-                                downloadingCount,
-                                downloadingCount,
-                                getProgress());
-        }
-        return progressStatus;
+        if (!state.equals(NotificationState.NOTIFICATION_STATE_PROGRESS))
+            return SeadroidApplication.getAppContext().getString(R.string.notification_download_completed);
+
+        return SeadroidApplication.getAppContext().getResources().
+                getQuantityString(R.plurals.notification_download_info,
+                        progressCount,
+                        progressCount,
+                        progress);
     }
 
     @Override
-    protected NotificationState getState() {
-        if (txService == null)
-            return NotificationState.NOTIFICATION_STATE_COMPLETED;
-
-        List<DownloadTaskInfo> infos = txService.getAllDownloadTaskInfos();
-
-        int progressCount = 0;
-        int errorCount = 0;
+    protected boolean isShown(TransferTaskInfo info) {
+        return true;
+    }
 
-        for (DownloadTaskInfo info : infos) {
-            if (info == null)
-                continue;
-            if (info.state.equals(TaskState.INIT)
-                    || info.state.equals(TaskState.TRANSFERRING))
-                progressCount++;
-            else if (info.state.equals(TaskState.FAILED)
-                    || info.state.equals(TaskState.CANCELLED))
-                errorCount++;
-        }
+    @Override
+    protected long getFinishedSize(TransferTaskInfo info) {
+        return ((DownloadTaskInfo) info).finished;
+    }
 
-        if (progressCount == 0 && errorCount == 0)
-            return NotificationState.NOTIFICATION_STATE_COMPLETED;
-        else if (progressCount == 0 && errorCount > 0)
-            return NotificationState.NOTIFICATION_STATE_COMPLETED_WITH_ERRORS;
-        else // progressCount > 0
-            return NotificationState.NOTIFICATION_STATE_PROGRESS;
+    @Override
+    protected long getTotalSize(TransferTaskInfo info) {
+        return ((DownloadTaskInfo) info).fileSize;
     }
 
     @Override
@@ -117,25 +84,4 @@ public class DownloadNotificationProvider extends BaseNotificationProvider {
         txService.startForeground(NOTIFICATION_ID_DOWNLOAD, mNotifBuilder.build());
     }
 
-    @Override
-    protected int getProgress() {
-        long downloadedSize = 0l;
-        long totalSize = 0l;
-        if (txService == null)
-            return 0;
-
-        List<DownloadTaskInfo> infos = txService.getAllDownloadTaskInfos();
-        for (DownloadTaskInfo info : infos) {
-            if (info == null)
-                continue;
-            downloadedSize += info.finished;
-            totalSize += info.fileSize;
-        }
-
-        // avoid ArithmeticException
-        if (totalSize == 0l)
-            return 0;
-        return (int) (downloadedSize * 100 / totalSize);
-    }
-
-}
\ No newline at end of file
+}
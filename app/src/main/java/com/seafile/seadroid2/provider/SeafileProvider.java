@@ -47,10 +47,12 @@ import com.seafile.seadroid2.SeafException;
 import com.seafile.seadroid2.account.Account;
 import com.seafile.seadroid2.account.AccountManager;
 import com.seafile.seadroid2.data.DataManager;
+import com.seafile.seadroid2.data.LocalThumbnailGenerator;
 import com.seafile.seadroid2.data.ProgressMonitor;
 import com.seafile.seadroid2.data.SeafDirent;
 import com.seafile.seadroid2.data.SeafRepo;
 import com.seafile.seadroid2.data.SeafStarredFile;
+import com.seafile.seadroid2.transfer.BandwidthShaper;
 import com.seafile.seadroid2.util.ConcurrentAsyncTask;
 import com.seafile.seadroid2.util.Utils;
 
@@ -354,7 +356,14 @@ public class SeafileProvider extends DocumentsProvider {
                 if (repo == null)
                     throw new FileNotFoundException();
 
-                File f = getFile(signal, dm, repo, path);
+                // the client is waiting for the file, pause queued background transfers meanwhile
+                File f;
+                BandwidthShaper.getInstance().beginInteractive();
+                try {
+                    f = getFile(signal, dm, repo, path);
+                } finally {
+                    BandwidthShaper.getInstance().endInteractive();
+                }
 
                 // return the file to the client.
                 String parentPath = Utils.getParentPath(path);
@@ -408,10 +417,15 @@ public class SeafileProvider extends DocumentsProvider {
 
         String path = DocumentIdParser.getPathFromId(documentId);
 
+        final String url = dm.getThumbnailLink(repoId, path, sizeHint.x);
+        if (url == null)
+            throw new FileNotFoundException();
+
         final DisplayImageOptions options = new DisplayImageOptions.Builder()
                 .extraForDownloader(dm.getAccount())
                 .cacheInMemory(false) // SAF does its own caching
-                .cacheOnDisk(true)
+                // thumbnails of encrypted repos are cached encrypted by EncThumbnailCache
+                .cacheOnDisk(!LocalThumbnailGenerator.isLocalThumbnailUri(url))
                 .considerExifParams(true)
                 .build();
 
@@ -422,10 +436,6 @@ public class SeafileProvider extends DocumentsProvider {
             throw new FileNotFoundException();
         }
 
-        final String url = dm.getThumbnailLink(repoId, path, sizeHint.x);
-        if (url == null)
-            throw new FileNotFoundException();
-
         // do thumbnail download in another thread to avoid possible network access in UI thread
         final Future future = ConcurrentAsyncTask.submit(new Runnable() {
 
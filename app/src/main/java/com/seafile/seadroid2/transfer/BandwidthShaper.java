@@ -0,0 +1,214 @@
+package com.seafile.seadroid2.transfer;
+
+import com.seafile.seadroid2.util.Utils;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token bucket rate limiting of file transfers.
+ * <p/>
+ * Every {@link TrafficClass} has a budget for Wi-Fi and one for metered networks, 0 means unlimited.
+ * The streams of {@link com.seafile.seadroid2.SeafConnection} call {@link #acquire(int)} for every buffer
+ * they move. The traffic class is taken from the calling thread, see {@link #setTrafficClass(TrafficClass)}.
+ * <p/>
+ * Tasks of the same class share one bucket. The bucket lock is fair and buffers are small, so concurrent
+ * tasks take turns and get an equal share of the budget.
+ * <p/>
+ * While an interactive transfer is running, see {@link #beginInteractive()}, transfers of a lower
+ * {@link TransferPriority} are paused. They still move a buffer every {@link #PAUSE_SLICE_MILLIS},
+ * so that the server doesn't drop their connections.
+ */
+public class BandwidthShaper {
+    /** how often the network class is checked */
+    private static final long NETWORK_CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+    /** bytes which may be sent in a burst after a pause */
+    private static final long MIN_BURST = 16 * 1024;
+    /** longest time a paused transfer waits for one buffer */
+    static final long PAUSE_SLICE_MILLIS = 1000;
+
+    private static BandwidthShaper instance;
+
+    private static final ThreadLocal<TrafficClass> currentClass = new ThreadLocal<>();
+    private static final ThreadLocal<TransferPriority> currentPriority = new ThreadLocal<>();
+
+    /** [wifi, metered][traffic class] in bytes per second */
+    private final long[][] rates = new long[2][TrafficClass.values().length];
+    private final TokenBucket[] buckets = new TokenBucket[TrafficClass.values().length];
+
+    /** running interactive transfers, guarded by pauseLock */
+    private final Object pauseLock = new Object();
+    private int interactiveCount;
+
+    private volatile boolean metered;
+    private volatile long nextNetworkCheck;
+
+    private BandwidthShaper() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new TokenBucket();
+        }
+    }
+
+    public static synchronized BandwidthShaper getInstance() {
+        if (instance == null) {
+            instance = new BandwidthShaper();
+        }
+        return instance;
+    }
+
+    /**
+     * Set the traffic class of the transfer running on the current thread, null to clear it.
+     * Threads without a class are shaped as {@link TrafficClass#INTERACTIVE}.
+     */
+    public static void setTrafficClass(TrafficClass trafficClass) {
+        if (trafficClass == null) {
+            currentClass.remove();
+        } else {
+            currentClass.set(trafficClass);
+        }
+    }
+
+    /**
+     * Set the priority of the transfer running on the current thread, null to clear it.
+     * Threads without a priority are never paused.
+     */
+    public static void setPriority(TransferPriority priority) {
+        if (priority == null) {
+            currentPriority.remove();
+        } else {
+            currentPriority.set(priority);
+        }
+    }
+
+    /**
+     * Pause lower priority transfers until the matching {@link #endInteractive()}.
+     * Also used by code which reads a file the user is waiting for outside a transfer task.
+     */
+    public void beginInteractive() {
+        synchronized (pauseLock) {
+            interactiveCount++;
+        }
+    }
+
+    public void endInteractive() {
+        synchronized (pauseLock) {
+            interactiveCount = Math.max(0, interactiveCount - 1);
+            if (interactiveCount == 0) {
+                pauseLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @param metered true for the budget on mobile networks, false for Wi-Fi
+     * @param bytesPerSecond 0 for no limit
+     */
+    public synchronized void setRate(boolean metered, TrafficClass trafficClass, long bytesPerSecond) {
+        rates[metered ? 1 : 0][trafficClass.ordinal()] = Math.max(0, bytesPerSecond);
+        applyRates();
+    }
+
+    public synchronized long getRate(boolean metered, TrafficClass trafficClass) {
+        return rates[metered ? 1 : 0][trafficClass.ordinal()];
+    }
+
+    /**
+     * Wait until the budget of the current thread's traffic class allows moving the given bytes
+     *
+     * @throws InterruptedIOException if the transfer was cancelled while waiting
+     */
+    public void acquire(int bytes) throws InterruptedIOException {
+        if (bytes <= 0) {
+            return;
+        }
+
+        final long now = System.nanoTime();
+        if (now - nextNetworkCheck > 0) {
+            nextNetworkCheck = now + NETWORK_CHECK_INTERVAL;
+            final boolean wasMetered = metered;
+            metered = !Utils.isWiFiOn();
+            if (metered != wasMetered) {
+                synchronized (this) {
+                    applyRates();
+                }
+            }
+        }
+
+        final TransferPriority priority = currentPriority.get();
+        if (priority != null && priority != TransferPriority.INTERACTIVE) {
+            waitWhileInteractive();
+        }
+
+        TrafficClass trafficClass = currentClass.get();
+        if (trafficClass == null) {
+            trafficClass = TrafficClass.INTERACTIVE;
+        }
+        buckets[trafficClass.ordinal()].acquire(bytes);
+    }
+
+    private void waitWhileInteractive() throws InterruptedIOException {
+        synchronized (pauseLock) {
+            if (interactiveCount == 0) {
+                return;
+            }
+            try {
+                pauseLock.wait(PAUSE_SLICE_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private void applyRates() {
+        final long[] current = rates[metered ? 1 : 0];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i].rate = current[i];
+        }
+    }
+
+    private static class TokenBucket {
+        private final ReentrantLock lock = new ReentrantLock(true);
+        /** bytes per second, 0 for unlimited */
+        volatile long rate;
+        /** guarded by lock, may become negative, which is paid back by sleeping */
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        void acquire(int bytes) throws InterruptedIOException {
+            if (rate <= 0) {
+                return;
+            }
+
+            try {
+                lock.lockInterruptibly();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            try {
+                final long r = rate;
+                if (r <= 0) {
+                    return;
+                }
+
+                final long now = System.nanoTime();
+                final double burst = Math.max(MIN_BURST, r / 4);
+                tokens = Math.min(burst, tokens + (now - lastRefill) * r / (double) TimeUnit.SECONDS.toNanos(1));
+                lastRefill = now;
+
+                tokens -= bytes;
+                if (tokens < 0) {
+                    // keep the lock while sleeping, waiting tasks are served in turn afterwards
+                    TimeUnit.NANOSECONDS.sleep((long) (-tokens * TimeUnit.SECONDS.toNanos(1) / r));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
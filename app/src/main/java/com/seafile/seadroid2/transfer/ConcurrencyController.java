@@ -0,0 +1,244 @@
+package com.seafile.seadroid2.transfer;
+
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adapts the number of concurrent transfers of a {@link TransferManager} to the network (AIMD).
+ * <p/>
+ * Transferring tasks report the bytes they moved and the latency of their requests. At the end of each
+ * measuring window the controller judges the aggregated throughput:
+ * <ul>
+ * <li>additive increase: while all slots are busy, one more transfer is probed. If the throughput grew
+ * by at least {@link #MIN_GAIN}, the next one is probed, otherwise the increase is reverted.</li>
+ * <li>additive probing down: fewer transfers are probed the same way. As long as the throughput holds,
+ * the limit keeps decreasing, so an overloaded link settles at the smallest limit reaching full speed.</li>
+ * <li>multiplicative decrease: if a transfer failed with a network error or the request latency inflated
+ * well above the baseline latency, the limit is cut by {@link #DECREASE_FACTOR}.</li>
+ * </ul>
+ * The limit always stays within [minLimit, maxLimit]. Uploads and downloads have their own controller.
+ * <p/>
+ * The controller only tracks numbers, it doesn't start or stop tasks. {@link TransferManager#doNext()} reads
+ * {@link #getLimit()} whenever it looks for a free slot.
+ */
+public class ConcurrencyController {
+    public static final int DEFAULT_MIN_LIMIT = 1;
+    public static final int DEFAULT_MAX_LIMIT = 6;
+    public static final int DEFAULT_INITIAL_LIMIT = 2;
+
+    /** length of a measuring window */
+    static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(2);
+    /** the throughput must grow by at least this ratio to justify another increase */
+    static final double MIN_GAIN = 0.05;
+    static final double DECREASE_FACTOR = 0.7;
+    /** request latency above this multiple of the baseline is treated as congestion */
+    static final double LATENCY_TOLERANCE = 2.5;
+    /** how fast the latency baseline follows higher latencies */
+    static final double BASELINE_DRIFT = 0.05;
+    /** probe for more bandwidth again after this many windows without a change */
+    static final int PROBE_INTERVAL_WINDOWS = 15;
+
+    private final String name;
+    private final Ticker ticker;
+
+    private int minLimit;
+    private int maxLimit;
+    private int limit;
+
+    private int active;
+    private int maxActiveInWindow;
+
+    private long windowStart;
+    private long windowBytes;
+    private long windowLatencySum;
+    private int windowLatencyCount;
+    private boolean windowFailed;
+
+    private double lastThroughput;
+    private double baselineLatency = -1;
+    /** throughput before the last probing change of the limit */
+    private double referenceThroughput;
+    /** direction of the last probing change, 0 if none is pending */
+    private int lastChange;
+    private boolean probeUp = true;
+    /** probe right after the first window */
+    private int stableWindows = PROBE_INTERVAL_WINDOWS;
+
+    public ConcurrencyController(String name) {
+        this(name, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT, DEFAULT_INITIAL_LIMIT, Ticker.systemTicker());
+    }
+
+    ConcurrencyController(String name, int minLimit, int maxLimit, int initialLimit, Ticker ticker) {
+        this.name = name;
+        this.ticker = ticker;
+        this.windowStart = ticker.read();
+        setBounds(minLimit, maxLimit);
+        this.limit = clamp(initialLimit);
+    }
+
+    /**
+     * Change the allowed range of the limit, the current limit is clamped into it
+     */
+    public synchronized void setBounds(int minLimit, int maxLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = clamp(limit);
+    }
+
+    /**
+     * @return the number of transfers which may run concurrently right now
+     */
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public synchronized int getMinLimit() {
+        return minLimit;
+    }
+
+    public synchronized int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * @return throughput of the last complete window in bytes per second
+     */
+    public synchronized double getThroughput() {
+        return lastThroughput;
+    }
+
+    /**
+     * @return baseline request latency in milliseconds, or -1 if not measured yet
+     */
+    public synchronized double getBaselineLatency() {
+        return baselineLatency;
+    }
+
+    public synchronized void onTaskStarted() {
+        active++;
+        maxActiveInWindow = Math.max(maxActiveInWindow, active);
+        maybeEvaluate();
+    }
+
+    /**
+     * @param networkError true if the task failed because of the network, which is treated as congestion
+     */
+    public synchronized void onTaskFinished(boolean networkError) {
+        active = Math.max(0, active - 1);
+        if (networkError) {
+            windowFailed = true;
+        }
+        maybeEvaluate();
+    }
+
+    public synchronized void onBytesTransferred(long bytes) {
+        if (bytes > 0) {
+            windowBytes += bytes;
+        }
+        maybeEvaluate();
+    }
+
+    /**
+     * Report the time between sending a request and receiving the first byte of the response
+     */
+    public synchronized void onRequestLatency(long millis) {
+        if (millis < 0) {
+            return;
+        }
+        windowLatencySum += millis;
+        windowLatencyCount++;
+        maybeEvaluate();
+    }
+
+    private void maybeEvaluate() {
+        final long now = ticker.read();
+        final long elapsed = now - windowStart;
+        if (elapsed < WINDOW_NANOS) {
+            return;
+        }
+
+        final double throughput = windowBytes * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+        final double latency = windowLatencyCount > 0 ? (double) windowLatencySum / windowLatencyCount : -1;
+        evaluate(throughput, latency);
+        lastThroughput = throughput;
+
+        windowStart = now;
+        windowBytes = 0;
+        windowLatencySum = 0;
+        windowLatencyCount = 0;
+        windowFailed = false;
+        maxActiveInWindow = active;
+    }
+
+    private void evaluate(double throughput, double latency) {
+        boolean congested = windowFailed;
+        if (latency >= 0) {
+            if (baselineLatency < 0 || latency < baselineLatency) {
+                baselineLatency = latency;
+            } else {
+                if (latency > baselineLatency * LATENCY_TOLERANCE) {
+                    congested = true;
+                }
+                // let the baseline follow slowly, e.g. after switching from Wi-Fi to a mobile network
+                baselineLatency += (latency - baselineLatency) * BASELINE_DRIFT;
+            }
+        }
+
+        final boolean saturated = maxActiveInWindow >= limit;
+        if (congested) {
+            // multiplicative decrease
+            limit = clamp((int) Math.floor(limit * DECREASE_FACTOR));
+            lastChange = 0;
+            stableWindows = 0;
+        } else if (!saturated) {
+            // not enough tasks to tell anything about the network
+            lastChange = 0;
+            stableWindows++;
+        } else if (lastChange > 0) {
+            if (throughput > referenceThroughput * (1 + MIN_GAIN)) {
+                // the last increase paid off, keep increasing
+                changeLimit(1, throughput);
+            } else {
+                // the link is saturated, revert the increase
+                limit = clamp(limit - 1);
+                lastChange = 0;
+            }
+        } else if (lastChange < 0) {
+            if (throughput >= referenceThroughput * (1 - MIN_GAIN)) {
+                // fewer transfers move as many bytes, keep decreasing
+                changeLimit(-1, throughput);
+            } else {
+                limit = clamp(limit + 1);
+                lastChange = 0;
+            }
+        } else if (stableWindows >= PROBE_INTERVAL_WINDOWS) {
+            // probe for more bandwidth, or for the same bandwidth with fewer transfers
+            changeLimit(probeUp ? 1 : -1, throughput);
+            probeUp = !probeUp;
+        } else {
+            stableWindows++;
+        }
+    }
+
+    /**
+     * Move the limit by delta and remember the throughput the change will be judged against
+     */
+    private void changeLimit(int delta, double throughput) {
+        final int old = limit;
+        limit = clamp(limit + delta);
+        lastChange = limit - old;
+        referenceThroughput = throughput;
+        stableWindows = 0;
+    }
+
+    private int clamp(int value) {
+        return Math.max(minLimit, Math.min(maxLimit, value));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s limit %d [%d, %d] active %d throughput %.0f B/s baseline latency %.0f ms",
+                name, limit, minLimit, maxLimit, active, lastThroughput, baselineLatency);
+    }
+}
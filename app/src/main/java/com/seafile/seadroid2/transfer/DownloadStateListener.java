@@ -5,6 +5,10 @@ package com.seafile.seadroid2.transfer;
  *
  */
 public interface DownloadStateListener {
+    /**
+     * The server has answered and the download started. Further progress is published
+     * by the {@link TransferSnapshotPublisher} of the manager.
+     */
     void onFileDownloadProgress(int taskID);
     void onFileDownloaded(int taskID);
     void onFileDownloadFailed(int taskID);
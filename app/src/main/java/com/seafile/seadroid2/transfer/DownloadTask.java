@@ -3,7 +3,7 @@ package com.seafile.seadroid2.transfer;
 import com.seafile.seadroid2.SeafException;
 import com.seafile.seadroid2.account.Account;
 import com.seafile.seadroid2.data.DataManager;
-import com.seafile.seadroid2.data.ProgressMonitor;
+import com.seafile.seadroid2.data.DownloadCoordinator.SharedProgressMonitor;
 
 import org.json.JSONException;
 
@@ -18,10 +18,12 @@ import java.security.NoSuchAlgorithmException;
 public class DownloadTask extends TransferTask {
     public static final String DEBUG_TAG = "DownloadTask";
 
-    private String localPath;
+    private volatile String localPath;
     private DownloadStateListener downloadStateListener;
     private boolean byBlock;
     private boolean updateTotal;
+    /** only accessed by the worker thread */
+    private boolean startReported;
     private int encVersion;
 
     public DownloadTask(int taskID, Account account, String repoName, String repoID, String path, boolean byBlock, int encVersion,
@@ -35,30 +37,56 @@ public class DownloadTask extends TransferTask {
     /**
      * When downloading a file, we don't know the file size in advance, so
      * we make use of the first progress update to return the file size.
+     * <p/>
+     * Runs on the worker thread, the counters are picked up by the next snapshot of the manager.
      */
-    @Override
-    protected void onProgressUpdate(Long... values) {
+    private void onProgress(long value) {
         if (totalSize == -1 || updateTotal) {
-            totalSize = values[0];
-            state = TaskState.TRANSFERRING;
-            return;
+            totalSize = value;
+            if (!startReported) {
+                // once, when the server has answered and the file size is known
+                startReported = true;
+                runOnMainThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!isCancelled()) {
+                            state = TaskState.TRANSFERRING;
+                            downloadStateListener.onFileDownloadProgress(taskID);
+                        }
+                    }
+                });
+            }
+        } else {
+            finished = value;
         }
-        finished = values[0];
-        downloadStateListener.onFileDownloadProgress(taskID);
+        onTransferChanged();
     }
 
     @Override
-    protected File doInBackground(Void... params) {
+    protected File doInBackground() {
+        onTransferStarted();
         try {
             DataManager dataManager = new DataManager(account);
             if (byBlock) {
                 return dataManager.getFileByBlocks(repoName, repoID, path, encVersion, totalSize,
-                        new ProgressMonitor() {
+                        new SharedProgressMonitor() {
 
                             @Override
                             public void onProgressNotify(long total, boolean updateTotal) {
                                 DownloadTask.this.updateTotal = updateTotal;
-                                publishProgress(total);
+                                if (updateTotal) {
+                                    // reported when the server answered a block request
+                                    onTransferResponse();
+                                } else {
+                                    onTransferProgress(total);
+                                }
+                                onProgress(total);
+                            }
+
+                            @Override
+                            public void onSharedProgress(long total, boolean updateTotal) {
+                                DownloadTask.this.updateTotal = updateTotal;
+                                onProgress(total);
                             }
 
                             @Override
@@ -69,11 +97,25 @@ public class DownloadTask extends TransferTask {
                 );
             } else
                 return dataManager.getFile(repoName, repoID, path,
-                        new ProgressMonitor() {
+                        new SharedProgressMonitor() {
+                            private boolean sizeReported;
 
                             @Override
                             public void onProgressNotify(long total, boolean updateTotal) {
-                                publishProgress(total);
+                                if (!sizeReported) {
+                                    // the first update is the content length of the response
+                                    sizeReported = true;
+                                    onTransferResponse();
+                                } else {
+                                    onTransferProgress(total);
+                                }
+                                onProgress(total);
+                            }
+
+                            @Override
+                            public void onSharedProgress(long total, boolean updateTotal) {
+                                // only shown, the bytes are counted by the task running the download
+                                onProgress(total);
                             }
 
                             @Override
@@ -97,6 +139,8 @@ public class DownloadTask extends TransferTask {
             err = SeafException.unknownException;
             e.printStackTrace();
             return null;
+        } finally {
+            onTransferFinished();
         }
     }
 
@@ -122,13 +166,40 @@ public class DownloadTask extends TransferTask {
     }
 
     @Override
-    public DownloadTaskInfo getTaskInfo() {
+    protected String getKind() {
+        return "download";
+    }
+
+    @Override
+    protected DownloadTaskInfo newTaskInfo() {
         DownloadTaskInfo info = new DownloadTaskInfo(account, taskID, state, repoID,
                 repoName, path, localPath, totalSize, finished, err, encVersion);
         return info;
     }
 
+    @Override
+    public DownloadTaskInfo getTaskInfo() {
+        return (DownloadTaskInfo) super.getTaskInfo();
+    }
+
+    @Override
+    protected boolean isChangedSince(TransferTaskInfo info) {
+        DownloadTaskInfo downloadInfo = (DownloadTaskInfo) info;
+        return super.isChangedSince(info)
+                || downloadInfo.fileSize != totalSize
+                || downloadInfo.finished != finished
+                || downloadInfo.localFilePath != localPath;
+    }
+
     public String getLocalPath() {
         return localPath;
     }
+
+    public boolean isByBlock() {
+        return byBlock;
+    }
+
+    public int getEncVersion() {
+        return encVersion;
+    }
 }
\ No newline at end of file
@@ -4,11 +4,9 @@ import android.content.Intent;
 import android.support.v4.content.LocalBroadcastManager;
 
 import com.google.common.collect.Lists;
-import com.seafile.seadroid2.util.ConcurrentAsyncTask;
 import com.seafile.seadroid2.SeadroidApplication;
 import com.seafile.seadroid2.account.Account;
 import com.seafile.seadroid2.notification.DownloadNotificationProvider;
-import com.seafile.seadroid2.util.Utils;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -22,34 +20,23 @@ public class DownloadTaskManager extends TransferManager implements DownloadStat
 
     public static final String BROADCAST_FILE_DOWNLOAD_SUCCESS = "downloaded";
     public static final String BROADCAST_FILE_DOWNLOAD_FAILED = "downloadFailed";
-    public static final String BROADCAST_FILE_DOWNLOAD_PROGRESS = "downloadProgress";
+    /** files extracted from a directory archive, which has no task */
+    public static final String BROADCAST_ARCHIVE_DOWNLOAD_SUCCESS = "archiveDownloaded";
 
-    private static DownloadNotificationProvider mNotifProvider;
+    private DownloadNotificationProvider mNotifProvider;
 
     /**
-     * Add a new download task.
-     * call this method to execute a task immediately.
+     * Add a new download task of a file the user is waiting for.
+     * The task is started immediately, ahead of all queued downloads, if the same file
+     * is already waiting in the queue that task is moved to the front.
+     *
+     * @return the id of the new task, or of the task already downloading the file
      */
     public int addTask(Account account, String repoName, String repoID, String path, boolean byBlock, int encVersion, long fileSize) {
         TransferTask task = new DownloadTask(++notificationID, account, repoName, repoID, path, byBlock, encVersion, this);
         task.totalSize = fileSize;
-        TransferTask oldTask = null;
-        if (allTaskList.contains(task)) {
-            oldTask = allTaskList.get(allTaskList.indexOf(task));
-        }
-        if (oldTask != null) {
-            if (oldTask.getState().equals(TaskState.CANCELLED)
-                    || oldTask.getState().equals(TaskState.FAILED)
-                    || oldTask.getState().equals(TaskState.FINISHED)) {
-                allTaskList.remove(oldTask);
-            } else {
-                // return taskID of old task
-                return oldTask.getTaskID();
-            }
-        }
-        allTaskList.add(task);
-        ConcurrentAsyncTask.execute(task);
-        return task.getTaskID();
+        task.setPriority(TransferPriority.INTERACTIVE);
+        return addTaskToQue(task).getTaskID();
     }
 
     public void addTaskToQue(Account account, String repoName, String repoID, String path) {
@@ -59,9 +46,24 @@ public class DownloadTaskManager extends TransferManager implements DownloadStat
     public void addTaskToQue(Account account, String repoName, String repoID, String path, boolean byBlock, int encVersion) {
         // create a new one to avoid IllegalStateException
         DownloadTask downloadTask = new DownloadTask(++notificationID, account, repoName, repoID, path, byBlock, encVersion, this);
+        // queued downloads are folder downloads, which must not slow down opening a file
+        downloadTask.setTrafficClass(TrafficClass.BACKGROUND_SYNC);
         addTaskToQue(downloadTask);
     }
 
+    @Override
+    protected List<TransferJournal.Entry> loadJournal() {
+        return journal.load(TransferJournal.TYPE_DOWNLOAD);
+    }
+
+    @Override
+    protected TransferTask newRestoredTask(TransferJournal.Entry entry) {
+        DownloadTask task = new DownloadTask(++notificationID, entry.account, entry.repoName, entry.repoID,
+                entry.path, entry.byBlock, entry.version, this);
+        task.setTrafficClass(TrafficClass.BACKGROUND_SYNC);
+        return task;
+    }
+
     public int getDownloadingFileCountByPath(String repoID, String dir) {
         List<DownloadTaskInfo> downloadTaskInfos = getTaskInfoListByPath(repoID, dir);
         int count = 0;
@@ -82,13 +84,8 @@ public class DownloadTaskManager extends TransferManager implements DownloadStat
      */
     public List<DownloadTaskInfo> getTaskInfoListByPath(String repoID, String dir) {
         ArrayList<DownloadTaskInfo> infos = Lists.newArrayList();
-        for (TransferTask task : allTaskList) {
-            if (!task.getRepoID().equals(repoID))
-                continue;
-
-            String parentDir = Utils.getParentPath(task.getPath());
-            if (parentDir.equals(dir))
-                infos.add(((DownloadTask) task).getTaskInfo());
+        for (TransferTask task : allTasks.getByDir(repoID, dir)) {
+            infos.add(((DownloadTask) task).getTaskInfo());
         }
 
         return infos;
@@ -102,7 +99,7 @@ public class DownloadTaskManager extends TransferManager implements DownloadStat
      */
     public List<DownloadTaskInfo> getTaskInfoListByRepo(String repoID) {
         ArrayList<DownloadTaskInfo> infos = Lists.newArrayList();
-        for (TransferTask task : allTaskList) {
+        for (TransferTask task : allTasks.getAll()) {
             if (!task.getRepoID().equals(repoID))
                 continue;
 
@@ -116,20 +113,22 @@ public class DownloadTaskManager extends TransferManager implements DownloadStat
         DownloadTask task = (DownloadTask) getTask(taskID);
         if (task == null || !task.canRetry())
             return;
-        addTaskToQue(task.getAccount(), task.getRepoName(), task.getRepoID(), task.getPath());
-    }
-
-    private void notifyProgress(int taskID) {
-        DownloadTaskInfo info = (DownloadTaskInfo) getTaskInfo(taskID);
-        if (info == null)
-            return;
-
-        if (mNotifProvider != null)
-            mNotifProvider.updateNotification();
+        DownloadTask retryTask = new DownloadTask(++notificationID, task.getAccount(), task.getRepoName(),
+                task.getRepoID(), task.getPath(), task.isByBlock(), task.getEncVersion(), this);
+        retryTask.setTrafficClass(task.getTrafficClass());
+        retryTask.setPriority(task.getPriority());
+        addTaskToQue(retryTask);
     }
 
+    /**
+     * Save the provider of the download notification, which is updated from the snapshots of this manager
+     */
     public void saveNotifProvider(DownloadNotificationProvider provider) {
+        if (mNotifProvider != null) {
+            snapshotPublisher.removeListener(mNotifProvider);
+        }
         mNotifProvider = provider;
+        snapshotPublisher.addListener(provider);
     }
 
     public boolean hasNotifProvider() {
@@ -151,29 +150,44 @@ public class DownloadTaskManager extends TransferManager implements DownloadStat
     // -------------------------- listener method --------------------//
     @Override
     public void onFileDownloadProgress(int taskID) {
-        Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type",
-                BROADCAST_FILE_DOWNLOAD_PROGRESS).putExtra("taskID", taskID);
-        LocalBroadcastManager.getInstance(SeadroidApplication.getAppContext()).sendBroadcast(localIntent);
-        notifyProgress(taskID);
+        // the task started transferring
+        snapshotPublisher.invalidate();
     }
 
     @Override
     public void onFileDownloaded(int taskID) {
+        onTaskDone(taskID);
         remove(taskID);
         doNext();
         Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type",
                 BROADCAST_FILE_DOWNLOAD_SUCCESS).putExtra("taskID", taskID);
         LocalBroadcastManager.getInstance(SeadroidApplication.getAppContext()).sendBroadcast(localIntent);
-        notifyProgress(taskID);
+    }
+
+    /**
+     * Announce the files extracted from a directory archive like downloaded files
+     *
+     * @param paths the paths in the repo of the files
+     * @param localPaths the local files, in the same order
+     */
+    public static void broadcastArchiveDownloaded(Account account, String repoID, String repoName,
+                                                  ArrayList<String> paths, ArrayList<String> localPaths) {
+        Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type", BROADCAST_ARCHIVE_DOWNLOAD_SUCCESS)
+                .putExtra("account", account)
+                .putExtra("repoID", repoID)
+                .putExtra("repoName", repoName)
+                .putStringArrayListExtra("paths", paths)
+                .putStringArrayListExtra("localPaths", localPaths);
+        LocalBroadcastManager.getInstance(SeadroidApplication.getAppContext()).sendBroadcast(localIntent);
     }
 
     @Override
     public void onFileDownloadFailed(int taskID) {
+        onTaskFailed(taskID);
         remove(taskID);
         doNext();
         Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type",
                 BROADCAST_FILE_DOWNLOAD_FAILED).putExtra("taskID", taskID);
         LocalBroadcastManager.getInstance(SeadroidApplication.getAppContext()).sendBroadcast(localIntent);
-        notifyProgress(taskID);
     }
 }
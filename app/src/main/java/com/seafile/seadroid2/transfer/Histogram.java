@@ -0,0 +1,116 @@
+package com.seafile.seadroid2.transfer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Histogram of non-negative values with exponential buckets.
+ * <p/>
+ * Bucket i holds the values in [2^(i-1), 2^i), bucket 0 holds 0. Percentiles are reported as the upper
+ * bound of the bucket they fall into, which is at most twice the real value, good enough to tell a
+ * 50 ms request from a 2 s one.
+ */
+public class Histogram {
+    static final int BUCKET_COUNT = 48;
+
+    private final long[] buckets = new long[BUCKET_COUNT];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    public synchronized void record(long value) {
+        if (value < 0) {
+            return;
+        }
+        buckets[bucketOf(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    static int bucketOf(long value) {
+        final int bucket = 64 - Long.numberOfLeadingZeros(value);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * @return the largest value of the given bucket
+     */
+    static long upperBoundOf(int bucket) {
+        return bucket == 0 ? 0 : (1L << bucket) - 1;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized long getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * @param quantile between 0 and 1, e.g. 0.9 for the 90th percentile
+     * @return an upper bound of the percentile, 0 if nothing was recorded
+     */
+    public synchronized long getPercentile(double quantile) {
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min(max, Math.max(min, upperBoundOf(i)));
+            }
+        }
+        return max;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = 0;
+        }
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("count", count);
+        json.put("min", getMin());
+        json.put("max", max);
+        json.put("mean", getMean());
+        json.put("p50", getPercentile(0.5));
+        json.put("p90", getPercentile(0.9));
+        json.put("p99", getPercentile(0.99));
+        // [upper bound, count] of the non-empty buckets
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (buckets[i] > 0) {
+                array.put(new JSONArray().put(upperBoundOf(i)).put(buckets[i]));
+            }
+        }
+        json.put("buckets", array);
+        return json;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("n=%d mean=%d p50=%d p90=%d p99=%d max=%d",
+                count, getMean(), getPercentile(0.5), getPercentile(0.9), getPercentile(0.99), max);
+    }
+}
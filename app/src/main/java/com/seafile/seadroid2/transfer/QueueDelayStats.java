@@ -0,0 +1,48 @@
+package com.seafile.seadroid2.transfer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time tasks spent in the waiting queue of a {@link TransferManager}, per {@link TransferPriority}
+ */
+public class QueueDelayStats {
+    private final long[] counts = new long[TransferPriority.values().length];
+    private final long[] totalNanos = new long[TransferPriority.values().length];
+    private final long[] maxNanos = new long[TransferPriority.values().length];
+
+    synchronized void record(TransferPriority priority, long nanos) {
+        final int i = priority.ordinal();
+        counts[i]++;
+        totalNanos[i] += nanos;
+        maxNanos[i] = Math.max(maxNanos[i], nanos);
+    }
+
+    /**
+     * @return the number of tasks started from the given lane
+     */
+    public synchronized long getCount(TransferPriority priority) {
+        return counts[priority.ordinal()];
+    }
+
+    /**
+     * @return the average queueing delay in milliseconds, 0 if no task was started yet
+     */
+    public synchronized long getAverageMillis(TransferPriority priority) {
+        final int i = priority.ordinal();
+        return counts[i] == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalNanos[i] / counts[i]);
+    }
+
+    public synchronized long getMaxMillis(TransferPriority priority) {
+        return TimeUnit.NANOSECONDS.toMillis(maxNanos[priority.ordinal()]);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("queue delay");
+        for (TransferPriority priority : TransferPriority.values()) {
+            sb.append(String.format(" %s n=%d avg=%dms max=%dms", priority.name().toLowerCase(),
+                    getCount(priority), getAverageMillis(priority), getMaxMillis(priority)));
+        }
+        return sb.toString();
+    }
+}
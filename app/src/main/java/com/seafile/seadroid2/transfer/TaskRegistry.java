@@ -0,0 +1,147 @@
+package com.seafile.seadroid2.transfer;
+
+import com.google.common.base.Objects;
+import com.seafile.seadroid2.util.Utils;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Registry of all transfer tasks of a {@link TransferManager}, including failed, cancelled, finished,
+ * transferring and waiting tasks.
+ * <p/>
+ * Tasks are indexed by task id, by (account, repoID, path) and by (repoID, parent dir),
+ * which are the lookups the UI does repeatedly while transfers are running.
+ * Writes are serialized, reads are lock-free and return weakly consistent views ordered by task id,
+ * so polling the task list never blocks the transferring workers.
+ */
+class TaskRegistry {
+    private final ConcurrentSkipListMap<Integer, TransferTask> byId = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<TaskKey, TransferTask> byKey = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ConcurrentSkipListMap<Integer, TransferTask>> byDir = new ConcurrentHashMap<>();
+
+    /**
+     * Add a task. An existing task for the same (account, repoID, path) is replaced.
+     *
+     * @return the replaced task, or null
+     */
+    synchronized TransferTask put(TransferTask task) {
+        final TransferTask old = byKey.get(TaskKey.of(task));
+        if (old != null) {
+            remove(old);
+        }
+
+        byId.put(task.getTaskID(), task);
+        byKey.put(TaskKey.of(task), task);
+
+        final String dirKey = dirKey(task.getRepoID(), Utils.getParentPath(task.getPath()));
+        ConcurrentSkipListMap<Integer, TransferTask> dirTasks = byDir.get(dirKey);
+        if (dirTasks == null) {
+            dirTasks = new ConcurrentSkipListMap<>();
+            byDir.put(dirKey, dirTasks);
+        }
+        dirTasks.put(task.getTaskID(), task);
+        return old;
+    }
+
+    /**
+     * Remove exactly this task instance
+     *
+     * @return true if the task was registered
+     */
+    synchronized boolean remove(TransferTask task) {
+        if (task == null || byId.get(task.getTaskID()) != task) {
+            return false;
+        }
+
+        byId.remove(task.getTaskID());
+        final TaskKey key = TaskKey.of(task);
+        if (byKey.get(key) == task) {
+            byKey.remove(key);
+        }
+
+        final String dirKey = dirKey(task.getRepoID(), Utils.getParentPath(task.getPath()));
+        final ConcurrentSkipListMap<Integer, TransferTask> dirTasks = byDir.get(dirKey);
+        if (dirTasks != null) {
+            dirTasks.remove(task.getTaskID());
+            if (dirTasks.isEmpty()) {
+                byDir.remove(dirKey);
+            }
+        }
+        return true;
+    }
+
+    TransferTask get(int taskID) {
+        return byId.get(taskID);
+    }
+
+    /**
+     * @return the registered task with the same (account, repoID, path), or null
+     */
+    TransferTask get(TransferTask task) {
+        return byKey.get(TaskKey.of(task));
+    }
+
+    /**
+     * @return all tasks ordered by task id
+     */
+    Collection<TransferTask> getAll() {
+        return byId.values();
+    }
+
+    /**
+     * @return all tasks of files directly under the given directory, ordered by task id
+     */
+    Collection<TransferTask> getByDir(String repoID, String dir) {
+        final ConcurrentSkipListMap<Integer, TransferTask> dirTasks = byDir.get(dirKey(repoID, dir));
+        if (dirTasks == null) {
+            return Collections.emptyList();
+        }
+        return dirTasks.values();
+    }
+
+    int size() {
+        return byId.size();
+    }
+
+    private static String dirKey(String repoID, String dir) {
+        return repoID + ":" + dir;
+    }
+
+    /**
+     * Same identity as {@link TransferTask#equals(Object)}
+     */
+    private static class TaskKey {
+        final String accountSignature;
+        final String repoID;
+        final String path;
+
+        private TaskKey(String accountSignature, String repoID, String path) {
+            this.accountSignature = accountSignature;
+            this.repoID = repoID;
+            this.path = path;
+        }
+
+        static TaskKey of(TransferTask task) {
+            return new TaskKey(task.getAccount().getSignature(), task.getRepoID(), task.getPath());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            TaskKey that = (TaskKey) o;
+            return Objects.equal(accountSignature, that.accountSignature)
+                    && Objects.equal(repoID, that.repoID)
+                    && Objects.equal(path, that.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(accountSignature, repoID, path);
+        }
+    }
+}
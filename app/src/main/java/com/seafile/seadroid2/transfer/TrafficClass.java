@@ -0,0 +1,13 @@
+package com.seafile.seadroid2.transfer;
+
+/**
+ * Kind of traffic a transfer belongs to, each has its own bandwidth budget in {@link BandwidthShaper}
+ */
+public enum TrafficClass {
+    /** files the user is waiting for, e.g. opening or uploading a file */
+    INTERACTIVE,
+    /** folder downloads and automatic re-uploads of edited files */
+    BACKGROUND_SYNC,
+    /** camera uploads */
+    CAMERA
+}
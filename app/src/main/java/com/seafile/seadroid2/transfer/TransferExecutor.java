@@ -0,0 +1,82 @@
+package com.seafile.seadroid2.transfer;
+
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the tasks of one {@link TransferManager}, apart from the pool of
+ * {@link com.seafile.seadroid2.util.ConcurrentAsyncTask} which serves the ui, thumbnails and the document provider.
+ * <p/>
+ * The number of threads follows the concurrency limit of the manager, see {@link #resize(int)}. The manager only
+ * executes a task when a slot is free, so the bounded queue merely holds a task until a worker which just finished
+ * its task is idle again. Idle threads time out, an empty manager holds no threads.
+ */
+class TransferExecutor extends ThreadPoolExecutor {
+    private static final String DEBUG_TAG = "TransferExecutor";
+
+    static final int QUEUE_CAPACITY = 16;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    TransferExecutor(final String name, int poolSize) {
+        super(poolSize, poolSize, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, name + " #" + mCount.getAndIncrement());
+                    }
+                });
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+            allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * Change the number of threads, running tasks are not affected by shrinking the pool
+     */
+    synchronized void resize(int poolSize) {
+        poolSize = Math.max(1, poolSize);
+        if (poolSize == getMaximumPoolSize()) {
+            return;
+        }
+        // the core size must never exceed the maximum size
+        if (poolSize > getMaximumPoolSize()) {
+            setMaximumPoolSize(poolSize);
+            setCorePoolSize(poolSize);
+        } else {
+            setCorePoolSize(poolSize);
+            setMaximumPoolSize(poolSize);
+        }
+    }
+
+    /**
+     * @param reserved tasks the manager is about to execute
+     * @return true if one more task can be executed without being rejected. Only the manager adds tasks,
+     *          so a free place can't be taken away between this check and {@link #execute(Runnable)}.
+     */
+    boolean hasCapacity(int reserved) {
+        return getQueue().remainingCapacity() > reserved;
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        super.afterExecute(r, t);
+        if (t != null) {
+            Log.e(DEBUG_TAG, "Uncaught exception in transfer task " + r, t);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package com.seafile.seadroid2.transfer;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.seafile.seadroid2.SeadroidApplication;
+import com.seafile.seadroid2.SeafException;
+import com.seafile.seadroid2.account.Account;
+import com.seafile.seadroid2.account.AccountManager;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Journal of pending and failed transfer tasks, so that they survive the death of {@link TransferService}.
+ * <p/>
+ * A task is journaled when it is queued, its state, progress and error are updated while it runs,
+ * and its row is deleted once it finished or was cancelled or removed by the user.
+ * There is at most one row per (type, account, repoID, path), so journaling a task again is idempotent.
+ * <p/>
+ * Writes are applied in order on a single background thread, callers never block on the database.
+ * The database is opened on first use, never call {@link #load(int)} on the main thread.
+ */
+class TransferJournal extends SQLiteOpenHelper {
+    private static final String DEBUG_TAG = "TransferJournal";
+
+    // If you change the database schema, you must increment the database
+    // version.
+    public static final int DATABASE_VERSION = 2;
+    public static final String DATABASE_NAME = "transfer.db";
+
+    static final int TYPE_DOWNLOAD = 0;
+    static final int TYPE_UPLOAD = 1;
+
+    private static final String TRANSFER_TABLE_NAME = "TransferTask";
+
+    private static final String TRANSFER_COLUMN_ID = "id";
+    private static final String TRANSFER_COLUMN_TYPE = "type";
+    private static final String TRANSFER_COLUMN_ACCOUNT = "account";
+    private static final String TRANSFER_COLUMN_REPO_ID = "repo_id";
+    private static final String TRANSFER_COLUMN_REPO_NAME = "repo_name";
+    private static final String TRANSFER_COLUMN_PATH = "path";
+    private static final String TRANSFER_COLUMN_DIR = "dir";
+    private static final String TRANSFER_COLUMN_IS_UPDATE = "is_update";
+    private static final String TRANSFER_COLUMN_COPY_TO_LOCAL = "copy_to_local";
+    private static final String TRANSFER_COLUMN_BY_BLOCK = "by_block";
+    private static final String TRANSFER_COLUMN_VERSION = "version";
+    private static final String TRANSFER_COLUMN_STATE = "state";
+    private static final String TRANSFER_COLUMN_TOTAL_SIZE = "total_size";
+    private static final String TRANSFER_COLUMN_FINISHED = "finished";
+    private static final String TRANSFER_COLUMN_ERR_CODE = "err_code";
+    private static final String TRANSFER_COLUMN_ERR_MSG = "err_msg";
+    private static final String TRANSFER_COLUMN_UPLOAD_BASELINE = "upload_baseline";
+
+    private static final String SQL_CREATE_TRANSFER_TABLE =
+            "CREATE TABLE " + TRANSFER_TABLE_NAME + " ("
+                    + TRANSFER_COLUMN_ID + " INTEGER PRIMARY KEY, "
+                    + TRANSFER_COLUMN_TYPE + " INTEGER NOT NULL, "
+                    + TRANSFER_COLUMN_ACCOUNT + " TEXT NOT NULL, "
+                    + TRANSFER_COLUMN_REPO_ID + " TEXT NOT NULL, "
+                    + TRANSFER_COLUMN_REPO_NAME + " TEXT NOT NULL, "
+                    + TRANSFER_COLUMN_PATH + " TEXT NOT NULL, "
+                    + TRANSFER_COLUMN_DIR + " TEXT, "
+                    + TRANSFER_COLUMN_IS_UPDATE + " INTEGER NOT NULL, "
+                    + TRANSFER_COLUMN_COPY_TO_LOCAL + " INTEGER NOT NULL, "
+                    + TRANSFER_COLUMN_BY_BLOCK + " INTEGER NOT NULL, "
+                    + TRANSFER_COLUMN_VERSION + " INTEGER NOT NULL, "
+                    + TRANSFER_COLUMN_STATE + " TEXT NOT NULL, "
+                    + TRANSFER_COLUMN_TOTAL_SIZE + " INTEGER NOT NULL, "
+                    + TRANSFER_COLUMN_FINISHED + " INTEGER NOT NULL, "
+                    + TRANSFER_COLUMN_ERR_CODE + " INTEGER, "
+                    + TRANSFER_COLUMN_ERR_MSG + " TEXT, "
+                    + TRANSFER_COLUMN_UPLOAD_BASELINE + " TEXT);";
+
+    private static final String[] FULL_PROJECTION = {
+            TRANSFER_COLUMN_ACCOUNT,
+            TRANSFER_COLUMN_REPO_ID,
+            TRANSFER_COLUMN_REPO_NAME,
+            TRANSFER_COLUMN_PATH,
+            TRANSFER_COLUMN_DIR,
+            TRANSFER_COLUMN_IS_UPDATE,
+            TRANSFER_COLUMN_COPY_TO_LOCAL,
+            TRANSFER_COLUMN_BY_BLOCK,
+            TRANSFER_COLUMN_VERSION,
+            TRANSFER_COLUMN_STATE,
+            TRANSFER_COLUMN_TOTAL_SIZE,
+            TRANSFER_COLUMN_FINISHED,
+            TRANSFER_COLUMN_ERR_CODE,
+            TRANSFER_COLUMN_ERR_MSG,
+            TRANSFER_COLUMN_UPLOAD_BASELINE};
+
+    private static final String KEY_WHERE_CLAUSE = String.format("%s = ? and %s = ? and %s = ? and %s = ?",
+            TRANSFER_COLUMN_TYPE, TRANSFER_COLUMN_ACCOUNT, TRANSFER_COLUMN_REPO_ID, TRANSFER_COLUMN_PATH);
+
+    private static TransferJournal dbHelper;
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+    public static synchronized TransferJournal getInstance() {
+        if (dbHelper == null) {
+            dbHelper = new TransferJournal(SeadroidApplication.getAppContext());
+        }
+
+        return dbHelper;
+    }
+
+    private TransferJournal(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_TRANSFER_TABLE);
+        db.execSQL(String.format("CREATE UNIQUE INDEX transfer_key_index ON %s (%s, %s, %s, %s);",
+                TRANSFER_TABLE_NAME,
+                TRANSFER_COLUMN_TYPE,
+                TRANSFER_COLUMN_ACCOUNT,
+                TRANSFER_COLUMN_REPO_ID,
+                TRANSFER_COLUMN_PATH));
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            db.execSQL("ALTER TABLE " + TRANSFER_TABLE_NAME + " ADD COLUMN " + TRANSFER_COLUMN_UPLOAD_BASELINE + " TEXT;");
+        }
+    }
+
+    @Override
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TRANSFER_TABLE_NAME + ";");
+        onCreate(db);
+    }
+
+    /**
+     * Insert or replace the row of a task
+     */
+    void save(TransferTask task) {
+        if (!task.isJournaled()) {
+            return;
+        }
+
+        final ContentValues values = new ContentValues();
+        values.put(TRANSFER_COLUMN_TYPE, getType(task));
+        values.put(TRANSFER_COLUMN_ACCOUNT, task.getAccount().getSignature());
+        values.put(TRANSFER_COLUMN_REPO_ID, task.getRepoID());
+        values.put(TRANSFER_COLUMN_REPO_NAME, task.getRepoName());
+        values.put(TRANSFER_COLUMN_PATH, task.getPath());
+        if (task instanceof UploadTask) {
+            UploadTask uploadTask = (UploadTask) task;
+            values.put(TRANSFER_COLUMN_DIR, uploadTask.getDir());
+            values.put(TRANSFER_COLUMN_IS_UPDATE, uploadTask.isUpdate() ? 1 : 0);
+            values.put(TRANSFER_COLUMN_COPY_TO_LOCAL, uploadTask.isCopyToLocal() ? 1 : 0);
+            values.put(TRANSFER_COLUMN_BY_BLOCK, uploadTask.isByBlock() ? 1 : 0);
+            values.put(TRANSFER_COLUMN_VERSION, uploadTask.getVersion());
+            values.put(TRANSFER_COLUMN_UPLOAD_BASELINE, uploadTask.getUploadBaseline());
+        } else {
+            DownloadTask downloadTask = (DownloadTask) task;
+            values.put(TRANSFER_COLUMN_IS_UPDATE, 0);
+            values.put(TRANSFER_COLUMN_COPY_TO_LOCAL, 1);
+            values.put(TRANSFER_COLUMN_BY_BLOCK, downloadTask.isByBlock() ? 1 : 0);
+            values.put(TRANSFER_COLUMN_VERSION, downloadTask.getEncVersion());
+        }
+        putProgress(values, task);
+
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                getWritableDatabase().insertWithOnConflict(TRANSFER_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+        });
+    }
+
+    /**
+     * Update state, progress and error of a journaled task
+     */
+    void update(TransferTask task) {
+        if (!task.isJournaled()) {
+            return;
+        }
+
+        final ContentValues values = new ContentValues();
+        putProgress(values, task);
+        if (task instanceof UploadTask) {
+            values.put(TRANSFER_COLUMN_UPLOAD_BASELINE, ((UploadTask) task).getUploadBaseline());
+        }
+        final String[] params = getKeyParams(task);
+
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                getWritableDatabase().update(TRANSFER_TABLE_NAME, values, KEY_WHERE_CLAUSE, params);
+            }
+        });
+    }
+
+    void remove(TransferTask task) {
+        if (task == null) {
+            return;
+        }
+        remove(getType(task), task.getAccount().getSignature(), task.getRepoID(), task.getPath());
+    }
+
+    void remove(int type, Entry entry) {
+        if (entry.account != null) {
+            remove(type, entry.account.getSignature(), entry.repoID, entry.path);
+        }
+    }
+
+    private void remove(int type, String accountSignature, String repoID, String path) {
+        final String[] params = {String.valueOf(type), accountSignature, repoID, path};
+
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                getWritableDatabase().delete(TRANSFER_TABLE_NAME, KEY_WHERE_CLAUSE, params);
+            }
+        });
+    }
+
+    /**
+     * Load the journaled tasks of the given type. Rows of accounts which no longer exist are deleted.
+     */
+    List<Entry> load(int type) {
+        List<Entry> entries = Lists.newArrayList();
+        Map<String, Account> accounts = getAllAccounts();
+
+        Cursor c = getWritableDatabase().query(TRANSFER_TABLE_NAME, FULL_PROJECTION,
+                TRANSFER_COLUMN_TYPE + " = ?", new String[]{String.valueOf(type)},
+                null, // don't group the rows
+                null, // don't filter by row groups
+                TRANSFER_COLUMN_ID // in the order the tasks were queued
+        );
+
+        c.moveToFirst();
+        while (!c.isAfterLast()) {
+            Entry entry = cursorToEntry(c, accounts);
+            if (entry.account == null) {
+                remove(type, c.getString(0), entry.repoID, entry.path);
+            } else {
+                entries.add(entry);
+            }
+            c.moveToNext();
+        }
+        c.close();
+
+        Log.d(DEBUG_TAG, String.format("loaded %d journaled tasks of type %d", entries.size(), type));
+        return entries;
+    }
+
+    private static void putProgress(ContentValues values, TransferTask task) {
+        SeafException err = task.err;
+        values.put(TRANSFER_COLUMN_STATE, task.getState().name());
+        values.put(TRANSFER_COLUMN_TOTAL_SIZE, task.getTotalSize());
+        values.put(TRANSFER_COLUMN_FINISHED, task.getFinished());
+        if (err != null) {
+            values.put(TRANSFER_COLUMN_ERR_CODE, err.getCode());
+            values.put(TRANSFER_COLUMN_ERR_MSG, err.getMessage());
+        } else {
+            values.putNull(TRANSFER_COLUMN_ERR_CODE);
+            values.putNull(TRANSFER_COLUMN_ERR_MSG);
+        }
+    }
+
+    private static int getType(TransferTask task) {
+        return task instanceof UploadTask ? TYPE_UPLOAD : TYPE_DOWNLOAD;
+    }
+
+    private static String[] getKeyParams(TransferTask task) {
+        return new String[]{String.valueOf(getType(task)), task.getAccount().getSignature(),
+                task.getRepoID(), task.getPath()};
+    }
+
+    private Map<String, Account> getAllAccounts() {
+        AccountManager accountMgr = new AccountManager(SeadroidApplication.getAppContext());
+        Map<String, Account> accounts = Maps.newHashMap();
+        for (Account account : accountMgr.getSignedInAccountList()) {
+            accounts.put(account.getSignature(), account);
+        }
+
+        return accounts;
+    }
+
+    private Entry cursorToEntry(Cursor c, Map<String, Account> accounts) {
+        Entry entry = new Entry();
+        entry.account = accounts.get(c.getString(0));
+        entry.repoID = c.getString(1);
+        entry.repoName = c.getString(2);
+        entry.path = c.getString(3);
+        entry.dir = c.getString(4);
+        entry.isUpdate = c.getInt(5) != 0;
+        entry.isCopyToLocal = c.getInt(6) != 0;
+        entry.byBlock = c.getInt(7) != 0;
+        entry.version = c.getInt(8);
+        try {
+            entry.state = TaskState.valueOf(c.getString(9));
+        } catch (IllegalArgumentException e) {
+            entry.state = TaskState.INIT;
+        }
+        entry.totalSize = c.getLong(10);
+        entry.finished = c.getLong(11);
+        if (!c.isNull(12)) {
+            entry.err = new SeafException(c.getInt(12), c.getString(13));
+        }
+        entry.uploadBaseline = c.getString(14);
+        return entry;
+    }
+
+    /**
+     * A journaled task
+     */
+    static class Entry {
+        Account account;
+        String repoID;
+        String repoName;
+        String path;
+        /** parent dir of an upload */
+        String dir;
+        boolean isUpdate;
+        boolean isCopyToLocal;
+        boolean byBlock;
+        /** encryption version */
+        int version;
+        TaskState state;
+        long totalSize;
+        long finished;
+        SeafException err;
+        /** see {@link UploadTask#getUploadBaseline()} */
+        String uploadBaseline;
+
+        /**
+         * @return true if the task was queued or running when the journal was written last
+         */
+        boolean isPending() {
+            return state == TaskState.INIT || state == TaskState.TRANSFERRING;
+        }
+    }
+}
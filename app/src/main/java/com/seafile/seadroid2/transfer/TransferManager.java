@@ -1,49 +1,167 @@
 package com.seafile.seadroid2.transfer;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.seafile.seadroid2.util.ConcurrentAsyncTask;
 
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Manages file downloading and uploading.
  * <p/>
- * Currently use an AsyncTask for an file.
+ * Every manager runs its tasks on its own {@link TransferExecutor}, whose size follows the concurrency limit.
+ * <p/>
+ * Waiting tasks are queued in one lane per {@link TransferPriority}, a lane is only served when all
+ * higher lanes are empty. Interactive tasks may use {@link #INTERACTIVE_EXTRA_SLOTS} slots above the
+ * concurrency limit, so a file the user opened doesn't wait for background transfers to finish.
  */
 public abstract class TransferManager {
     private static final String DEBUG_TAG = "TransferManager";
 
     public static final String BROADCAST_ACTION = "com.seafile.seadroid.TX_BROADCAST";
 
+    /**
+     * slots interactive tasks may use in addition to the concurrency limit
+     */
+    static final int INTERACTIVE_EXTRA_SLOTS = 2;
+
     /**
      * unique task id
      */
     protected int notificationID;
 
-    protected static final int TRANSFER_MAX_COUNT = 2;
+    /**
+     * adapts the number of concurrently transferring tasks to the network
+     */
+    protected final ConcurrencyController concurrencyController =
+            new ConcurrencyController(getClass().getSimpleName());
     /**
      * contains all transfer tasks, including failed, cancelled, finished, transferring, waiting tasks.
      */
-    protected List<TransferTask> allTaskList = Lists.newArrayList();
+    protected final TaskRegistry allTasks = new TaskRegistry();
+    /**
+     * persists pending and failed tasks across restarts of the service
+     */
+    protected final TransferJournal journal = TransferJournal.getInstance();
+    /**
+     * maps a currently transferring task to its instance, keyed like {@link #waitingMap}, guarded by this
+     */
+    private final Map<TransferTask, TransferTask> transferringMap = Maps.newHashMap();
+    /**
+     * waiting tasks in FIFO order per priority, guarded by this.
+     * Tasks removed from {@link #waitingMap} are left in their lane and skipped by {@link #doNext()}.
+     */
+    private final EnumMap<TransferPriority, LinkedList<TransferTask>> waitingLanes =
+            new EnumMap<>(TransferPriority.class);
+    /**
+     * maps a waiting task to the instance queued in {@link #waitingLanes}, guarded by this
+     */
+    private final Map<TransferTask, TransferTask> waitingMap = Maps.newHashMap();
+    /**
+     * transferring tasks which are sent within the request of another task, guarded by this.
+     * They are contained in {@link #transferringMap} too, but don't occupy a slot.
+     */
+    private final Set<TransferTask> batchedSet = Sets.newHashSet();
+    /**
+     * time waiting tasks spent in the queue before they were started
+     */
+    protected final QueueDelayStats queueDelayStats = new QueueDelayStats();
     /**
-     * contains currently transferring tasks
+     * publishes the state of all tasks to notifications and transfer lists
      */
-    protected List<TransferTask> transferringList = Lists.newArrayList();
+    protected final TransferSnapshotPublisher snapshotPublisher = new TransferSnapshotPublisher(this);
+    private final List<CompletionListener> completionListeners = new CopyOnWriteArrayList<>();
+    private final TransferExecutor executor = new TransferExecutor(getClass().getSimpleName(),
+            concurrencyController.getLimit() + INTERACTIVE_EXTRA_SLOTS);
     /**
-     * contains waiting tasks
+     * tasks started by {@link #doNext()} which are not handed to the executor yet, guarded by this
      */
-    protected List<TransferTask> waitingList = Lists.newArrayList();
+    private int starting;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    protected TransferManager() {
+        for (TransferPriority priority : TransferPriority.values()) {
+            waitingLanes.put(priority, Lists.<TransferTask>newLinkedList());
+        }
+    }
+
+    /**
+     * Notified when tasks of the manager are done, see {@link #addCompletionListener}
+     */
+    public interface CompletionListener {
+        /**
+         * Called once per task when it finished, failed or was cancelled. Usually called on the main thread,
+         * on the calling thread if a task is cancelled before it started.
+         */
+        void onTaskCompleted(TransferTaskInfo info);
+    }
+
+    /**
+     * Collects waiting tasks which are transferred together with a head task in one request
+     */
+    protected interface TaskBatch {
+        /**
+         * @return true if the task was added to the batch
+         */
+        boolean offer(TransferTask task);
+
+        boolean isFull();
+    }
 
-    protected synchronized TransferTask getTask(int taskID) {
-        for (TransferTask task : allTaskList) {
-            if (task.getTaskID() == taskID) {
-                return task;
+    public ConcurrencyController getConcurrencyController() {
+        return concurrencyController;
+    }
+
+    public QueueDelayStats getQueueDelayStats() {
+        return queueDelayStats;
+    }
+
+    public TransferSnapshotPublisher getSnapshotPublisher() {
+        return snapshotPublisher;
+    }
+
+    /**
+     * Get notified of completed tasks instead of polling their state
+     */
+    public void addCompletionListener(CompletionListener listener) {
+        completionListeners.add(listener);
+    }
+
+    public void removeCompletionListener(CompletionListener listener) {
+        completionListeners.remove(listener);
+    }
+
+    private void notifyCompleted(TransferTask task) {
+        if (task == null) {
+            return;
+        }
+        synchronized (this) {
+            if (task.completionNotified) {
+                return;
             }
+            task.completionNotified = true;
         }
-        return null;
+        final TransferTaskInfo info = task.getTaskInfo();
+        for (CompletionListener listener : completionListeners) {
+            listener.onTaskCompleted(info);
+        }
+    }
+
+    protected TransferTask getTask(int taskID) {
+        return allTasks.get(taskID);
     }
 
     public TransferTaskInfo getTaskInfo(int taskID) {
@@ -55,55 +173,182 @@ public abstract class TransferManager {
         return null;
     }
 
-    private synchronized boolean hasInQue(TransferTask transferTask) {
-        if (waitingList.contains(transferTask)) {
-            // Log.d(DEBUG_TAG, "in  Que  " + taskID + " " + repoName + path + "in waiting list");
-            return true;
+    /**
+     * Queue a task, unless the same file is already waiting or transferring.
+     * A waiting task is moved to the lane of the new one if that has a higher priority.
+     *
+     * @return the queued task, which is the already queued instance in case of a duplicate
+     */
+    protected TransferTask addTaskToQue(TransferTask task) {
+        synchronized (this) {
+            TransferTask waiting = waitingMap.get(task);
+            if (waiting != null) {
+                promote(waiting, task);
+                return waiting;
+            }
+            TransferTask transferring = transferringMap.get(task);
+            if (transferring != null) {
+                return transferring;
+            }
+
+            // replaces the cancelled or failed task if any
+            allTasks.put(task);
+            journal.save(task);
+
+            // Log.d(DEBUG_TAG, "add Que  " + taskID + " " + repoName + path);
+            task.queuedAt = System.nanoTime();
+            waitingLanes.get(task.getPriority()).add(task);
+            waitingMap.put(task, task);
         }
+        snapshotPublisher.invalidate();
+        doNext();
+        return task;
+    }
 
-        if (transferringList.contains(transferTask)) {
-            // Log.d(DEBUG_TAG, "in  Que  " + taskID + " " + repoName + path + " in downloading list");
-            return true;
+    /**
+     * Move a waiting task to the lane of a new request for the same file, if that has a higher priority
+     */
+    private void promote(TransferTask waiting, TransferTask request) {
+        final TransferPriority from = waiting.getPriority();
+        final TransferPriority to = request.getPriority();
+        if (to.compareTo(from) >= 0) {
+            return;
         }
-        return false;
+
+        Iterator<TransferTask> iterator = waitingLanes.get(from).iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() == waiting) {
+                iterator.remove();
+                break;
+            }
+        }
+        waiting.setPriority(to);
+        waiting.setTrafficClass(request.getTrafficClass());
+        waitingLanes.get(to).add(waiting);
+        doNext();
     }
 
-    protected void addTaskToQue(TransferTask task) {
-        if (!hasInQue(task)) {
-            // remove the cancelled or failed task if any
-            synchronized (this) {
-                allTaskList.remove(task);
+    /**
+     * Start waiting tasks while slots are free. The tasks are handed to the executor on the main thread,
+     * after their {@link TransferTask#onPreExecute()}.
+     */
+    public void doNext() {
+        final List<TransferTask> started = Lists.newArrayList();
+        synchronized (this) {
+            collectNext(started);
+            starting += started.size();
+        }
 
-                // add new created task
-                allTaskList.add(task);
+        for (final TransferTask task : started) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    task.onPreExecute();
+                    synchronized (TransferManager.this) {
+                        starting--;
+                        executor.execute(task);
+                    }
+                }
+            });
+        }
+    }
 
-                // Log.d(DEBUG_TAG, "add Que  " + taskID + " " + repoName + path);
-                waitingList.add(task);
+    private void collectNext(List<TransferTask> started) {
+        executor.resize(concurrencyController.getLimit() + INTERACTIVE_EXTRA_SLOTS);
+        for (TransferPriority priority : TransferPriority.values()) {
+            LinkedList<TransferTask> lane = waitingLanes.get(priority);
+            while (!lane.isEmpty() && hasFreeSlot(priority) && executor.hasCapacity(starting + started.size())) {
+                TransferTask task = lane.removeFirst();
+                if (waitingMap.get(task) != task) {
+                    // removed from the queue in the meantime
+                    continue;
+                }
+                waitingMap.remove(task);
+                final long delay = System.nanoTime() - task.queuedAt;
+                queueDelayStats.record(priority, delay);
+                TransferMetrics.getInstance().record(TransferMetrics.QUEUE_WAIT + priority.name().toLowerCase(Locale.US),
+                        TimeUnit.NANOSECONDS.toMillis(delay));
+
+                Log.d(DEBUG_TAG, "do next!");
+                transferringMap.put(task, task);
+                collectBatch(task);
+
+                task.setConcurrencyController(concurrencyController);
+                task.setJournal(journal);
+                task.setSnapshotPublisher(snapshotPublisher);
+                started.add(task);
             }
-            doNext();
         }
     }
 
-    public synchronized void doNext() {
-        if (!waitingList.isEmpty()
-                && transferringList.size() < TRANSFER_MAX_COUNT) {
-            Log.d(DEBUG_TAG, "do next!");
+    private boolean hasFreeSlot(TransferPriority priority) {
+        final int used = transferringMap.size() - batchedSet.size();
+        final int limit = concurrencyController.getLimit();
+        return used < limit
+                || (priority == TransferPriority.INTERACTIVE && used < limit + INTERACTIVE_EXTRA_SLOTS);
+    }
 
-            TransferTask task = waitingList.remove(0);
-            transferringList.add(task);
+    /**
+     * Move the waiting tasks accepted by the batch of the head task out of the queue
+     */
+    private void collectBatch(TransferTask head) {
+        TaskBatch batch = newBatch(head);
+        if (batch == null) {
+            return;
+        }
 
-            ConcurrentAsyncTask.execute(task);
+        for (LinkedList<TransferTask> lane : waitingLanes.values()) {
+            Iterator<TransferTask> iterator = lane.iterator();
+            while (iterator.hasNext() && !batch.isFull()) {
+                TransferTask candidate = iterator.next();
+                if (waitingMap.get(candidate) != candidate) {
+                    iterator.remove();
+                    continue;
+                }
+                if (batch.offer(candidate)) {
+                    iterator.remove();
+                    waitingMap.remove(candidate);
+                    transferringMap.put(candidate, candidate);
+                    batchedSet.add(candidate);
+                }
+            }
         }
     }
 
+    /**
+     * Override to transfer several waiting tasks in the request of the given task.
+     * Called with the lock held, when the task is started.
+     *
+     * @return a batch to fill, or null if the task is transferred on its own
+     */
+    protected TaskBatch newBatch(TransferTask head) {
+        return null;
+    }
+
+    /**
+     * Put a batched task which was not transferred back to the front of the queue
+     */
+    protected synchronized void requeue(TransferTask task) {
+        if (task == null || transferringMap.remove(task) == null) {
+            return;
+        }
+        batchedSet.remove(task);
+        waitingLanes.get(task.getPriority()).addFirst(task);
+        waitingMap.put(task, task);
+        snapshotPublisher.invalidate();
+        doNext();
+    }
+
     protected void cancel(int taskID) {
         TransferTask task = getTask(taskID);
         if (task != null) {
             task.cancel();
-
+            journal.remove(task);
         }
 
         remove(taskID);
+        // a waiting task never runs, so it won't report the cancellation itself
+        notifyCompleted(task);
     }
 
     protected synchronized void remove(int taskID) {
@@ -112,30 +357,95 @@ public abstract class TransferManager {
         if (toCancel == null)
             return;
 
-        if (!waitingList.isEmpty()) {
-            waitingList.remove(toCancel);
-        }
+        waitingMap.remove(toCancel);
+        transferringMap.remove(toCancel);
+        batchedSet.remove(toCancel);
+        snapshotPublisher.invalidate();
+    }
+
+    public void removeInAllTaskList(int taskID) {
+        TransferTask task = getTask(taskID);
+        allTasks.remove(task);
+        journal.remove(task);
+        snapshotPublisher.invalidate();
+    }
 
-        if (!transferringList.isEmpty()) {
-            transferringList.remove(toCancel);
+    /**
+     * Restore the tasks journaled before the service was killed.
+     * The journal is read off the main thread and the tasks are restored on it.
+     */
+    public void restoreTasks() {
+        ConcurrentAsyncTask.submit(new Runnable() {
+            @Override
+            public void run() {
+                final List<TransferJournal.Entry> entries = loadJournal();
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (TransferJournal.Entry entry : entries) {
+                            restoreTask(newRestoredTask(entry), entry);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Read the journaled tasks of this manager, called off the main thread
+     */
+    protected abstract List<TransferJournal.Entry> loadJournal();
+
+    /**
+     * Create the task of an entry loaded by {@link #loadJournal()}
+     */
+    protected abstract TransferTask newRestoredTask(TransferJournal.Entry entry);
+
+    /**
+     * Restore a task loaded from the journal.
+     * A pending task is queued again and resumes where the transfer primitives allow it,
+     * a failed task is only listed so that the user can retry it.
+     */
+    protected void restoreTask(TransferTask task, TransferJournal.Entry entry) {
+        task.finished = entry.finished;
+        if (entry.isPending()) {
+            task.resumed = true;
+            addTaskToQue(task);
+        } else {
+            task.totalSize = entry.totalSize;
+            task.state = entry.state;
+            task.err = entry.err;
+            allTasks.put(task);
+            snapshotPublisher.invalidate();
         }
     }
 
-    public void removeInAllTaskList(int taskID) {
+    /**
+     * Drop the journal row of a finished or cancelled task
+     */
+    protected void onTaskDone(int taskID) {
+        final TransferTask task = getTask(taskID);
+        journal.remove(task);
+        snapshotPublisher.invalidate();
+        notifyCompleted(task);
+    }
+
+    /**
+     * Save the final state and error of a failed task
+     */
+    protected void onTaskFailed(int taskID) {
         TransferTask task = getTask(taskID);
         if (task != null) {
-            synchronized (this) {
-                allTaskList.remove(task);
-            }
+            journal.update(task);
         }
+        snapshotPublisher.invalidate();
+        notifyCompleted(task);
     }
 
-    public synchronized List<TransferTask> getTasksByState(TaskState taskState) {
+    public List<TransferTask> getTasksByState(TaskState taskState) {
         List<TransferTask> taskList = Lists.newArrayList();
-        Iterator<TransferTask> iter = allTaskList.iterator();
-        while (iter.hasNext()) {
-            TransferTask task = iter.next();
-            if (task.state.equals(taskState)) {
+        for (TransferTask task : allTasks.getAll()) {
+            if (task.getState().equals(taskState)) {
                 taskList.add(task);
             }
         }
@@ -143,33 +453,35 @@ public abstract class TransferManager {
     }
 
     /**
-     * remove tasks from {@link #allTaskList} by comparing the taskState,
+     * remove tasks from {@link #allTasks} by comparing the taskState,
      * all tasks with the same taskState will be removed.
      *
      * @param taskState
      *          taskState
      */
-    public synchronized void removeByState(TaskState taskState) {
-        Iterator<TransferTask> iter = allTaskList.iterator();
-        while (iter.hasNext()) {
-            TransferTask task = iter.next();
+    public void removeByState(TaskState taskState) {
+        for (TransferTask task : allTasks.getAll()) {
             if (task.getState().equals(taskState)) {
-                iter.remove();
+                allTasks.remove(task);
+                journal.remove(task);
             }
         }
+        snapshotPublisher.invalidate();
     }
 
     /**
-     * remove tasks from {@link #allTaskList} by traversing the taskId list
+     * remove tasks from {@link #allTasks} by traversing the taskId list
      *
      * @param ids
      *          taskId list
      */
-    public synchronized void removeByIds(List<Integer> ids) {
+    public void removeByIds(List<Integer> ids) {
         for (int taskID : ids) {
-            TransferTask transferTask = getTask(taskID);
-            allTaskList.remove(transferTask);
+            TransferTask task = getTask(taskID);
+            allTasks.remove(task);
+            journal.remove(task);
         }
+        snapshotPublisher.invalidate();
     }
 
     /**
@@ -179,18 +491,16 @@ public abstract class TransferManager {
      *          false, otherwise.
      */
     public boolean isTransferring() {
-        List<? extends TransferTaskInfo> transferTaskInfos = getAllTaskInfoList();
-        for (TransferTaskInfo transferTaskInfo : transferTaskInfos) {
-            if (transferTaskInfo.state.equals(TaskState.TRANSFERRING))
+        for (TransferTask task : allTasks.getAll()) {
+            if (task.getState().equals(TaskState.TRANSFERRING))
                 return true;
         }
         return false;
     }
 
     public void cancelAll() {
-        List<? extends TransferTaskInfo> transferTaskInfos = getAllTaskInfoList();
-        for (TransferTaskInfo transferTaskInfo : transferTaskInfos) {
-            cancel(transferTaskInfo.taskID);
+        for (TransferTask task : allTasks.getAll()) {
+            cancel(task.getTaskID());
         }
     }
 
@@ -200,9 +510,13 @@ public abstract class TransferManager {
         }
     }
 
-    public synchronized List<? extends TransferTaskInfo> getAllTaskInfoList() {
-        ArrayList<TransferTaskInfo> infos = Lists.newArrayList();
-        for (TransferTask task : allTaskList) {
+    /**
+     * Snapshot of the infos of all tasks, ordered by task id.
+     * Doesn't block the transferring tasks, infos of unchanged tasks are reused.
+     */
+    public List<? extends TransferTaskInfo> getAllTaskInfoList() {
+        ArrayList<TransferTaskInfo> infos = Lists.newArrayListWithCapacity(allTasks.size());
+        for (TransferTask task : allTasks.getAll()) {
             infos.add(task.getTaskInfo());
         }
 
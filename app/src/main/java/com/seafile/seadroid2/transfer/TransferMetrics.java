@@ -0,0 +1,274 @@
+package com.seafile.seadroid2.transfer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timings of the transfer layer, for diagnosing slow transfers on a user's device.
+ * <p/>
+ * Every phase, e.g. fetching an upload link or waiting for the first byte of a download, is recorded into a
+ * {@link Histogram} named after it. Events like retries are counted. Besides the aggregates, the timings of
+ * the last {@link #MAX_TASK_TIMINGS} transfer tasks are kept.
+ * <p/>
+ * {@link TransferTask} registers its {@link TaskTiming} with the worker thread, so phases recorded by
+ * {@link com.seafile.seadroid2.SeafConnection} on that thread are charged to the task as well.
+ */
+public class TransferMetrics {
+    /** milliseconds to get an upload link from the server, cache hits are not recorded */
+    public static final String UPLOAD_LINK = "upload.link_ms";
+    /** milliseconds to get a download link of a file or block */
+    public static final String DOWNLOAD_LINK = "download.link_ms";
+    /** milliseconds until the file server answered a download request */
+    public static final String DOWNLOAD_TTFB = "download.ttfb_ms";
+    /** milliseconds until the status of an api or file server request was received */
+    public static final String HTTP_RESPONSE = "http.response_ms";
+
+    /** milliseconds a task waited for a slot, followed by the lowercase {@link TransferPriority} */
+    public static final String QUEUE_WAIT = "queue_wait_ms.";
+
+    public static final String UPLOAD_RETRY = "upload.retries";
+    public static final String HTTP_ERROR = "http.errors";
+
+    /** histograms per task kind, prefixed with "upload." or "download." */
+    static final String TASK_QUEUE_WAIT = ".queue_wait_ms";
+    static final String TASK_FIRST_BYTE = ".first_byte_ms";
+    static final String TASK_DURATION = ".duration_ms";
+    static final String TASK_THROUGHPUT = ".throughput_bps";
+
+    static final int MAX_TASK_TIMINGS = 100;
+
+    private static TransferMetrics instance;
+
+    private static final ThreadLocal<TaskTiming> currentTask = new ThreadLocal<>();
+
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    /** guarded by itself */
+    private final LinkedList<TaskTiming> taskTimings = new LinkedList<>();
+    private volatile long since = System.currentTimeMillis();
+
+    private TransferMetrics() {
+    }
+
+    public static synchronized TransferMetrics getInstance() {
+        if (instance == null) {
+            instance = new TransferMetrics();
+        }
+        return instance;
+    }
+
+    public Histogram getHistogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histograms.putIfAbsent(name, new Histogram());
+            histogram = histograms.get(name);
+        }
+        return histogram;
+    }
+
+    public void record(String name, long value) {
+        getHistogram(name).record(value);
+    }
+
+    /**
+     * Record the duration of a phase which started at the given {@link System#nanoTime()},
+     * in milliseconds. Link requests are charged to the task of the current thread, if any.
+     */
+    public void recordSince(String name, long startNanos) {
+        final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        record(name, millis);
+
+        TaskTiming timing = currentTask.get();
+        if (timing != null && (UPLOAD_LINK.equals(name) || DOWNLOAD_LINK.equals(name))) {
+            timing.linkMillis += millis;
+            timing.linkRequests++;
+        }
+    }
+
+    /**
+     * Count an event, retries are charged to the task of the current thread, if any
+     */
+    public void count(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter == null) {
+            counters.putIfAbsent(name, new AtomicLong());
+            counter = counters.get(name);
+        }
+        counter.incrementAndGet();
+
+        TaskTiming timing = currentTask.get();
+        if (timing != null && UPLOAD_RETRY.equals(name)) {
+            timing.retries++;
+        }
+    }
+
+    public long getCount(String name) {
+        AtomicLong counter = counters.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * Start timing a task on the current thread
+     *
+     * @param queueWaitMillis time the task waited in the queue, or -1 if it wasn't queued
+     */
+    TaskTiming beginTask(String kind, int taskID, long queueWaitMillis) {
+        TaskTiming timing = new TaskTiming(kind, taskID, queueWaitMillis);
+        if (queueWaitMillis >= 0) {
+            record(kind + TASK_QUEUE_WAIT, queueWaitMillis);
+        }
+        currentTask.set(timing);
+        return timing;
+    }
+
+    /**
+     * Record the time until the task received its first response or moved its first byte, only once per task
+     */
+    void onFirstByte(TaskTiming timing) {
+        if (timing.firstByteMillis >= 0) {
+            return;
+        }
+        timing.firstByteMillis = timing.elapsedMillis();
+        record(timing.kind + TASK_FIRST_BYTE, timing.firstByteMillis);
+    }
+
+    /**
+     * Finish timing a task on the current thread
+     *
+     * @param result "finished", "cancelled" or the error message
+     */
+    void endTask(TaskTiming timing, String result) {
+        currentTask.remove();
+        timing.durationMillis = timing.elapsedMillis();
+        timing.result = result;
+        final long bytes = timing.bytes;
+
+        record(timing.kind + TASK_DURATION, timing.durationMillis);
+        if (bytes > 0 && timing.durationMillis > 0) {
+            record(timing.kind + TASK_THROUGHPUT, bytes * 1000 / timing.durationMillis);
+        }
+        count(timing.kind + "." + ("finished".equals(result) || "cancelled".equals(result) ? result : "failed"));
+
+        synchronized (taskTimings) {
+            taskTimings.add(timing);
+            if (taskTimings.size() > MAX_TASK_TIMINGS) {
+                taskTimings.removeFirst();
+            }
+        }
+    }
+
+    public void reset() {
+        for (Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+        counters.clear();
+        synchronized (taskTimings) {
+            taskTimings.clear();
+        }
+        since = System.currentTimeMillis();
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("since", since);
+
+        JSONObject histogramsJson = new JSONObject();
+        for (Map.Entry<String, Histogram> entry : sortedHistograms().entrySet()) {
+            histogramsJson.put(entry.getKey(), entry.getValue().toJson());
+        }
+        json.put("histograms", histogramsJson);
+
+        JSONObject countersJson = new JSONObject();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            countersJson.put(entry.getKey(), entry.getValue().get());
+        }
+        json.put("counters", countersJson);
+
+        JSONArray tasksJson = new JSONArray();
+        for (TaskTiming timing : getTaskTimings()) {
+            tasksJson.put(timing.toJson());
+        }
+        json.put("tasks", tasksJson);
+        return json;
+    }
+
+    public List<TaskTiming> getTaskTimings() {
+        synchronized (taskTimings) {
+            return new LinkedList<>(taskTimings);
+        }
+    }
+
+    private SortedMap<String, Histogram> sortedHistograms() {
+        return new TreeMap<>(histograms);
+    }
+
+    /**
+     * Human readable summary of the histograms and counters
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Histogram> entry : sortedHistograms().entrySet()) {
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<>(counters).entrySet()) {
+            sb.append(entry.getKey()).append(": ").append(entry.getValue().get()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Phases of one transfer task, only modified by the thread running the task
+     */
+    public static class TaskTiming {
+        public final String kind;
+        public final int taskID;
+        public final long startedAt = System.currentTimeMillis();
+        private final long startNanos = System.nanoTime();
+        public final long queueWaitMillis;
+        public volatile long firstByteMillis = -1;
+        public volatile long linkMillis;
+        public volatile int linkRequests;
+        public volatile int retries;
+        public volatile long durationMillis;
+        public volatile long bytes;
+        public volatile String result;
+
+        TaskTiming(String kind, int taskID, long queueWaitMillis) {
+            this.kind = kind;
+            this.taskID = taskID;
+            this.queueWaitMillis = queueWaitMillis;
+        }
+
+        long elapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("kind", kind);
+            json.put("taskID", taskID);
+            json.put("startedAt", startedAt);
+            json.put("queueWaitMs", queueWaitMillis);
+            json.put("firstByteMs", firstByteMillis);
+            json.put("linkMs", linkMillis);
+            json.put("linkRequests", linkRequests);
+            json.put("retries", retries);
+            json.put("durationMs", durationMillis);
+            json.put("bytes", bytes);
+            json.put("result", result);
+            return json;
+        }
+    }
+}
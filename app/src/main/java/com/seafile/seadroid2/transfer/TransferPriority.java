@@ -0,0 +1,13 @@
+package com.seafile.seadroid2.transfer;
+
+/**
+ * Scheduling lanes of a {@link TransferManager}, in descending priority
+ */
+public enum TransferPriority {
+    /** a file the user opened and is waiting for */
+    INTERACTIVE,
+    /** transfers the user started, e.g. uploading files */
+    USER_BULK,
+    /** folder downloads, camera uploads and re-uploads of edited files */
+    BACKGROUND
+}
@@ -5,11 +5,22 @@ import android.content.Intent;
 import android.os.Binder;
 import android.os.IBinder;
 import android.util.Log;
+import com.seafile.seadroid2.SettingsManager;
 import com.seafile.seadroid2.account.Account;
+import com.seafile.seadroid2.data.StorageManager;
+import com.seafile.seadroid2.data.UploadLinkCache;
 import com.seafile.seadroid2.notification.DownloadNotificationProvider;
 import com.seafile.seadroid2.notification.UploadNotificationProvider;
-
+import org.apache.commons.io.FileUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 
 public class TransferService extends Service {
     private static final String DEBUG_TAG = "TransferService";
@@ -31,6 +42,99 @@ public class TransferService extends Service {
     public void onCreate() {
         downloadTaskManager = new DownloadTaskManager();
         uploadTaskManager = new UploadTaskManager();
+        applyConcurrencyBounds();
+        UploadLinkCache.getInstance().setTtl(SettingsManager.instance().getUploadLinkTtl());
+        SettingsManager.instance().applyTransferRateLimits();
+
+        // resume the transfers which were interrupted when the service was killed
+        downloadTaskManager.restoreTasks();
+        uploadTaskManager.restoreTasks();
+    }
+
+    /**
+     * Apply the configured bounds of concurrent transfers, uploads and downloads are adapted separately
+     */
+    public void applyConcurrencyBounds() {
+        SettingsManager settingsMgr = SettingsManager.instance();
+        int min = settingsMgr.getTransferMinConcurrency();
+        int max = settingsMgr.getTransferMaxConcurrency();
+        downloadTaskManager.getConcurrencyController().setBounds(min, max);
+        uploadTaskManager.getConcurrencyController().setBounds(min, max);
+    }
+
+    /**
+     * @return the shared upload link cache, whose hit and miss counts are part of the transfer diagnostics
+     */
+    public UploadLinkCache getUploadLinkCache() {
+        return UploadLinkCache.getInstance();
+    }
+
+    /**
+     * @return the number of uploads currently allowed to run concurrently, for diagnostics
+     */
+    public int getUploadConcurrencyLimit() {
+        return uploadTaskManager.getConcurrencyController().getLimit();
+    }
+
+    /**
+     * @return the number of downloads currently allowed to run concurrently, for diagnostics
+     */
+    public int getDownloadConcurrencyLimit() {
+        return downloadTaskManager.getConcurrencyController().getLimit();
+    }
+
+    /**
+     * @return how long uploads waited in the queue per priority, for diagnostics
+     */
+    public QueueDelayStats getUploadQueueDelayStats() {
+        return uploadTaskManager.getQueueDelayStats();
+    }
+
+    /**
+     * @return how long downloads waited in the queue per priority, for diagnostics
+     */
+    public QueueDelayStats getDownloadQueueDelayStats() {
+        return downloadTaskManager.getQueueDelayStats();
+    }
+
+    /**
+     * @return the transfer timings and the state of the transfer layer as human readable text
+     */
+    public String getDiagnostics() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(uploadTaskManager.getConcurrencyController()).append('\n');
+        sb.append(downloadTaskManager.getConcurrencyController()).append('\n');
+        sb.append("upload queue delay: ").append(uploadTaskManager.getQueueDelayStats()).append('\n');
+        sb.append("download queue delay: ").append(downloadTaskManager.getQueueDelayStats()).append('\n');
+        sb.append(UploadLinkCache.getInstance()).append("\n\n");
+        sb.append(TransferMetrics.getInstance());
+        return sb.toString();
+    }
+
+    /**
+     * @return the transfer timings including the last tasks and the state of the transfer layer
+     */
+    public JSONObject getDiagnosticsJson() throws JSONException {
+        JSONObject json = TransferMetrics.getInstance().toJson();
+        json.put("uploadConcurrency", uploadTaskManager.getConcurrencyController().toString());
+        json.put("downloadConcurrency", downloadTaskManager.getConcurrencyController().toString());
+        json.put("uploadQueueDelay", uploadTaskManager.getQueueDelayStats().toString());
+        json.put("downloadQueueDelay", downloadTaskManager.getQueueDelayStats().toString());
+        json.put("uploadLinkCache", UploadLinkCache.getInstance().toString());
+        return json;
+    }
+
+    /**
+     * Write the diagnostics as json into the log directory, so that they can be attached to a bug report
+     *
+     * @return the written file
+     */
+    public File dumpDiagnostics() throws IOException, JSONException {
+        String time = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        File file = new File(StorageManager.getInstance().getLogDir(), "transfer-diagnostics-" + time + ".json");
+        FileUtils.writeStringToFile(file, getDiagnosticsJson().toString(2), "UTF-8");
+        Log.d(DEBUG_TAG, "Transfer diagnostics written to " + file.getAbsolutePath());
+        return file;
     }
 
     @Override
@@ -114,6 +218,23 @@ public class TransferService extends Service {
         return uploadTaskManager.addTaskToQue(account, repoID, repoName, dir, filePath, isUpdate, isCopyToLocal, version);
     }
 
+    /**
+     * Queue an upload which is charged to the given bandwidth budget, see {@link BandwidthShaper}
+     */
+    public int addTaskToUploadQue(Account account, String repoID, String repoName, String dir, String filePath,
+                                  boolean isUpdate, boolean isCopyToLocal, boolean byBlock, int version,
+                                  TrafficClass trafficClass) {
+        return uploadTaskManager.addTaskToQue(account, repoID, repoName, dir, filePath, isUpdate, isCopyToLocal,
+                byBlock, version, trafficClass);
+    }
+
+    /**
+     * Queue an upload of the camera sync adapter
+     */
+    public int addCameraUploadTask(Account account, String repoID, String repoName, String dir, String filePath) {
+        return uploadTaskManager.addCameraTaskToQue(account, repoID, repoName, dir, filePath);
+    }
+
     /**
      * Call this method to handle upload request, like file upload or camera upload.
      *
@@ -0,0 +1,70 @@
+package com.seafile.seadroid2.transfer;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable state of all tasks of a {@link TransferManager}, published by a {@link TransferSnapshotPublisher}.
+ * <p/>
+ * Task infos are only recreated when their task changed, see {@link TransferTask#getTaskInfo()},
+ * so two snapshots can be diffed by comparing the infos by identity.
+ */
+public class TransferSnapshot {
+    private final long version;
+    private final ImmutableList<TransferTaskInfo> infos;
+
+    TransferSnapshot(long version, List<? extends TransferTaskInfo> infos) {
+        this.version = version;
+        this.infos = ImmutableList.copyOf(infos);
+    }
+
+    /**
+     * @return a number increasing with every published snapshot
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the infos of all tasks ordered by task id, the list can't be modified
+     */
+    public List<TransferTaskInfo> getInfos() {
+        return infos;
+    }
+
+    /**
+     * @return true if a task was added, removed or changed since the given snapshot
+     */
+    public boolean isChangedSince(TransferSnapshot previous) {
+        if (previous == null || previous.infos.size() != infos.size()) {
+            return true;
+        }
+        for (int i = 0; i < infos.size(); i++) {
+            if (infos.get(i) != previous.infos.get(i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return ids of the tasks which were added or changed since the given snapshot
+     */
+    public Set<Integer> getChangedTaskIDs(TransferSnapshot previous) {
+        Set<TransferTaskInfo> old = Sets.newIdentityHashSet();
+        if (previous != null) {
+            old.addAll(previous.infos);
+        }
+
+        Set<Integer> changed = Sets.newHashSet();
+        for (TransferTaskInfo info : infos) {
+            if (!old.contains(info)) {
+                changed.add(info.taskID);
+            }
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,102 @@
+package com.seafile.seadroid2.transfer;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Publishes {@link TransferSnapshot}s of a {@link TransferManager} on the main thread.
+ * <p/>
+ * Transferring tasks only update their progress counters and call {@link #invalidate()}. Invalidations are
+ * coalesced, at most one snapshot is built every {@link #MIN_INTERVAL} milliseconds no matter how many tasks
+ * are running, and it is only delivered if a task changed. Notifications and transfer lists listen to the
+ * snapshots instead of reacting to every progress update.
+ */
+public class TransferSnapshotPublisher {
+    /** minimum time between two snapshots in milliseconds */
+    public static final long MIN_INTERVAL = 500;
+
+    public interface Listener {
+        /**
+         * Called on the main thread
+         */
+        void onTransferSnapshot(TransferSnapshot snapshot);
+    }
+
+    private final TransferManager manager;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Runnable publishRunnable = new Runnable() {
+        @Override
+        public void run() {
+            publish();
+        }
+    };
+
+    private volatile long lastPublished;
+    /** only accessed on the main thread */
+    private TransferSnapshot snapshot;
+    private long version;
+
+    TransferSnapshotPublisher(TransferManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * Schedule a new snapshot, may be called from any thread
+     */
+    public void invalidate() {
+        if (!scheduled.compareAndSet(false, true)) {
+            // a snapshot is pending already, it will contain this change too
+            return;
+        }
+        final long delay = lastPublished + MIN_INTERVAL - SystemClock.uptimeMillis();
+        handler.postDelayed(publishRunnable, Math.max(0, delay));
+    }
+
+    /**
+     * Register a listener and deliver the current snapshot to it right away. Must be called on the main thread.
+     */
+    public void addListener(Listener listener) {
+        if (listeners.contains(listener)) {
+            return;
+        }
+        listeners.add(listener);
+        listener.onTransferSnapshot(getSnapshot());
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return the last published snapshot, or a new one if none was published yet. Must be called on the main thread.
+     */
+    public TransferSnapshot getSnapshot() {
+        if (snapshot == null) {
+            snapshot = new TransferSnapshot(++version, manager.getAllTaskInfoList());
+        }
+        return snapshot;
+    }
+
+    private void publish() {
+        // clear the flag first, changes made while the snapshot is built schedule the next one
+        scheduled.set(false);
+        lastPublished = SystemClock.uptimeMillis();
+
+        TransferSnapshot next = new TransferSnapshot(version + 1, manager.getAllTaskInfoList());
+        if (!next.isChangedSince(snapshot)) {
+            return;
+        }
+        version++;
+        snapshot = next;
+        for (Listener listener : listeners) {
+            listener.onTransferSnapshot(next);
+        }
+    }
+}
@@ -1,27 +1,102 @@
 package com.seafile.seadroid2.transfer;
 
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import com.seafile.seadroid2.SeafException;
 import com.seafile.seadroid2.account.Account;
 
 import java.io.File;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Base class for transferring data
  * <p/>
+ * The task is run by the {@link TransferExecutor} of its manager. Like an AsyncTask, the transfer runs in
+ * {@link #doInBackground()} and the result is delivered on the main thread, by {@link #onPostExecute(File)}
+ * or by {@link #onCancelled()} if the task was cancelled.
+ * <p/>
  * reference for override equals and hashcode, http://www.javaranch.com/journal/2002/10/equalhash.html
  * <p/>
  */
-public abstract class TransferTask extends AsyncTask<Void, Long, File> {
+public abstract class TransferTask implements Runnable {
+    /**
+     * minimum interval between two progress updates written to the journal
+     */
+    private static final long JOURNAL_INTERVAL = 3000;
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
 
     protected int taskID;
     protected Account account;
     protected String repoName;
     protected String repoID;
     protected String path;
-    protected long totalSize, finished;
-    protected TaskState state;
-    protected SeafException err;
+    /**
+     * progress counters, only written by the transferring thread and read without locking by snapshots
+     */
+    protected volatile long totalSize, finished;
+    protected volatile TaskState state;
+    protected volatile SeafException err;
+    private volatile boolean cancelled;
+    /**
+     * thread running the transfer, interrupted on cancel, guarded by runnerLock
+     */
+    private Thread runner;
+    private final Object runnerLock = new Object();
+    /**
+     * bandwidth budget the transfer is charged to
+     */
+    protected TrafficClass trafficClass = TrafficClass.INTERACTIVE;
+    /**
+     * scheduling lane, null to derive it from the traffic class
+     */
+    private volatile TransferPriority priority;
+    /**
+     * when the task was put into the waiting queue, see {@link System#nanoTime()}
+     */
+    long queuedAt;
+    /**
+     * set once the completion listeners were called, guarded by the manager
+     */
+    boolean completionNotified;
+
+    /**
+     * last created task info, reused as long as the task doesn't change
+     */
+    private volatile TransferTaskInfo cachedInfo;
+
+    /**
+     * receives the throughput and latency measured by this task, may be null
+     */
+    private volatile ConcurrencyController concurrencyController;
+    /**
+     * start of the transfer and bytes reported so far, only accessed by the worker thread
+     */
+    private long transferStart;
+    private long bytesReported;
+    private boolean responseReceived;
+    /**
+     * true while this task pauses lower priority transfers, only accessed by the worker thread
+     */
+    private boolean interactiveScope;
+    /**
+     * phases of the running transfer, only accessed by the worker thread
+     */
+    private TransferMetrics.TaskTiming timing;
+
+    /**
+     * journal of the owning manager, may be null
+     */
+    private volatile TransferJournal journal;
+    private long lastJournaled;
+    /**
+     * publisher of the owning manager, may be null
+     */
+    private volatile TransferSnapshotPublisher snapshotPublisher;
+    /**
+     * true if the task was restored from the journal after the service had been killed
+     */
+    protected boolean resumed;
 
     public TransferTask(int taskID, Account account, String repoName, String repoID, String path) {
         this.account = account;
@@ -35,19 +110,252 @@ public abstract class TransferTask extends AsyncTask<Void, Long, File> {
         this.taskID = taskID;
     }
 
+    /**
+     * Stop the task. The transfer notices it through its {@link com.seafile.seadroid2.data.ProgressMonitor},
+     * a thread blocked in the bandwidth shaper or in a sleep is interrupted.
+     */
     protected void cancel() {
         if (state != TaskState.INIT && state != TaskState.TRANSFERRING) {
             return;
         }
         state = TaskState.CANCELLED;
-        super.cancel(true);
+        cancelled = true;
+        synchronized (runnerLock) {
+            if (runner != null) {
+                runner.interrupt();
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Called on the main thread right before the task is handed to the executor.
+     * The task may have been cancelled already.
+     */
+    protected void onPreExecute() {
     }
 
+    /**
+     * Transfer the file, runs on a thread of the {@link TransferExecutor}
+     *
+     * @return the transferred file, null if the transfer failed
+     */
+    protected abstract File doInBackground();
+
+    /**
+     * Called on the main thread after a transfer which was not cancelled
+     */
+    protected void onPostExecute(File file) {
+    }
+
+    /**
+     * Called on the main thread instead of {@link #onPostExecute(File)} if the task was cancelled
+     */
+    protected void onCancelled() {
+    }
+
+    protected final void runOnMainThread(Runnable runnable) {
+        mainHandler.post(runnable);
+    }
+
+    @Override
+    public final void run() {
+        synchronized (runnerLock) {
+            runner = Thread.currentThread();
+        }
+        File result = null;
+        try {
+            if (!cancelled) {
+                result = doInBackground();
+            }
+        } finally {
+            synchronized (runnerLock) {
+                runner = null;
+                // the worker thread is pooled, don't pass the interrupt of a cancel on to its next task
+                Thread.interrupted();
+            }
+
+            final File file = result;
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (cancelled) {
+                        onCancelled();
+                    } else {
+                        onPostExecute(file);
+                    }
+                }
+            });
+        }
+    }
+
+    void setConcurrencyController(ConcurrencyController controller) {
+        this.concurrencyController = controller;
+    }
+
+    void setJournal(TransferJournal journal) {
+        this.journal = journal;
+    }
+
+    void setSnapshotPublisher(TransferSnapshotPublisher publisher) {
+        this.snapshotPublisher = publisher;
+    }
+
+    /**
+     * @return true if the task should be kept in the {@link TransferJournal} while it is pending
+     */
+    protected boolean isJournaled() {
+        return true;
+    }
+
+    /**
+     * Call at the beginning of {@link #doInBackground()}
+     */
+    protected void onTransferStarted() {
+        final TransferPriority priority = getPriority();
+        BandwidthShaper.setTrafficClass(trafficClass);
+        BandwidthShaper.setPriority(priority);
+        if (priority == TransferPriority.INTERACTIVE) {
+            interactiveScope = true;
+            BandwidthShaper.getInstance().beginInteractive();
+        }
+        transferStart = System.currentTimeMillis();
+        bytesReported = 0;
+        responseReceived = false;
+        final long queueWait = queuedAt != 0 ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - queuedAt) : -1;
+        timing = TransferMetrics.getInstance().beginTask(getKind(), taskID, queueWait);
+        ConcurrencyController controller = concurrencyController;
+        if (controller != null) {
+            controller.onTaskStarted();
+        }
+    }
+
+    /**
+     * Call when the server started to answer the first request, to measure the request latency
+     */
+    protected void onTransferResponse() {
+        if (timing != null) {
+            TransferMetrics.getInstance().onFirstByte(timing);
+        }
+        ConcurrencyController controller = concurrencyController;
+        if (responseReceived || controller == null) {
+            return;
+        }
+        responseReceived = true;
+        controller.onRequestLatency(System.currentTimeMillis() - transferStart);
+    }
+
+    /**
+     * Call on the worker thread after the progress counters were updated, the owning manager
+     * publishes the change with its next snapshot
+     */
+    protected void onTransferChanged() {
+        TransferSnapshotPublisher publisher = snapshotPublisher;
+        if (publisher != null) {
+            publisher.invalidate();
+        }
+    }
+
+    /**
+     * Call with the progress reported by the {@link com.seafile.seadroid2.data.ProgressMonitor}.
+     * A progress smaller than the last one means a new block or a retry has started counting from zero.
+     */
+    protected void onTransferProgress(long progress) {
+        long delta = progress >= bytesReported ? progress - bytesReported : progress;
+        bytesReported = progress;
+        if (timing != null) {
+            timing.bytes += delta;
+            if (delta > 0) {
+                TransferMetrics.getInstance().onFirstByte(timing);
+            }
+        }
+
+        ConcurrencyController controller = concurrencyController;
+        if (controller != null) {
+            controller.onBytesTransferred(delta);
+        }
+
+        TransferJournal journal = this.journal;
+        long now = System.currentTimeMillis();
+        if (journal != null && now - lastJournaled > JOURNAL_INTERVAL) {
+            lastJournaled = now;
+            journal.update(this);
+        }
+    }
+
+    /**
+     * Write the state of the task to the journal now rather than with the next progress update
+     */
+    protected void updateJournal() {
+        TransferJournal journal = this.journal;
+        if (journal != null) {
+            journal.update(this);
+        }
+    }
+
+    /**
+     * Call at the end of {@link #doInBackground()}, after {@link #err} was set
+     */
+    protected void onTransferFinished() {
+        // worker threads are pooled, don't leak the class to the next task
+        BandwidthShaper.setTrafficClass(null);
+        BandwidthShaper.setPriority(null);
+        if (interactiveScope) {
+            interactiveScope = false;
+            BandwidthShaper.getInstance().endInteractive();
+        }
+        ConcurrencyController controller = concurrencyController;
+        if (controller != null) {
+            controller.onTaskFinished(err == SeafException.networkException);
+        }
+        if (timing != null) {
+            final String result;
+            if (err != null) {
+                result = err.getMessage();
+            } else {
+                result = isCancelled() ? "cancelled" : "finished";
+            }
+            TransferMetrics.getInstance().endTask(timing, result);
+            timing = null;
+        }
+    }
+
+    /**
+     * @return the prefix of the metrics recorded for this kind of task, see {@link TransferMetrics}
+     */
+    protected abstract String getKind();
+
     protected boolean canRetry() {
         return state == TaskState.CANCELLED || state == TaskState.FAILED;
     }
 
-    protected abstract TransferTaskInfo getTaskInfo();
+    /**
+     * Create a new immutable snapshot of the task
+     */
+    protected abstract TransferTaskInfo newTaskInfo();
+
+    /**
+     * Get an immutable snapshot of the task.
+     * The snapshot is only recreated when the state, progress or error of the task has changed.
+     */
+    protected TransferTaskInfo getTaskInfo() {
+        TransferTaskInfo info = cachedInfo;
+        if (info == null || isChangedSince(info)) {
+            info = newTaskInfo();
+            cachedInfo = info;
+        }
+        return info;
+    }
+
+    /**
+     * @return true if the task differs from the given snapshot
+     */
+    protected boolean isChangedSince(TransferTaskInfo info) {
+        return info.state != state || info.err != err;
+    }
 
     public int getTaskID() {
         return taskID;
@@ -81,6 +389,30 @@ public abstract class TransferTask extends AsyncTask<Void, Long, File> {
         return path;
     }
 
+    public TrafficClass getTrafficClass() {
+        return trafficClass;
+    }
+
+    void setTrafficClass(TrafficClass trafficClass) {
+        this.trafficClass = trafficClass;
+    }
+
+    /**
+     * @return the lane the task is scheduled in. Unless set explicitly, user transfers are
+     *          {@link TransferPriority#USER_BULK} and the other traffic classes {@link TransferPriority#BACKGROUND}.
+     */
+    public TransferPriority getPriority() {
+        TransferPriority p = priority;
+        if (p != null) {
+            return p;
+        }
+        return trafficClass == TrafficClass.INTERACTIVE ? TransferPriority.USER_BULK : TransferPriority.BACKGROUND;
+    }
+
+    void setPriority(TransferPriority priority) {
+        this.priority = priority;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == this)
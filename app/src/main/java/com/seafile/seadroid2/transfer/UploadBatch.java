@@ -0,0 +1,82 @@
+package com.seafile.seadroid2.transfer;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.io.File;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Groups small new files headed for the same directory, so that they are uploaded in one multipart request
+ * against a single upload link instead of paying for a link request and a POST per file.
+ * <p/>
+ * The head task sends the request and maps the per-file results back to the batched tasks.
+ * Files the server didn't confirm are uploaded one by one afterwards.
+ */
+class UploadBatch implements TransferManager.TaskBatch {
+    /** only files up to this size are batched */
+    static final long MAX_FILE_SIZE = 1024 * 1024;
+    static final int MAX_COUNT = 50;
+    static final long MAX_TOTAL_SIZE = 8 * 1024 * 1024;
+
+    private final UploadTask head;
+    private final List<UploadTask> tasks = Lists.newArrayList();
+    /** the server would rename a second file of the same name, keep them in separate requests */
+    private final Set<String> names = Sets.newHashSet();
+    private long totalSize;
+
+    /**
+     * @return a batch for the given task, or null if it can't be batched
+     */
+    static UploadBatch newBatch(UploadTask head) {
+        if (!isBatchable(head)) {
+            return null;
+        }
+        return new UploadBatch(head);
+    }
+
+    private UploadBatch(UploadTask head) {
+        this.head = head;
+        this.names.add(new File(head.getPath()).getName());
+        this.totalSize = head.getTotalSize();
+        head.setBatchedTasks(tasks);
+    }
+
+    private static boolean isBatchable(UploadTask task) {
+        return !task.isUpdate()
+                && !task.isByBlock()
+                && task.getTotalSize() <= MAX_FILE_SIZE
+                && task.getState() == TaskState.INIT
+                // a resumed task checks the server for an upload before the restart
+                && !task.resumed;
+    }
+
+    @Override
+    public boolean offer(TransferTask task) {
+        if (!(task instanceof UploadTask) || isFull()) {
+            return false;
+        }
+
+        UploadTask uploadTask = (UploadTask) task;
+        if (!isBatchable(uploadTask)
+                || !head.getAccount().getSignature().equals(uploadTask.getAccount().getSignature())
+                || !head.getRepoID().equals(uploadTask.getRepoID())
+                || !head.getDir().equals(uploadTask.getDir())
+                || head.isCopyToLocal() != uploadTask.isCopyToLocal()
+                || head.isCameraUpload() != uploadTask.isCameraUpload()
+                || totalSize + uploadTask.getTotalSize() > MAX_TOTAL_SIZE
+                || !names.add(new File(uploadTask.getPath()).getName())) {
+            return false;
+        }
+
+        tasks.add(uploadTask);
+        totalSize += uploadTask.getTotalSize();
+        return true;
+    }
+
+    @Override
+    public boolean isFull() {
+        return tasks.size() + 1 >= MAX_COUNT || totalSize >= MAX_TOTAL_SIZE;
+    }
+}
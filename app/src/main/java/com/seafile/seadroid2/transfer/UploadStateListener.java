@@ -2,11 +2,16 @@ package com.seafile.seadroid2.transfer;
 
 /**
  * Upload state listener
- *
+ * <p/>
+ * Upload progress is published by the {@link TransferSnapshotPublisher} of the manager.
  */
 public interface UploadStateListener {
-    void onFileUploadProgress(int taskID);
     void onFileUploaded(int taskID);
     void onFileUploadCancelled(int taskID);
     void onFileUploadFailed(int taskID);
+
+    /**
+     * The task was batched into the request of another task, which ended before the file was uploaded
+     */
+    void onFileUploadRequeued(int taskID);
 }
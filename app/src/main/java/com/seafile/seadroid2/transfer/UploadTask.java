@@ -2,14 +2,18 @@ package com.seafile.seadroid2.transfer;
 
 import android.util.Log;
 
+import com.google.common.collect.Lists;
 import com.seafile.seadroid2.SeafException;
 import com.seafile.seadroid2.account.Account;
 import com.seafile.seadroid2.data.DataManager;
 import com.seafile.seadroid2.data.ProgressMonitor;
+import com.seafile.seadroid2.data.SeafDirent;
 
 import java.io.File;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Upload task
@@ -21,22 +25,41 @@ public class UploadTask extends TransferTask {
     private String dir;   // parent dir
     private boolean isUpdate;  // true if update an existing file
     private boolean isCopyToLocal; // false to turn off copy operation
+    private boolean isCameraUpload; // queued by the camera sync adapter
+    /**
+     * id of the file with the same name in the target directory before the upload was sent,
+     * empty if there was none, null if unknown
+     */
+    private volatile String uploadBaseline;
     private boolean byBlock;
     private int version;
     private UploadStateListener uploadStateListener;
 
     private DataManager dataManager;
 
+    /**
+     * tasks uploaded in the request of this task, see {@link UploadBatch}
+     */
+    private List<UploadTask> batchedTasks = Collections.emptyList();
+    /**
+     * set by the head task once the result of this batched task is known
+     */
+    private volatile boolean batchDone;
+
     public UploadTask(int taskID, Account account, String repoID, String repoName,
-                      String dir, String filePath, boolean isUpdate, boolean isCopyToLocal, boolean byBlock, int version,
-                      UploadStateListener uploadStateListener) {
+                      String dir, String filePath, boolean isUpdate, boolean isCopyToLocal, boolean isCameraUpload,
+                      boolean byBlock, int version, UploadStateListener uploadStateListener) {
         super(taskID, account, repoName, repoID, filePath);
         this.dir = dir;
         this.isUpdate = isUpdate;
         this.isCopyToLocal = isCopyToLocal;
+        this.isCameraUpload = isCameraUpload;
         this.byBlock = byBlock;
         this.version = version;
         this.uploadStateListener = uploadStateListener;
+        if (isCameraUpload) {
+            this.trafficClass = TrafficClass.CAMERA;
+        }
 
         this.totalSize = new File(filePath).length();
         this.finished = 0;
@@ -44,41 +67,63 @@ public class UploadTask extends TransferTask {
         this.dataManager = new DataManager(account);
     }
 
-    public UploadTaskInfo getTaskInfo() {
+    @Override
+    protected String getKind() {
+        return "upload";
+    }
+
+    @Override
+    protected UploadTaskInfo newTaskInfo() {
         UploadTaskInfo info = new UploadTaskInfo(account, taskID, state, repoID,
-                repoName, dir, path, isUpdate, isCopyToLocal,
+                repoName, dir, path, isUpdate, isCopyToLocal, isCameraUpload,
                 finished, totalSize, err, version);
         return info;
     }
 
-    public void cancelUpload() {
-        if (state != TaskState.INIT && state != TaskState.TRANSFERRING) {
-            return;
-        }
-        state = TaskState.CANCELLED;
-        super.cancel(true);
+    @Override
+    public UploadTaskInfo getTaskInfo() {
+        return (UploadTaskInfo) super.getTaskInfo();
     }
 
     @Override
-    protected void onPreExecute() {
-        state = TaskState.TRANSFERRING;
+    protected boolean isChangedSince(TransferTaskInfo info) {
+        UploadTaskInfo uploadInfo = (UploadTaskInfo) info;
+        return super.isChangedSince(info)
+                || uploadInfo.uploadedSize != finished
+                || uploadInfo.totalSize != totalSize;
+    }
+
+    public void cancelUpload() {
+        cancel();
+    }
+
+    void setBatchedTasks(List<UploadTask> tasks) {
+        this.batchedTasks = tasks;
     }
 
     @Override
-    protected void onProgressUpdate(Long... values) {
-        long uploaded = values[0];
-        Log.d(DEBUG_TAG, "Uploaded " + uploaded);
-        this.finished = uploaded;
-        uploadStateListener.onFileUploadProgress(taskID);
+    protected void onPreExecute() {
+        // a task cancelled before it started stays cancelled
+        if (state == TaskState.INIT) {
+            state = TaskState.TRANSFERRING;
+        }
+        for (UploadTask task : batchedTasks) {
+            if (task.state == TaskState.INIT) {
+                task.state = TaskState.TRANSFERRING;
+            }
+        }
     }
 
     @Override
-    protected File doInBackground(Void... params) {
+    protected File doInBackground() {
+        onTransferStarted();
         try {
             ProgressMonitor monitor = new ProgressMonitor() {
                 @Override
                 public void onProgressNotify(long uploaded, boolean updateTotal) {
-                    publishProgress(uploaded);
+                    onUploadProgress(uploaded);
+                    finished = uploaded;
+                    onTransferChanged();
                 }
 
                 @Override
@@ -87,10 +132,19 @@ public class UploadTask extends TransferTask {
                 }
             };
 
-            if (byBlock) {
-                dataManager.uploadByBlocks(repoName, repoID, dir, path, monitor, isUpdate, isCopyToLocal, version);
+            if (!batchedTasks.isEmpty()) {
+                uploadBatch();
+            } else if (isUploadedAlready()) {
+                Log.d(DEBUG_TAG, "Skip upload of " + path + ", it was committed before the service was killed");
+                finished = totalSize;
+                onTransferChanged();
             } else {
-                dataManager.uploadFile(repoName, repoID, dir, path, monitor, isUpdate, isCopyToLocal);
+                recordUploadBaseline();
+                if (byBlock) {
+                    dataManager.uploadByBlocks(repoName, repoID, dir, path, monitor, isUpdate, isCopyToLocal, version);
+                } else {
+                    dataManager.uploadFile(repoName, repoID, dir, path, monitor, isUpdate, isCopyToLocal);
+                }
             }
 
         } catch (SeafException e) {
@@ -101,13 +155,142 @@ public class UploadTask extends TransferTask {
             Log.e(DEBUG_TAG, "Upload exception " + e.getMessage());
             err = SeafException.unknownException;
             e.printStackTrace();
+        } finally {
+            onTransferFinished();
         }
 
         return null;
     }
 
+    /**
+     * Progress is only reported once the server answered the upload link request, so the first notification
+     * also gives the request latency
+     */
+    private void onUploadProgress(long uploaded) {
+        onTransferResponse();
+        onTransferProgress(uploaded);
+    }
+
+    /**
+     * Upload this task and the batched tasks in one request.
+     * Files which were not confirmed by the server are uploaded on their own.
+     */
+    private void uploadBatch() throws SeafException {
+        final List<UploadTask> tasks = Lists.newArrayList();
+        final List<String> paths = Lists.newArrayList();
+        tasks.add(this);
+        for (UploadTask task : batchedTasks) {
+            if (task.state != TaskState.CANCELLED) {
+                tasks.add(task);
+            }
+        }
+        for (UploadTask task : tasks) {
+            paths.add(task.path);
+        }
+
+        ProgressMonitor batchMonitor = new ProgressMonitor() {
+            @Override
+            public void onProgressNotify(long uploaded, boolean updateTotal) {
+                onUploadProgress(uploaded);
+                // the files are sent in order, split the bytes among them
+                long remaining = uploaded;
+                for (UploadTask task : tasks) {
+                    long share = Math.min(remaining, task.totalSize);
+                    remaining -= share;
+                    task.finished = share;
+                }
+                onTransferChanged();
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return UploadTask.this.isCancelled();
+            }
+        };
+
+        List<String> newFileIDs = null;
+        try {
+            newFileIDs = dataManager.uploadFiles(repoName, repoID, dir, paths, batchMonitor, isCopyToLocal);
+        } catch (SeafException e) {
+            if (e == SeafException.userCancelledException) {
+                throw e;
+            }
+            Log.d(DEBUG_TAG, "Batch upload of " + tasks.size() + " files failed, upload them one by one: " + e.getMessage());
+        }
+
+        SeafException ownErr = null;
+        for (int i = 0; i < tasks.size(); i++) {
+            final UploadTask task = tasks.get(i);
+            SeafException taskErr = null;
+            if (newFileIDs == null || newFileIDs.get(i) == null) {
+                if (isCancelled()) {
+                    throw SeafException.userCancelledException;
+                }
+                if (task.state == TaskState.CANCELLED) {
+                    continue;
+                }
+                try {
+                    dataManager.uploadFile(repoName, repoID, dir, task.path, new ProgressMonitor() {
+                        @Override
+                        public void onProgressNotify(long uploaded, boolean updateTotal) {
+                            onUploadProgress(uploaded);
+                            task.finished = uploaded;
+                            onTransferChanged();
+                        }
+
+                        @Override
+                        public boolean isCancelled() {
+                            return UploadTask.this.isCancelled();
+                        }
+                    }, false, isCopyToLocal);
+                } catch (SeafException e) {
+                    if (e == SeafException.userCancelledException) {
+                        throw e;
+                    }
+                    taskErr = e;
+                }
+            }
+
+            if (task == this) {
+                ownErr = taskErr;
+            } else {
+                task.err = taskErr;
+            }
+            if (taskErr == null) {
+                task.finished = task.totalSize;
+            }
+            task.batchDone = true;
+        }
+
+        if (ownErr != null) {
+            throw ownErr;
+        }
+    }
+
+    /**
+     * Report the results of the batched tasks. Tasks without a result are queued again.
+     */
+    private void finishBatchedTasks() {
+        for (UploadTask task : batchedTasks) {
+            if (task.state == TaskState.CANCELLED) {
+                continue;
+            }
+            if (!task.batchDone) {
+                task.state = TaskState.INIT;
+                uploadStateListener.onFileUploadRequeued(task.taskID);
+            } else if (task.err == null) {
+                task.state = TaskState.FINISHED;
+                uploadStateListener.onFileUploaded(task.taskID);
+            } else {
+                task.state = TaskState.FAILED;
+                uploadStateListener.onFileUploadFailed(task.taskID);
+            }
+        }
+    }
+
     @Override
     protected void onPostExecute(File file) {
+        finishBatchedTasks();
         state = err == null ? TaskState.FINISHED : TaskState.FAILED;
         if (uploadStateListener != null) {
             if (err == null) {
@@ -121,10 +304,10 @@ public class UploadTask extends TransferTask {
 
     @Override
     protected void onCancelled() {
+        finishBatchedTasks();
         if (uploadStateListener != null) {
             uploadStateListener.onFileUploadCancelled(taskID);
         }
-        uploadStateListener.onFileUploadCancelled(taskID);
     }
 
     public String getDir() {
@@ -135,8 +318,90 @@ public class UploadTask extends TransferTask {
         return isCopyToLocal;
     }
 
+    public boolean isCameraUpload() {
+        return isCameraUpload;
+    }
+
     public boolean isUpdate() {
         return isUpdate;
     }
 
+    public boolean isByBlock() {
+        return byBlock;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Camera uploads are not journaled, the camera sync adapter finds pending photos by itself
+     */
+    @Override
+    protected boolean isJournaled() {
+        return !isCameraUpload;
+    }
+
+    String getUploadBaseline() {
+        return uploadBaseline;
+    }
+
+    void setUploadBaseline(String uploadBaseline) {
+        this.uploadBaseline = uploadBaseline;
+    }
+
+    /**
+     * Journal the file of the same name in the target directory before the upload is sent,
+     * see {@link #isUploadedAlready()}
+     */
+    private void recordUploadBaseline() {
+        if (isUpdate || !isJournaled()) {
+            return;
+        }
+        uploadBaseline = null;
+        try {
+            SeafDirent existing = findTargetDirent();
+            uploadBaseline = existing != null ? existing.id : "";
+        } catch (SeafException e) {
+            Log.d(DEBUG_TAG, "Failed to list " + dir + " before the upload: " + e.getMessage());
+        }
+        updateJournal();
+    }
+
+    /**
+     * A resumed upload may have been committed on the server right before the service was killed.
+     * That's only taken for sure if a file of the same name and size appeared in the target directory
+     * since the upload was sent, otherwise the file is uploaded again and the server renames a conflicting copy.
+     */
+    private boolean isUploadedAlready() {
+        if (!resumed || isUpdate || uploadBaseline == null) {
+            return false;
+        }
+
+        try {
+            SeafDirent dirent = findTargetDirent();
+            return dirent != null && dirent.size == totalSize && !dirent.id.equals(uploadBaseline);
+        } catch (SeafException e) {
+            Log.d(DEBUG_TAG, "Failed to check the uploaded files of " + dir + ": " + e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * @return the file with the name of the uploaded file in the target directory, or null
+     */
+    private SeafDirent findTargetDirent() throws SeafException {
+        String fileName = new File(path).getName();
+        List<SeafDirent> dirents = dataManager.getDirentsFromServer(repoID, dir);
+        if (dirents == null) {
+            throw SeafException.unknownException;
+        }
+        for (SeafDirent dirent : dirents) {
+            if (!dirent.isDir() && dirent.name.equals(fileName)) {
+                return dirent;
+            }
+        }
+        return null;
+    }
+
 }
\ No newline at end of file
@@ -9,7 +9,7 @@ public class UploadTaskInfo extends TransferTaskInfo {
 
     public final String parentDir;
     public final long uploadedSize, totalSize;
-    public final boolean isUpdate, isCopyToLocal;
+    public final boolean isUpdate, isCopyToLocal, isCameraUpload;
     public int version;
 
     /**
@@ -23,6 +23,7 @@ public class UploadTaskInfo extends TransferTaskInfo {
      * @param localPath Local path
      * @param isUpdate Force to update files if true
      * @param isCopyToLocal Copy files to SD card if true
+     * @param isCameraUpload Queued by the camera upload if true
      * @param uploadedSize File uploaded size
      * @param totalSize File total size
      * @param err Exception instance of {@link SeafException}
@@ -36,6 +37,7 @@ public class UploadTaskInfo extends TransferTaskInfo {
                           String localPath,
                           boolean isUpdate,
                           boolean isCopyToLocal,
+                          boolean isCameraUpload,
                           long uploadedSize,
                           long totalSize,
                           SeafException err,
@@ -48,6 +50,7 @@ public class UploadTaskInfo extends TransferTaskInfo {
         this.totalSize = totalSize;
         this.isUpdate = isUpdate;
         this.isCopyToLocal = isCopyToLocal;
+        this.isCameraUpload = isCameraUpload;
         this.version = version;
     }
 }
@@ -8,6 +8,7 @@ import com.seafile.seadroid2.SeadroidApplication;
 import com.seafile.seadroid2.account.Account;
 import com.seafile.seadroid2.notification.UploadNotificationProvider;
 
+import java.io.File;
 import java.util.List;
 
 /**
@@ -19,38 +20,84 @@ public class UploadTaskManager extends TransferManager implements UploadStateLis
 
     public static final String BROADCAST_FILE_UPLOAD_SUCCESS = "uploaded";
     public static final String BROADCAST_FILE_UPLOAD_FAILED = "uploadFailed";
-    public static final String BROADCAST_FILE_UPLOAD_PROGRESS = "uploadProgress";
     public static final String BROADCAST_FILE_UPLOAD_CANCELLED = "uploadCancelled";
 
-    private static UploadNotificationProvider mNotifyProvider;
+    private UploadNotificationProvider mNotifyProvider;
 
     public int addTaskToQue(Account account, String repoID, String repoName, String dir, String filePath, boolean isUpdate, boolean isCopyToLocal) {
-        if (repoID == null || repoName == null)
-            return 0;
-
-        // create a new one to avoid IllegalStateException
-        UploadTask task = new UploadTask(++notificationID, account, repoID, repoName, dir, filePath, isUpdate, isCopyToLocal, false, -1, this);
-        addTaskToQue(task);
-        return task.getTaskID();
+        return addTaskToQue(account, repoID, repoName, dir, filePath, isUpdate, isCopyToLocal, false, false, -1, null);
     }
 
     public int addTaskToQue(Account account, String repoID, String repoName, String dir, String filePath, boolean isUpdate, boolean isCopyToLocal, int version) {
+        return addTaskToQue(account, repoID, repoName, dir, filePath, isUpdate, isCopyToLocal, false, true, version, null);
+    }
+
+    /**
+     * Queue an upload of the camera sync adapter, which is not copied to the local cache and not journaled
+     */
+    public int addCameraTaskToQue(Account account, String repoID, String repoName, String dir, String filePath) {
+        return addTaskToQue(account, repoID, repoName, dir, filePath, false, false, true, false, -1, null);
+    }
+
+    /**
+     * @param trafficClass bandwidth budget of the upload, null to derive it from the kind of upload
+     */
+    public int addTaskToQue(Account account, String repoID, String repoName, String dir, String filePath, boolean isUpdate,
+                            boolean isCopyToLocal, boolean byBlock, int version, TrafficClass trafficClass) {
+        return addTaskToQue(account, repoID, repoName, dir, filePath, isUpdate, isCopyToLocal, false, byBlock, version,
+                trafficClass);
+    }
+
+    private int addTaskToQue(Account account, String repoID, String repoName, String dir, String filePath, boolean isUpdate,
+                             boolean isCopyToLocal, boolean isCameraUpload, boolean byBlock, int version,
+                             TrafficClass trafficClass) {
         if (repoID == null || repoName == null)
             return 0;
 
         // create a new one to avoid IllegalStateException
-        UploadTask task = new UploadTask(++notificationID, account, repoID, repoName, dir, filePath, isUpdate, isCopyToLocal, true, version, this);
-        addTaskToQue(task);
-        return task.getTaskID();
+        UploadTask task = new UploadTask(++notificationID, account, repoID, repoName, dir, filePath, isUpdate, isCopyToLocal,
+                isCameraUpload, byBlock, version, this);
+        if (trafficClass != null) {
+            task.setTrafficClass(trafficClass);
+        }
+        return addTaskToQue(task).getTaskID();
+    }
+
+    /**
+     * Tasks whose local file is gone are dropped
+     */
+    @Override
+    protected List<TransferJournal.Entry> loadJournal() {
+        List<TransferJournal.Entry> entries = Lists.newArrayList();
+        for (TransferJournal.Entry entry : journal.load(TransferJournal.TYPE_UPLOAD)) {
+            if (!new File(entry.path).exists()) {
+                Log.d(DEBUG_TAG, "drop journaled upload of missing file " + entry.path);
+                journal.remove(TransferJournal.TYPE_UPLOAD, entry);
+                continue;
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    @Override
+    protected TransferTask newRestoredTask(TransferJournal.Entry entry) {
+        UploadTask task = new UploadTask(++notificationID, entry.account, entry.repoID, entry.repoName, entry.dir,
+                entry.path, entry.isUpdate, entry.isCopyToLocal, false, entry.byBlock, entry.version, this);
+        task.setUploadBaseline(entry.uploadBaseline);
+        return task;
+    }
+
+    @Override
+    protected TaskBatch newBatch(TransferTask head) {
+        return UploadBatch.newBatch((UploadTask) head);
     }
 
     public List<UploadTaskInfo> getNoneCameraUploadTaskInfos() {
         List<UploadTaskInfo> noneCameraUploadTaskInfos = Lists.newArrayList();
         List<UploadTaskInfo> uploadTaskInfos = (List<UploadTaskInfo>) getAllTaskInfoList();
         for (UploadTaskInfo uploadTaskInfo : uploadTaskInfos) {
-            // use isCopyToLocal as a flag to mark a camera photo upload task if false
-            // mark a file upload task if true
-            if (!uploadTaskInfo.isCopyToLocal) {
+            if (uploadTaskInfo.isCameraUpload) {
                 continue;
             }
             noneCameraUploadTaskInfos.add(uploadTaskInfo);
@@ -63,28 +110,19 @@ public class UploadTaskManager extends TransferManager implements UploadStateLis
         UploadTask task = (UploadTask) getTask(taskID);
         if (task == null || !task.canRetry())
             return;
-        addTaskToQue(task.getAccount(), task.getRepoID(), task.getRepoName(), task.getDir(), task.getPath(), task.isUpdate(), task.isCopyToLocal());
+        addTaskToQue(task.getAccount(), task.getRepoID(), task.getRepoName(), task.getDir(), task.getPath(), task.isUpdate(),
+                task.isCopyToLocal(), task.isCameraUpload(), task.isByBlock(), task.getVersion(), task.getTrafficClass());
     }
 
-    private void notifyProgress(int taskID) {
-        UploadTaskInfo info = (UploadTaskInfo) getTaskInfo(taskID);
-        if (info == null)
-            return;
-
-        // use isCopyToLocal as a flag to mark a camera photo upload task if false
-        // mark a file upload task if true
-        if (!info.isCopyToLocal)
-            return;
-
-        //Log.d(DEBUG_TAG, "notify key " + info.repoID);
+    /**
+     * Save the provider of the upload notification, which is updated from the snapshots of this manager
+     */
+    public void saveUploadNotifProvider(UploadNotificationProvider provider) {
         if (mNotifyProvider != null) {
-            mNotifyProvider.updateNotification();
+            snapshotPublisher.removeListener(mNotifyProvider);
         }
-
-    }
-
-    public void saveUploadNotifProvider(UploadNotificationProvider provider) {
         mNotifyProvider = provider;
+        snapshotPublisher.addListener(provider);
     }
 
     public boolean hasNotifProvider() {
@@ -104,40 +142,37 @@ public class UploadTaskManager extends TransferManager implements UploadStateLis
     }
 
     // -------------------------- listener method --------------------//
-    @Override
-    public void onFileUploadProgress(int taskID) {
-        Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type",
-                BROADCAST_FILE_UPLOAD_PROGRESS).putExtra("taskID", taskID);
-        LocalBroadcastManager.getInstance(SeadroidApplication.getAppContext()).sendBroadcast(localIntent);
-        notifyProgress(taskID);
-    }
-
     @Override
     public void onFileUploaded(int taskID) {
+        onTaskDone(taskID);
         remove(taskID);
         doNext();
         Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type",
                 BROADCAST_FILE_UPLOAD_SUCCESS).putExtra("taskID", taskID);
         LocalBroadcastManager.getInstance(SeadroidApplication.getAppContext()).sendBroadcast(localIntent);
-        notifyProgress(taskID);
     }
 
     @Override
     public void onFileUploadCancelled(int taskID) {
+        onTaskDone(taskID);
         Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type",
                 BROADCAST_FILE_UPLOAD_CANCELLED).putExtra("taskID", taskID);
         LocalBroadcastManager.getInstance(SeadroidApplication.getAppContext()).sendBroadcast(localIntent);
-        notifyProgress(taskID);
+    }
+
+    @Override
+    public void onFileUploadRequeued(int taskID) {
+        requeue(getTask(taskID));
     }
 
     @Override
     public void onFileUploadFailed(int taskID) {
+        onTaskFailed(taskID);
         remove(taskID);
         doNext();
         Intent localIntent = new Intent(BROADCAST_ACTION).putExtra("type",
                 BROADCAST_FILE_UPLOAD_FAILED).putExtra("taskID", taskID);
         LocalBroadcastManager.getInstance(SeadroidApplication.getAppContext()).sendBroadcast(localIntent);
-        notifyProgress(taskID);
     }
 
 }
@@ -49,6 +49,7 @@ import com.seafile.seadroid2.account.AccountManager;
 import com.seafile.seadroid2.cameraupload.MediaObserverService;
 import com.seafile.seadroid2.data.DataManager;
 import com.seafile.seadroid2.data.DatabaseHelper;
+import com.seafile.seadroid2.data.ProgressMonitor;
 import com.seafile.seadroid2.data.SeafDirent;
 import com.seafile.seadroid2.data.SeafRepo;
 import com.seafile.seadroid2.data.SeafStarredFile;
@@ -1526,8 +1527,8 @@ public class BrowserActivity extends BaseActivity
         final String filePath = Utils.pathJoin(navContext.getDirPath(), fileName);
         final SeafRepo repo = dataManager.getCachedRepoByID(repoID);
 
-        // Encrypted repo doesn\`t support gallery,
-        // because pic thumbnail under encrypted repo was not supported at the server side
+        // Encrypted repo doesn\`t support gallery, it downloads the photos
+        // without the block decryption of libraries encrypted on the client
         if (Utils.isViewableImage(fileName)
                 && repo != null && !repo.encrypted) {
             WidgetUtils.startGalleryActivity(this, repoName, repoID, dirPath, fileName, account);
@@ -1598,6 +1599,8 @@ public class BrowserActivity extends BaseActivity
         private String fileName;
         private String dirPath;
         private int fileCount;
+        /** files downloaded as archive, -1 if they were queued one by one */
+        private int archivedCount = -1;
         private boolean recurse;
         private ArrayList<String> dirPaths = Lists.newArrayList();
         private SeafException err = null;
@@ -1618,6 +1621,23 @@ public class BrowserActivity extends BaseActivity
 
             ArrayList<SeafDirent> dirents = Lists.newArrayList();
 
+            final SeafRepo archiveRepo = dataManager.getCachedRepoByID(repoID);
+            if (recurse && archiveRepo != null && !archiveRepo.encrypted
+                    && SettingsManager.instance().isFolderArchiveDownloadEnabled()) {
+                try {
+                    archivedCount = downloadArchive();
+                    if (archivedCount >= 0) {
+                        return dirents;
+                    }
+                } catch (SeafException e) {
+                    if (e == SeafException.userCancelledException) {
+                        return null;
+                    }
+                    // e.g. the file server is not reachable at the expected path, download file by file
+                    Log.w(DEBUG_TAG, "Folder archive download failed: " + e.getMessage());
+                }
+            }
+
             dirPaths.add(Utils.pathJoin(dirPath, fileName));
 
             // don`t use for each loop here
@@ -1679,6 +1699,25 @@ public class BrowserActivity extends BaseActivity
             return dirents;
         }
 
+        private int downloadArchive() throws SeafException {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    ToastUtils.show(BrowserActivity.this, R.string.transfer_download_dir_archive_started);
+                }
+            });
+            return dataManager.downloadDirArchive(repoName, repoID, dirPath, fileName, new ProgressMonitor() {
+                @Override
+                public void onProgressNotify(long total, boolean updateTotal) {
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return DownloadDirTask.this.isCancelled();
+                }
+            });
+        }
+
         @Override
         protected void onPostExecute(List<SeafDirent> dirents) {
             if (dirents == null) {
@@ -1688,6 +1727,13 @@ public class BrowserActivity extends BaseActivity
                 return;
             }
 
+            if (archivedCount >= 0) {
+                ToastUtils.show(BrowserActivity.this, getResources().getQuantityString(
+                        R.plurals.transfer_download_dir_archive_finished, archivedCount, archivedCount));
+                getReposFragment().getAdapter().notifyChanged();
+                return;
+            }
+
             if (fileCount == 0)
                 ToastUtils.show(BrowserActivity.this, R.string.transfer_download_no_task);
             else {
@@ -1741,8 +1787,8 @@ public class BrowserActivity extends BaseActivity
         final String filePath = starredFile.getPath();
         final String dirPath = Utils.getParentPath(filePath);
 
-        // Encrypted repo doesn\`t support gallery,
-        // because pic thumbnail under encrypted repo was not supported at the server side
+        // Encrypted repo doesn\`t support gallery, it downloads the photos
+        // without the block decryption of libraries encrypted on the client
         if (Utils.isViewableImage(starredFile.getTitle()) && !repo.encrypted) {
             WidgetUtils.startGalleryActivity(this, repoName, repoID, dirPath, starredFile.getTitle(), account);
             return;
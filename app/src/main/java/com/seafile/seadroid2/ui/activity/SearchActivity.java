@@ -391,8 +391,8 @@ public class SearchActivity extends BaseActivity implements View.OnClickListener
             return;
         }
 
-        // Encrypted repo doesn\`t support gallery,
-        // because pic thumbnail under encrypted repo was not supported at the server side
+        // Encrypted repo doesn\`t support gallery, it downloads the photos
+        // without the block decryption of libraries encrypted on the client
         if (Utils.isViewableImage(searchedFile.getTitle())
                 && repo != null && !repo.encrypted) {
             WidgetUtils.startGalleryActivity(this, repoName, repoID, Utils.getParentPath(filePath), searchedFile.getTitle(), account);
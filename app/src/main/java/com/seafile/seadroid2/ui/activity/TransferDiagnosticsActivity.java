@@ -0,0 +1,151 @@
+package com.seafile.seadroid2.ui.activity;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.support.v7.widget.Toolbar;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+import com.seafile.seadroid2.R;
+import com.seafile.seadroid2.transfer.TransferMetrics;
+import com.seafile.seadroid2.transfer.TransferService;
+import com.seafile.seadroid2.ui.ToastUtils;
+import com.seafile.seadroid2.util.ConcurrentAsyncTask;
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Shows the transfer timings recorded by {@link TransferMetrics}, which can be exported as json to the log directory
+ */
+public class TransferDiagnosticsActivity extends BaseActivity implements Toolbar.OnMenuItemClickListener {
+    private static final String DEBUG_TAG = "TransferDiagnosticsActivity";
+
+    private TextView diagnosticsText;
+    private TransferService txService;
+
+    private ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName className, IBinder service) {
+            TransferService.TransferBinder binder = (TransferService.TransferBinder) service;
+            txService = binder.getService();
+            refresh();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName arg0) {
+            txService = null;
+        }
+    };
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_transfer_diagnostics);
+
+        diagnosticsText = (TextView) findViewById(R.id.transfer_diagnostics_text);
+        Toolbar toolbar = getActionBarToolbar();
+        toolbar.setOnMenuItemClickListener(this);
+        setSupportActionBar(toolbar);
+        getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+        getSupportActionBar().setTitle(R.string.transfer_diagnostics_title);
+
+        Intent bIntent = new Intent(this, TransferService.class);
+        bindService(bIntent, mConnection, Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (txService != null) {
+            unbindService(mConnection);
+            txService = null;
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getActionBarToolbar().inflateMenu(R.menu.transfer_diagnostics_menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case android.R.id.home:
+                finish();
+                return true;
+            case R.id.refresh_diagnostics:
+                refresh();
+                return true;
+            case R.id.reset_diagnostics:
+                TransferMetrics.getInstance().reset();
+                refresh();
+                return true;
+            case R.id.export_diagnostics:
+                export();
+                return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    @Override
+    public boolean onMenuItemClick(MenuItem item) {
+        return onOptionsItemSelected(item);
+    }
+
+    private void refresh() {
+        if (txService == null) {
+            return;
+        }
+        diagnosticsText.setText(txService.getDiagnostics());
+    }
+
+    private void export() {
+        if (txService == null) {
+            return;
+        }
+        ConcurrentAsyncTask.execute(new ExportDiagnosticsTask(txService));
+    }
+
+    /**
+     * Write the diagnostics file off the ui thread
+     */
+    private class ExportDiagnosticsTask extends AsyncTask<Void, Void, File> {
+        private final TransferService service;
+
+        ExportDiagnosticsTask(TransferService service) {
+            this.service = service;
+        }
+
+        @Override
+        protected File doInBackground(Void... params) {
+            try {
+                return service.dumpDiagnostics();
+            } catch (IOException | JSONException e) {
+                Log.e(DEBUG_TAG, "Could not export the transfer diagnostics", e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(File file) {
+            if (isFinishing()) {
+                return;
+            }
+            if (file == null) {
+                ToastUtils.show(TransferDiagnosticsActivity.this, R.string.transfer_diagnostics_export_failed);
+                return;
+            }
+            ToastUtils.showLong(TransferDiagnosticsActivity.this,
+                    getString(R.string.transfer_diagnostics_exported, file.getAbsolutePath()));
+        }
+    }
+}
@@ -17,6 +17,7 @@ import com.nostra13.universalimageloader.core.listener.ImageLoadingListener;
 import com.seafile.seadroid2.R;
 import com.seafile.seadroid2.SeadroidApplication;
 import com.seafile.seadroid2.data.DataManager;
+import com.seafile.seadroid2.data.LocalThumbnailGenerator;
 import com.seafile.seadroid2.data.SeafCachedFile;
 import com.seafile.seadroid2.data.SeafDirent;
 import com.seafile.seadroid2.data.SeafGroup;
@@ -395,6 +396,7 @@ public class SeafItemAdapter extends BaseAdapter {
         }
 
         if (Utils.isViewableImage(file.getName())) {
+            String url = dataManager.getThumbnailLink(repoName, repoID, filePath, dirent.id, getThumbnailWidth());
             DisplayImageOptions options = new DisplayImageOptions.Builder()
                     .extraForDownloader(dataManager.getAccount())
                     .delayBeforeLoading(500)
@@ -403,12 +405,12 @@ public class SeafItemAdapter extends BaseAdapter {
                     .showImageForEmptyUri(R.drawable.file_image)
                     .showImageOnFail(R.drawable.file_image)
                     .cacheInMemory(true)
-                    .cacheOnDisk(true)
+                    // thumbnails of encrypted repos are cached encrypted by EncThumbnailCache
+                    .cacheOnDisk(!LocalThumbnailGenerator.isLocalThumbnailUri(url))
                     .considerExifParams(true)
                     .build();
 
             ImageLoadingListener animateFirstListener = new AnimateFirstDisplayListener();
-            String url = dataManager.getThumbnailLink(repoName, repoID, filePath, getThumbnailWidth());
             if (url == null) {
                 ImageLoader.getInstance().displayImage("drawable://" + dirent.getIcon(), viewHolder.icon, WidgetUtils.iconOptions);
             } else
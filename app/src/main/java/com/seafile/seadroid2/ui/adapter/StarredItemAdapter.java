@@ -12,6 +12,7 @@ import com.nostra13.universalimageloader.core.DisplayImageOptions;
 import com.nostra13.universalimageloader.core.ImageLoader;
 import com.nostra13.universalimageloader.core.listener.ImageLoadingListener;
 import com.seafile.seadroid2.R;
+import com.seafile.seadroid2.data.LocalThumbnailGenerator;
 import com.seafile.seadroid2.data.SeafDirent;
 import com.seafile.seadroid2.data.SeafItem;
 import com.seafile.seadroid2.data.SeafStarredFile;
@@ -145,6 +146,7 @@ public class StarredItemAdapter extends BaseAdapter {
         viewHolder.subtitle.setText(item.getSubtitle());
 
         if (Utils.isViewableImage(item.getTitle())) {
+            String url = mActivity.getDataManager().getThumbnailLink(((SeafStarredFile) item).getRepoID(), ((SeafStarredFile) item).getPath(), WidgetUtils.getThumbnailWidth());
             DisplayImageOptions options = new DisplayImageOptions.Builder()
                     .extraForDownloader(mActivity.getDataManager().getAccount())
                     .delayBeforeLoading(500)
@@ -153,12 +155,12 @@ public class StarredItemAdapter extends BaseAdapter {
                     .showImageForEmptyUri(R.drawable.file_image)
                     .showImageOnFail(R.drawable.file_image)
                     .cacheInMemory(true)
-                    .cacheOnDisk(true)
+                    // thumbnails of encrypted repos are cached encrypted by EncThumbnailCache
+                    .cacheOnDisk(!LocalThumbnailGenerator.isLocalThumbnailUri(url))
                     .considerExifParams(true)
                     .build();
 
             ImageLoadingListener animateFirstListener = new AnimateFirstDisplayListener();
-            String url = mActivity.getDataManager().getThumbnailLink(((SeafStarredFile) item).getRepoID(), ((SeafStarredFile) item).getPath(), WidgetUtils.getThumbnailWidth());
             if (url == null) {
                 ImageLoader.getInstance().displayImage("drawable://" + item.getIcon(), viewHolder.icon, WidgetUtils.iconOptions);
             } else
@@ -89,8 +89,10 @@ public class TransferTaskAdapter extends BaseAdapter {
     }
 
     public void setTransferTaskInfos(List<? extends TransferTaskInfo> infos) {
-        mTransferTaskInfos = infos;
-        Collections.sort(mTransferTaskInfos, new TaskInfoComparator());
+        // the infos may come from an immutable snapshot, sort a copy
+        List<TransferTaskInfo> sorted = Lists.newArrayList(infos);
+        Collections.sort(sorted, new TaskInfoComparator());
+        mTransferTaskInfos = sorted;
     }
 
     @Override
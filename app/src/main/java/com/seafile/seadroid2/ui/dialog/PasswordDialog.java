@@ -3,6 +3,7 @@ package com.seafile.seadroid2.ui.dialog;
 import android.app.Dialog;
 import android.os.Bundle;
 import android.text.TextUtils;
+import android.util.Log;
 import android.util.Pair;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -16,15 +17,8 @@ import com.seafile.seadroid2.account.Account;
 import com.seafile.seadroid2.crypto.Crypto;
 import com.seafile.seadroid2.data.DataManager;
 
-import java.io.UnsupportedEncodingException;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.security.spec.InvalidKeySpecException;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 class SetPasswordTask extends TaskDialog.Task {
     public static final String DEBUG_TAG = SetPasswordTask.class.getSimpleName();
@@ -34,6 +28,7 @@ class SetPasswordTask extends TaskDialog.Task {
     String magic, randomKey;
     int version;
     DataManager dataManager;
+    Pair<String, String> secretKey;
 
     public SetPasswordTask(String repoID, String password,
                            DataManager dataManager) {
@@ -58,14 +53,35 @@ class SetPasswordTask extends TaskDialog.Task {
             if (!SettingsManager.instance().isEncryptEnabled()) {
                 dataManager.setPassword(repoID, password);
             } else {
-                Crypto.verifyRepoPassword(repoID, password, version, magic);
+                // derive the magic and the file key concurrently, the key is dropped if the password turns out wrong
+                Future<Pair<String, String>> keyFuture = null;
+                if (!TextUtils.isEmpty(randomKey)) {
+                    keyFuture = Crypto.generateKeyAsync(repoID, password, randomKey, version);
+                }
+                Crypto.verifyRepoPasswordAsync(repoID, password, version, magic).get();
+                if (keyFuture != null) {
+                    secretKey = keyFuture.get();
+                }
             }
         } catch (SeafException e) {
             setTaskException(e);
-        } catch (NoSuchAlgorithmException | UnsupportedEncodingException | InvalidKeySpecException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException | BadPaddingException | IllegalBlockSizeException e) {
-            e.printStackTrace();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SeafException) {
+                setTaskException((SeafException) e.getCause());
+            } else {
+                e.printStackTrace();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
+
+    /**
+     * @return the encKey/encIv pair derived in {@link #runTask()}, or null if not available
+     */
+    public Pair<String, String> getSecretKey() {
+        return secretKey;
+    }
 }
 
 public class PasswordDialog extends TaskDialog {
@@ -214,12 +230,13 @@ public class PasswordDialog extends TaskDialog {
         } else {
             if (TextUtils.isEmpty(randomKey)) return;
 
-            try {
-                final Pair<String, String> pair = Crypto.generateKey(password, randomKey, version);
-                dataManager.saveRepoSecretKey(repoID, pair.first, pair.second);
-            } catch (UnsupportedEncodingException | NoSuchAlgorithmException e) {
+            SetPasswordTask task = (SetPasswordTask) getTask();
+            final Pair<String, String> pair = task == null ? null : task.getSecretKey();
+            if (pair != null) {
+                getDataManager().saveRepoSecretKey(repoID, pair.first, pair.second);
+            } else {
                 // TODO notify error
-                e.printStackTrace();
+                Log.e(SetPasswordTask.DEBUG_TAG, "failed to derive the secret key of repo " + repoID);
             }
         }
         super.onTaskSuccess();
@@ -5,7 +5,7 @@ import android.util.Log;
 import com.seafile.seadroid2.R;
 import com.seafile.seadroid2.transfer.DownloadTaskInfo;
 import com.seafile.seadroid2.transfer.TaskState;
-import com.seafile.seadroid2.transfer.TransferTaskInfo;
+import com.seafile.seadroid2.transfer.TransferSnapshotPublisher;
 import com.seafile.seadroid2.ui.adapter.TransferTaskAdapter;
 
 import java.util.List;
@@ -25,8 +25,8 @@ public class DownloadTaskFragment extends TransferTaskFragment {
     }
 
     @Override
-    protected List<? extends TransferTaskInfo> getTransferTaskInfos() {
-        return txService.getAllDownloadTaskInfos();
+    protected TransferSnapshotPublisher getSnapshotPublisher() {
+        return txService.getDownloadTaskManager().getSnapshotPublisher();
     }
 
     @Override
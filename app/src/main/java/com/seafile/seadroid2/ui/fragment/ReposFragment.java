@@ -22,6 +22,7 @@ import android.widget.ListView;
 import android.widget.TextView;
 
 import com.cocosw.bottomsheet.BottomSheet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.seafile.seadroid2.R;
 import com.seafile.seadroid2.SeafConnection;
@@ -35,7 +36,11 @@ import com.seafile.seadroid2.data.SeafGroup;
 import com.seafile.seadroid2.data.SeafItem;
 import com.seafile.seadroid2.data.SeafRepo;
 import com.seafile.seadroid2.ssl.CertsManager;
+import com.seafile.seadroid2.transfer.DownloadTaskInfo;
 import com.seafile.seadroid2.transfer.TransferService;
+import com.seafile.seadroid2.transfer.TransferSnapshot;
+import com.seafile.seadroid2.transfer.TransferSnapshotPublisher;
+import com.seafile.seadroid2.transfer.TransferTaskInfo;
 import com.seafile.seadroid2.ui.CopyMoveContext;
 import com.seafile.seadroid2.ui.NavContext;
 import com.seafile.seadroid2.ui.ToastUtils;
@@ -82,8 +87,27 @@ public class ReposFragment extends ListFragment {
     private View mListContainer;
     private TextView mErrorText;
 
-    private boolean isTimerStarted;
-    private final Handler mTimer = new Handler();
+    /** publisher of the download snapshots, null if not listening */
+    private TransferSnapshotPublisher mDownloadPublisher;
+    private final Handler mHandler = new Handler();
+    private final TransferSnapshotPublisher.Listener mDownloadListener = new TransferSnapshotPublisher.Listener() {
+        @Override
+        public void onTransferSnapshot(TransferSnapshot snapshot) {
+            if (mActivity == null) return;
+
+            String repoID = getNavContext().getRepoID();
+            String currentDir = getNavContext().getDirPath();
+            List<DownloadTaskInfo> infos = Lists.newArrayList();
+            for (TransferTaskInfo info : snapshot.getInfos()) {
+                DownloadTaskInfo downloadInfo = (DownloadTaskInfo) info;
+                if (downloadInfo.repoID.equals(repoID)
+                        && Utils.getParentPath(downloadInfo.pathInRepo).equals(currentDir)) {
+                    infos.add(downloadInfo);
+                }
+            }
+            adapter.setDownloadTaskList(infos);
+        }
+    };
 
     private DataManager getDataManager() {
         return mActivity.getDataManager();
@@ -314,7 +338,7 @@ public class ReposFragment extends ListFragment {
     public void onStop() {
         // Log.d(DEBUG_TAG, "ReposFragment onStop");
         super.onStop();
-        stopTimer();
+        stopDownloadUpdates();
     }
 
     @Override
@@ -372,7 +396,7 @@ public class ReposFragment extends ListFragment {
     }
 
     public void navToReposView(boolean forceRefresh, boolean restorePosition) {
-        //stopTimer();
+        //stopDownloadUpdates();
 
         mPullToRefreshStopRefreshing ++;
 
@@ -399,7 +423,7 @@ public class ReposFragment extends ListFragment {
     }
 
     public void navToDirectory(boolean forceRefresh, boolean restorePosition) {
-        startTimer();
+        startDownloadUpdates();
 
         mPullToRefreshStopRefreshing ++;
 
@@ -443,36 +467,41 @@ public class ReposFragment extends ListFragment {
                 nav.getDirPath());
     }
 
-    // refresh list by mTimer
-    public void startTimer() {
-        if (isTimerStarted)
+    // refresh download progress by snapshots of the download task manager
+    public void startDownloadUpdates() {
+        if (mActivity == null)
             return;
 
-        isTimerStarted = true;
-        Log.d(DEBUG_TAG, "timer started");
-        mTimer.postDelayed(new Runnable() {
-
-            @Override
-            public void run() {
-                if (mActivity == null) return;
-
-                TransferService ts = mActivity.getTransferService();
-                String repoID = getNavContext().getRepoID();
-                String repoName = getNavContext().getRepoName();
-                String currentDir = getNavContext().getDirPath();
+        if (mDownloadPublisher != null) {
+            // already listening, filter the last snapshot for the current directory
+            mDownloadListener.onTransferSnapshot(mDownloadPublisher.getSnapshot());
+            return;
+        }
 
-                adapter.setDownloadTaskList(ts.getDownloadTaskInfosByPath(repoID, currentDir));
+        TransferService ts = mActivity.getTransferService();
+        if (ts == null) {
+            // the transfer service is bound asynchronously, try again later
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    startDownloadUpdates();
+                }
+            }, 1 * 1000);
+            return;
+        }
 
-                // Log.d(DEBUG_TAG, "timer post refresh signal " + System.currentTimeMillis());
-                mTimer.postDelayed(this, 1 * 1000);
-            }
-        }, 1 * 1000);
+        Log.d(DEBUG_TAG, "listening for download snapshots");
+        mDownloadPublisher = ts.getDownloadTaskManager().getSnapshotPublisher();
+        mDownloadPublisher.addListener(mDownloadListener);
     }
 
-    public void stopTimer() {
-        Log.d(DEBUG_TAG, "timer stopped");
-        mTimer.removeCallbacksAndMessages(null);
-        isTimerStarted = false;
+    public void stopDownloadUpdates() {
+        Log.d(DEBUG_TAG, "stopped listening for download snapshots");
+        mHandler.removeCallbacksAndMessages(null);
+        if (mDownloadPublisher != null) {
+            mDownloadPublisher.removeListener(mDownloadListener);
+            mDownloadPublisher = null;
+        }
     }
 
     /**
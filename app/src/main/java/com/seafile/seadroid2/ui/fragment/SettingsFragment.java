@@ -40,6 +40,7 @@ import com.seafile.seadroid2.ui.activity.BrowserActivity;
 import com.seafile.seadroid2.ui.activity.CreateGesturePasswordActivity;
 import com.seafile.seadroid2.ui.activity.SeafilePathChooserActivity;
 import com.seafile.seadroid2.ui.activity.SettingsActivity;
+import com.seafile.seadroid2.ui.activity.TransferDiagnosticsActivity;
 import com.seafile.seadroid2.ui.dialog.ClearCacheTaskDialog;
 import com.seafile.seadroid2.ui.dialog.ClearPasswordTaskDialog;
 import com.seafile.seadroid2.ui.dialog.SwitchStorageTaskDialog;
@@ -350,6 +351,15 @@ public class SettingsFragment extends CustomPreferenceFragment {
             }
         });
 
+        // Transfer diagnostics
+        findPreference(SettingsManager.SETTINGS_TRANSFER_DIAGNOSTICS_KEY).setOnPreferenceClickListener(new OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                startActivity(new Intent(mActivity, TransferDiagnosticsActivity.class));
+                return true;
+            }
+        });
+
         // Cache size
         calculateCacheSize();
 
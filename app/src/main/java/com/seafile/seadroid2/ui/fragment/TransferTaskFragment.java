@@ -6,7 +6,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.IBinder;
 import android.support.v4.app.ListFragment;
 import android.support.v7.view.ActionMode;
@@ -25,6 +24,8 @@ import android.widget.TextView;
 import com.google.common.collect.Lists;
 import com.seafile.seadroid2.R;
 import com.seafile.seadroid2.transfer.TransferService;
+import com.seafile.seadroid2.transfer.TransferSnapshot;
+import com.seafile.seadroid2.transfer.TransferSnapshotPublisher;
 import com.seafile.seadroid2.transfer.TransferTaskInfo;
 import com.seafile.seadroid2.ui.ToastUtils;
 import com.seafile.seadroid2.ui.activity.TransferActivity;
@@ -45,9 +46,20 @@ public abstract class TransferTaskFragment extends ListFragment {
     protected TextView emptyView;
     private View mListContainer;
     private View mProgressContainer;
-    protected final Handler mTimer = new Handler();
     protected TransferService txService = null;
     private ActionMode mActionMode;
+    /** publisher the list is registered with, null if not listening */
+    private TransferSnapshotPublisher mPublisher;
+    private final TransferSnapshotPublisher.Listener mSnapshotListener = new TransferSnapshotPublisher.Listener() {
+        @Override
+        public void onTransferSnapshot(TransferSnapshot snapshot) {
+            if (adapter == null)
+                return;
+
+            adapter.setTransferTaskInfos(snapshot.getInfos());
+            adapter.notifyDataSetChanged();
+        }
+    };
 
     @Override
     public void onAttach(Activity activity) {
@@ -124,7 +136,7 @@ public abstract class TransferTaskFragment extends ListFragment {
                 mTransferTaskListView.setVisibility(View.VISIBLE);
                 emptyView.setVisibility(View.GONE);
                 setUpTransferList();
-                startTimer();
+                startListening();
             }
         }
 
@@ -134,7 +146,10 @@ public abstract class TransferTaskFragment extends ListFragment {
         }
     };
 
-    protected abstract List<? extends TransferTaskInfo> getTransferTaskInfos();
+    /**
+     * @return the publisher of the snapshots shown in this list
+     */
+    protected abstract TransferSnapshotPublisher getSnapshotPublisher();
 
     protected abstract void setUpTransferList();
 
@@ -158,30 +173,26 @@ public abstract class TransferTaskFragment extends ListFragment {
     @Override
     public void onStop() {
         super.onStop();
-        stopTimer();
+        stopListening();
         if (txService != null) {
             mActivity.unbindService(mConnection);
             txService = null;
         }
     }
 
-    // refresh list by mTimer
-    private void startTimer() {
-        Log.d(DEBUG_TAG, "timer started");
-        mTimer.postDelayed(new Runnable() {
-
-            @Override
-            public void run() {
-                adapter.setTransferTaskInfos(getTransferTaskInfos());
-                adapter.notifyDataSetChanged();
-                //Log.d(DEBUG_TAG, "timer post refresh signal " + System.currentTimeMillis());
-                mTimer.postDelayed(this, 1 * 1000);
-            }
-        }, 1 * 1000);
+    // refresh list by snapshots of the transfer manager
+    private void startListening() {
+        Log.d(DEBUG_TAG, "start listening for transfer snapshots");
+        stopListening();
+        mPublisher = getSnapshotPublisher();
+        mPublisher.addListener(mSnapshotListener);
     }
 
-    public void stopTimer() {
-        mTimer.removeCallbacksAndMessages(null);
+    public void stopListening() {
+        if (mPublisher != null) {
+            mPublisher.removeListener(mSnapshotListener);
+            mPublisher = null;
+        }
     }
 
     private void showLoading(boolean show) {
@@ -3,7 +3,7 @@ package com.seafile.seadroid2.ui.fragment;
 import android.os.Bundle;
 import com.seafile.seadroid2.R;
 import com.seafile.seadroid2.transfer.TaskState;
-import com.seafile.seadroid2.transfer.TransferTaskInfo;
+import com.seafile.seadroid2.transfer.TransferSnapshotPublisher;
 import com.seafile.seadroid2.transfer.UploadTaskInfo;
 import com.seafile.seadroid2.ui.adapter.TransferTaskAdapter;
 
@@ -25,8 +25,8 @@ public class UploadTaskFragment extends TransferTaskFragment {
     }
 
     @Override
-    protected List<? extends TransferTaskInfo> getTransferTaskInfos() {
-        return txService.getAllUploadTaskInfos();
+    protected TransferSnapshotPublisher getSnapshotPublisher() {
+        return txService.getUploadTaskManager().getSnapshotPublisher();
     }
 
     @Override
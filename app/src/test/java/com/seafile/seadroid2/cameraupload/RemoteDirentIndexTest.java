@@ -0,0 +1,54 @@
+package com.seafile.seadroid2.cameraupload;
+
+import com.seafile.seadroid2.data.SeafDirent;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RemoteDirentIndexTest {
+
+    private static SeafDirent file(String name, long size) {
+        SeafDirent dirent = new SeafDirent();
+        dirent.type = SeafDirent.DirentType.FILE;
+        dirent.name = name;
+        dirent.size = size;
+        return dirent;
+    }
+
+    @Test
+    public void matchesNameAndSize() {
+        RemoteDirentIndex index = new RemoteDirentIndex(Arrays.asList(file("IMG_1.jpg", 100)));
+        assertTrue(index.contains("IMG_1.jpg", 100));
+        assertFalse(index.contains("IMG_1.jpg", 101));
+        assertFalse(index.contains("IMG_2.jpg", 100));
+    }
+
+    @Test
+    public void matchesCopiesRenamedByTheServer() {
+        RemoteDirentIndex index = new RemoteDirentIndex(Arrays.asList(
+                file("IMG_1 (2).jpg", 100), file("VID (1) (3).mp4", 200), file("notes (1)", 10)));
+        assertTrue(index.contains("IMG_1.jpg", 100));
+        assertTrue(index.contains("IMG_1 (2).jpg", 100));
+        assertTrue(index.contains("VID (1).mp4", 200));
+        assertTrue(index.contains("notes", 10));
+        assertFalse(index.contains("VID.mp4", 200));
+    }
+
+    @Test
+    public void localCopyNumberMustMatch() {
+        RemoteDirentIndex index = new RemoteDirentIndex(Arrays.asList(file("IMG_1.jpg", 100)));
+        assertFalse(index.contains("IMG_1 (1).jpg", 100));
+    }
+
+    @Test
+    public void ignoresDirectories() {
+        SeafDirent dir = file("IMG_1.jpg", 0);
+        dir.type = SeafDirent.DirentType.DIR;
+        RemoteDirentIndex index = new RemoteDirentIndex(Arrays.asList(dir));
+        assertFalse(index.contains("IMG_1.jpg", 0));
+    }
+}
@@ -0,0 +1,97 @@
+package com.seafile.seadroid2.cameraupload;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UploadedFileIndexTest {
+    private static final int MIN_CAPACITY = 64;
+
+    /**
+     * @return paths whose hashes start probing at the same slot of the smallest table
+     */
+    private static List<String> sameSlot(int count) {
+        List<String> paths = new ArrayList<>();
+        int slot = -1;
+        for (int i = 0; paths.size() < count; i++) {
+            String path = "/DCIM/Camera/IMG_" + i + ".jpg";
+            long hash = UploadedFileIndex.hash(path, 1000);
+            int index = (int) (hash ^ (hash >>> 32)) & (MIN_CAPACITY - 1);
+            if (slot == -1) {
+                slot = index;
+            }
+            if (index == slot) {
+                paths.add(path);
+            }
+        }
+        return paths;
+    }
+
+    @Test
+    public void matchesPathAndModificationTime() {
+        UploadedFileIndex index = new UploadedFileIndex();
+        index.add("/DCIM/Camera/IMG_1.jpg", 1000);
+
+        assertTrue(index.contains("/DCIM/Camera/IMG_1.jpg", 1000));
+        assertFalse(index.contains("/DCIM/Camera/IMG_1.jpg", 1001));
+        assertFalse(index.contains("/DCIM/Camera/IMG_2.jpg", 1000));
+        assertFalse(new UploadedFileIndex().contains("/DCIM/Camera/IMG_1.jpg", 1000));
+    }
+
+    @Test
+    public void ignoresDuplicates() {
+        UploadedFileIndex index = new UploadedFileIndex();
+        index.add("/DCIM/Camera/IMG_1.jpg", 1000);
+        index.add("/DCIM/Camera/IMG_1.jpg", 1000);
+
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void probesPastCollidingHashes() {
+        List<String> paths = sameSlot(4);
+        UploadedFileIndex index = new UploadedFileIndex();
+        for (String path : paths.subList(0, 3)) {
+            index.add(path, 1000);
+        }
+
+        assertEquals(3, index.size());
+        for (String path : paths.subList(0, 3)) {
+            assertTrue(index.contains(path, 1000));
+        }
+        assertFalse(index.contains(paths.get(3), 1000));
+    }
+
+    @Test
+    public void keepsAllFilesWhenGrowing() {
+        UploadedFileIndex index = new UploadedFileIndex();
+        for (int i = 0; i < 10000; i++) {
+            index.add("/DCIM/Camera/IMG_" + i + ".jpg", i);
+        }
+
+        assertEquals(10000, index.size());
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(index.contains("/DCIM/Camera/IMG_" + i + ".jpg", i));
+            assertFalse(index.contains("/DCIM/Camera/IMG_" + i + ".jpg", i + 1));
+        }
+    }
+
+    @Test
+    public void presizedIndexMatchesGrownIndex() {
+        UploadedFileIndex index = new UploadedFileIndex(1000);
+        for (int i = 0; i < 1000; i++) {
+            index.add("/DCIM/Camera/IMG_" + i + ".jpg", i);
+        }
+
+        assertEquals(1000, index.size());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(index.contains("/DCIM/Camera/IMG_" + i + ".jpg", i));
+        }
+        assertFalse(index.contains("/DCIM/Camera/IMG_1000.jpg", 1000));
+    }
+}
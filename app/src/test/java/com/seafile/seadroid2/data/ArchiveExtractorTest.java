@@ -0,0 +1,155 @@
+package com.seafile.seadroid2.data;
+
+import com.github.kevinsawicki.http.HttpRequest;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class ArchiveExtractorTest {
+    private HttpServer server;
+    private File targetDir;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.start();
+        targetDir = File.createTempFile("archive", "");
+        targetDir.delete();
+        targetDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop(0);
+        FileUtils.deleteDirectory(targetDir);
+    }
+
+    private static byte[] zip(String... namesAndContents) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        for (int i = 0; i < namesAndContents.length; i += 2) {
+            zip.putNextEntry(new ZipEntry(namesAndContents[i]));
+            if (namesAndContents[i + 1] != null) {
+                zip.write(namesAndContents[i + 1].getBytes("UTF-8"));
+            }
+            zip.closeEntry();
+        }
+        zip.close();
+        return bytes.toByteArray();
+    }
+
+    /** serve the archive chunked, like the file server does */
+    private String serve(final byte[] archive) {
+        server.createContext("/seafhttp/zip/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = exchange.getResponseBody();
+                out.write(archive);
+                out.close();
+            }
+        });
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/seafhttp/zip/token";
+    }
+
+    private List<String> download(String url, ProgressMonitor monitor) throws IOException {
+        return download(url, Collections.<String>emptySet(), monitor);
+    }
+
+    private List<String> download(String url, Set<String> skipped, ProgressMonitor monitor) throws IOException {
+        InputStream in = HttpRequest.get(url).stream();
+        try {
+            return new ArchiveExtractor(targetDir, skipped, monitor).extract(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void extractsStreamedArchive() throws IOException {
+        String url = serve(zip("photos/", null,
+                "photos/a.txt", "first",
+                "photos/2016/b.txt", "second",
+                "photos/empty/", null));
+
+        List<String> paths = download(url, null);
+        Collections.sort(paths);
+
+        assertEquals(Arrays.asList("photos/2016/b.txt", "photos/a.txt"), paths);
+        assertEquals("first", FileUtils.readFileToString(new File(targetDir, "photos/a.txt"), "UTF-8"));
+        assertEquals("second", FileUtils.readFileToString(new File(targetDir, "photos/2016/b.txt"), "UTF-8"));
+        assertFalse(new File(targetDir, "photos/a.txt.part").exists());
+    }
+
+    @Test
+    public void leavesSkippedFilesUntouched() throws IOException {
+        String url = serve(zip("photos/a.txt", "server", "photos/b.txt", "second"));
+        File edited = new File(targetDir, "photos/a.txt");
+        FileUtils.writeStringToFile(edited, "local edit", "UTF-8");
+
+        List<String> paths = download(url, Collections.singleton("photos/a.txt"), null);
+
+        assertEquals(Arrays.asList("photos/b.txt"), paths);
+        assertEquals("local edit", FileUtils.readFileToString(edited, "UTF-8"));
+        assertEquals("second", FileUtils.readFileToString(new File(targetDir, "photos/b.txt"), "UTF-8"));
+    }
+
+    @Test
+    public void rejectsEntriesOutsideOfTarget() throws IOException {
+        String url = serve(zip("../evil.txt", "x"));
+
+        try {
+            download(url, null);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(new File(targetDir.getParentFile(), "evil.txt").exists());
+    }
+
+    @Test
+    public void cancelLeavesNoPartialFile() throws IOException {
+        String url = serve(zip("photos/a.txt", "first"));
+
+        try {
+            download(url, new ProgressMonitor() {
+                @Override
+                public void onProgressNotify(long total, boolean updateTotal) {
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return true;
+                }
+            });
+            fail();
+        } catch (InterruptedIOException e) {
+            // expected
+        }
+        assertFalse(new File(targetDir, "photos/a.txt").exists());
+        assertFalse(new File(targetDir, "photos/a.txt.part").exists());
+    }
+}
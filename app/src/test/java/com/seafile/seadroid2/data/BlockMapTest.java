@@ -0,0 +1,45 @@
+package com.seafile.seadroid2.data;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BlockMapTest {
+
+    @Test
+    public void encodeDecodeRoundTrip() {
+        BlockMap map = new BlockMap("file1", Arrays.asList(
+                new BlockMap.Entry("b1", "s1", 2097152),
+                new BlockMap.Entry("b2", "s2", 17)));
+
+        BlockMap decoded = BlockMap.decode("file1", map.encode());
+
+        assertEquals("file1", decoded.fileID);
+        assertEquals(2, decoded.getEntries().size());
+        for (int i = 0; i < 2; i++) {
+            BlockMap.Entry expected = map.getEntries().get(i);
+            BlockMap.Entry actual = decoded.getEntries().get(i);
+            assertEquals(expected.blockId, actual.blockId);
+            assertEquals(expected.plainSha1, actual.plainSha1);
+            assertEquals(expected.size, actual.size);
+        }
+        assertEquals(2097152 + 17, decoded.getSize());
+    }
+
+    @Test
+    public void emptyMapRoundTrip() {
+        BlockMap map = new BlockMap("file1", Collections.<BlockMap.Entry>emptyList());
+        assertEquals(0, BlockMap.decode("file1", map.encode()).getEntries().size());
+    }
+
+    @Test
+    public void malformedEntriesAreRejected() {
+        assertNull(BlockMap.decode("file1", "b1:s1"));
+        assertNull(BlockMap.decode("file1", "b1:s1:big"));
+        assertNull(BlockMap.decode("file1", "b1:s1:3,b2:s2:4:5"));
+    }
+}
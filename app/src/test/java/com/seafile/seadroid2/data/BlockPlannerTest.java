@@ -0,0 +1,147 @@
+package com.seafile.seadroid2.data;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BlockPlannerTest {
+    private static final int BLOCK_SIZE = 1024;
+    private static final String ENC_KEY = "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f";
+    private static final String ENC_IV = "0f0e0d0c0b0a09080706050403020100";
+
+    private File dir;
+    private File blockDir;
+    private File file;
+    private BlockPlanner planner;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("blockplanner", "");
+        dir.delete();
+        blockDir = new File(dir, "blocks");
+        assertTrue(blockDir.mkdirs());
+        file = new File(dir, "file");
+        planner = new BlockPlanner(ENC_KEY, ENC_IV, blockDir, BLOCK_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    private static byte[] content(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return the blocks of the uploaded version of the file
+     */
+    private BlockMap upload(byte[] content) throws Exception {
+        FileUtils.writeByteArrayToFile(file, content);
+        BlockPlanner.Plan plan = planner.plan(file.getPath(), null);
+        assertEquals(plan.blocks.size(), plan.newBlocks.size());
+        return new BlockMap("v1", plan.entries);
+    }
+
+    private BlockPlanner.Plan edit(byte[] content, BlockMap base) throws Exception {
+        FileUtils.writeByteArrayToFile(file, content);
+        BlockPlanner.Plan plan = planner.plan(file.getPath(), base);
+        assertEquals(content.length, new BlockMap("v2", plan.entries).getSize());
+        assertEquals(plan.blocks.size(), plan.entries.size());
+        return plan;
+    }
+
+    @Test
+    public void firstUploadEncryptsEveryBlock() throws Exception {
+        BlockMap base = upload(content(3 * BLOCK_SIZE + 10));
+
+        assertEquals(4, base.getEntries().size());
+        assertEquals(3 * BLOCK_SIZE + 10, base.getSize());
+        assertEquals(4, blockDir.list().length);
+    }
+
+    @Test
+    public void unchangedFileSendsNothing() throws Exception {
+        byte[] content = content(3 * BLOCK_SIZE + 10);
+        BlockMap base = upload(content);
+
+        BlockPlanner.Plan plan = edit(content, base);
+
+        assertEquals(0, plan.newBlocks.size());
+        for (int i = 0; i < base.getEntries().size(); i++) {
+            assertEquals(base.getEntries().get(i).blockId, plan.blocks.get(i).blockId);
+        }
+    }
+
+    @Test
+    public void changedBlockIsTheOnlyOneSent() throws Exception {
+        byte[] content = content(3 * BLOCK_SIZE + 10);
+        BlockMap base = upload(content);
+
+        content[BLOCK_SIZE + 5]++;
+        BlockPlanner.Plan plan = edit(content, base);
+
+        assertEquals(1, plan.newBlocks.size());
+        assertEquals(plan.newBlocks.get(0), plan.blocks.get(1));
+        assertNotEquals(base.getEntries().get(1).blockId, plan.blocks.get(1).blockId);
+        assertEquals(base.getEntries().get(0).blockId, plan.blocks.get(0).blockId);
+        assertEquals(base.getEntries().get(2).blockId, plan.blocks.get(2).blockId);
+        assertEquals(base.getEntries().get(3).blockId, plan.blocks.get(3).blockId);
+    }
+
+    @Test
+    public void grownFileSendsTheBlocksAfterTheOldEnd() throws Exception {
+        byte[] content = content(2 * BLOCK_SIZE + 10);
+        BlockMap base = upload(content);
+
+        byte[] grown = new byte[4 * BLOCK_SIZE];
+        System.arraycopy(content, 0, grown, 0, content.length);
+        BlockPlanner.Plan plan = edit(grown, base);
+
+        // the old partial last block is kept, the rest is split into full blocks
+        assertEquals(base.getEntries().get(0).blockId, plan.blocks.get(0).blockId);
+        assertEquals(base.getEntries().get(1).blockId, plan.blocks.get(1).blockId);
+        assertEquals(base.getEntries().get(2).blockId, plan.blocks.get(2).blockId);
+        assertEquals(2, plan.newBlocks.size());
+        assertEquals(5, plan.blocks.size());
+    }
+
+    @Test
+    public void shrunkFileSendsOnlyTheCutBlock() throws Exception {
+        byte[] content = content(4 * BLOCK_SIZE);
+        BlockMap base = upload(content);
+
+        byte[] shrunk = new byte[2 * BLOCK_SIZE - 100];
+        System.arraycopy(content, 0, shrunk, 0, shrunk.length);
+        BlockPlanner.Plan plan = edit(shrunk, base);
+
+        assertEquals(2, plan.blocks.size());
+        assertEquals(base.getEntries().get(0).blockId, plan.blocks.get(0).blockId);
+        assertEquals(1, plan.newBlocks.size());
+        assertEquals(BLOCK_SIZE - 100, plan.entries.get(1).size);
+    }
+
+    @Test
+    public void fileShrunkToABlockBoundarySendsNothing() throws Exception {
+        byte[] content = content(3 * BLOCK_SIZE);
+        BlockMap base = upload(content);
+
+        byte[] shrunk = new byte[2 * BLOCK_SIZE];
+        System.arraycopy(content, 0, shrunk, 0, shrunk.length);
+        BlockPlanner.Plan plan = edit(shrunk, base);
+
+        assertEquals(2, plan.blocks.size());
+        assertEquals(0, plan.newBlocks.size());
+    }
+}
@@ -0,0 +1,192 @@
+package com.seafile.seadroid2.data;
+
+import com.seafile.seadroid2.SeafException;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DownloadCoordinatorTest {
+    private final DownloadCoordinator coordinator = new DownloadCoordinator();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    /** a download which reports its size and blocks until released */
+    private static class BlockingDownload implements DownloadCoordinator.Download {
+        static final long SIZE = 100;
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger runs = new AtomicInteger();
+        final File result;
+        volatile Thread thread;
+
+        BlockingDownload(File result) {
+            this.result = result;
+        }
+
+        @Override
+        public File download(ProgressMonitor monitor) throws Exception {
+            runs.incrementAndGet();
+            thread = Thread.currentThread();
+            monitor.onProgressNotify(SIZE, false);
+            started.countDown();
+            release.await();
+            if (monitor.isCancelled()) {
+                throw SeafException.userCancelledException;
+            }
+            return result;
+        }
+    }
+
+    private static class Monitor implements DownloadCoordinator.SharedProgressMonitor {
+        /** counted down once the progress of another request's download was seen, so this one is attached */
+        final CountDownLatch attached = new CountDownLatch(1);
+        final AtomicInteger notifications = new AtomicInteger();
+        volatile long sharedTotal = -1;
+        volatile Thread sharedThread;
+        volatile boolean cancelled;
+
+        @Override
+        public void onProgressNotify(long total, boolean updateTotal) {
+            notifications.incrementAndGet();
+        }
+
+        @Override
+        public void onSharedProgress(long total, boolean updateTotal) {
+            sharedTotal = total;
+            sharedThread = Thread.currentThread();
+            attached.countDown();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private Future<File> get(final String path, final ProgressMonitor monitor,
+                             final DownloadCoordinator.Download download) {
+        return executor.submit(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                return coordinator.get("account", "repo", path, monitor, download);
+            }
+        });
+    }
+
+    @Test
+    public void concurrentRequestsShareOneDownload() throws Exception {
+        BlockingDownload download = new BlockingDownload(new File("a"));
+        Future<File> first = get("/a", new Monitor(), download);
+        download.started.await();
+        Monitor waiter = new Monitor();
+        Future<File> second = get("/a", waiter, download);
+
+        assertTrue(waiter.attached.await(5, TimeUnit.SECONDS));
+        download.release.countDown();
+
+        assertSame(download.result, first.get(5, TimeUnit.SECONDS));
+        assertSame(download.result, second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, download.runs.get());
+        assertEquals(0, coordinator.getInFlightCount());
+    }
+
+    @Test
+    public void waiterSeesProgressOnItsOwnThreadOnly() throws Exception {
+        BlockingDownload download = new BlockingDownload(new File("a"));
+        Monitor leader = new Monitor();
+        Future<File> first = get("/a", leader, download);
+        download.started.await();
+        Monitor waiter = new Monitor();
+        Future<File> second = get("/a", waiter, download);
+
+        assertTrue(waiter.attached.await(5, TimeUnit.SECONDS));
+        download.release.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, leader.notifications.get());
+        assertEquals(0, waiter.notifications.get());
+        assertEquals(BlockingDownload.SIZE, waiter.sharedTotal);
+        assertNotSame(download.thread, waiter.sharedThread);
+    }
+
+    @Test
+    public void differentFilesDownloadInParallel() throws Exception {
+        BlockingDownload a = new BlockingDownload(new File("a"));
+        BlockingDownload b = new BlockingDownload(new File("b"));
+        Future<File> first = get("/a", new Monitor(), a);
+        Future<File> second = get("/b", new Monitor(), b);
+
+        assertEquals(true, a.started.await(5, TimeUnit.SECONDS));
+        assertEquals(true, b.started.await(5, TimeUnit.SECONDS));
+        a.release.countDown();
+        b.release.countDown();
+        assertSame(a.result, first.get(5, TimeUnit.SECONDS));
+        assertSame(b.result, second.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void cancelledWaiterLeavesDownloadRunning() throws Exception {
+        BlockingDownload download = new BlockingDownload(new File("a"));
+        Future<File> first = get("/a", new Monitor(), download);
+        download.started.await();
+        Monitor waiter = new Monitor();
+        Future<File> second = get("/a", waiter, download);
+
+        waiter.cancelled = true;
+        try {
+            second.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertSame(SeafException.userCancelledException, e.getCause());
+        }
+
+        download.release.countDown();
+        assertSame(download.result, first.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void waiterRestartsDownloadGivenUpByLeader() throws Exception {
+        // e.g. the leader's thread was interrupted
+        BlockingDownload interrupted = new BlockingDownload(null) {
+            @Override
+            public File download(ProgressMonitor monitor) throws Exception {
+                super.download(monitor);
+                throw SeafException.userCancelledException;
+            }
+        };
+        Future<File> first = get("/a", new Monitor(), interrupted);
+        interrupted.started.await();
+        BlockingDownload restarted = new BlockingDownload(new File("a"));
+        restarted.release.countDown();
+        Monitor waiter = new Monitor();
+        Future<File> second = get("/a", waiter, restarted);
+        assertTrue(waiter.attached.await(5, TimeUnit.SECONDS));
+        assertEquals(0, restarted.runs.get());
+        interrupted.release.countDown();
+
+        try {
+            first.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertSame(SeafException.userCancelledException, e.getCause());
+        }
+        assertSame(restarted.result, second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, restarted.runs.get());
+    }
+}
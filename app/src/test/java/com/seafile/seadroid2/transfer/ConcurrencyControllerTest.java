@@ -0,0 +1,139 @@
+package com.seafile.seadroid2.transfer;
+
+import com.google.common.base.Ticker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives {@link ConcurrencyController} against a simulated bandwidth-limited server.
+ * <p/>
+ * Each connection can move at most {@code perConnection} bytes per second (e.g. limited by the TCP window),
+ * all connections share a link of {@code capacity} bytes per second. Once the link is saturated
+ * requests start to queue and their latency grows with the overload.
+ */
+public class ConcurrencyControllerTest {
+    private static final long TICK_MILLIS = 100;
+    private static final long BASE_LATENCY_MILLIS = 50;
+
+    private static class FakeTicker extends Ticker {
+        long nanos;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+    }
+
+    private static class SimulatedServer {
+        final long capacity;
+        final long perConnection;
+
+        SimulatedServer(long capacity, long perConnection) {
+            this.capacity = capacity;
+            this.perConnection = perConnection;
+        }
+
+        long bytesPerTick(int connections) {
+            long total = Math.min(capacity, connections * perConnection);
+            return total / connections * TICK_MILLIS / 1000;
+        }
+
+        long latency(int connections) {
+            double load = (double) connections * perConnection / capacity;
+            return (long) (BASE_LATENCY_MILLIS * Math.max(1, load * load));
+        }
+    }
+
+    /**
+     * Run a queue of never ending tasks, as many as the controller allows
+     */
+    private static int run(ConcurrencyController controller, FakeTicker ticker,
+                           SimulatedServer server, int seconds) {
+        int active = 0;
+        for (long t = 0; t < seconds * 1000; t += TICK_MILLIS) {
+            while (active < controller.getLimit()) {
+                controller.onTaskStarted();
+                active++;
+            }
+            while (active > controller.getLimit()) {
+                controller.onTaskFinished(false);
+                active--;
+            }
+
+            ticker.nanos += TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+            for (int i = 0; i < active; i++) {
+                controller.onRequestLatency(server.latency(active));
+                controller.onBytesTransferred(server.bytesPerTick(active));
+            }
+        }
+        return controller.getLimit();
+    }
+
+    @Test
+    public void testIncreasesOnFastLink() {
+        FakeTicker ticker = new FakeTicker();
+        ConcurrencyController controller = new ConcurrencyController("test", 1, 8, 2, ticker);
+
+        // 1 Gbit LAN, a single connection gets 10 MB/s
+        SimulatedServer lan = new SimulatedServer(125 * 1024 * 1024, 10 * 1024 * 1024);
+        int limit = run(controller, ticker, lan, 120);
+
+        Assert.assertEquals(8, limit);
+    }
+
+    @Test
+    public void testConvergesToLinkCapacity() {
+        FakeTicker ticker = new FakeTicker();
+        ConcurrencyController controller = new ConcurrencyController("test", 1, 8, 2, ticker);
+
+        // the link is saturated by 4 connections
+        SimulatedServer server = new SimulatedServer(4 * 1024 * 1024, 1024 * 1024);
+        int limit = run(controller, ticker, server, 300);
+
+        Assert.assertTrue("limit " + limit, limit >= 3 && limit <= 5);
+    }
+
+    @Test
+    public void testDecreasesOnCongestedLink() {
+        FakeTicker ticker = new FakeTicker();
+        ConcurrencyController controller = new ConcurrencyController("test", 1, 8, 6, ticker);
+
+        // congested mobile link, already saturated by a single connection
+        SimulatedServer mobile = new SimulatedServer(64 * 1024, 128 * 1024);
+        int limit = run(controller, ticker, mobile, 120);
+
+        Assert.assertTrue("limit " + limit, limit <= 2);
+    }
+
+    @Test
+    public void testDecreasesOnNetworkErrors() {
+        FakeTicker ticker = new FakeTicker();
+        ConcurrencyController controller = new ConcurrencyController("test", 1, 8, 8, ticker);
+
+        for (int i = 0; i < 8; i++) {
+            controller.onTaskStarted();
+        }
+        controller.onTaskFinished(true);
+        ticker.nanos += ConcurrencyController.WINDOW_NANOS;
+        controller.onBytesTransferred(1);
+
+        Assert.assertEquals(5, controller.getLimit());
+    }
+
+    @Test
+    public void testStaysWithinBounds() {
+        FakeTicker ticker = new FakeTicker();
+        ConcurrencyController controller = new ConcurrencyController("test", 2, 3, 10, ticker);
+        Assert.assertEquals(3, controller.getLimit());
+
+        controller.setBounds(1, 1);
+        Assert.assertEquals(1, controller.getLimit());
+
+        controller.setBounds(4, 2);
+        Assert.assertEquals(4, controller.getLimit());
+        Assert.assertEquals(4, controller.getMaxLimit());
+    }
+}
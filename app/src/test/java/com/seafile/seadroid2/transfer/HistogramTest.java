@@ -0,0 +1,50 @@
+package com.seafile.seadroid2.transfer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HistogramTest {
+
+    @Test
+    public void bucketsArePowersOfTwo() {
+        Assert.assertEquals(0, Histogram.bucketOf(0));
+        Assert.assertEquals(1, Histogram.bucketOf(1));
+        Assert.assertEquals(2, Histogram.bucketOf(2));
+        Assert.assertEquals(2, Histogram.bucketOf(3));
+        Assert.assertEquals(11, Histogram.bucketOf(1024));
+        Assert.assertEquals(Histogram.BUCKET_COUNT - 1, Histogram.bucketOf(Long.MAX_VALUE));
+        Assert.assertEquals(2047, Histogram.upperBoundOf(11));
+    }
+
+    @Test
+    public void percentilesAreUpperBoundsWithinTwiceTheValue() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 10);
+        }
+
+        Assert.assertEquals(100, histogram.getCount());
+        Assert.assertEquals(10, histogram.getMin());
+        Assert.assertEquals(1000, histogram.getMax());
+        Assert.assertEquals(505, histogram.getMean());
+
+        long p50 = histogram.getPercentile(0.5);
+        Assert.assertTrue(p50 >= 500 && p50 < 1000);
+        long p90 = histogram.getPercentile(0.9);
+        Assert.assertTrue(p90 >= 900 && p90 <= 1000);
+        Assert.assertEquals(1000, histogram.getPercentile(1));
+    }
+
+    @Test
+    public void negativeValuesAreIgnoredAndResetClears() {
+        Histogram histogram = new Histogram();
+        histogram.record(-1);
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getPercentile(0.5));
+
+        histogram.record(42);
+        histogram.reset();
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getMax());
+    }
+}